@@ -0,0 +1,175 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import jp.co.laurus.android.accelerometergraph.BandEnergyDetector;
+import jp.co.laurus.android.accelerometergraph.ChannelDescriptor;
+import jp.co.laurus.android.accelerometergraph.FeatureExtractor;
+import jp.co.laurus.android.accelerometergraph.FeatureSet;
+import jp.co.laurus.android.accelerometergraph.FilterPresets;
+import jp.co.laurus.android.accelerometergraph.MinMaxPyramid;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SamplePipeline;
+import jp.co.laurus.android.accelerometergraph.StepDetector;
+import jp.co.laurus.android.accelerometergraph.TiltDetector;
+import jp.co.laurus.android.accelerometergraph.TriggerEngine;
+import jp.co.laurus.android.accelerometergraph.TriggerRule;
+
+/**
+ * センサーのスレッドでメモリを確保しないことの自己検査
+ *
+ * フィルタ、移動統計、トリガー、特徴量を全て有効にした{@link SamplePipeline}
+ * に onSample() と onSamples() でサンプルを渡し、ウォームアップの後の
+ * 確保量を ThreadMXBean.getThreadAllocatedBytes() で計る。
+ * 端末では{@link jp.co.laurus.android.accelerometergraph.CallbackStats}が
+ * Debug.getThreadAllocCount() で同じことを数える。
+ */
+public class AllocationCheck {
+
+	private static final float RATE = 200f;
+	private static final int SAMPLES = 4096;
+	private static final int BLOCK = 64;
+	private static final int WARMUP_ROUNDS = 20;
+	private static final int ROUNDS = 20;
+	private static final int ATTEMPTS = 3;
+	private static final int ROLLING_WINDOW = 1000;
+	// 2秒ごとに衝撃を入れてトリガーを発火させる
+	private static final int SHOCK_INTERVAL = 400;
+	private static final float SHOCK_THRESHOLD = 20f;
+
+	private static final String[] NAMES = { "RAW", "LOW", "HIGH",
+			"BIQUAD_LOW", "BIQUAD_HIGH", "BAND", "MOVING_AVERAGE", "MEDIAN",
+			"KALMAN" };
+
+	public static void run() {
+		Check.header("allocation");
+		com.sun.management.ThreadMXBean bean =
+				(com.sun.management.ThreadMXBean) ManagementFactory
+						.getThreadMXBean();
+		if (!bean.isThreadAllocatedMemorySupported()) {
+			System.out.println("thread allocation counting is not supported");
+			return;
+		}
+		bean.setThreadAllocatedMemoryEnabled(true);
+
+		Signal signal = new Signal();
+		for (int preset = 0; preset < NAMES.length; preset++) {
+			for (int block = 0; block < 2; block++) {
+				SamplePipeline pipeline = createPipeline(preset);
+				boolean single = block == 0;
+				for (int i = 0; i < WARMUP_ROUNDS; i++) {
+					feed(pipeline, signal, single);
+				}
+				// JIT の再コンパイル(脱最適化で消去したオブジェクトを作り直す)
+				// による1回限りの確保を除くため、何回か計って最小を使う
+				long allocated = Long.MAX_VALUE;
+				for (int attempt = 0; attempt < ATTEMPTS && allocated > 0;
+						attempt++) {
+					allocated = Math.min(allocated, measure(bean, pipeline,
+							signal, single));
+				}
+				long events = (long) ROUNDS
+						* (single ? SAMPLES : SAMPLES / BLOCK);
+				Check.near((single ? "onSample " : "onSamples ")
+						+ NAMES[preset] + " bytes/event",
+						(double) allocated / events, 0, 0);
+				Check.that(pipeline.getTrigger().getTriggerCount() > 0,
+						NAMES[preset] + " trigger fired");
+			}
+		}
+	}
+
+	// ROUNDS 回の間にこのスレッドで確保したバイト数
+	private static long measure(com.sun.management.ThreadMXBean bean,
+			SamplePipeline pipeline, Signal signal, boolean single) {
+		long thread = Thread.currentThread().getId();
+		long before = bean.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < ROUNDS; i++) {
+			feed(pipeline, signal, single);
+		}
+		long after = bean.getThreadAllocatedBytes(thread);
+		// getThreadAllocatedBytes() 自身の確保を除く
+		long overhead = bean.getThreadAllocatedBytes(thread) - after;
+		return after - before - overhead;
+	}
+
+	private static SamplePipeline createPipeline(int preset) {
+		SamplePipeline pipeline = new SamplePipeline(new SampleBuffer(2048),
+				new SampleBuffer(8192), MinMaxPyramid.createLive(16, 2048));
+		pipeline.setPreset(preset);
+		pipeline.setRollingWindow(ROLLING_WINDOW);
+		// 書き込みスレッドは動かさないので、発火はキューが一杯になった後は
+		// getMissed() に数えられる
+		pipeline.setTrigger(new TriggerEngine(new TriggerRule(
+				TriggerRule.MAGNITUDE, SHOCK_THRESHOLD, 0), 100, 100,
+				new File("."), ChannelDescriptor.ACCELEROMETER));
+		FeatureSet features = new FeatureSet(new FeatureExtractor[] {
+				new StepDetector(), new TiltDetector(),
+				new BandEnergyDetector(RATE, new float[] { 0.5f, 3f, 10f },
+						new float[] { 3f, 10f, 30f }) });
+		features.setReportInterval(1000000000L);
+		features.setOutput(new FeatureExtractor.Output() {
+			@Override
+			public void onFeature(int type, long timestamp, float[] values,
+					int count) {
+				// 受け取るだけ
+			}
+		});
+		pipeline.setFeatures(features);
+		pipeline.setOnSamplesAddedListener(
+				new SamplePipeline.OnSamplesAddedListener() {
+					@Override
+					public void onSamplesAdded() {
+						// 表示側の通知と同じく何もしない
+					}
+				});
+		return pipeline;
+	}
+
+	// タイムスタンプは呼ぶたびに進める
+	private static void feed(SamplePipeline pipeline, Signal signal,
+			boolean single) {
+		signal.advance();
+		if (single) {
+			for (int i = 0; i < SAMPLES; i++) {
+				pipeline.onSample(signal.timestamps[i], signal.x[i],
+						signal.y[i], signal.z[i]);
+			}
+		} else {
+			for (int i = 0; i < SAMPLES; i += BLOCK) {
+				pipeline.onSamples(signal.timestamps, signal.x, signal.y,
+						signal.z, i, BLOCK);
+			}
+		}
+	}
+
+	// 歩行に近い揺れと、ときどきの衝撃
+	private static class Signal {
+		final long[] timestamps = new long[SAMPLES];
+		final float[] x = new float[SAMPLES];
+		final float[] y = new float[SAMPLES];
+		final float[] z = new float[SAMPLES];
+		private long mNext;
+
+		Signal() {
+			for (int i = 0; i < SAMPLES; i++) {
+				double t = i / RATE;
+				x[i] = (float) (0.5 * Math.sin(2 * Math.PI * 0.9 * t));
+				y[i] = (float) (0.3 * Math.cos(2 * Math.PI * 1.7 * t));
+				z[i] = (float) (9.8 + 2.5 * Math.sin(2 * Math.PI * 1.8 * t));
+				if (i % SHOCK_INTERVAL == 0) {
+					z[i] += 20;
+				}
+			}
+		}
+
+		void advance() {
+			long interval = (long) (1e9 / RATE);
+			for (int i = 0; i < SAMPLES; i++) {
+				mNext += interval;
+				timestamps[i] = mNext;
+			}
+		}
+	}
+}
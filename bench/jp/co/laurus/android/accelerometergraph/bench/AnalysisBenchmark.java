@@ -0,0 +1,79 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+import java.util.Random;
+
+import jp.co.laurus.android.accelerometergraph.ArchiveFormat;
+import jp.co.laurus.android.accelerometergraph.ArchiveWriter;
+import jp.co.laurus.android.accelerometergraph.RecordingAnalyzer;
+import jp.co.laurus.android.accelerometergraph.Recorder;
+import jp.co.laurus.android.accelerometergraph.RecordingFormat;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SampleCodec;
+
+/**
+ * 保存した記録の集計をスレッド数ごとに測る(サンプル/秒)
+ *
+ * スレッド数は1からコア数(-Dbench.threads で変更できる)まで2倍ずつ増やす。
+ */
+public class AnalysisBenchmark {
+
+	private static final int SAMPLES = 1 << 21;
+
+	public static void run() throws Exception {
+		Harness.header("analysis (samples)");
+
+		final File recording = createRecording();
+		final File archive = File.createTempFile("bench",
+				ArchiveFormat.EXTENSION);
+		try {
+			ArchiveWriter.export(recording, archive, SampleCodec.ENCODING_XOR,
+					0);
+			int maxThreads = Integer.getInteger("bench.threads", Runtime
+					.getRuntime().availableProcessors());
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				measure("acc " + threads + " threads", recording, threads);
+				measure("acz " + threads + " threads", archive, threads);
+			}
+		} finally {
+			recording.delete();
+			archive.delete();
+		}
+	}
+
+	private static void measure(String name, final File file, int threads)
+			throws Exception {
+		final RecordingAnalyzer analyzer = new RecordingAnalyzer(threads);
+		try {
+			Harness.measure(name, "M", 1e-6, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					return analyzer.analyze(file, 0).getCount();
+				}
+			});
+		} finally {
+			analyzer.shutdown();
+		}
+	}
+
+	// 200Hz でノイズとときどき大きな揺れを含む加速度
+	private static File createRecording() throws Exception {
+		File file = File.createTempFile("bench", RecordingFormat.EXTENSION);
+		SampleBuffer raw = new SampleBuffer(SAMPLES);
+		Recorder recorder = new Recorder(raw, file, System.currentTimeMillis());
+		recorder.open();
+		Random random = new Random(1);
+		long timestamp = 0;
+		for (int i = 0; i < SAMPLES - 1; i++) {
+			timestamp += 5000000;
+			float shake = i % 1000 < 20 ? 15 : 0.2f;
+			float x = (float) (shake * random.nextGaussian());
+			float y = (float) (0.2 * random.nextGaussian());
+			float z = (float) (9.80665 + 0.2 * random.nextGaussian());
+			raw.add(timestamp, x, y, z, (float) Math.sqrt(x * x + y * y + z
+					* z));
+		}
+		recorder.close();
+		return file;
+	}
+}
@@ -0,0 +1,47 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+
+import jp.co.laurus.android.accelerometergraph.AnalysisReport;
+import jp.co.laurus.android.accelerometergraph.RecordingAnalyzer;
+
+/**
+ * 保存した記録をデスクトップの JVM で集計して表示する
+ *
+ * <pre>
+ * java -cp bench-bin jp.co.laurus.android.accelerometergraph.bench.AnalyzeRunner \
+ *     記録ファイル(.acc|.acz) [チャンネル番号] [スレッド数] [ピークのしきい値]
+ * </pre>
+ *
+ * スレッド数を省略するとコア数だけ使う。
+ */
+public class AnalyzeRunner {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: AnalyzeRunner file [channel] [threads]"
+					+ " [threshold]");
+			System.exit(1);
+		}
+		File file = new File(args[0]);
+		int channel = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime
+				.getRuntime().availableProcessors();
+
+		RecordingAnalyzer analyzer = new RecordingAnalyzer(threads);
+		if (args.length > 3) {
+			analyzer.setThreshold(Float.parseFloat(args[3]));
+		}
+		try {
+			long start = System.nanoTime();
+			AnalysisReport report = analyzer.analyze(file, channel);
+			long elapsed = System.nanoTime() - start;
+			System.out.println(report);
+			System.out.println();
+			System.out.println(threads + " threads, " + elapsed / 1000000
+					+ " ms");
+		} finally {
+			analyzer.shutdown();
+		}
+	}
+}
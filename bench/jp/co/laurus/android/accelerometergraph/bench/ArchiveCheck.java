@@ -0,0 +1,251 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import jp.co.laurus.android.accelerometergraph.ArchiveFormat;
+import jp.co.laurus.android.accelerometergraph.ArchiveReader;
+import jp.co.laurus.android.accelerometergraph.ArchiveWriter;
+import jp.co.laurus.android.accelerometergraph.ChannelDescriptor;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SampleCodec;
+
+/**
+ * 圧縮形式の自己検査
+ *
+ * {@link SampleCodec}の XOR 方式が NaN, -0, 無限大を含めてビット単位で
+ * 元に戻ること、量子化の方式の誤差が丸めの単位の半分に収まることを確かめる。
+ * {@link ArchiveWriter}で書いたファイルを{@link ArchiveReader}で途中の
+ * ブロックから読み、最後の端数のブロックと途切れたファイルも確かめる。
+ */
+public class ArchiveCheck {
+
+	private static final float QUANTUM = 0.001f;
+	private static final int COUNT = 1000;
+	private static final long INTERVAL = 10000000L;
+
+	// チャンネル0は端数のブロックで終わり、チャンネル1は2ブロック
+	private static final int[] CHANNEL_COUNTS = {
+			3 * ArchiveFormat.BLOCK_RECORDS + 123,
+			ArchiveFormat.BLOCK_RECORDS + 904 };
+	private static final ChannelDescriptor[] CHANNELS = {
+			ChannelDescriptor.ACCELEROMETER,
+			new ChannelDescriptor(ChannelDescriptor.TYPE_GYROSCOPE, 3,
+					"gyroscope") };
+
+	public static void run() throws Exception {
+		Check.header("archive");
+		checkXor();
+		checkDelta();
+		checkFile(SampleCodec.ENCODING_XOR, 0);
+		checkFile(SampleCodec.ENCODING_DELTA, QUANTUM);
+	}
+
+	// 特殊な値を含めて、ビット単位で同じ値に戻る
+	private static void checkXor() {
+		float[] specials = { Float.NaN, Float.intBitsToFloat(0x7fc12345),
+				Float.intBitsToFloat(0xffa00001), 0f, -0f,
+				Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+				Float.MIN_VALUE, -Float.MIN_VALUE, Float.MAX_VALUE,
+				-Float.MAX_VALUE, 9.80665f, 9.80665f };
+		Random random = new Random(16);
+		float[][] values = new float[3][COUNT];
+		for (int axis = 0; axis < 3; axis++) {
+			for (int i = 0; i < COUNT; i++) {
+				if (i % 7 == axis) {
+					int index = (i / 7 + axis) % specials.length;
+					values[axis][i] = specials[index];
+				} else if (i % 5 == 0) {
+					// 前と同じ値
+					values[axis][i] = i > 0 ? values[axis][i - 1] : 0;
+				} else {
+					values[axis][i] = Float.intBitsToFloat(random.nextInt());
+				}
+			}
+		}
+		float[][] decoded = roundTrip(new SampleCodec(
+				SampleCodec.ENCODING_XOR, 0), values,
+				timestamps(COUNT, random));
+		int mismatches = 0;
+		for (int axis = 0; axis < 3; axis++) {
+			for (int i = 0; i < COUNT; i++) {
+				if (Float.floatToRawIntBits(values[axis][i]) != Float
+						.floatToRawIntBits(decoded[axis][i])) {
+					mismatches++;
+				}
+			}
+		}
+		Check.equal("xor bit mismatches", mismatches, 0);
+	}
+
+	// 丸めの誤差は quantum / 2 (と float の演算での1、2 ULP)まで
+	private static void checkDelta() {
+		Random random = new Random(17);
+		float[][] values = new float[3][COUNT];
+		for (int axis = 0; axis < 3; axis++) {
+			for (int i = 0; i < COUNT; i++) {
+				values[axis][i] = (float) (random.nextGaussian() * 20);
+			}
+		}
+		float[][] decoded = roundTrip(new SampleCodec(
+				SampleCodec.ENCODING_DELTA, QUANTUM), values, timestamps(
+				COUNT, random));
+		// 許される誤差に対する比の最大
+		double ratio = 0;
+		for (int axis = 0; axis < 3; axis++) {
+			for (int i = 0; i < COUNT; i++) {
+				float value = values[axis][i];
+				double error = Math.abs(decoded[axis][i] - value);
+				ratio = Math.max(ratio, error
+						/ (QUANTUM / 2 + 2 * Math.ulp(value)));
+			}
+		}
+		Check.atMost("delta error / (quantum/2)", ratio, 1);
+	}
+
+	// 符号化して復元し、タイムスタンプが一致することも確かめる
+	private static float[][] roundTrip(SampleCodec codec, float[][] values,
+			long[] timestamps) {
+		byte[] encoded = new byte[SampleCodec.maxEncodedSize(COUNT) + 1];
+		int length = codec.encode(timestamps, values[0], values[1], values[2],
+				0, COUNT, encoded, 1);
+		long[] decodedTimestamps = new long[COUNT + 1];
+		float[][] decoded = new float[3][COUNT + 1];
+		int read = codec.decode(encoded, 1, COUNT, decodedTimestamps,
+				decoded[0], decoded[1], decoded[2], 1);
+		String name = codec.getEncoding() == SampleCodec.ENCODING_XOR ? "xor"
+				: "delta";
+		Check.equal(name + " bytes read", read, length);
+		boolean same = true;
+		for (int i = 0; i < COUNT; i++) {
+			same &= decodedTimestamps[i + 1] == timestamps[i];
+		}
+		Check.that(same, name + " timestamps");
+		float[][] result = new float[3][COUNT];
+		for (int axis = 0; axis < 3; axis++) {
+			System.arraycopy(decoded[axis], 1, result[axis], 0, COUNT);
+		}
+		return result;
+	}
+
+	// ほぼ一定の間隔にゆらぎを加えたタイムスタンプ
+	private static long[] timestamps(int count, Random random) {
+		long[] timestamps = new long[count];
+		long t = 123456789L;
+		for (int i = 0; i < count; i++) {
+			t += INTERVAL + random.nextInt(20000) - 10000;
+			timestamps[i] = t;
+		}
+		return timestamps;
+	}
+
+	private static void checkFile(int encoding, float quantum)
+			throws Exception {
+		String name = encoding == SampleCodec.ENCODING_XOR ? "xor file"
+				: "delta file";
+		File file = File.createTempFile("check", ArchiveFormat.EXTENSION);
+		try {
+			ArchiveWriter writer = new ArchiveWriter(file, CHANNELS, 1000L,
+					encoding, quantum);
+			writer.open();
+			for (int channel = 0; channel < CHANNELS.length; channel++) {
+				int count = CHANNEL_COUNTS[channel];
+				long[] timestamps = new long[count];
+				float[][] values = new float[3][count];
+				fill(channel, 0, count, timestamps, values);
+				writer.write(channel, timestamps, values[0], values[1],
+						values[2], 0, count);
+			}
+			writer.close();
+
+			ArchiveReader reader = new ArchiveReader(file);
+			try {
+				// ブロックはチャンネル0の 4096 x 3 + 123、チャンネル1の 4096 + 904
+				Check.equal(name + " blocks", reader.getBlockCount(), 6);
+				for (int channel = 0; channel < CHANNELS.length; channel++) {
+					Check.equal(name + " samples " + channel, reader
+							.getSampleCount(channel), CHANNEL_COUNTS[channel]);
+				}
+				Check.equal(name + " final partial block", reader
+						.getBlockSize(3), 123);
+
+				// 先頭から順にではなく、途中のブロックから飛び飛びに読む
+				ArchiveReader.Block block = reader.newBlock();
+				int[] order = { 2, 3, 5, 1, 4, 0 };
+				int[] firsts = { 0, 4096, 8192, 12288, 0, 4096 };
+				for (int i = 0; i < order.length; i++) {
+					int index = order[i];
+					reader.read(index, block);
+					int channel = reader.getBlockChannel(index);
+					Check.that(block.getIndex() == index
+							&& block.getChannel() == channel
+							&& block.size() == reader.getBlockSize(index),
+							name + " block " + index + " header");
+					Check.equal(name + " block " + index + " first timestamp",
+							reader.getBlockFirstTimestamp(index), timestamp(
+									channel, firsts[index]));
+					checkBlock(name + " block " + index, block, channel,
+							firsts[index], quantum);
+				}
+			} finally {
+				reader.close();
+			}
+
+			// 最後のブロックの途中で途切れたら、その前のブロックまでを読む
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(raf.length() - 10);
+			raf.close();
+			reader = new ArchiveReader(file);
+			try {
+				Check.equal(name + " truncated blocks", reader.getBlockCount(),
+						5);
+				Check.equal(name + " truncated samples", reader
+						.getSampleCount(1), ArchiveFormat.BLOCK_RECORDS);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void checkBlock(String name, ArchiveReader.Block block,
+			int channel, int first, float quantum) {
+		long[] timestamps = new long[block.size()];
+		float[][] values = new float[3][block.size()];
+		fill(channel, first, block.size(), timestamps, values);
+		boolean ok = true;
+		for (int i = 0; i < block.size(); i++) {
+			ok &= block.getTimestamp(i) == timestamps[i];
+			for (int axis = 0; axis < 3; axis++) {
+				float actual = block.get(SampleBuffer.CHANNEL_X + axis, i);
+				float expected = values[axis][i];
+				if (quantum == 0) {
+					ok &= Float.floatToRawIntBits(actual) == Float
+							.floatToRawIntBits(expected);
+				} else {
+					ok &= Math.abs(actual - expected) <= quantum / 2 + 2
+							* Math.ulp(expected);
+				}
+			}
+		}
+		Check.that(ok, name + " values");
+	}
+
+	// チャンネル channel の first 番目からのサンプル
+	private static void fill(int channel, int first, int count,
+			long[] timestamps, float[][] values) {
+		for (int i = 0; i < count; i++) {
+			int n = first + i;
+			timestamps[i] = timestamp(channel, n);
+			values[0][i] = (float) Math.sin(n * 0.01 + channel);
+			values[1][i] = (float) Math.cos(n * 0.003) * 3;
+			values[2][i] = 9.80665f + (n % 17) * 0.01f;
+		}
+	}
+
+	private static long timestamp(int channel, int n) {
+		return 5000000000L + channel * 1000L + n * INTERVAL;
+	}
+}
@@ -0,0 +1,42 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+/**
+ * 端末を使わずにデスクトップの JVM で実行するベンチマーク
+ *
+ * bench/pom.xml が Android に依存しないクラスと bench/ をまとめてビルドする。
+ * リポジトリの最上位から次のように実行する。
+ *
+ * <pre>
+ * mvn -B -f bench/pom.xml package
+ * java -cp bench/target/classes jp.co.laurus.android.accelerometergraph.bench.BenchmarkMain [名前の一部]
+ * java -jar bench/target/benchmarks.jar
+ * </pre>
+ *
+ * package は test フェーズで自己検査({@link CheckMain})を実行し、失敗すれば
+ * ビルドを止める(-DskipTests で省ける)。target/benchmarks.jar は JMH を
+ * 含めた jar で、同じ項目の一部を JMH で計る({@link PipelineJmh},
+ * {@link GeometryJmh}, {@link ExportJmh})。
+ *
+ * 計測時間は -Dbench.warmup, -Dbench.iteration (ミリ秒),
+ * -Dbench.iterations で変更できる。
+ * 精度の計測("accuracy" を含む項目)が上限を超えれば終了コード1で終わる。
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			Harness.setFilter(args[0]);
+		}
+		PipelineBenchmark.run();
+		GeometryBenchmark.run();
+		ExportBenchmark.run();
+		FftBenchmark.run();
+		CodecBenchmark.run();
+		AnalysisBenchmark.run();
+		TriggerBenchmark.run();
+		FusionBenchmark.run();
+		CatalogBenchmark.run();
+		FeatureBenchmark.run();
+		Check.exit();
+	}
+}
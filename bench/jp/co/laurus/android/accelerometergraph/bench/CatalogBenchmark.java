@@ -0,0 +1,165 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import jp.co.laurus.android.accelerometergraph.Recorder;
+import jp.co.laurus.android.accelerometergraph.RecordingFormat;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SessionIndexer;
+import jp.co.laurus.android.accelerometergraph.SessionSummary;
+
+/**
+ * 記録ファイルの索引の作成速度(サンプル/秒)と、変更のないディレクトリの
+ * 同期の速度(ファイル/秒)
+ *
+ * 保存先は SQLite の代わりにメモリ上の{@link SessionIndexer.Store}を使う。
+ * 追加・変更・削除したファイルだけが同期されることと、タイルの値が
+ * 合成した信号と一致することも確かめる。
+ */
+public class CatalogBenchmark {
+
+	private static final int SESSIONS = 20;
+	private static final float RATE = 200f;
+	private static final int SAMPLES = (int) (RATE * 60 * 3.5f);
+
+	public static void run() throws Exception {
+		Harness.header("catalog (samples)");
+
+		final File dir = File.createTempFile("bench", "catalog");
+		dir.delete();
+		dir.mkdirs();
+		try {
+			for (int i = 0; i < SESSIONS; i++) {
+				createRecording(new File(dir, "session" + i
+						+ RecordingFormat.EXTENSION), i, SAMPLES);
+			}
+
+			final SessionIndexer indexer = new SessionIndexer();
+			final File first = new File(dir, "session0"
+					+ RecordingFormat.EXTENSION);
+			Harness.measure("index", "samples", 1, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					return indexer.index(first).getSampleCount();
+				}
+			});
+
+			final MemoryStore store = new MemoryStore();
+			indexer.sync(dir, store);
+			Harness.measure("sync unchanged", "files", 1, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					if (indexer.sync(dir, store) != 0) {
+						throw new IllegalStateException("reindexed");
+					}
+					return SESSIONS;
+				}
+			});
+
+			if (Harness.isSelected("incremental")) {
+				checkIncremental(dir, indexer);
+			}
+		} finally {
+			File[] files = dir.listFiles();
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static void checkIncremental(File dir, SessionIndexer indexer)
+			throws Exception {
+		MemoryStore store = new MemoryStore();
+		int added = indexer.sync(dir, store);
+		int unchanged = indexer.sync(dir, store);
+
+		// 1つを書き直し(長さを変え)、1つを消し、1つを追加する
+		File changed = new File(dir, "session1" + RecordingFormat.EXTENSION);
+		changed.delete();
+		createRecording(changed, 1, SAMPLES / 2);
+		new File(dir, "session2" + RecordingFormat.EXTENSION).delete();
+		createRecording(new File(dir, "session" + SESSIONS
+				+ RecordingFormat.EXTENSION), SESSIONS, SAMPLES);
+		int updated = indexer.sync(dir, store);
+
+		System.out.println("sync added " + added + ", unchanged " + unchanged
+				+ ", updated " + updated + " (expected " + SESSIONS
+				+ ", 0, 2), indexed " + store.mSummaries.size());
+
+		// タイルと合成した信号の比較
+		SessionSummary summary = store.mSummaries.get("session0"
+				+ RecordingFormat.EXTENSION);
+		SessionSummary.Channel channel = summary.channels[0];
+		double maxError = 0;
+		for (int tile = 0; tile < channel.getTileCount(); tile++) {
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			for (int i = 0; i < SAMPLES - 1; i++) {
+				if ((int) (timestamp(i) / SessionIndexer.TILE_INTERVAL) == tile) {
+					min = Math.min(min, x(0, i));
+					max = Math.max(max, x(0, i));
+				}
+			}
+			maxError = Math.max(maxError, Math.abs(min
+					- channel.tileMin[SampleBuffer.CHANNEL_X][tile]));
+			maxError = Math.max(maxError, Math.abs(max
+					- channel.tileMax[SampleBuffer.CHANNEL_X][tile]));
+		}
+		System.out.println("tiles " + channel.getTileCount() + ", rate "
+				+ channel.sampleRate + "Hz, duration " + summary.getDuration()
+				+ "ms, tile error " + maxError);
+	}
+
+	private static long timestamp(int i) {
+		return (long) ((i + 1) * (1e9 / RATE));
+	}
+
+	// ゆっくり振幅の変わる正弦波(分ごとの最大が変わる)
+	private static float x(int session, int i) {
+		return (float) (Math.sin(i * 0.05 + session) * (1 + i / (RATE * 60)));
+	}
+
+	private static void createRecording(File file, int session, int samples)
+			throws Exception {
+		SampleBuffer raw = new SampleBuffer(samples);
+		Recorder recorder = new Recorder(raw, file, 1000000000000L + session
+				* 3600000L);
+		recorder.open();
+		for (int i = 0; i < samples - 1; i++) {
+			float x = x(session, i);
+			raw.add(timestamp(i), x, 0, 9.8f, (float) Math.sqrt(x * x + 9.8f
+					* 9.8f));
+		}
+		recorder.close();
+	}
+
+	// SQLite の代わり
+	private static class MemoryStore implements SessionIndexer.Store {
+		final Map<String, SessionSummary> mSummaries = new HashMap<String, SessionSummary>();
+
+		@Override
+		public String[] getIndexedNames() {
+			return mSummaries.keySet().toArray(new String[0]);
+		}
+
+		@Override
+		public boolean isIndexed(String name, long size, long modified) {
+			SessionSummary summary = mSummaries.get(name);
+			return summary != null && summary.size == size
+					&& summary.modified == modified;
+		}
+
+		@Override
+		public void put(SessionSummary summary) {
+			mSummaries.put(summary.name, summary);
+		}
+
+		@Override
+		public void remove(String name) {
+			mSummaries.remove(name);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+/**
+ * 自己検査の結果を数える
+ *
+ * 条件を満たさなければ内容を表示して失敗として数える。{@link #exit()}は
+ * 失敗があれば終了コード1で終わる({@link ConcurrencyStress}と同じ)。
+ */
+public class Check {
+
+	private static int sChecks;
+	private static int sFailures;
+
+	private Check() {
+	}
+
+	public static void header(String title) {
+		System.out.println();
+		System.out.println("# " + title);
+	}
+
+	/**
+	 * condition が偽なら失敗として数える
+	 *
+	 * @return condition
+	 */
+	public static boolean that(boolean condition, String message) {
+		sChecks++;
+		if (!condition) {
+			sFailures++;
+			System.out.println("FAILED: " + message);
+		}
+		return condition;
+	}
+
+	public static boolean equal(String name, long actual, long expected) {
+		return that(actual == expected, name + ": " + actual + ", expected "
+				+ expected);
+	}
+
+	/**
+	 * actual が expected ± tolerance に収まるかを確かめ、値を表示する
+	 *
+	 * NaN は常に失敗にする。
+	 */
+	public static boolean near(String name, double actual, double expected,
+			double tolerance) {
+		boolean ok = Math.abs(actual - expected) <= tolerance;
+		System.out.println(name + ": " + format(actual) + " (expected "
+				+ format(expected) + " +- " + format(tolerance) + ")");
+		return that(ok, name);
+	}
+
+	/**
+	 * actual が limit 以下かを確かめ、値を表示する
+	 */
+	public static boolean atMost(String name, double actual, double limit) {
+		System.out.println(name + ": " + format(actual) + " (limit "
+				+ format(limit) + ")");
+		return that(actual <= limit, name);
+	}
+
+	public static int getFailures() {
+		return sFailures;
+	}
+
+	/**
+	 * 結果を表示し、失敗があれば終了コード1で終わる
+	 */
+	public static void exit() {
+		System.out.println();
+		if (sFailures == 0) {
+			System.out.println("OK: " + sChecks + " checks");
+		} else {
+			System.out.println("FAILED: " + sFailures + " of " + sChecks
+					+ " checks");
+			System.exit(1);
+		}
+	}
+
+	private static String format(double value) {
+		double abs = Math.abs(value);
+		if (abs != 0 && (abs < 1e-3 || abs >= 1e6)) {
+			return String.format("%.3e", value);
+		}
+		return String.valueOf(Math.round(value * 10000) / 10000.0);
+	}
+}
@@ -0,0 +1,30 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+/**
+ * デスクトップの JVM で実行する自己検査をまとめて実行する
+ *
+ * bench/pom.xml の mvn test で実行される。次のように直接実行してもよい。
+ *
+ * <pre>
+ * java -cp bench/target/classes jp.co.laurus.android.accelerometergraph.bench.CheckMain
+ * </pre>
+ *
+ * 失敗があれば終了コード1で終わる。
+ */
+public class CheckMain {
+
+	public static void main(String[] args) throws Exception {
+		SampleBufferCheck.run();
+		FilterCheck.run();
+		FftCheck.run();
+		ArchiveCheck.run();
+		SessionIndexerCheck.run();
+		TriggerCheck.run();
+		AllocationCheck.run();
+		Check.header("fusion accuracy");
+		FusionBenchmark.checkAccuracy();
+		Check.header("feature accuracy");
+		FeatureBenchmark.checkAccuracy();
+		Check.exit();
+	}
+}
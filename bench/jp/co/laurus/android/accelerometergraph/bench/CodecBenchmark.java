@@ -0,0 +1,162 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+import java.util.Random;
+
+import jp.co.laurus.android.accelerometergraph.ArchiveWriter;
+import jp.co.laurus.android.accelerometergraph.CsvExporter;
+import jp.co.laurus.android.accelerometergraph.Recorder;
+import jp.co.laurus.android.accelerometergraph.RecordingFormat;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SampleCodec;
+
+/**
+ * 圧縮の速度(元のサンプルの MB/秒)と、CSV と比べた圧縮率
+ *
+ * 元のサンプルは1件あたり20バイト(タイムスタンプと3軸の float)として数える。
+ * 値は実際の加速度センサーと同じように分解能の単位に丸めたものを使う。
+ */
+public class CodecBenchmark {
+
+	private static final int SAMPLES = 1 << 18;
+	private static final int BLOCK = 4096;
+	private static final int RAW_SIZE = 8 + 4 * 3;
+	// 加速度センサーの分解能(1G / 256)
+	private static final float RESOLUTION = 9.80665f / 256;
+	// ENCODING_DELTA で丸める単位
+	private static final float QUANTUM = 0.001f;
+
+	private static final long[] sTimestamps = new long[SAMPLES];
+	private static final float[] sX = new float[SAMPLES];
+	private static final float[] sY = new float[SAMPLES];
+	private static final float[] sZ = new float[SAMPLES];
+
+	public static void run() throws Exception {
+		Harness.header("codec (MB of raw samples)");
+		createSamples();
+
+		measureCodec("encode xor", "decode xor", SampleCodec.ENCODING_XOR);
+		measureCodec("encode delta", "decode delta",
+				SampleCodec.ENCODING_DELTA);
+
+		// ファイルからの書き出しを CSV と比べる
+		final File source = createRecording();
+		final File csv = File.createTempFile("bench", ".csv");
+		final File xor = File.createTempFile("bench", ".acz");
+		final File delta = File.createTempFile("bench", ".acz");
+		try {
+			Harness.measure("export csv", "MB", 1e-6, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					return CsvExporter.export(source, csv) * RAW_SIZE;
+				}
+			});
+			Harness.measure("export xor", "MB", 1e-6, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					return ArchiveWriter.export(source, xor,
+							SampleCodec.ENCODING_XOR, 0) * RAW_SIZE;
+				}
+			});
+			Harness.measure("export delta", "MB", 1e-6, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					return ArchiveWriter.export(source, delta,
+							SampleCodec.ENCODING_DELTA, QUANTUM) * RAW_SIZE;
+				}
+			});
+			// 絞り込みで書き出さなかったときは表示しない
+			if (csv.length() > 0 && xor.length() > 0 && delta.length() > 0) {
+				printSize("csv", csv.length(), csv.length());
+				printSize("xor", xor.length(), csv.length());
+				printSize("delta", delta.length(), csv.length());
+			}
+		} finally {
+			source.delete();
+			csv.delete();
+			xor.delete();
+			delta.delete();
+		}
+	}
+
+	private static void measureCodec(String encodeName, String decodeName,
+			int encoding) throws Exception {
+		final SampleCodec codec = new SampleCodec(encoding, QUANTUM);
+		final byte[] encoded = new byte[SampleCodec.maxEncodedSize(BLOCK)
+				* (SAMPLES / BLOCK)];
+		final int[] lengths = new int[SAMPLES / BLOCK];
+		Harness.measure(encodeName, "MB", 1e-6, new Harness.Task() {
+			@Override
+			public long run() throws Exception {
+				int position = 0;
+				for (int block = 0; block < lengths.length; block++) {
+					lengths[block] = codec.encode(sTimestamps, sX, sY, sZ,
+							block * BLOCK, BLOCK, encoded, position);
+					position += lengths[block];
+				}
+				return (long) SAMPLES * RAW_SIZE;
+			}
+		});
+
+		final long[] timestamps = new long[SAMPLES];
+		final float[] x = new float[SAMPLES];
+		final float[] y = new float[SAMPLES];
+		final float[] z = new float[SAMPLES];
+		Harness.measure(decodeName, "MB", 1e-6, new Harness.Task() {
+			@Override
+			public long run() throws Exception {
+				int position = 0;
+				for (int block = 0; block < lengths.length; block++) {
+					codec.decode(encoded, position, BLOCK, timestamps, x, y,
+							z, block * BLOCK);
+					position += lengths[block];
+				}
+				return (long) SAMPLES * RAW_SIZE;
+			}
+		});
+	}
+
+	private static void printSize(String name, long size, long csvSize) {
+		double perSample = (double) size / (SAMPLES - 1);
+		StringBuilder line = new StringBuilder();
+		line.append("size ").append(name).append(": ");
+		line.append(Math.round(perSample * 100) / 100.0).append(" B/sample");
+		if (size != csvSize) {
+			line.append(" (1/").append(
+					Math.round((double) csvSize / size * 10) / 10.0).append(
+					" of csv)");
+		}
+		System.out.println(line);
+	}
+
+	// 200Hz で少しばらついた間隔の、ノイズを含む加速度
+	private static void createSamples() {
+		Random random = new Random(1);
+		long timestamp = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			timestamp += 5000000 + random.nextInt(200000) - 100000;
+			sTimestamps[i] = timestamp;
+			sX[i] = quantize(2 * Math.sin(i * 0.05) + 0.05
+					* random.nextGaussian());
+			sY[i] = quantize(0.5 * Math.cos(i * 0.013) + 0.05
+					* random.nextGaussian());
+			sZ[i] = quantize(9.80665 + 0.05 * random.nextGaussian());
+		}
+	}
+
+	private static float quantize(double value) {
+		return Math.round(value / RESOLUTION) * RESOLUTION;
+	}
+
+	private static File createRecording() throws Exception {
+		File file = File.createTempFile("bench", RecordingFormat.EXTENSION);
+		SampleBuffer raw = new SampleBuffer(SAMPLES);
+		Recorder recorder = new Recorder(raw, file, System.currentTimeMillis());
+		recorder.open();
+		for (int i = 0; i < SAMPLES - 1; i++) {
+			raw.add(sTimestamps[i], sX[i], sY[i], sZ[i], 0);
+		}
+		recorder.close();
+		return file;
+	}
+}
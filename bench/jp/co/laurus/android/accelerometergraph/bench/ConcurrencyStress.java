@@ -0,0 +1,441 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.co.laurus.android.accelerometergraph.FilterPresets;
+import jp.co.laurus.android.accelerometergraph.MinMaxPyramid;
+import jp.co.laurus.android.accelerometergraph.RollingStats;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SamplePipeline;
+
+/**
+ * 書き込みスレッドと複数の読み込みスレッドを同時に動かし、受け渡しを確かめる
+ *
+ * 書き込むサンプルの値はシーケンス番号から決まる(x = 下位20ビット, y = -x,
+ * z = 上位ビット, r = 2x, タイムスタンプ = シーケンス番号)ので、読み込み側は
+ * 値の組み合わせと並び順だけで、欠けや混ざりを検出できる。
+ *
+ * <pre>
+ * java -cp bench-bin jp.co.laurus.android.accelerometergraph.bench.ConcurrencyStress [秒] [読み込みスレッド数]
+ * </pre>
+ *
+ * 不整合があれば終了コード1で終わる。
+ */
+public class ConcurrencyStress {
+
+	// 追い越しが頻繁に起こるように小さくする
+	private static final int CAPACITY = 1024;
+	private static final int MAX_BLOCK = 1500;
+	private static final int LOW_BITS = 20;
+	private static final int LOW_MASK = (1 << LOW_BITS) - 1;
+
+	private static final AtomicLong sErrors = new AtomicLong();
+	private static volatile long sDeadline;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int readers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+		System.out.println("# buffer (" + seconds / 2 + "s, " + readers
+				+ " readers of each kind)");
+		runBuffer(Math.max(1, seconds / 2) * 1000L, readers);
+		System.out.println("# pipeline (" + (seconds - seconds / 2) + "s)");
+		runPipeline(Math.max(1, seconds - seconds / 2) * 1000L, readers);
+
+		long errors = sErrors.get();
+		System.out.println(errors == 0 ? "OK" : "FAILED: " + errors
+				+ " errors");
+		if (errors > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * SampleBuffer だけを millis ミリ秒動かし、不整合の数を返す
+	 */
+	static long stressBuffer(long millis, int readers) throws Exception {
+		long errors = sErrors.get();
+		runBuffer(millis, readers);
+		return sErrors.get() - errors;
+	}
+
+	// SampleBuffer に add() と addAll() で書き込み、4種類の方法で読む
+	private static void runBuffer(long millis, int readers) throws Exception {
+		final SampleBuffer buffer = new SampleBuffer(CAPACITY);
+		List<Worker> workers = new ArrayList<Worker>();
+		workers.add(new Worker("writer") {
+			private final Block mBlock = new Block(MAX_BLOCK);
+			private final Random mRandom = new Random(1);
+			private long mSequence = 0;
+
+			@Override
+			protected void step() {
+				int count = 1 + mRandom.nextInt(mRandom.nextInt(8) == 0 ? MAX_BLOCK
+						: 64);
+				mBlock.fill(mSequence, count);
+				if (count == 1) {
+					buffer.add(mBlock.timestamps[0], mBlock.x[0], mBlock.y[0],
+							mBlock.z[0], mBlock.r[0]);
+				} else {
+					buffer.addAll(mBlock.timestamps, mBlock.x, mBlock.y,
+							mBlock.z, mBlock.r, 0, count);
+				}
+				mSequence += count;
+				count(count);
+			}
+		});
+		for (int i = 0; i < readers; i++) {
+			workers.add(new CursorReader("cursor " + i, buffer, false));
+			workers.add(new SnapshotReader("snapshot " + i, buffer));
+			workers.add(new ViewReader("view " + i, buffer));
+			workers.add(new LatestReader("latest " + i, buffer));
+		}
+		runAll(workers, millis);
+	}
+
+	// 設定を書き換えながら SamplePipeline に書き込み、履歴と統計を読む
+	private static void runPipeline(long millis, int readers) throws Exception {
+		final SamplePipeline pipeline = new SamplePipeline(new SampleBuffer(
+				CAPACITY), new SampleBuffer(CAPACITY), MinMaxPyramid
+				.createLive(16, CAPACITY));
+		List<Worker> workers = new ArrayList<Worker>();
+		workers.add(new Worker("writer") {
+			private final Block mBlock = new Block(MAX_BLOCK);
+			private final Random mRandom = new Random(2);
+			private long mSequence = 0;
+
+			@Override
+			protected void step() {
+				int count = 1 + mRandom.nextInt(256);
+				mBlock.fill(mSequence, count);
+				if (count == 1) {
+					pipeline.onSample(mBlock.timestamps[0], mBlock.x[0],
+							mBlock.y[0], mBlock.z[0]);
+				} else {
+					pipeline.onSamples(mBlock.timestamps, mBlock.x, mBlock.y,
+							mBlock.z, 0, count);
+				}
+				mSequence += count;
+				count(count);
+			}
+		});
+		workers.add(new Worker("settings") {
+			private final Random mRandom = new Random(3);
+			private final int[] mWindows = { 0, 1, 50, 500 };
+
+			@Override
+			protected void step() {
+				switch (mRandom.nextInt(3)) {
+				case 0:
+					pipeline.setPreset(mRandom.nextInt(FilterPresets.KALMAN + 1));
+					break;
+				case 1:
+					pipeline.setFilterRate(0.05f + mRandom.nextFloat() * 0.9f);
+					break;
+				default:
+					pipeline.setRollingWindow(mWindows[mRandom
+							.nextInt(mWindows.length)]);
+					break;
+				}
+				count(1);
+				Thread.yield();
+			}
+		});
+		for (int i = 0; i < readers; i++) {
+			// RAW の履歴はフィルタの影響を受けないので値まで確かめる
+			workers.add(new CursorReader("raw cursor " + i, pipeline
+					.getRawHistory(), true));
+			workers.add(new Worker("filtered " + i) {
+				private final SampleBuffer.Cursor mCursor = pipeline
+						.getHistory().newCursor();
+				private final Block mBlock = new Block(CAPACITY);
+				private final float[] mCurrents = new float[SampleBuffer.CHANNELS];
+				private long mLast = -1;
+
+				@Override
+				protected void step() {
+					int read = mCursor.read(mBlock.values, mBlock.timestamps,
+							CAPACITY);
+					for (int j = 0; j < read; j++) {
+						check(mBlock.timestamps[j] > mLast, "order");
+						mLast = mBlock.timestamps[j];
+					}
+					pipeline.getCurrents(mCurrents);
+					for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+						RollingStats stats = pipeline.getRollingStats(channel);
+						if (stats != null) {
+							RollingStats.Result result = stats.getResult();
+							check(result.size() <= stats.getWindow(), "window");
+							check(!Float.isNaN(result.getRms()), "rms");
+						}
+					}
+					count(read);
+				}
+			});
+		}
+		runAll(workers, millis);
+	}
+
+	private static void runAll(List<Worker> workers, long millis)
+			throws InterruptedException {
+		sDeadline = System.currentTimeMillis() + millis;
+		for (int i = 0; i < workers.size(); i++) {
+			workers.get(i).start();
+		}
+		for (int i = 0; i < workers.size(); i++) {
+			Worker worker = workers.get(i);
+			worker.join();
+			System.out.println(worker.report());
+		}
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) {
+			if (sErrors.incrementAndGet() <= 10) {
+				System.out.println("error: " + what + " in "
+						+ Thread.currentThread().getName());
+			}
+		}
+	}
+
+	// シーケンス番号から決まる値かを確かめる
+	private static void checkSample(long timestamp, float x, float y, float z,
+			float r) {
+		check(x == (timestamp & LOW_MASK) && y == -x
+				&& z == (timestamp >>> LOW_BITS) && r == 2 * x, "torn sample");
+	}
+
+	// 書き込みに使うサンプルの列
+	private static class Block {
+		final long[] timestamps;
+		final float[][] values;
+		final float[] x;
+		final float[] y;
+		final float[] z;
+		final float[] r;
+
+		Block(int capacity) {
+			timestamps = new long[capacity];
+			values = new float[SampleBuffer.CHANNELS][capacity];
+			x = values[SampleBuffer.CHANNEL_X];
+			y = values[SampleBuffer.CHANNEL_Y];
+			z = values[SampleBuffer.CHANNEL_Z];
+			r = values[SampleBuffer.CHANNEL_R];
+		}
+
+		void fill(long sequence, int count) {
+			for (int i = 0; i < count; i++) {
+				long s = sequence + i;
+				timestamps[i] = s;
+				x[i] = s & LOW_MASK;
+				y[i] = -x[i];
+				z[i] = s >>> LOW_BITS;
+				r[i] = 2 * x[i];
+			}
+		}
+
+		void check(int index) {
+			checkSample(timestamps[index], x[index], y[index], z[index],
+					r[index]);
+		}
+	}
+
+	// 期限まで step() を繰り返すスレッド
+	private abstract static class Worker extends Thread {
+		private long mSteps;
+		private long mItems;
+		private Throwable mError;
+
+		Worker(String name) {
+			super(name);
+		}
+
+		protected abstract void step();
+
+		protected void count(long items) {
+			mItems += items;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (System.currentTimeMillis() < sDeadline) {
+					step();
+					mSteps++;
+				}
+			} catch (Throwable e) {
+				mError = e;
+				sErrors.incrementAndGet();
+			}
+		}
+
+		String report() {
+			StringBuilder text = new StringBuilder();
+			text.append(getName()).append(": ").append(mSteps).append(
+					" steps, ").append(mItems).append(" items");
+			appendDetail(text);
+			if (mError != null) {
+				text.append(", ").append(mError);
+			}
+			return text.toString();
+		}
+
+		protected void appendDetail(StringBuilder text) {
+		}
+	}
+
+	// 読み飛ばした数と並び順が一致するかを確かめる
+	private static class CursorReader extends Worker {
+		private final SampleBuffer.Cursor mCursor;
+		private final Block mBlock = new Block(CAPACITY);
+		private final boolean mMagnitude;
+		private long mExpected;
+
+		/**
+		 * @param magnitude
+		 *            R が SamplePipeline で計算した実加速度か
+		 */
+		CursorReader(String name, SampleBuffer buffer, boolean magnitude) {
+			super(name);
+			mMagnitude = magnitude;
+			mCursor = buffer.newCursor();
+			mExpected = mCursor.getPosition();
+		}
+
+		@Override
+		protected void step() {
+			long dropped = mCursor.getDropped();
+			int read = mCursor.read(mBlock.values, mBlock.timestamps,
+					1 + (int) (mExpected % CAPACITY));
+			// 全部が追い越されたときは 0 件で戻る
+			mExpected += mCursor.getDropped() - dropped;
+			if (read == 0) {
+				Thread.yield();
+				return;
+			}
+			for (int i = 0; i < read; i++) {
+				check(mBlock.timestamps[i] == mExpected + i, "cursor sequence");
+				if (mMagnitude) {
+					float x = mBlock.x[i];
+					float y = mBlock.y[i];
+					float z = mBlock.z[i];
+					checkSample(mBlock.timestamps[i], x, y, z, 2 * x);
+					check(mBlock.r[i] == (float) Math.sqrt(x * x + y * y + z
+							* z), "magnitude");
+				} else {
+					mBlock.check(i);
+				}
+			}
+			mExpected += read;
+			check(mCursor.getPosition() == mExpected, "cursor position");
+			count(read);
+		}
+
+		@Override
+		protected void appendDetail(StringBuilder text) {
+			text.append(", ").append(mCursor.getDropped()).append(" dropped");
+		}
+	}
+
+	private static class SnapshotReader extends Worker {
+		private final SampleBuffer mBuffer;
+		private final SampleBuffer.Snapshot mSnapshot = new SampleBuffer.Snapshot(
+				CAPACITY);
+		private final Random mRandom = new Random();
+
+		SnapshotReader(String name, SampleBuffer buffer) {
+			super(name);
+			mBuffer = buffer;
+		}
+
+		@Override
+		protected void step() {
+			mBuffer.snapshot(mSnapshot, 1 + mRandom.nextInt(CAPACITY));
+			SampleBuffer.Snapshot snapshot = mSnapshot;
+			long first = snapshot.getFirstSequence();
+			for (int i = 0; i < snapshot.size(); i++) {
+				check(snapshot.getTimestamp(i) == first + i,
+						"snapshot sequence");
+				checkSample(snapshot.getTimestamp(i), snapshot.get(
+						SampleBuffer.CHANNEL_X, i), snapshot.get(
+						SampleBuffer.CHANNEL_Y, i), snapshot.get(
+						SampleBuffer.CHANNEL_Z, i), snapshot.get(
+						SampleBuffer.CHANNEL_R, i));
+			}
+			count(snapshot.size());
+		}
+	}
+
+	// 上書きされていなかった参照だけを確かめ、上書きされた回数を数える
+	private static class ViewReader extends Worker {
+		private final SampleBuffer mBuffer;
+		private final SampleBuffer.View mView = new SampleBuffer.View();
+		private final Block mBlock = new Block(CAPACITY);
+		private final Random mRandom = new Random();
+		private long mOverwritten;
+
+		ViewReader(String name, SampleBuffer buffer) {
+			super(name);
+			mBuffer = buffer;
+		}
+
+		@Override
+		protected void step() {
+			SampleBuffer.View view = mView;
+			mBuffer.view(view, Long.MAX_VALUE, 1 + mRandom.nextInt(CAPACITY));
+			int size = view.size();
+			for (int i = 0; i < size; i++) {
+				mBlock.timestamps[i] = view.getTimestamp(i);
+				for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+					mBlock.values[channel][i] = view.get(channel, i);
+				}
+			}
+			if (!view.isValid()) {
+				mOverwritten++;
+				return;
+			}
+			long first = view.getFirstSequence();
+			for (int i = 0; i < size; i++) {
+				check(mBlock.timestamps[i] == first + i, "view sequence");
+				mBlock.check(i);
+			}
+			count(size);
+		}
+
+		@Override
+		protected void appendDetail(StringBuilder text) {
+			text.append(", ").append(mOverwritten).append(" overwritten");
+		}
+	}
+
+	// 最新の値がチャンネル間で一貫し、逆戻りしないかを確かめる
+	private static class LatestReader extends Worker {
+		private final SampleBuffer mBuffer;
+		private final float[] mValues = new float[SampleBuffer.CHANNELS];
+		private long mLast = -1;
+
+		LatestReader(String name, SampleBuffer buffer) {
+			super(name);
+			mBuffer = buffer;
+		}
+
+		@Override
+		protected void step() {
+			if (!mBuffer.getLatest(mValues)) {
+				return;
+			}
+			float x = mValues[SampleBuffer.CHANNEL_X];
+			long sequence = ((long) mValues[SampleBuffer.CHANNEL_Z] << LOW_BITS)
+					| (long) x;
+			checkSample(sequence, x, mValues[SampleBuffer.CHANNEL_Y],
+					mValues[SampleBuffer.CHANNEL_Z],
+					mValues[SampleBuffer.CHANNEL_R]);
+			check(sequence >= mLast, "latest order");
+			mLast = sequence;
+			count(1);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jp.co.laurus.android.accelerometergraph.CsvExporter;
+import jp.co.laurus.android.accelerometergraph.Recorder;
+import jp.co.laurus.android.accelerometergraph.RecordingExporter;
+import jp.co.laurus.android.accelerometergraph.RecordingFormat;
+import jp.co.laurus.android.accelerometergraph.RecordingReader;
+import jp.co.laurus.android.accelerometergraph.Resampler;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SampleCodec;
+
+/**
+ * 記録ファイルの CSV への書き出し速度(出力 MB/秒)と、形式ごとの
+ * 書き出し速度(サンプル/秒)
+ *
+ * "csv legacy" は String.valueOf() で1行ずつ文字列を作る以前の書き出し。
+ */
+public class ExportBenchmark {
+
+	private static final int SAMPLES = 1 << 18;
+
+	public static void run() throws Exception {
+		Harness.header("export (MB of CSV)");
+
+		final File source = createRecording();
+		final File destination = File.createTempFile("bench", ".csv");
+		try {
+			Harness.measure("csv", "MB", 1e-6, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					CsvExporter.export(source, destination);
+					return destination.length();
+				}
+			});
+			Harness.measure("csv resampled linear", "MB", 1e-6,
+					new Harness.Task() {
+						@Override
+						public long run() throws Exception {
+							CsvExporter.exportResampled(source, destination,
+									Resampler.LINEAR, 200);
+							return destination.length();
+						}
+					});
+			Harness.measure("csv resampled sinc", "MB", 1e-6,
+					new Harness.Task() {
+						@Override
+						public long run() throws Exception {
+							CsvExporter.exportResampled(source, destination,
+									Resampler.SINC, 200);
+							return destination.length();
+						}
+					});
+
+			Harness.header("export (M samples)");
+			final RecordingExporter exporter = new RecordingExporter();
+			Harness.measure("csv legacy", "M", 1e-6, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					return exportLegacy(source, destination);
+				}
+			});
+			Harness.measure("csv", "M", 1e-6, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					return exporter.exportCsv(source, destination, 0);
+				}
+			});
+			Harness.measure("columnar", "M", 1e-6, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					return exporter.exportColumnar(source, destination);
+				}
+			});
+			Harness.measure("archive xor", "M", 1e-6, new Harness.Task() {
+				@Override
+				public long run() throws Exception {
+					return exporter.exportArchive(source, destination,
+							SampleCodec.ENCODING_XOR, 0);
+				}
+			});
+		} finally {
+			source.delete();
+			destination.delete();
+		}
+	}
+
+	// 以前の CsvExporter.export() と同じ書き出し(比較用)
+	private static long exportLegacy(File source, File destination)
+			throws IOException {
+		RecordingReader reader = new RecordingReader(source);
+		OutputStream output = null;
+		try {
+			output = new BufferedOutputStream(new FileOutputStream(
+					destination), 64 * 1024);
+			RecordingReader.Window window = reader.newWindow();
+			StringBuilder line = new StringBuilder();
+			long count = reader.getSampleCount();
+			for (long index = 0; index < count; index += RecordingFormat.CHUNK_RECORDS) {
+				reader.read(window, index, RecordingFormat.CHUNK_RECORDS);
+				for (int i = 0; i < window.size(); i++) {
+					line.setLength(0);
+					line.append(window.getTimestamp(i));
+					line.append(",");
+					line.append(String.valueOf(window.get(
+							SampleBuffer.CHANNEL_X, i)));
+					line.append(",");
+					line.append(String.valueOf(window.get(
+							SampleBuffer.CHANNEL_Y, i)));
+					line.append(",");
+					line.append(String.valueOf(window.get(
+							SampleBuffer.CHANNEL_Z, i)));
+					line.append("\n");
+					output.write(line.toString().getBytes());
+				}
+			}
+			return count;
+		} finally {
+			if (output != null) {
+				output.close();
+			}
+			reader.close();
+		}
+	}
+
+	// 200Hz で少しばらついた間隔の記録を作る
+	static File createRecording() throws Exception {
+		File file = File.createTempFile("bench", RecordingFormat.EXTENSION);
+		SampleBuffer raw = new SampleBuffer(SAMPLES);
+		Recorder recorder = new Recorder(raw, file, System.currentTimeMillis());
+		recorder.open();
+		long timestamp = 0;
+		for (int i = 0; i < SAMPLES - 1; i++) {
+			timestamp += 5000000 + (i % 7) * 100000;
+			float x = (float) Math.sin(i * 0.05);
+			float y = (float) Math.cos(i * 0.03);
+			float z = 9.8f;
+			raw.add(timestamp, x, y, z, (float) Math.sqrt(x * x + y * y + z
+					* z));
+		}
+		recorder.close();
+		return file;
+	}
+}
@@ -0,0 +1,87 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import jp.co.laurus.android.accelerometergraph.RecordingExporter;
+import jp.co.laurus.android.accelerometergraph.SampleCodec;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 記録ファイルの形式ごとの書き出し速度(JMH)
+ *
+ * 書き出し1回の時間に加えて、出力したバイト数(bytes)と
+ * サンプル数(samples)を1秒あたりの補助カウンタとして表示する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportJmh {
+
+	private File mSource;
+	private File mDestination;
+	private final RecordingExporter mExporter = new RecordingExporter();
+
+	/**
+	 * 1秒あたりの出力量
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Output {
+		public long bytes;
+		public long samples;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			bytes = 0;
+			samples = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		mSource = ExportBenchmark.createRecording();
+		mDestination = File.createTempFile("bench", ".out");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mSource.delete();
+		mDestination.delete();
+	}
+
+	@Benchmark
+	public void csv(Output output) throws Exception {
+		output.samples += mExporter.exportCsv(mSource, mDestination, 0);
+		output.bytes += mDestination.length();
+	}
+
+	@Benchmark
+	public void columnar(Output output) throws Exception {
+		output.samples += mExporter.exportColumnar(mSource, mDestination);
+		output.bytes += mDestination.length();
+	}
+
+	@Benchmark
+	public void archiveXor(Output output) throws Exception {
+		output.samples += mExporter.exportArchive(mSource, mDestination,
+				SampleCodec.ENCODING_XOR, 0);
+		output.bytes += mDestination.length();
+	}
+}
@@ -0,0 +1,350 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.util.Random;
+
+import jp.co.laurus.android.accelerometergraph.BandEnergyDetector;
+import jp.co.laurus.android.accelerometergraph.FeatureExtractor;
+import jp.co.laurus.android.accelerometergraph.FeatureSet;
+import jp.co.laurus.android.accelerometergraph.MinMaxPyramid;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SamplePipeline;
+import jp.co.laurus.android.accelerometergraph.StepDetector;
+import jp.co.laurus.android.accelerometergraph.TiltDetector;
+
+/**
+ * 特徴量の処理量(サンプル/秒)と、合成の信号での精度
+ *
+ * 精度は、歩数と歩調が分かっている歩行・走行、決まった時刻に 45 度ずつ
+ * 傾ける動き、振幅が分かっている2つの正弦波で求める。どれも雑音を加える。
+ * {@link #checkAccuracy}で許容範囲と比べ、外れれば{@link Check}の失敗として
+ * 数える({@link CheckMain}と{@link BenchmarkMain}は終了コード1で終わる)。
+ */
+public class FeatureBenchmark {
+
+	private static final int SAMPLES = 4096;
+	private static final int BLOCK = 256;
+	private static final float GRAVITY = 9.80665f;
+
+	// 精度の計測
+	private static final float RATE = 50f;
+	private static final float SECONDS = 120f;
+	private static final double NOISE = 0.3;
+	// 歩行と走行(歩/秒, 振幅 m/s^2)
+	private static final float[] STEP_FREQUENCIES = { 1.8f, 2.7f };
+	private static final float[] STEP_AMPLITUDES = { 2.5f, 6f };
+	private static final String[] STEP_NAMES = { "walk", "run" };
+	// 傾ける時刻(秒)と角度(度)
+	private static final float[] TILT_TIMES = { 20f, 50f, 80f };
+	private static final float TILT_ANGLE = 45f;
+	private static final float TILT_DURATION = 0.5f;
+	// 帯と正弦波(Hz, 振幅 m/s^2)
+	private static final float BAND_RATE = 100f;
+	private static final float[] BAND_LOWS = { 0.5f, 3f, 10f };
+	private static final float[] BAND_HIGHS = { 3f, 10f, 30f };
+	private static final float[] TONE_FREQUENCIES = { 2f, 12f };
+	private static final float[] TONE_AMPLITUDES = { 1f, 0.3f };
+	private static final double BAND_NOISE = 0.05;
+
+	// 許容範囲
+	private static final double STEP_TOLERANCE = 0.01;
+	private static final double CADENCE_TOLERANCE = 0.02;
+	// 傾けた時刻から検出までの時間(平滑化と HOLD_TIME の分だけ遅れる, 秒)
+	private static final double MAX_TILT_DELAY = 2;
+	private static final double TILT_ANGLE_TOLERANCE = 5;
+	private static final double BAND_TOLERANCE = 0.05;
+	// 正弦波のない帯に漏れる雑音と隣の帯の成分
+	private static final double MAX_EMPTY_BAND_RMS = 0.1;
+
+	public static void run() throws Exception {
+		Harness.header("features (samples)");
+
+		final Signal signal = new Signal(SAMPLES, RATE);
+		signal.addSteps(STEP_FREQUENCIES[0], STEP_AMPLITUDES[0], new Random(1));
+		final FeatureExtractor[] extractors = {
+				new StepDetector(),
+				new TiltDetector(),
+				new BandEnergyDetector(RATE, BAND_LOWS, clamp(BAND_HIGHS,
+						RATE / 2)) };
+		final String[] names = { "steps", "tilt", "band energy" };
+		Collector collector = new Collector();
+		for (int e = 0; e < extractors.length; e++) {
+			final FeatureExtractor extractor = extractors[e];
+			extractor.setOutput(collector);
+			Harness.measure(names[e], "samples", 1, new Harness.Task() {
+				@Override
+				public long run() {
+					for (int i = 0; i < SAMPLES; i += BLOCK) {
+						extractor.process(signal.timestamps, signal.x,
+								signal.y, signal.z, signal.r, i, BLOCK);
+					}
+					return SAMPLES;
+				}
+			});
+		}
+
+		// パイプラインに組み込んだときの処理量
+		for (int features = 0; features < 2; features++) {
+			final SamplePipeline pipeline = new SamplePipeline(
+					new SampleBuffer(2048), new SampleBuffer(8192),
+					MinMaxPyramid.createLive(16, 2048));
+			if (features > 0) {
+				FeatureSet set = new FeatureSet(extractors);
+				set.setOutput(collector);
+				pipeline.setFeatures(set);
+			}
+			Harness.measure(features > 0 ? "onSamples features"
+					: "onSamples no features", "samples", 1,
+					new Harness.Task() {
+						@Override
+						public long run() {
+							for (int i = 0; i < SAMPLES; i += BLOCK) {
+								pipeline.onSamples(signal.timestamps, signal.x,
+										signal.y, signal.z, i, BLOCK);
+							}
+							return SAMPLES;
+						}
+					});
+		}
+
+		if (Harness.isSelected("accuracy")) {
+			checkAccuracy();
+		}
+	}
+
+	/**
+	 * 精度を求めて表示し、許容範囲を外れたものを{@link Check}の失敗として数える
+	 */
+	static void checkAccuracy() {
+		measureSteps();
+		measureTilt();
+		measureBands();
+	}
+
+	private static void measureSteps() {
+		int count = (int) (RATE * SECONDS);
+		for (int kind = 0; kind < STEP_FREQUENCIES.length; kind++) {
+			Signal signal = new Signal(count, RATE);
+			signal.addSteps(STEP_FREQUENCIES[kind], STEP_AMPLITUDES[kind],
+					new Random(kind + 1));
+			StepDetector detector = new StepDetector();
+			Collector collector = new Collector();
+			detector.setOutput(collector);
+			signal.process(detector);
+
+			// 最初の区間は歩き始めなので歩調の平均に含めない
+			double cadence = 0;
+			int reports = 0;
+			for (int i = 1; i < collector.count; i++) {
+				if (collector.types[i] == FeatureExtractor.TYPE_STEPS) {
+					cadence += collector.values[i][1];
+					reports++;
+				}
+			}
+			String name = "steps " + STEP_NAMES[kind];
+			double expected = STEP_FREQUENCIES[kind] * SECONDS;
+			Check.near(name + " detected", detector.getTotal(), expected,
+					expected * STEP_TOLERANCE);
+			double spm = STEP_FREQUENCIES[kind] * 60;
+			Check.that(reports > 0, name + " reports cadence");
+			Check.near(name + " cadence (spm)", cadence / Math.max(1, reports),
+					spm, spm * CADENCE_TOLERANCE);
+		}
+	}
+
+	private static void measureTilt() {
+		int count = (int) (RATE * SECONDS);
+		Signal signal = new Signal(count, RATE);
+		signal.addTilts(TILT_TIMES, TILT_ANGLE, TILT_DURATION);
+		// 歩行の揺れでは反応しないこと
+		signal.addSteps(STEP_FREQUENCIES[0], STEP_AMPLITUDES[0], new Random(3));
+		TiltDetector detector = new TiltDetector();
+		Collector collector = new Collector();
+		detector.setOutput(collector);
+		signal.process(detector);
+
+		Check.equal("tilt changes", detector.getChanges(), TILT_TIMES.length);
+		// 最初の出力は、向きが落ち着いたときの基準(角度0)なので比べない
+		int events = 0;
+		for (int i = 0; i < collector.count; i++) {
+			if (collector.types[i] != FeatureExtractor.TYPE_TILT) {
+				continue;
+			}
+			double time = collector.timestamps[i] / 1e9;
+			float angle = collector.values[i][0];
+			if (events == 0) {
+				Check.that(angle == 0 && time < TILT_TIMES[0],
+						"tilt reference at " + time + " s: " + angle);
+			} else if (events <= TILT_TIMES.length) {
+				float tiltTime = TILT_TIMES[events - 1];
+				String name = "tilt " + events;
+				Check.near(name + " time (s)", time, tiltTime
+						+ MAX_TILT_DELAY / 2, MAX_TILT_DELAY / 2);
+				Check.near(name + " angle", angle, TILT_ANGLE,
+						TILT_ANGLE_TOLERANCE);
+			}
+			events++;
+		}
+		Check.equal("tilt events after the reference", events - 1,
+				TILT_TIMES.length);
+	}
+
+	private static void measureBands() {
+		int count = (int) (BAND_RATE * SECONDS);
+		Signal signal = new Signal(count, BAND_RATE);
+		Random random = new Random(4);
+		for (int i = 0; i < count; i++) {
+			double t = i / BAND_RATE;
+			double a = random.nextGaussian() * BAND_NOISE;
+			for (int tone = 0; tone < TONE_FREQUENCIES.length; tone++) {
+				a += TONE_AMPLITUDES[tone]
+						* Math.sin(2 * Math.PI * TONE_FREQUENCIES[tone] * t);
+			}
+			signal.z[i] += a;
+		}
+		signal.updateMagnitude();
+		BandEnergyDetector detector = new BandEnergyDetector(BAND_RATE,
+				BAND_LOWS, clamp(BAND_HIGHS, BAND_RATE / 2));
+		Collector collector = new Collector();
+		detector.setOutput(collector);
+		signal.process(detector);
+
+		// 最初の区間は平均の収束を待つので含めない
+		double[] sums = new double[BAND_LOWS.length];
+		int reports = 0;
+		for (int i = 1; i < collector.count; i++) {
+			if (collector.types[i] == FeatureExtractor.TYPE_BAND_ENERGY) {
+				for (int band = 0; band < sums.length; band++) {
+					sums[band] += collector.values[i][band];
+				}
+				reports++;
+			}
+		}
+		for (int band = 0; band < sums.length; band++) {
+			double expected = 0;
+			for (int tone = 0; tone < TONE_FREQUENCIES.length; tone++) {
+				if (TONE_FREQUENCIES[tone] >= BAND_LOWS[band]
+						&& TONE_FREQUENCIES[tone] < BAND_HIGHS[band]) {
+					expected += TONE_AMPLITUDES[tone] * TONE_AMPLITUDES[tone]
+							/ 2;
+				}
+			}
+			String name = "band " + BAND_LOWS[band] + "-" + BAND_HIGHS[band]
+					+ " Hz (center " + detector.getCenter(band) + ", block "
+					+ detector.getBlockSize(band) + ") rms";
+			double rms = sums[band] / Math.max(1, reports);
+			// 正弦波の RMS は sqrt(A^2 / 2)
+			if (expected > 0) {
+				Check.near(name, rms, Math.sqrt(expected), Math.sqrt(expected)
+						* BAND_TOLERANCE);
+			} else {
+				Check.atMost(name, rms, MAX_EMPTY_BAND_RMS);
+			}
+		}
+	}
+
+	private static float[] clamp(float[] highs, float max) {
+		float[] result = new float[highs.length];
+		for (int i = 0; i < highs.length; i++) {
+			result[i] = Math.min(highs[i], max);
+		}
+		return result;
+	}
+
+	// 出力された特徴量を全て保持する
+	private static class Collector implements FeatureExtractor.Output {
+		private static final int CAPACITY = 1024;
+
+		final int[] types = new int[CAPACITY];
+		final long[] timestamps = new long[CAPACITY];
+		final float[][] values =
+				new float[CAPACITY][FeatureExtractor.MAX_VALUES];
+		int count;
+
+		@Override
+		public void onFeature(int type, long timestamp, float[] values,
+				int count) {
+			if (this.count == CAPACITY) {
+				return;
+			}
+			int index = this.count++;
+			types[index] = type;
+			timestamps[index] = timestamp;
+			System.arraycopy(values, 0, this.values[index], 0, count);
+		}
+	}
+
+	// 静止した端末(Z が重力)に動きを加えた合成の信号
+	private static class Signal {
+		final float rate;
+		final long[] timestamps;
+		final float[] x;
+		final float[] y;
+		final float[] z;
+		final float[] r;
+
+		Signal(int count, float rate) {
+			this.rate = rate;
+			timestamps = new long[count];
+			x = new float[count];
+			y = new float[count];
+			z = new float[count];
+			r = new float[count];
+			long interval = (long) (1e9 / rate);
+			for (int i = 0; i < count; i++) {
+				timestamps[i] = (i + 1) * interval;
+				z[i] = GRAVITY;
+			}
+			updateMagnitude();
+		}
+
+		// 1歩ごとに鋭い山と緩い谷の上下の加速度(と雑音)を加える
+		void addSteps(float frequency, float amplitude, Random random) {
+			for (int i = 0; i < z.length; i++) {
+				double phase = 2 * Math.PI * frequency * i / rate;
+				double a = amplitude
+						* (Math.sin(phase) + 0.3 * Math.sin(2 * phase));
+				double nx = random.nextGaussian() * NOISE;
+				double ny = random.nextGaussian() * NOISE;
+				double nz = random.nextGaussian() * NOISE;
+				// 重力の向きに加える
+				double norm = Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i]
+						* z[i]);
+				x[i] += a * x[i] / norm + nx;
+				y[i] += a * y[i] / norm + ny;
+				z[i] += a * z[i] / norm + nz;
+			}
+			updateMagnitude();
+		}
+
+		// 決まった時刻から duration かけて X 軸の回りに angle ずつ回す
+		void addTilts(float[] times, float angle, float duration) {
+			for (int i = 0; i < z.length; i++) {
+				double t = i / rate;
+				double theta = 0;
+				for (int k = 0; k < times.length; k++) {
+					double progress = (t - times[k]) / duration;
+					theta += Math.max(0, Math.min(1, progress));
+				}
+				theta = Math.toRadians(theta * angle);
+				x[i] = 0;
+				y[i] = (float) (GRAVITY * Math.sin(theta));
+				z[i] = (float) (GRAVITY * Math.cos(theta));
+			}
+			updateMagnitude();
+		}
+
+		void updateMagnitude() {
+			for (int i = 0; i < r.length; i++) {
+				r[i] = (float) Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i]
+						* z[i]);
+			}
+		}
+
+		void process(FeatureExtractor extractor) {
+			for (int i = 0; i < r.length; i += BLOCK) {
+				extractor.process(timestamps, x, y, z, r, i, Math.min(BLOCK,
+						r.length - i));
+			}
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import jp.co.laurus.android.accelerometergraph.Fft;
+import jp.co.laurus.android.accelerometergraph.SpectrumAnalyzer;
+import jp.co.laurus.android.accelerometergraph.WindowFunction;
+
+/**
+ * FFT とスペクトル解析の処理量(サンプル/秒)
+ */
+public class FftBenchmark {
+
+	// 最適化で計算が消されないように結果を足し込む
+	private static float sSink;
+
+	public static void run() throws Exception {
+		Harness.header("fft (samples)");
+
+		for (int size = 64; size <= 4096; size <<= 1) {
+			final Fft fft = new Fft(size);
+			final float[] source = new float[size];
+			final float[] data = new float[size];
+			for (int i = 0; i < size; i++) {
+				source[i] = (float) Math.sin(i * 0.1) + (float) Math.random();
+			}
+			final int length = size;
+			Harness.measure("realForward " + size, "Msamples", 1e-6,
+					new Harness.Task() {
+						@Override
+						public long run() {
+							System.arraycopy(source, 0, data, 0, length);
+							fft.realForward(data);
+							sSink += data[1];
+							return length;
+						}
+					});
+		}
+
+		// 1サンプルずつ追加したときの解析全体(hop = size/4)
+		for (int size = 256; size <= 4096; size <<= 2) {
+			final SpectrumAnalyzer analyzer = new SpectrumAnalyzer(size,
+					size / 4, WindowFunction.HANN);
+			analyzer.setSampleRate(100);
+			Harness.measure("analyzer " + size, "Msamples", 1e-6,
+					new Harness.Task() {
+						private float mPhase;
+
+						@Override
+						public long run() {
+							for (int i = 0; i < 1000; i++) {
+								mPhase += 0.1f;
+								analyzer.add((float) Math.sin(mPhase));
+							}
+							sSink += analyzer.getPeakFrequency();
+							return 1000;
+						}
+					});
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		run();
+		if (sSink == 12345) {
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.util.Random;
+
+import jp.co.laurus.android.accelerometergraph.Fft;
+import jp.co.laurus.android.accelerometergraph.SpectrumAnalyzer;
+import jp.co.laurus.android.accelerometergraph.WindowFunction;
+
+/**
+ * FFT とスペクトル解析の自己検査
+ *
+ * 窓をかけた乱数列の{@link Fft#realForward}を倍精度の素朴な DFT と比べ、
+ * パーセバルの等式(時間領域と周波数領域のエネルギーが等しいこと)を確かめる。
+ * {@link SpectrumAnalyzer}ではビンの周波数、正弦波のピークの周波数と振幅を
+ * 確かめる。
+ */
+public class FftCheck {
+
+	private static final int[] SIZES = { 4, 8, 16, 64, 256, 1024, 4096 };
+	private static final int[] WINDOWS = { WindowFunction.RECTANGULAR,
+			WindowFunction.HANN, WindowFunction.HAMMING };
+	// 誤差の上限(スペクトルの RMS に対する比)
+	private static final double DFT_TOLERANCE = 1e-5;
+	private static final double PARSEVAL_TOLERANCE = 1e-5;
+
+	private static final float RATE = 100f;
+	private static final int ANALYZER_SIZE = 256;
+	private static final float AMPLITUDE = 2f;
+
+	public static void run() {
+		Check.header("fft");
+		Random random = new Random(10);
+		for (int s = 0; s < SIZES.length; s++) {
+			for (int w = 0; w < WINDOWS.length; w++) {
+				checkTransform(SIZES[s], WINDOWS[w], random);
+			}
+		}
+		checkBadSize();
+		checkBins();
+		for (int w = 0; w < WINDOWS.length; w++) {
+			checkPeak(WINDOWS[w]);
+		}
+	}
+
+	private static void checkTransform(int size, int windowType,
+			Random random) {
+		String name = WindowFunction.NAMES[windowType] + " " + size;
+		float[] window = WindowFunction.create(windowType, size);
+		float[] data = new float[size];
+		double energy = 0;
+		for (int i = 0; i < size; i++) {
+			data[i] = (float) random.nextGaussian() * window[i];
+			energy += (double) data[i] * data[i];
+		}
+		double[] re = new double[size / 2 + 1];
+		double[] im = new double[size / 2 + 1];
+		dft(data, re, im);
+
+		new Fft(size).realForward(data);
+
+		// 並びは data[0] = X[0], data[1] = X[n/2], data[2k], data[2k+1] = X[k]
+		// パーセバルの等式から、スペクトルの RMS は sqrt(Σx^2)
+		double rms = Math.sqrt(energy);
+		double error = Math.max(Math.abs(data[0] - re[0]), Math.abs(data[1]
+				- re[size / 2]));
+		for (int k = 1; k < size / 2; k++) {
+			error = Math.max(error, Math.hypot(data[2 * k] - re[k],
+					data[2 * k + 1] - im[k]));
+		}
+		// 実数列の X[0] と X[n/2] は虚部が0
+		error = Math.max(error, Math.max(Math.abs(im[0]),
+				Math.abs(im[size / 2])));
+		Check.atMost("fft vs dft " + name, error / rms, DFT_TOLERANCE);
+
+		// パーセバルの等式 Σx^2 = (1/n) Σ|X|^2 (片側なので両端以外は2倍)
+		double spectrum = (double) data[0] * data[0] + (double) data[1]
+				* data[1];
+		for (int k = 1; k < size / 2; k++) {
+			spectrum += 2 * ((double) data[2 * k] * data[2 * k]
+					+ (double) data[2 * k + 1] * data[2 * k + 1]);
+		}
+		spectrum /= size;
+		Check.atMost("parseval " + name, Math.abs(spectrum - energy)
+				/ energy, PARSEVAL_TOLERANCE);
+	}
+
+	// X[k] = Σ x[t] e^(-2πikt/n) (k <= n/2)
+	private static void dft(float[] data, double[] re, double[] im) {
+		int size = data.length;
+		for (int k = 0; k < re.length; k++) {
+			double sumRe = 0;
+			double sumIm = 0;
+			for (int t = 0; t < size; t++) {
+				// 角度の誤差を抑えるため kt を n で割った余りを使う
+				double angle = 2 * Math.PI * ((long) k * t % size) / size;
+				sumRe += data[t] * Math.cos(angle);
+				sumIm -= data[t] * Math.sin(angle);
+			}
+			re[k] = sumRe;
+			im[k] = sumIm;
+		}
+	}
+
+	private static void checkBadSize() {
+		int[] sizes = { 0, 2, 6, 100 };
+		for (int i = 0; i < sizes.length; i++) {
+			boolean thrown = false;
+			try {
+				new Fft(sizes[i]);
+			} catch (IllegalArgumentException e) {
+				thrown = true;
+			}
+			Check.that(thrown, "size " + sizes[i] + " is rejected");
+		}
+	}
+
+	// ビン k の中心周波数 k * fs / n の正弦波は、そのビンだけに出る(矩形窓)
+	private static void checkBins() {
+		SpectrumAnalyzer analyzer = new SpectrumAnalyzer(ANALYZER_SIZE,
+				ANALYZER_SIZE, WindowFunction.RECTANGULAR);
+		analyzer.setSampleRate(RATE);
+		Check.equal("bin count", analyzer.getBinCount(), ANALYZER_SIZE / 2 + 1);
+		Check.near("bin width", analyzer.getBinWidth(), RATE / ANALYZER_SIZE,
+				1e-6);
+		int[] bins = { 1, 20, 77, ANALYZER_SIZE / 2 - 1 };
+		for (int b = 0; b < bins.length; b++) {
+			int bin = bins[b];
+			double frequency = bin * (double) RATE / ANALYZER_SIZE;
+			analyzer.reset();
+			addSine(analyzer, frequency);
+			float[] magnitudes = analyzer.getMagnitudes();
+			double leak = 0;
+			for (int k = 1; k < magnitudes.length; k++) {
+				if (k != bin) {
+					leak = Math.max(leak, magnitudes[k]);
+				}
+			}
+			Check.near("bin " + bin + " peak frequency", analyzer
+					.getPeakFrequency(), frequency, 1e-3);
+			Check.near("bin " + bin + " magnitude", magnitudes[bin],
+					AMPLITUDE, 1e-3);
+			Check.atMost("bin " + bin + " leakage", leak, 1e-3);
+		}
+	}
+
+	// ビンの間の周波数でも、補間したピークの周波数は 0.1 ビン以内
+	// (矩形窓は放物線に合わないので、最も近いビンであることだけを確かめる)
+	private static void checkPeak(int windowType) {
+		SpectrumAnalyzer analyzer = new SpectrumAnalyzer(ANALYZER_SIZE,
+				ANALYZER_SIZE, windowType);
+		analyzer.setSampleRate(RATE);
+		double width = analyzer.getBinWidth();
+		double frequency = 20.3 * width;
+		addSine(analyzer, frequency);
+		String name = WindowFunction.NAMES[windowType];
+		double tolerance = windowType == WindowFunction.RECTANGULAR ? 0.5 : 0.1;
+		Check.near(name + " interpolated peak (bins)",
+				analyzer.getPeakFrequency() / width, frequency / width,
+				tolerance);
+		// 窓で振幅が下がる(スカロップ損失)が、ビンの間でも 1/2 以上
+		Check.that(analyzer.getPeakMagnitude() >= AMPLITUDE / 2, name
+				+ " peak magnitude " + analyzer.getPeakMagnitude());
+	}
+
+	private static void addSine(SpectrumAnalyzer analyzer, double frequency) {
+		for (int i = 0; i < ANALYZER_SIZE; i++) {
+			analyzer.add((float) (AMPLITUDE * Math.sin(2 * Math.PI
+					* frequency * i / RATE)));
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import jp.co.laurus.android.accelerometergraph.FilterChain;
+import jp.co.laurus.android.accelerometergraph.FilterPresets;
+import jp.co.laurus.android.accelerometergraph.MinMaxPyramid;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SamplePipeline;
+
+/**
+ * フィルタのプリセットの自己検査
+ *
+ * 正弦波を通して、通過域の利得と阻止域の減衰が{@link FilterChain#getMagnitude}
+ * の値と合うかを確かめる。NaN を1つ入れても以降の出力が壊れないこと、
+ * インパルスの後に出力が非正規化数で止まらず0になること、reset() の後は
+ * 新しいフィルタと同じ出力になることも確かめる。
+ * {@link SamplePipeline}が、登録時の目安や推定したサンプリング周波数で
+ * フィルタを作り直すことも確かめる。
+ */
+public class FilterCheck {
+
+	private static final float RATE = 100f;
+	private static final float FILTER_RATE = 0.1f;
+	private static final int BLOCK = 64;
+	// 過渡応答が消えるまで捨てる時間と、振幅を求める時間(秒)
+	private static final float SETTLE_SECONDS = 20f;
+	private static final float MEASURE_SECONDS = 40f;
+
+	private static final String[] NAMES = { "raw", "low", "high",
+			"biquad low", "biquad high", "band", "moving average", "median",
+			"kalman" };
+	// getMagnitude() と比べる周波数(Hz)
+	private static final float[] FREQUENCIES = { 0.1f, 0.5f, 2f, 10f, 40f };
+	// プリセットごとの通過域(周波数, 最小の利得)と阻止域(周波数, 最大の利得)
+	private static final float[] PASS_FREQUENCIES = { 1f, 0.1f, 20f, 1f, 10f,
+			3.1623f, 0.5f, 0.5f, 0.1f };
+	private static final float[] PASS_GAINS = { 1f, 0.95f, 0.9f, 0.98f, 0.98f,
+			0.98f, 0.98f, 0.98f, 0.95f };
+	private static final float[] STOP_FREQUENCIES = { 0f, 20f, 0.1f, 40f,
+			0.1f, 0.1f, 12.5f, 0f, 20f };
+	private static final float[] STOP_GAINS = { 0f, 0.1f, 0.1f, 0.05f, 0.05f,
+			0.15f, 0.01f, 0f, 0.15f };
+
+	public static void run() {
+		Check.header("filters");
+		for (int preset = FilterPresets.RAW; preset <= FilterPresets.KALMAN;
+				preset++) {
+			checkResponse(preset);
+		}
+		checkMedianSpikes();
+		for (int preset = FilterPresets.RAW; preset <= FilterPresets.KALMAN;
+				preset++) {
+			checkNaN(preset);
+			checkDenormal(preset);
+		}
+		checkPipelineRate();
+	}
+
+	private static FilterChain create(int preset) {
+		return FilterPresets.create(preset, RATE, FILTER_RATE);
+	}
+
+	private static void checkResponse(int preset) {
+		String name = NAMES[preset];
+		FilterChain chain = create(preset);
+		for (int i = 0; i < FREQUENCIES.length; i++) {
+			double expected = chain.getMagnitude(RATE, FREQUENCIES[i]);
+			if (Double.isNaN(expected)) {
+				// 線形でない(中央値)
+				break;
+			}
+			double gain = measureGain(preset, FREQUENCIES[i]);
+			Check.near(name + " gain at " + FREQUENCIES[i] + " Hz", gain,
+					expected, 0.01 + 0.02 * expected);
+		}
+
+		float pass = PASS_FREQUENCIES[preset];
+		double gain = measureGain(preset, pass);
+		Check.that(gain >= PASS_GAINS[preset], name + " passband gain at "
+				+ pass + " Hz: " + gain + ", expected >= " + PASS_GAINS[preset]);
+		float stop = STOP_FREQUENCIES[preset];
+		if (stop > 0) {
+			Check.atMost(name + " stopband gain at " + stop + " Hz",
+					measureGain(preset, stop), STOP_GAINS[preset]);
+		}
+	}
+
+	// 振幅1の正弦波を通し、定常状態での出力の振幅を返す
+	private static double measureGain(int preset, float frequency) {
+		int settle = (int) (RATE * SETTLE_SECONDS);
+		// 周期の整数倍の長さで振幅を求める
+		double period = RATE / frequency;
+		int measure = (int) Math.round(Math.floor(MEASURE_SECONDS * frequency)
+				* period);
+		float[] values = new float[settle + measure];
+		double w = 2 * Math.PI * frequency / RATE;
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (float) Math.sin(w * i);
+		}
+		process(create(preset), values);
+
+		double sin = 0;
+		double cos = 0;
+		for (int i = settle; i < values.length; i++) {
+			sin += values[i] * Math.sin(w * i);
+			cos += values[i] * Math.cos(w * i);
+		}
+		return 2 * Math.sqrt(sin * sin + cos * cos) / measure;
+	}
+
+	// 中央値は線形でないので、ゆっくりした信号を通しつつ孤立した突起を除くことを確かめる
+	private static void checkMedianSpikes() {
+		int count = (int) (RATE * 10);
+		float[] values = new float[count];
+		float[] expected = new float[count];
+		double w = 2 * Math.PI * 0.2 / RATE;
+		for (int i = 0; i < count; i++) {
+			values[i] = (float) Math.sin(w * i);
+			expected[i] = values[i];
+			if (i % 50 == 25) {
+				values[i] += 20;
+			}
+		}
+		process(create(FilterPresets.MEDIAN), values);
+		double error = 0;
+		// 窓の半分(2サンプル)遅れる
+		for (int i = 10; i < count; i++) {
+			error = Math.max(error, Math.abs(values[i] - expected[i - 2]));
+		}
+		// 突起の前後では隣のサンプルが選ばれるので、1サンプル分の変化まで許す
+		Check.atMost("median spike residual", error, 2 * w);
+	}
+
+	// NaN を1つ入れても、その後の出力は有限の値に戻る
+	private static void checkNaN(int preset) {
+		String name = NAMES[preset];
+		int count = (int) (RATE * 10);
+		float[] input = new float[count];
+		double w = 2 * Math.PI * 1 / RATE;
+		for (int i = 0; i < count; i++) {
+			input[i] = (float) Math.sin(w * i);
+		}
+		float[] values = input.clone();
+		values[count / 4] = Float.NaN;
+		FilterChain chain = create(preset);
+		process(chain, values);
+		boolean finite = true;
+		for (int i = count / 2; i < count; i++) {
+			finite &= !Float.isNaN(values[i]) && !Float.isInfinite(values[i]);
+		}
+		Check.that(finite, name + " recovers from NaN");
+
+		// reset() の後は新しいフィルタと同じ出力になる
+		chain.reset();
+		values = input.clone();
+		process(chain, values);
+		float[] fresh = input.clone();
+		process(create(preset), fresh);
+		boolean same = true;
+		for (int i = 0; i < count; i++) {
+			same &= Float.floatToIntBits(values[i]) == Float
+					.floatToIntBits(fresh[i]);
+		}
+		Check.that(same, name + " reset() matches a new filter");
+	}
+
+	// インパルスの後に0を入れ続けると、出力は非正規化数で止まらず0になる
+	private static void checkDenormal(int preset) {
+		String name = NAMES[preset];
+		// 0.5Hz のハイパスが 1e-30 まで減衰するのに 30 秒ほどかかる
+		float[] values = new float[(int) (RATE * 60)];
+		values[0] = 1;
+		process(create(preset), values);
+		int subnormal = 0;
+		for (int i = values.length / 2; i < values.length; i++) {
+			float abs = Math.abs(values[i]);
+			if (abs != 0 && abs < Float.MIN_NORMAL) {
+				subnormal++;
+			}
+		}
+		Check.equal(name + " subnormal outputs", subnormal, 0);
+		Check.that(values[values.length - 1] == 0, name
+				+ " decays to 0 after an impulse: " + values[values.length - 1]);
+	}
+
+	// 仮の周波数(50Hz)で作った 5Hz のローパスは、100Hz のサンプルを受け取ると
+	// 10Hz のローパスになってしまう。目安を知らせたとき、知らせずに推定が
+	// 落ち着いたときのどちらも 100Hz で作り直されて 20Hz を減衰させる
+	private static void checkPipelineRate() {
+		double expected = create(FilterPresets.BIQUAD_LOW).getMagnitude(RATE,
+				20f);
+		for (int nominal = 0; nominal < 2; nominal++) {
+			SamplePipeline pipeline = new SamplePipeline(new SampleBuffer(256),
+					new SampleBuffer(256), MinMaxPyramid.createLive(1, 256));
+			pipeline.setPreset(FilterPresets.BIQUAD_LOW);
+			String name = "pipeline biquad low";
+			if (nominal == 1) {
+				pipeline.setNominalSampleRate(RATE);
+				Check.near("pipeline nominal sample rate", pipeline
+						.getSampleRate(), RATE, 0);
+				name += " (nominal)";
+			} else {
+				name += " (estimated)";
+			}
+			int settle = (int) (RATE * SETTLE_SECONDS);
+			int count = settle + (int) (RATE * 2);
+			double w = 2 * Math.PI * 20f / RATE;
+			long interval = (long) (1e9 / RATE);
+			float[] currents = new float[SampleBuffer.CHANNELS];
+			double amplitude = 0;
+			for (int i = 0; i < count; i++) {
+				pipeline.onSample((i + 1) * interval,
+						(float) Math.sin(w * i), 0, 0);
+				if (i >= settle && pipeline.getCurrents(currents)) {
+					amplitude = Math.max(amplitude, Math
+							.abs(currents[SampleBuffer.CHANNEL_X]));
+				}
+			}
+			Check.near(name + " sample rate", pipeline.getSampleRate(), RATE,
+					1);
+			Check.atMost(name + " gain at 20.0 Hz", amplitude,
+					expected * 1.1 + 0.01);
+		}
+	}
+
+	// パイプラインと同じようにブロックごとにその場で処理する
+	private static void process(FilterChain chain, float[] values) {
+		for (int i = 0; i < values.length; i += BLOCK) {
+			chain.process(values, values, i, Math.min(BLOCK, values.length - i));
+		}
+	}
+}
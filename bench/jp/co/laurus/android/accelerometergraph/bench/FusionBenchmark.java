@@ -0,0 +1,331 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.util.Random;
+
+import jp.co.laurus.android.accelerometergraph.ExponentialFilter;
+import jp.co.laurus.android.accelerometergraph.MinMaxPyramid;
+import jp.co.laurus.android.accelerometergraph.OrientationFilter;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SamplePipeline;
+import jp.co.laurus.android.accelerometergraph.SensorFusion;
+
+/**
+ * 姿勢の推定の処理量(サンプル/秒)と、重力を除いた加速度の誤差
+ *
+ * 誤差は、真の姿勢と動きが分かっている合成の動き(回し続けながら時々
+ * 揺らす)を 200Hz で再生して求める。ジャイロにはバイアスと雑音、加速度には
+ * 雑音を加える。比較のため、これまでの HIGH(指数移動平均を引く)で
+ * 重力を除いた場合の誤差も表示する。
+ *
+ * 誤差は{@link #checkAccuracy}で上限と比べ、超えれば{@link Check}の失敗として
+ * 数える({@link CheckMain}と{@link BenchmarkMain}は終了コード1で終わる)。
+ */
+public class FusionBenchmark {
+
+	private static final int SAMPLES = 4096;
+	private static final int BLOCK = 256;
+	private static final float GRAVITY = OrientationFilter.GRAVITY;
+
+	// 誤差の計測
+	private static final float RATE = 200f;
+	private static final float SECONDS = 120f;
+	// 最初の収束を待つ時間(秒)
+	private static final float SETTLE_SECONDS = 5f;
+	private static final int SUBSTEPS = 8;
+	private static final double[] GYRO_BIAS = { 0.02, -0.01, 0.015 };
+	private static final double GYRO_NOISE = 0.005;
+	private static final double ACCEL_NOISE = 0.05;
+	private static final float HIGH_PASS_RATE = 0.1f;
+
+	// 誤差の上限(計測値は rms 0.112, 鉛直 0.051, 傾き 0.33/1.54 度)
+	private static final double MAX_DEVICE_RMS = 0.15;
+	private static final double MAX_VERTICAL_RMS = 0.08;
+	private static final double MAX_TILT_MEAN = 0.5;
+	private static final double MAX_TILT = 2.5;
+	// HIGH に比べて誤差が少なくともこの割合まで下がること
+	private static final double MAX_HIGH_PASS_RATIO = 0.25;
+
+	public static void run() throws Exception {
+		Harness.header("fusion (samples)");
+
+		final Motion motion = new Motion(SAMPLES);
+		final OrientationFilter filter = new OrientationFilter();
+		final float[] out = new float[3];
+		Harness.measure("orientation update", "samples", 1,
+				new Harness.Task() {
+					@Override
+					public long run() {
+						for (int i = 0; i < SAMPLES; i++) {
+							filter.updateGyroscope(motion.timestamps[i],
+									motion.gx[i], motion.gy[i], motion.gz[i]);
+							filter.updateAccelerometer(motion.timestamps[i],
+									motion.ax[i], motion.ay[i], motion.az[i]);
+							filter.getLinearAcceleration(motion.ax[i],
+									motion.ay[i], motion.az[i], out, 0);
+							filter.toWorld(out[0], out[1], out[2], out, 0);
+						}
+						filter.reset();
+						return SAMPLES;
+					}
+				});
+
+		// 加速度のパイプラインに加えて、2つの出力のパイプラインも動く
+		for (int fused = 0; fused < 2; fused++) {
+			final SamplePipeline pipeline = createPipeline();
+			final SensorFusion fusion = fused > 0 ? new SensorFusion(
+					new OrientationFilter(), createPipeline(),
+					createPipeline()) : null;
+			Harness.measure(fused > 0 ? "onSamples fusion"
+					: "onSamples no fusion", "samples", 1,
+					new Harness.Task() {
+						@Override
+						public long run() {
+							for (int i = 0; i < SAMPLES; i += BLOCK) {
+								pipeline.onSamples(motion.timestamps,
+										motion.ax, motion.ay, motion.az, i,
+										BLOCK);
+								if (fusion != null) {
+									fusion.getGyroscopeSink().onSamples(
+											motion.timestamps, motion.gx,
+											motion.gy, motion.gz, i, BLOCK);
+									fusion.getAccelerometerSink().onSamples(
+											motion.timestamps, motion.ax,
+											motion.ay, motion.az, i, BLOCK);
+								}
+							}
+							if (fusion != null) {
+								fusion.reset();
+							}
+							return SAMPLES;
+						}
+					});
+		}
+
+		if (Harness.isSelected("accuracy")) {
+			checkAccuracy();
+		}
+	}
+
+	/**
+	 * 誤差を求めて表示し、上限を超えたものを{@link Check}の失敗として数える
+	 */
+	static void checkAccuracy() {
+		Motion motion = new Motion((int) (RATE * SECONDS));
+		int settle = (int) (RATE * SETTLE_SECONDS);
+
+		System.out.println("method\t\t\tdevice rms(m/s^2)\tvertical rms"
+				+ "\ttilt error mean/max(deg)");
+		double[] fusion = report("fusion", motion, new OrientationFilter(),
+				true, settle);
+		double[] noGyro = report("fusion (no gyro)", motion,
+				new OrientationFilter(), false, settle);
+
+		// これまでの HIGH: 軸ごとに指数移動平均を引く
+		ExponentialFilter[] highPass = new ExponentialFilter[3];
+		float[][] input = { motion.ax, motion.ay, motion.az };
+		float[][] output = new float[3][motion.size];
+		for (int axis = 0; axis < 3; axis++) {
+			highPass[axis] = new ExponentialFilter(HIGH_PASS_RATE, true);
+			highPass[axis].process(input[axis], output[axis], 0, motion.size);
+		}
+		double device = 0;
+		for (int i = settle; i < motion.size; i++) {
+			for (int axis = 0; axis < 3; axis++) {
+				double error = output[axis][i] - motion.linear[axis][i];
+				device += error * error;
+			}
+		}
+		double highPassRms = Math.sqrt(device / (motion.size - settle));
+		System.out.println("high-pass " + HIGH_PASS_RATE + "\t\t"
+				+ format(highPassRms) + "\t\t\t-\t\t-");
+
+		Check.atMost("fusion device rms", fusion[0], MAX_DEVICE_RMS);
+		Check.atMost("fusion vertical rms", fusion[1], MAX_VERTICAL_RMS);
+		Check.atMost("fusion tilt mean", fusion[2], MAX_TILT_MEAN);
+		Check.atMost("fusion tilt max", fusion[3], MAX_TILT);
+		Check.atMost("fusion / high-pass rms", fusion[0] / highPassRms,
+				MAX_HIGH_PASS_RATIO);
+		Check.that(fusion[0] < noGyro[0] && fusion[3] < noGyro[3],
+				"the gyroscope reduces the error");
+	}
+
+	// 重力を除いた加速度の rms、鉛直の rms、傾きの誤差の平均と最大を返す
+	private static double[] report(String name, Motion motion,
+			OrientationFilter filter, boolean gyroscope, int settle) {
+		float[] linear = new float[3];
+		float[] world = new float[3];
+		float[] up = new float[3];
+		double device = 0;
+		double vertical = 0;
+		double tilt = 0;
+		double tiltMax = 0;
+		for (int i = 0; i < motion.size; i++) {
+			long timestamp = motion.timestamps[i];
+			if (gyroscope) {
+				filter.updateGyroscope(timestamp, motion.gx[i], motion.gy[i],
+						motion.gz[i]);
+			}
+			filter.updateAccelerometer(timestamp, motion.ax[i], motion.ay[i],
+					motion.az[i]);
+			filter.getLinearAcceleration(motion.ax[i], motion.ay[i],
+					motion.az[i], linear, 0);
+			filter.toWorld(linear[0], linear[1], linear[2], world, 0);
+			if (i < settle) {
+				continue;
+			}
+			for (int axis = 0; axis < 3; axis++) {
+				double error = linear[axis] - motion.linear[axis][i];
+				device += error * error;
+			}
+			double error = world[2] - motion.worldZ[i];
+			vertical += error * error;
+
+			// 推定した上向きと真の上向きの角度
+			filter.getLinearAcceleration(0, 0, 0, up, 0);
+			double dot = -(up[0] * motion.up[0][i] + up[1] * motion.up[1][i] + up[2]
+					* motion.up[2][i])
+					/ GRAVITY;
+			double angle = Math.toDegrees(Math.acos(Math.min(1, dot)));
+			tilt += angle;
+			tiltMax = Math.max(tiltMax, angle);
+		}
+		int count = motion.size - settle;
+		double[] result = { Math.sqrt(device / count),
+				Math.sqrt(vertical / count), tilt / count, tiltMax };
+		System.out.println(pad(name) + format(result[0]) + "\t\t\t"
+				+ format(result[1]) + "\t\t" + format(result[2]) + "/"
+				+ format(result[3]));
+		return result;
+	}
+
+	private static SamplePipeline createPipeline() {
+		return new SamplePipeline(new SampleBuffer(2048), new SampleBuffer(
+				8192), MinMaxPyramid.createLive(16, 2048));
+	}
+
+	private static String format(double value) {
+		return String.valueOf(Math.round(value * 1000) / 1000.0);
+	}
+
+	private static String pad(String text) {
+		StringBuilder builder = new StringBuilder(text);
+		while (builder.length() < 24) {
+			builder.append(' ');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * 真の姿勢が分かっている合成の動き
+	 *
+	 * いくつかの周期の角速度で回し続け、2秒ごとに 0.3秒だけ水平と鉛直に
+	 * 揺らす。真の値は倍精度で細かく積分して求める。
+	 */
+	private static class Motion {
+		final int size;
+		final long[] timestamps;
+		final float[] ax, ay, az;
+		final float[] gx, gy, gz;
+		// 端末の座標での真の(重力を除いた)加速度
+		final float[][] linear;
+		// 世界の座標での真の鉛直の加速度
+		final float[] worldZ;
+		// 端末の座標での真の上向き
+		final float[][] up;
+
+		Motion(int size) {
+			this.size = size;
+			timestamps = new long[size];
+			ax = new float[size];
+			ay = new float[size];
+			az = new float[size];
+			gx = new float[size];
+			gy = new float[size];
+			gz = new float[size];
+			linear = new float[3][size];
+			worldZ = new float[size];
+			up = new float[3][size];
+
+			Random random = new Random(1);
+			double dt = 1 / RATE;
+			// 端末から世界への回転(斜めに傾けた状態から始める)
+			double[] q = { Math.cos(0.3), Math.sin(0.3), 0, 0 };
+			double[] w = new double[3];
+			double[] a = new double[3];
+			for (int i = 0; i < size; i++) {
+				double t = i * dt;
+				timestamps[i] = Math.round(t * 1e9);
+
+				angularRate(t, w);
+				gx[i] = (float) (w[0] + GYRO_BIAS[0] + random.nextGaussian()
+						* GYRO_NOISE);
+				gy[i] = (float) (w[1] + GYRO_BIAS[1] + random.nextGaussian()
+						* GYRO_NOISE);
+				gz[i] = (float) (w[2] + GYRO_BIAS[2] + random.nextGaussian()
+						* GYRO_NOISE);
+
+				// 世界の座標での動き
+				double phase = t % 2;
+				double shake = phase < 0.3 ? 1 : 0;
+				a[0] = shake * 3 * Math.sin(2 * Math.PI * 8 * t);
+				a[1] = shake * 2 * Math.cos(2 * Math.PI * 6 * t);
+				a[2] = shake * 4 * Math.sin(2 * Math.PI * 5 * t);
+				worldZ[i] = (float) a[2];
+
+				double[] device = rotateInverse(q, a[0], a[1], a[2]);
+				double[] gravity = rotateInverse(q, 0, 0, GRAVITY);
+				for (int axis = 0; axis < 3; axis++) {
+					linear[axis][i] = (float) device[axis];
+					up[axis][i] = (float) (gravity[axis] / GRAVITY);
+				}
+				ax[i] = (float) (device[0] + gravity[0] + random
+						.nextGaussian()
+						* ACCEL_NOISE);
+				ay[i] = (float) (device[1] + gravity[1] + random
+						.nextGaussian()
+						* ACCEL_NOISE);
+				az[i] = (float) (device[2] + gravity[2] + random
+						.nextGaussian()
+						* ACCEL_NOISE);
+
+				// 次のサンプルまで細かく積分する
+				for (int step = 0; step < SUBSTEPS; step++) {
+					angularRate(t + (step + 0.5) * dt / SUBSTEPS, w);
+					integrate(q, w, dt / SUBSTEPS);
+				}
+			}
+		}
+
+		private static void angularRate(double t, double[] w) {
+			w[0] = 1.2 * Math.sin(0.9 * t);
+			w[1] = 0.8 * Math.sin(1.3 * t + 1);
+			w[2] = 0.5 * Math.cos(0.7 * t);
+		}
+
+		private static void integrate(double[] q, double[] w, double dt) {
+			double h = 0.5 * dt;
+			double q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+			q[0] = q0 + (-q1 * w[0] - q2 * w[1] - q3 * w[2]) * h;
+			q[1] = q1 + (q0 * w[0] + q2 * w[2] - q3 * w[1]) * h;
+			q[2] = q2 + (q0 * w[1] - q1 * w[2] + q3 * w[0]) * h;
+			q[3] = q3 + (q0 * w[2] + q1 * w[1] - q2 * w[0]) * h;
+			double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2]
+					+ q[3] * q[3]);
+			for (int i = 0; i < 4; i++) {
+				q[i] /= norm;
+			}
+		}
+
+		// 世界の座標のベクトルを端末の座標に回す(共役の四元数で回す)
+		private static double[] rotateInverse(double[] q, double x, double y,
+				double z) {
+			double q0 = q[0], q1 = -q[1], q2 = -q[2], q3 = -q[3];
+			double tx = 2 * (q2 * z - q3 * y);
+			double ty = 2 * (q3 * x - q1 * z);
+			double tz = 2 * (q1 * y - q2 * x);
+			return new double[] { x + q0 * tx + (q2 * tz - q3 * ty),
+					y + q0 * ty + (q3 * tx - q1 * tz),
+					z + q0 * tz + (q1 * ty - q2 * tx) };
+		}
+	}
+}
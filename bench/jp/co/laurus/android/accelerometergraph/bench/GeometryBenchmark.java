@@ -0,0 +1,68 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import jp.co.laurus.android.accelerometergraph.GraphGeometry;
+import jp.co.laurus.android.accelerometergraph.MinMaxPyramid;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+
+/**
+ * 1フレーム分のグラフの座標を求める時間(フレーム/秒)
+ *
+ * 描画と同じく、直近の履歴を{@link SampleBuffer.View}でコピーせずに参照して
+ * 4チャンネル分の座標を求める。履歴が画面の列数より短ければその分だけ描く。
+ */
+public class GeometryBenchmark {
+
+	private static final int[] HISTORY_SIZES = { 256, 1024, 2048, 8192 };
+	private static final int COLUMNS = 834;
+
+	public static void run() throws Exception {
+		Harness.header("geometry (frames)");
+
+		for (int h = 0; h < HISTORY_SIZES.length; h++) {
+			final int size = HISTORY_SIZES[h];
+			final SampleBuffer history = new SampleBuffer(size);
+			for (int i = 0; i < size; i++) {
+				history.add(i * 5000000L, (float) Math.sin(i * 0.05),
+						(float) Math.cos(i * 0.03), 9.8f, 9.9f);
+			}
+			final SampleBuffer.View view = new SampleBuffer.View();
+			final float[] points = new float[Math.max(size, COLUMNS) * 4];
+			Harness.measure("line " + size, "frames", 1, new Harness.Task() {
+				@Override
+				public long run() {
+					history.view(view, history.getSequence(), COLUMNS);
+					for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+						GraphGeometry.linePoints(view, channel, 854, 1, 230,
+								6, points);
+					}
+					return view.isValid() ? 1 : 0;
+				}
+			});
+		}
+
+		final MinMaxPyramid pyramid = MinMaxPyramid.createLive(16, 2048);
+		float[] values = new float[1 << 16];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (float) Math.sin(i * 0.01);
+		}
+		for (int i = 0; i < 16; i++) {
+			pyramid.addAll(values, values, values, values, 0, values.length);
+		}
+		final float[][] min = new float[SampleBuffer.CHANNELS][COLUMNS];
+		final float[][] max = new float[SampleBuffer.CHANNELS][COLUMNS];
+		final float[] points = new float[COLUMNS * 4];
+		Harness.measure("envelope " + COLUMNS, "frames", 1,
+				new Harness.Task() {
+					@Override
+					public long run() {
+						int bins = pyramid.read(8, Long.MAX_VALUE, COLUMNS,
+								min, max);
+						for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+							GraphGeometry.envelopePoints(min[channel],
+									max[channel], bins, 20, 230, 6, points);
+						}
+						return 1;
+					}
+				});
+	}
+}
@@ -0,0 +1,72 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.co.laurus.android.accelerometergraph.GraphGeometry;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 1フレーム分のグラフの座標を求める時間(JMH, マイクロ秒/フレーム)
+ *
+ * 描画と同じく、直近の履歴を{@link SampleBuffer.View}でコピーせずに参照して
+ * 4チャンネル分の線の座標を求める。history は履歴の長さで、画面の列数より
+ * 短ければその分だけ描く。ズームアウトしたときの包絡線は
+ * {@link GeometryBenchmark}で計る。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeometryJmh {
+
+	static final int COLUMNS = 834;
+	private static final float LAST_X = 854;
+	private static final float ZERO_LINE_Y = 230;
+	private static final float SCALE = 6;
+
+	@Param({ "256", "1024", "2048", "8192" })
+	public int history;
+
+	@Param({ "1", "2" })
+	public int step;
+
+	private SampleBuffer mHistory;
+	private final SampleBuffer.View mView = new SampleBuffer.View();
+	private float[] mPoints;
+
+	@Setup
+	public void setUp() {
+		mHistory = new SampleBuffer(history);
+		for (int i = 0; i < history; i++) {
+			mHistory.add(i * 5000000L, (float) Math.sin(i * 0.05),
+					(float) Math.cos(i * 0.03), 9.8f, 9.9f);
+		}
+		mPoints = new float[Math.max(history, COLUMNS) * 4];
+	}
+
+	@Benchmark
+	public int line() {
+		SampleBuffer history = mHistory;
+		history.view(mView, history.getSequence(), COLUMNS / step);
+		int n = 0;
+		for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+			n += GraphGeometry.linePoints(mView, channel, LAST_X - step, step,
+					ZERO_LINE_Y, SCALE, mPoints);
+		}
+		return mView.isValid() ? n : -n;
+	}
+}
@@ -0,0 +1,148 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * ベンチマークの計測
+ *
+ * ウォームアップの後に一定時間ずつ繰り返して処理量の平均とばらつきを求め、
+ * 処理1回あたりに確保したバイト数も表示する(HotSpot の JVM のみ)。
+ */
+public class Harness {
+
+	/**
+	 * 計測する処理
+	 */
+	public interface Task {
+		/**
+		 * 処理を1回行う
+		 *
+		 * @return 処理した量(サンプル数、バイト数など)
+		 */
+		long run() throws Exception;
+	}
+
+	private static final long WARMUP_NANOS = Long.getLong("bench.warmup",
+			1000) * 1000000L;
+	private static final long ITERATION_NANOS = Long.getLong(
+			"bench.iteration", 1000) * 1000000L;
+	private static final int ITERATIONS = Integer.getInteger(
+			"bench.iterations", 5);
+
+	private static final ThreadMXBean THREADS = ManagementFactory
+			.getThreadMXBean();
+	// スレッドごとの確保バイト数を取得できるか
+	private static final boolean THREADS_SUPPORTED = THREADS instanceof com.sun.management.ThreadMXBean;
+
+	private static String sFilter;
+	private static String sGroup = "";
+
+	private Harness() {
+	}
+
+	/**
+	 * 名前かグループ名にこの文字列を含むベンチマークだけを実行する
+	 */
+	public static void setFilter(String filter) {
+		sFilter = filter;
+	}
+
+	/**
+	 * name のベンチマークを実行するかを返す(絞り込みに合うか)
+	 */
+	public static boolean isSelected(String name) {
+		return sFilter == null || name.indexOf(sFilter) >= 0
+				|| sGroup.indexOf(sFilter) >= 0;
+	}
+
+	public static void header(String title) {
+		sGroup = title;
+		System.out.println();
+		System.out.println("# " + title);
+	}
+
+	/**
+	 * @param unit
+	 *            処理量の単位(表示用)
+	 * @param scale
+	 *            表示する処理量の倍率(1e-6 なら M 単位)
+	 */
+	public static void measure(String name, String unit, double scale,
+			Task task) throws Exception {
+		if (!isSelected(name)) {
+			return;
+		}
+		run(task, WARMUP_NANOS);
+
+		double[] rates = new double[ITERATIONS];
+		long allocated = 0;
+		long calls = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			long[] result = run(task, ITERATION_NANOS);
+			long elapsed = System.nanoTime() - start;
+			allocated += allocatedBytes() - bytes;
+			calls += result[1];
+			rates[i] = result[0] * scale * 1e9 / elapsed;
+		}
+
+		double mean = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			mean += rates[i];
+		}
+		mean /= ITERATIONS;
+		double variance = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			variance += (rates[i] - mean) * (rates[i] - mean);
+		}
+		double error = ITERATIONS > 1 ? Math.sqrt(variance / (ITERATIONS - 1))
+				: 0;
+
+		StringBuilder line = new StringBuilder();
+		line.append(pad(name, 36));
+		line.append(pad(format(mean) + " +- " + format(error), 24));
+		line.append(unit).append("/s");
+		if (THREADS_SUPPORTED) {
+			line.append("\t").append(format((double) allocated / calls))
+					.append(" B/op");
+		}
+		System.out.println(line);
+	}
+
+	// 指定時間の間 task を繰り返す({処理量, 呼び出し回数} を返す)
+	private static long[] run(Task task, long nanos) throws Exception {
+		long end = System.nanoTime() + nanos;
+		long amount = 0;
+		long calls = 0;
+		do {
+			amount += task.run();
+			calls++;
+		} while (System.nanoTime() < end);
+		return new long[] { amount, calls };
+	}
+
+	private static long allocatedBytes() {
+		if (!THREADS_SUPPORTED) {
+			return 0;
+		}
+		return ((com.sun.management.ThreadMXBean) THREADS)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static String format(double value) {
+		if (value >= 100) {
+			return String.valueOf(Math.round(value));
+		}
+		return String.valueOf(Math.round(value * 100) / 100.0);
+	}
+
+	private static String pad(String text, int width) {
+		StringBuilder builder = new StringBuilder(text);
+		while (builder.length() < width) {
+			builder.append(' ');
+		}
+		return builder.append(' ').toString();
+	}
+}
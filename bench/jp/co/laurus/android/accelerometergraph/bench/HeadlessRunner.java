@@ -0,0 +1,141 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+
+import jp.co.laurus.android.accelerometergraph.MinMaxPyramid;
+import jp.co.laurus.android.accelerometergraph.Recorder;
+import jp.co.laurus.android.accelerometergraph.RecordingFormat;
+import jp.co.laurus.android.accelerometergraph.RecordingReader;
+import jp.co.laurus.android.accelerometergraph.ReplaySampleSource;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SamplePipeline;
+import jp.co.laurus.android.accelerometergraph.SignalGenerator;
+
+/**
+ * 端末なしで再生した信号をパイプラインと記録に流し、処理量と遅れを測る
+ *
+ * <pre>
+ * java -cp bench-bin jp.co.laurus.android.accelerometergraph.bench.HeadlessRunner \
+ *     [sine|sweep|impulse|noise|記録ファイル] [速さ|search] [秒]
+ * </pre>
+ *
+ * 速さは元のタイミングに対する倍率で、0ならできるだけ速く再生する(既定)。
+ * search を指定すると、速さを2倍ずつ上げながら1段階あたり指定の秒数ずつ
+ * 再生し、記録の取りこぼしと遅れが出ない最大の処理量を求める。
+ */
+public class HeadlessRunner {
+
+	private static final float SAMPLE_RATE = 200f;
+	// これより遅れたら処理が追いついていないとみなす(ミリ秒)
+	private static final long MAX_LATENESS = 100;
+	private static final float MAX_SPEED = 1 << 20;
+
+	private static String sInput;
+	private static File sFile;
+
+	public static void main(String[] args) throws Exception {
+		sInput = args.length > 0 ? args[0] : "sweep";
+		String speed = args.length > 1 ? args[1] : "0";
+		float seconds = args.length > 2 ? Float.parseFloat(args[2]) : 10f;
+		if (!isSignal(sInput)) {
+			sFile = new File(sInput);
+		}
+
+		System.out.println("speed\tsamples\tsec\tsamples/s\tlate mean/max(ms)"
+				+ "\tcallback p50/p99/max(us)\trecorded\tdropped");
+		if (!speed.equals("search")) {
+			float factor = Float.parseFloat(speed);
+			long count = (long) (SAMPLE_RATE * seconds);
+			if (factor > 0) {
+				count = (long) (count * factor);
+			}
+			run(factor, count);
+			return;
+		}
+
+		// 取りこぼしなく処理できる最大の速さを探す
+		float sustained = 0;
+		for (float factor = 1; factor <= MAX_SPEED; factor *= 2) {
+			if (!run(factor, (long) (SAMPLE_RATE * factor * seconds))) {
+				break;
+			}
+			sustained = factor;
+		}
+		System.out.println("sustained: " + sustained + "x ("
+				+ (long) (sustained * SAMPLE_RATE) + " samples/s)");
+	}
+
+	// 取りこぼしと大きな遅れがなければ true
+	private static boolean run(float speed, long count) throws Exception {
+		SamplePipeline pipeline = new SamplePipeline(new SampleBuffer(2048),
+				new SampleBuffer(8192), MinMaxPyramid.createLive(16, 2048));
+		File file = File.createTempFile("replay", RecordingFormat.EXTENSION);
+		file.deleteOnExit();
+		Recorder recorder = new Recorder(pipeline.getRawHistory(), file,
+				System.currentTimeMillis());
+		recorder.open();
+
+		RecordingReader reader = null;
+		ReplaySampleSource source;
+		if (sFile != null) {
+			reader = new RecordingReader(sFile);
+			source = new ReplaySampleSource(
+					new ReplaySampleSource.RecordingInput(reader));
+		} else {
+			source = new ReplaySampleSource(createSignal(sInput, count));
+		}
+		source.setSpeed(speed);
+		try {
+			source.start(pipeline);
+			source.awaitFinished();
+			source.stop();
+		} finally {
+			recorder.close();
+			if (reader != null) {
+				reader.close();
+			}
+			file.delete();
+		}
+
+		long samples = source.getSampleCount();
+		double elapsed = source.getElapsedNanos() / 1e9;
+		long maxLateness = source.getMaxLateness() / 1000000;
+		StringBuilder line = new StringBuilder();
+		line.append(speed > 0 ? speed + "x" : "max").append('\t');
+		line.append(samples).append('\t');
+		line.append(Math.round(elapsed * 100) / 100.0).append('\t');
+		line.append(Math.round(samples / elapsed)).append('\t');
+		line.append(source.getMeanLateness() / 1000000).append('/')
+				.append(maxLateness).append('\t');
+		line.append(pipeline.getStats().getPercentileNanos(0.5) / 1000)
+				.append('/');
+		line.append(pipeline.getStats().getPercentileNanos(0.99) / 1000)
+				.append('/');
+		line.append(pipeline.getStats().getMaxNanos() / 1000).append('\t');
+		line.append(recorder.getSampleCount()).append('\t');
+		line.append(recorder.getDropped());
+		System.out.println(line);
+		return recorder.getDropped() == 0 && maxLateness < MAX_LATENESS;
+	}
+
+	private static boolean isSignal(String name) {
+		return name.equals("sine") || name.equals("sweep")
+				|| name.equals("impulse") || name.equals("noise");
+	}
+
+	private static SignalGenerator createSignal(String name, long count) {
+		int type = SignalGenerator.SWEEP;
+		if (name.equals("sine")) {
+			type = SignalGenerator.SINE;
+		} else if (name.equals("impulse")) {
+			type = SignalGenerator.IMPULSE;
+		} else if (name.equals("noise")) {
+			type = SignalGenerator.NOISE;
+		}
+		SignalGenerator generator = new SignalGenerator(type, SAMPLE_RATE,
+				count);
+		generator.setAmplitude(5f);
+		generator.setFrequency(0.5f, 50f);
+		return generator;
+	}
+}
@@ -0,0 +1,92 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import jp.co.laurus.android.accelerometergraph.FilterPresets;
+import jp.co.laurus.android.accelerometergraph.MinMaxPyramid;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SamplePipeline;
+
+/**
+ * フィルタごとの SamplePipeline の処理量(サンプル/秒)
+ */
+public class PipelineBenchmark {
+
+	private static final int SAMPLES = 4096;
+	private static final int BLOCK = 256;
+
+	private static final String[] NAMES = { "RAW", "LOW", "HIGH",
+			"BIQUAD_LOW", "BIQUAD_HIGH", "BAND", "MOVING_AVERAGE", "MEDIAN",
+			"KALMAN" };
+
+	// 移動統計の窓(サンプル数)
+	private static final int[] ROLLING_WINDOWS = { 50, 1000, 10000 };
+
+	public static void run() throws Exception {
+		Harness.header("pipeline (samples)");
+
+		final long[] timestamps = new long[SAMPLES];
+		final float[] x = new float[SAMPLES];
+		final float[] y = new float[SAMPLES];
+		final float[] z = new float[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			timestamps[i] = i * 5000000L;
+			x[i] = (float) Math.sin(i * 0.05);
+			y[i] = (float) Math.cos(i * 0.03);
+			z[i] = 9.8f + (float) Math.random();
+		}
+
+		for (int preset = 0; preset < NAMES.length; preset++) {
+			final SamplePipeline pipeline = createPipeline(preset);
+			Harness.measure("onSample " + NAMES[preset], "samples", 1,
+					new Harness.Task() {
+						@Override
+						public long run() {
+							for (int i = 0; i < SAMPLES; i++) {
+								pipeline.onSample(timestamps[i], x[i], y[i],
+										z[i]);
+							}
+							return SAMPLES;
+						}
+					});
+
+			final SamplePipeline blockPipeline = createPipeline(preset);
+			Harness.measure("onSamples " + NAMES[preset], "samples", 1,
+					new Harness.Task() {
+						@Override
+						public long run() {
+							for (int i = 0; i < SAMPLES; i += BLOCK) {
+								blockPipeline.onSamples(timestamps, x, y, z, i,
+										BLOCK);
+							}
+							return SAMPLES;
+						}
+					});
+		}
+
+		// 移動統計の窓の長さで処理量が変わらないことを確かめる
+		for (int window = 0; window < ROLLING_WINDOWS.length; window++) {
+			final SamplePipeline pipeline = createPipeline(FilterPresets.RAW);
+			pipeline.setRollingWindow(ROLLING_WINDOWS[window]);
+			Harness.measure("onSamples rolling " + ROLLING_WINDOWS[window],
+					"samples", 1, new Harness.Task() {
+						@Override
+						public long run() {
+							for (int i = 0; i < SAMPLES; i += BLOCK) {
+								pipeline.onSamples(timestamps, x, y, z, i,
+										BLOCK);
+							}
+							return SAMPLES;
+						}
+					});
+		}
+	}
+
+	private static SamplePipeline createPipeline(int preset) {
+		SamplePipeline pipeline = new SamplePipeline(new SampleBuffer(2048),
+				new SampleBuffer(8192), MinMaxPyramid.createLive(16, 2048));
+		pipeline.setPreset(preset);
+		if (preset == FilterPresets.LOW || preset == FilterPresets.HIGH) {
+			pipeline.setFilterRate(0.1f);
+		}
+		return pipeline;
+	}
+}
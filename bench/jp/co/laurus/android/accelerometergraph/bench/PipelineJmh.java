@@ -0,0 +1,82 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.co.laurus.android.accelerometergraph.FilterPresets;
+import jp.co.laurus.android.accelerometergraph.MinMaxPyramid;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SamplePipeline;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * フィルタの設定ごとの SamplePipeline の処理量(JMH, サンプル/秒)
+ *
+ * 1件ずつ渡す onSample() と、まとめて渡す onSamples() を比べる。
+ * 1件あたりの確保量は -prof gc の gc.alloc.rate.norm を
+ * {@link #SAMPLES}で割って求める。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineJmh {
+
+	static final int SAMPLES = 4096;
+	private static final int BLOCK = 256;
+
+	@Param({ "0", "1", "2", "3", "4", "5", "6", "7", "8" })
+	public int preset;
+
+	private final long[] mTimestamps = new long[SAMPLES];
+	private final float[] mX = new float[SAMPLES];
+	private final float[] mY = new float[SAMPLES];
+	private final float[] mZ = new float[SAMPLES];
+	private SamplePipeline mPipeline;
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < SAMPLES; i++) {
+			mTimestamps[i] = i * 5000000L;
+			mX[i] = (float) Math.sin(i * 0.05);
+			mY[i] = (float) Math.cos(i * 0.03);
+			mZ[i] = 9.8f + (float) Math.sin(i * 0.7) * 0.5f;
+		}
+		mPipeline = new SamplePipeline(new SampleBuffer(2048),
+				new SampleBuffer(8192), MinMaxPyramid.createLive(16, 2048));
+		mPipeline.setPreset(preset);
+		if (preset == FilterPresets.LOW || preset == FilterPresets.HIGH) {
+			mPipeline.setFilterRate(0.1f);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public void onSample() {
+		SamplePipeline pipeline = mPipeline;
+		for (int i = 0; i < SAMPLES; i++) {
+			pipeline.onSample(mTimestamps[i], mX[i], mY[i], mZ[i]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public void onSamples() {
+		for (int i = 0; i < SAMPLES; i += BLOCK) {
+			mPipeline.onSamples(mTimestamps, mX, mY, mZ, i, BLOCK);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SampleWindow;
+
+/**
+ * SampleBuffer の自己検査
+ *
+ * 容量を超えて一周したときの値、書き込みに追い越された{@link SampleBuffer.View}
+ * と{@link SampleBuffer.Cursor}の扱い(無効になること、読み飛ばした数)を
+ * 決まった手順で確かめ、最後に{@link ConcurrencyStress}で複数スレッドから
+ * 同時に読む。
+ */
+public class SampleBufferCheck {
+
+	private static final int CAPACITY = 8;
+	private static final long STRESS_MILLIS = 2000;
+	private static final int STRESS_READERS = 2;
+
+	public static void run() throws Exception {
+		Check.header("sample buffer");
+
+		checkCapacity();
+		checkWrap();
+		checkAddAllOverflow();
+		checkView();
+		checkCursor();
+		checkLatest();
+
+		long errors = ConcurrencyStress.stressBuffer(STRESS_MILLIS,
+				STRESS_READERS);
+		Check.equal("concurrent read errors", errors, 0);
+	}
+
+	private static void checkCapacity() {
+		Check.equal("capacity 5", new SampleBuffer(5).getCapacity(), 8);
+		Check.equal("capacity 8", new SampleBuffer(8).getCapacity(), 8);
+		Check.equal("capacity 1", new SampleBuffer(1).getCapacity(), 1);
+		boolean thrown = false;
+		try {
+			new SampleBuffer(0);
+		} catch (IllegalArgumentException e) {
+			thrown = true;
+		}
+		Check.that(thrown, "capacity 0 is rejected");
+	}
+
+	// add() と addAll() で容量の境界をまたいで書き込む
+	private static void checkWrap() {
+		SampleBuffer buffer = new SampleBuffer(CAPACITY);
+		Check.equal("empty size", buffer.size(), 0);
+		for (long s = 0; s < 6; s++) {
+			add(buffer, s);
+		}
+		Check.equal("size before wrap", buffer.size(), 6);
+		// 6, 7, 0, 1, 2 番目の要素に書き込む
+		addAll(buffer, 6, 5);
+		Check.equal("sequence after wrap", buffer.getSequence(), 11);
+		Check.equal("size after wrap", buffer.size(), CAPACITY);
+
+		// 一周した後は、次に書き込まれる最も古い要素を含めないので容量 - 1 件
+		SampleBuffer.Snapshot snapshot = new SampleBuffer.Snapshot(CAPACITY);
+		buffer.snapshot(snapshot, CAPACITY);
+		Check.equal("snapshot size", snapshot.size(), CAPACITY - 1);
+		Check.equal("snapshot first", snapshot.getFirstSequence(), 4);
+		checkWindow("snapshot", snapshot, 4);
+
+		// end より前の分だけを取り出す
+		buffer.snapshot(snapshot, 9, 4);
+		Check.equal("snapshot to 9", snapshot.getFirstSequence(), 5);
+		Check.equal("snapshot to 9 size", snapshot.size(), 4);
+		checkWindow("snapshot to 9", snapshot, 5);
+
+		// 何周かしても位置がずれない
+		for (long s = 11; s < 11 + 5 * CAPACITY + 3; s++) {
+			add(buffer, s);
+		}
+		long sequence = buffer.getSequence();
+		buffer.snapshot(snapshot, CAPACITY);
+		Check.equal("snapshot after laps", snapshot.getFirstSequence(),
+				sequence - CAPACITY + 1);
+		checkWindow("snapshot after laps", snapshot, sequence - CAPACITY + 1);
+	}
+
+	// 容量より多く addAll() すると、最後の容量分だけが残る
+	private static void checkAddAllOverflow() {
+		SampleBuffer buffer = new SampleBuffer(CAPACITY);
+		add(buffer, 0);
+		addAll(buffer, 1, 3 * CAPACITY + 2);
+		long sequence = 3 * CAPACITY + 3;
+		Check.equal("overflow sequence", buffer.getSequence(), sequence);
+		SampleBuffer.Snapshot snapshot = new SampleBuffer.Snapshot(CAPACITY);
+		buffer.snapshot(snapshot, CAPACITY);
+		Check.equal("overflow first", snapshot.getFirstSequence(), sequence
+				- CAPACITY + 1);
+		checkWindow("overflow", snapshot, sequence - CAPACITY + 1);
+	}
+
+	// 書き込みに追い越された参照は isValid() が false になる
+	private static void checkView() {
+		SampleBuffer buffer = new SampleBuffer(CAPACITY);
+		SampleBuffer.View view = new SampleBuffer.View();
+		buffer.view(view, Long.MAX_VALUE, CAPACITY);
+		Check.equal("empty view", view.size(), 0);
+		Check.that(view.isValid(), "empty view is valid");
+
+		for (long s = 0; s < 20; s++) {
+			add(buffer, s);
+		}
+		// 次に書き込まれる要素は含めないので、容量 - 1 件まで
+		buffer.view(view, Long.MAX_VALUE, CAPACITY);
+		Check.equal("view size", view.size(), CAPACITY - 1);
+		Check.equal("view first", view.getFirstSequence(), 20 - CAPACITY + 1);
+		checkWindow("view", view, view.getFirstSequence());
+		Check.that(view.isValid(), "view is valid before the writer laps");
+
+		add(buffer, 20);
+		Check.that(!view.isValid(), "view is invalid after the writer laps");
+
+		// 短い参照は、先頭まで追い越されるまで有効
+		buffer.view(view, Long.MAX_VALUE, 3);
+		Check.equal("short view first", view.getFirstSequence(), 18);
+		for (long s = 21; s < 25; s++) {
+			add(buffer, s);
+			Check.that(view.isValid(), "short view is valid at " + s);
+		}
+		add(buffer, 25);
+		Check.that(!view.isValid(), "short view is invalid after the lap");
+
+		// 書き込み中の addAll() の範囲も追い越しとみなす
+		buffer.view(view, Long.MAX_VALUE, CAPACITY);
+		addAll(buffer, 26, 2);
+		Check.that(!view.isValid(), "view is invalid after addAll()");
+	}
+
+	// 追い越された分は読み飛ばして getDropped() に数える
+	private static void checkCursor() {
+		SampleBuffer buffer = new SampleBuffer(CAPACITY);
+		SampleBuffer.Cursor cursor = buffer.newCursor();
+		float[][] values = new float[SampleBuffer.CHANNELS][CAPACITY];
+		long[] timestamps = new long[CAPACITY];
+
+		for (long s = 0; s < 5; s++) {
+			add(buffer, s);
+		}
+		Check.equal("cursor available", cursor.available(), 5);
+		int read = cursor.read(values, timestamps, 3);
+		Check.equal("cursor read", read, 3);
+		checkValues("cursor read", values, timestamps, read, 0);
+		Check.equal("cursor position", cursor.getPosition(), 3);
+		Check.equal("cursor dropped", cursor.getDropped(), 0);
+
+		// 読まないうちに2周させる
+		for (long s = 5; s < 5 + 2 * CAPACITY; s++) {
+			add(buffer, s);
+		}
+		long sequence = 5 + 2 * CAPACITY;
+		read = cursor.read(values, timestamps, CAPACITY);
+		long first = sequence - CAPACITY + 1;
+		Check.equal("lapped cursor dropped", cursor.getDropped(), first - 3);
+		Check.equal("lapped cursor read", read, CAPACITY - 1);
+		checkValues("lapped cursor", values, timestamps, read, first);
+		Check.equal("lapped cursor position", cursor.getPosition(), sequence);
+		Check.equal("lapped cursor empty", cursor.read(values, timestamps,
+				CAPACITY), 0);
+
+		// すでに上書きされた位置から始めると、最初の読み込みで数える
+		SampleBuffer.Cursor late = buffer.newCursor(2);
+		read = late.read(values, timestamps, CAPACITY);
+		Check.equal("late cursor dropped", late.getDropped(), first - 2);
+		checkValues("late cursor", values, timestamps, read, first);
+
+		// 先の位置は書き込み済みの位置に丸める
+		SampleBuffer.Cursor ahead = buffer.newCursor(sequence + 100);
+		Check.equal("ahead cursor position", ahead.getPosition(), sequence);
+		Check.equal("ahead cursor available", ahead.available(), 0);
+	}
+
+	private static void checkLatest() {
+		SampleBuffer buffer = new SampleBuffer(CAPACITY);
+		float[] latest = new float[SampleBuffer.CHANNELS];
+		Check.that(!buffer.getLatest(latest), "no latest when empty");
+		for (long s = 0; s < CAPACITY + 3; s++) {
+			add(buffer, s);
+		}
+		Check.that(buffer.getLatest(latest), "latest");
+		long s = CAPACITY + 2;
+		Check.that(latest[SampleBuffer.CHANNEL_X] == x(s)
+				&& latest[SampleBuffer.CHANNEL_Y] == y(s)
+				&& latest[SampleBuffer.CHANNEL_Z] == z(s)
+				&& latest[SampleBuffer.CHANNEL_R] == r(s), "latest values");
+	}
+
+	// シーケンス番号 s のサンプルの値
+	private static float x(long s) {
+		return s * 0.5f;
+	}
+
+	private static float y(long s) {
+		return -s;
+	}
+
+	private static float z(long s) {
+		return s + 1000;
+	}
+
+	private static float r(long s) {
+		return s * 2;
+	}
+
+	private static void add(SampleBuffer buffer, long s) {
+		buffer.add(s * 10, x(s), y(s), z(s), r(s));
+	}
+
+	private static void addAll(SampleBuffer buffer, long first, int count) {
+		long[] timestamps = new long[count + 1];
+		float[] x = new float[count + 1];
+		float[] y = new float[count + 1];
+		float[] z = new float[count + 1];
+		float[] r = new float[count + 1];
+		// offset を 1 にして、配列の先頭からでなくても正しく書き込むか確かめる
+		for (int i = 0; i < count; i++) {
+			long s = first + i;
+			timestamps[i + 1] = s * 10;
+			x[i + 1] = x(s);
+			y[i + 1] = y(s);
+			z[i + 1] = z(s);
+			r[i + 1] = r(s);
+		}
+		buffer.addAll(timestamps, x, y, z, r, 1, count);
+	}
+
+	private static void checkWindow(String name, SampleWindow window,
+			long first) {
+		boolean ok = true;
+		for (int i = 0; i < window.size(); i++) {
+			long s = first + i;
+			ok &= window.getTimestamp(i) == s * 10
+					&& window.get(SampleBuffer.CHANNEL_X, i) == x(s)
+					&& window.get(SampleBuffer.CHANNEL_Y, i) == y(s)
+					&& window.get(SampleBuffer.CHANNEL_Z, i) == z(s)
+					&& window.get(SampleBuffer.CHANNEL_R, i) == r(s);
+		}
+		Check.that(ok, name + " values");
+	}
+
+	private static void checkValues(String name, float[][] values,
+			long[] timestamps, int count, long first) {
+		boolean ok = true;
+		for (int i = 0; i < count; i++) {
+			long s = first + i;
+			ok &= timestamps[i] == s * 10
+					&& values[SampleBuffer.CHANNEL_X][i] == x(s)
+					&& values[SampleBuffer.CHANNEL_Y][i] == y(s)
+					&& values[SampleBuffer.CHANNEL_Z][i] == z(s)
+					&& values[SampleBuffer.CHANNEL_R][i] == r(s);
+		}
+		Check.that(ok, name + " values");
+	}
+}
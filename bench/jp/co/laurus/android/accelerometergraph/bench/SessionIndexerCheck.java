@@ -0,0 +1,345 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import jp.co.laurus.android.accelerometergraph.ChannelDescriptor;
+import jp.co.laurus.android.accelerometergraph.Recorder;
+import jp.co.laurus.android.accelerometergraph.RecordingFormat;
+import jp.co.laurus.android.accelerometergraph.RecordingReader;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SessionIndexer;
+import jp.co.laurus.android.accelerometergraph.SessionSummary;
+
+/**
+ * 記録ファイルの索引の自己検査
+ *
+ * 値の分かっている3チャンネル(1つはサンプルなし)の記録を{@link Recorder}で
+ * 書き、{@link SessionIndexer#index}のタイルと統計を確かめる。中断された
+ * ファイルは{@link RecordingReader}が読める範囲と比べる。
+ * {@link SessionIndexer#sync}はメモリ上のカタログで、追加・変更・削除と
+ * 記録中のファイルを読まないことを確かめる。
+ * {@link RecordingReader#openType}がセンサーの種類でチャンネルを選ぶことも
+ * 確かめる。
+ */
+public class SessionIndexerCheck {
+
+	private static final long START_TIME = 1300000000000L;
+	private static final long FIRST_TIMESTAMP = 7000000000L;
+	private static final long SECOND = 1000000000L;
+
+	// チャンネル0: 50Hz で 150 秒
+	private static final int RATE0 = 50;
+	private static final int COUNT0 = RATE0 * 150;
+	// チャンネル1: 30 秒後から 20Hz で 160 秒
+	private static final int RATE1 = 20;
+	private static final long OFFSET1 = 30 * SECOND;
+	private static final int COUNT1 = RATE1 * 160;
+
+	private static final ChannelDescriptor[] CHANNELS = {
+			ChannelDescriptor.ACCELEROMETER,
+			new ChannelDescriptor(ChannelDescriptor.TYPE_GYROSCOPE, 3,
+					"gyroscope"),
+			new ChannelDescriptor(ChannelDescriptor.TYPE_MAGNETIC_FIELD, 3,
+					"magnetic field") };
+
+	// ヘッダのフラグの位置(RecordingFormat の OFFSET_FLAGS)
+	private static final int OFFSET_FLAGS = 6;
+
+	public static void run() throws Exception {
+		Check.header("session index");
+		File dir = createDirectory();
+		try {
+			File file = new File(dir, "a" + RecordingFormat.EXTENSION);
+			record(file);
+			checkSummary(new SessionIndexer().index(file));
+			checkOpenType(file);
+			checkInterrupted(dir, file);
+			checkSync(dir, file);
+		} finally {
+			File[] files = dir.listFiles();
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static File createDirectory() throws IOException {
+		File dir = File.createTempFile("sessions", "");
+		dir.delete();
+		if (!dir.mkdir()) {
+			throw new IOException("cannot create " + dir);
+		}
+		return dir;
+	}
+
+	// 2つのチャンネルのサンプルを時刻の順に追加する
+	private static void record(File file) throws IOException {
+		SampleBuffer[] buffers = { new SampleBuffer(COUNT0),
+				new SampleBuffer(COUNT1), new SampleBuffer(16) };
+		Recorder recorder = new Recorder(buffers, CHANNELS, file, START_TIME);
+		recorder.open();
+		int i0 = 0;
+		int i1 = 0;
+		while (i0 < COUNT0 || i1 < COUNT1) {
+			if (i1 == COUNT1
+					|| (i0 < COUNT0 && timestamp0(i0) <= timestamp1(i1))) {
+				buffers[0].add(timestamp0(i0), x0(i0), -1f, 9.8f, 0);
+				i0++;
+			} else {
+				buffers[1].add(timestamp1(i1), x1(i1), i1, 0f, 0);
+				i1++;
+			}
+		}
+		recorder.close();
+		Check.equal("recorder dropped", recorder.getDropped(), 0);
+	}
+
+	private static long timestamp0(int i) {
+		return FIRST_TIMESTAMP + i * SECOND / RATE0;
+	}
+
+	private static long timestamp1(int i) {
+		return FIRST_TIMESTAMP + OFFSET1 + i * SECOND / RATE1;
+	}
+
+	// 0 から 0.99 の鋸歯状波
+	private static float x0(int i) {
+		return (i % 100) * 0.01f;
+	}
+
+	// 先頭からの分(タイルの番号)
+	private static float x1(int i) {
+		return (float) ((timestamp1(i) - FIRST_TIMESTAMP)
+				/ SessionIndexer.TILE_INTERVAL);
+	}
+
+	// 記録にない種類なら先頭のチャンネルを開く
+	private static void checkOpenType(File file) throws IOException {
+		RecordingReader reader = RecordingReader.openType(file,
+				ChannelDescriptor.TYPE_GYROSCOPE);
+		try {
+			Check.equal("open gyroscope channel", reader.getChannelIndex(), 1);
+			Check.equal("open gyroscope samples", reader.getSampleCount(),
+					COUNT1);
+		} finally {
+			reader.close();
+		}
+		reader = RecordingReader.openType(file,
+				ChannelDescriptor.TYPE_LINEAR_ACCELERATION);
+		try {
+			Check.equal("open missing type channel", reader
+					.getChannelIndex(), 0);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void checkSummary(SessionSummary summary) {
+		Check.that(summary.finalized, "finalized");
+		Check.equal("start time", summary.startTime, START_TIME);
+		Check.equal("channels", summary.channels.length, CHANNELS.length);
+		Check.equal("first timestamp", summary.firstTimestamp, FIRST_TIMESTAMP);
+		Check.equal("last timestamp", summary.lastTimestamp,
+				timestamp1(COUNT1 - 1));
+		// 先頭から 189.95 秒なので4タイル
+		int tiles = 4;
+
+		SessionSummary.Channel channel = summary.channels[0];
+		Check.equal("ch0 samples", channel.sampleCount, COUNT0);
+		Check.near("ch0 rate", channel.sampleRate, RATE0, 1e-9);
+		Check.equal("ch0 tiles", channel.getTileCount(), tiles);
+		int[] counts0 = { 60 * RATE0, 60 * RATE0, 30 * RATE0, 0 };
+		for (int tile = 0; tile < tiles; tile++) {
+			Check.equal("ch0 tile " + tile + " count", channel.tileCounts[tile],
+					counts0[tile]);
+		}
+		boolean tilesOk = true;
+		for (int tile = 0; tile < 3; tile++) {
+			tilesOk &= channel.tileMin[SampleBuffer.CHANNEL_X][tile] == 0
+					&& channel.tileMax[SampleBuffer.CHANNEL_X][tile] == x0(99)
+					&& channel.tileMin[SampleBuffer.CHANNEL_Y][tile] == -1
+					&& channel.tileMax[SampleBuffer.CHANNEL_Z][tile] == 9.8f;
+		}
+		// サンプルのないタイルは0
+		tilesOk &= channel.tileMin[SampleBuffer.CHANNEL_X][3] == 0
+				&& channel.tileMax[SampleBuffer.CHANNEL_Z][3] == 0;
+		Check.that(tilesOk, "ch0 tile min/max");
+		Check.near("ch0 x mean", channel.mean[SampleBuffer.CHANNEL_X], 0.495,
+				1e-5);
+		Check.near("ch0 x rms", channel.rms[SampleBuffer.CHANNEL_X], Math
+				.sqrt(0.99 * 1.99 / 6), 1e-5);
+		Check.near("ch0 y mean", channel.mean[SampleBuffer.CHANNEL_Y], -1, 0);
+		Check.near("ch0 z rms", channel.rms[SampleBuffer.CHANNEL_Z], 9.8, 1e-5);
+		Check.that(channel.min[SampleBuffer.CHANNEL_X] == 0
+				&& channel.max[SampleBuffer.CHANNEL_X] == x0(99), "ch0 x range");
+		// R は sqrt(x^2 + 1 + 9.8^2)
+		Check.near("ch0 r min", channel.min[SampleBuffer.CHANNEL_R], Math
+				.sqrt(1 + 9.8 * 9.8), 1e-5);
+
+		channel = summary.channels[1];
+		Check.equal("ch1 samples", channel.sampleCount, COUNT1);
+		Check.near("ch1 rate", channel.sampleRate, RATE1, 1e-9);
+		Check.equal("ch1 tiles", channel.getTileCount(), tiles);
+		int[] counts1 = { 30 * RATE1, 60 * RATE1, 60 * RATE1, 10 * RATE1 };
+		tilesOk = true;
+		for (int tile = 0; tile < tiles; tile++) {
+			Check.equal("ch1 tile " + tile + " count", channel.tileCounts[tile],
+					counts1[tile]);
+			// x はタイルの番号なので、タイルに正しく振り分けられていれば最小と最大が一致する
+			tilesOk &= channel.tileMin[SampleBuffer.CHANNEL_X][tile] == tile
+					&& channel.tileMax[SampleBuffer.CHANNEL_X][tile] == tile;
+		}
+		Check.that(tilesOk, "ch1 tile min/max");
+		Check.that(channel.min[SampleBuffer.CHANNEL_Y] == 0
+				&& channel.max[SampleBuffer.CHANNEL_Y] == COUNT1 - 1,
+				"ch1 y range");
+		Check.near("ch1 y mean", channel.mean[SampleBuffer.CHANNEL_Y],
+				(COUNT1 - 1) / 2.0, 1e-3);
+
+		// サンプルのないチャンネル
+		channel = summary.channels[2];
+		int empty = 0;
+		for (int tile = 0; tile < channel.getTileCount(); tile++) {
+			empty += channel.tileCounts[tile];
+		}
+		Check.that(channel.sampleCount == 0 && channel.sampleRate == 0
+				&& empty == 0 && channel.min[SampleBuffer.CHANNEL_X] == 0
+				&& channel.max[SampleBuffer.CHANNEL_X] == 0, "empty channel");
+	}
+
+	// 終了処理がなく、途中のチャンクの CRC が合わないファイルは、
+	// RecordingReader と同じくそのチャンクの前までを索引にする
+	private static void checkInterrupted(File dir, File file)
+			throws IOException {
+		File copy = new File(dir, "interrupted" + RecordingFormat.EXTENSION);
+		copy(file, copy);
+		RandomAccessFile raf = new RandomAccessFile(copy, "rw");
+		try {
+			raf.seek(OFFSET_FLAGS);
+			raf.writeShort(0);
+			// 後ろから1/3ほどの位置のサンプルを壊す
+			long position = raf.length() * 2 / 3;
+			raf.seek(position);
+			int value = raf.readByte();
+			raf.seek(position);
+			raf.writeByte(value ^ 0x55);
+		} finally {
+			raf.close();
+		}
+
+		SessionSummary summary = new SessionIndexer().index(copy);
+		Check.that(!summary.finalized, "interrupted is not finalized");
+		long total = 0;
+		long last = Long.MIN_VALUE;
+		for (int channel = 0; channel < 2; channel++) {
+			RecordingReader reader = new RecordingReader(copy, channel);
+			try {
+				SessionSummary.Channel result = summary.channels[channel];
+				Check.equal("interrupted ch" + channel + " samples",
+						result.sampleCount, reader.getSampleCount());
+				int tiles = 0;
+				for (int tile = 0; tile < result.getTileCount(); tile++) {
+					tiles += result.tileCounts[tile];
+				}
+				Check.equal("interrupted ch" + channel + " tile counts", tiles,
+						reader.getSampleCount());
+				total += reader.getSampleCount();
+				last = Math.max(last, reader.getLastTimestamp());
+			} finally {
+				reader.close();
+			}
+		}
+		Check.that(total < COUNT0 + COUNT1, "interrupted drops the bad chunk");
+		Check.equal("interrupted last timestamp", summary.lastTimestamp, last);
+		Check.equal("interrupted tiles", summary.channels[0].getTileCount(),
+				(int) ((last - FIRST_TIMESTAMP)
+						/ SessionIndexer.TILE_INTERVAL) + 1);
+		copy.delete();
+	}
+
+	private static void checkSync(File dir, File file) throws IOException {
+		MemoryStore store = new MemoryStore();
+		SessionIndexer indexer = new SessionIndexer();
+		File second = new File(dir, "b" + RecordingFormat.EXTENSION);
+		copy(file, second);
+		Check.equal("sync adds", indexer.sync(dir, store), 2);
+		Check.equal("sync unchanged", indexer.sync(dir, store), 0);
+		Check.equal("sync puts", store.mPuts, 2);
+
+		// 更新時刻が変わったファイルだけを読み直す
+		second.setLastModified(second.lastModified() - 10000);
+		Check.equal("sync modified", indexer.sync(dir, store), 1);
+
+		// 記録中のファイルは読まず、カタログにある索引も消さない
+		File active = new File(dir, "c" + RecordingFormat.EXTENSION);
+		copy(file, active);
+		Check.equal("sync skips active", indexer.sync(dir, store, active), 0);
+		Check.that(!store.mSummaries.containsKey(active.getName()),
+				"active is not indexed");
+		Check.equal("sync after finalize", indexer.sync(dir, store), 1);
+		active.setLastModified(active.lastModified() - 10000);
+		indexer.sync(dir, store, active);
+		Check.that(store.mSummaries.containsKey(active.getName()),
+				"active index is kept");
+
+		second.delete();
+		Check.equal("sync after delete", indexer.sync(dir, store, active), 0);
+		Check.that(!store.mSummaries.containsKey(second.getName()),
+				"deleted index is removed");
+		Check.equal("sync failures", indexer.getFailed(), 0);
+		active.delete();
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		try {
+			FileOutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static class MemoryStore implements SessionIndexer.Store {
+		final Map<String, SessionSummary> mSummaries = new HashMap<String, SessionSummary>();
+		int mPuts;
+
+		@Override
+		public String[] getIndexedNames() {
+			return mSummaries.keySet().toArray(new String[0]);
+		}
+
+		@Override
+		public boolean isIndexed(String name, long size, long modified) {
+			SessionSummary summary = mSummaries.get(name);
+			return summary != null && summary.size == size
+					&& summary.modified == modified;
+		}
+
+		@Override
+		public void put(SessionSummary summary) {
+			mSummaries.put(summary.name, summary);
+			mPuts++;
+		}
+
+		@Override
+		public void remove(String name) {
+			mSummaries.remove(name);
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import jp.co.laurus.android.accelerometergraph.ChannelDescriptor;
+import jp.co.laurus.android.accelerometergraph.RecordingFormat;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SampleCodec;
+import jp.co.laurus.android.accelerometergraph.StreamProtocol;
+import jp.co.laurus.android.accelerometergraph.StreamServer;
+
+/**
+ * ライブ配信を受信し、受信量と欠け、遅延を1秒ごとに表示する
+ *
+ * <pre>
+ * java -cp bench-bin jp.co.laurus.android.accelerometergraph.bench.StreamClient \
+ *     ホスト ポート [秒]
+ * java -cp bench-bin jp.co.laurus.android.accelerometergraph.bench.StreamClient \
+ *     --loopback [サンプリング周波数] [秒] [1フレームごとに待つミリ秒]
+ * </pre>
+ *
+ * 端末に接続したときは、シーケンス番号の飛び(欠けたサンプル)と
+ * タイムスタンプの逆転を数える。センサーの時計は受信側と共有できないので、
+ * 遅延はフレームの到着間隔で見る。
+ *
+ * --loopback では同じプロセスに{@link StreamServer}を立て、センサーの代わりの
+ * スレッドが System.nanoTime() をタイムスタンプにして実時間で履歴に追加する。
+ * そのため送信から受信まで(transport)と、サンプルの発生から受信まで(e2e)の
+ * 遅延を計れる。待ち時間を指定すると遅いクライアントになり、欠けが出ても
+ * 追加する側の処理時間が変わらないこと(バックプレッシャーが送信側で
+ * 止まること)を確かめられる。
+ */
+public class StreamClient {
+
+	private static final int REPORT_INTERVAL = 1000;
+	// ループバックでの1回の追加のサンプル数(センサーのバッチの代わり)
+	private static final int LOOPBACK_BLOCK = 5;
+	private static final int LOOPBACK_BATCH = 64;
+	private static final float GRAVITY = 9.80665f;
+	private static final int SLOW_RECEIVE_BUFFER_SIZE = 4096;
+
+	private static volatile boolean sWriting;
+	// ループバックの追加にかかった最大の時間(ナノ秒)
+	private static volatile long sMaxAddTime;
+	private static volatile long sWritten;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: StreamClient host port [seconds]");
+			System.err.println("       StreamClient --loopback [rate] [seconds]"
+					+ " [slow ms]");
+			System.exit(2);
+		}
+		if (!args[0].equals("--loopback")) {
+			float seconds = args.length > 2 ? Float.parseFloat(args[2]) : 10f;
+			int errors = receive(new InetSocketAddress(args[0], Integer
+					.parseInt(args[1])), seconds, 0, false);
+			System.exit(errors > 0 ? 1 : 0);
+		}
+
+		float rate = args.length > 1 ? Float.parseFloat(args[1]) : 500f;
+		float seconds = args.length > 2 ? Float.parseFloat(args[2]) : 10f;
+		long slow = args.length > 3 ? Long.parseLong(args[3]) : 0;
+
+		SampleBuffer history = new SampleBuffer(8192);
+		StreamServer server = new StreamServer(
+				new SampleBuffer[] { history },
+				new ChannelDescriptor[] { ChannelDescriptor.ACCELEROMETER }, 0,
+				SampleCodec.ENCODING_XOR, LOOPBACK_BATCH);
+		server.open();
+		Thread writer = startWriter(history, rate);
+		int errors;
+		try {
+			errors = receive(new InetSocketAddress("127.0.0.1", server
+					.getPort()), seconds, slow, true);
+		} finally {
+			sWriting = false;
+			writer.join();
+			server.close();
+		}
+		System.out.println("written " + sWritten + ", sent "
+				+ server.getSentSamples() + ", dropped by server "
+				+ server.getDropped() + ", max add " + sMaxAddTime / 1000
+				+ " us");
+		System.exit(errors > 0 ? 1 : 0);
+	}
+
+	// センサーの代わりに実時間でサンプルを追加する(x はシーケンス番号から決める)
+	private static Thread startWriter(final SampleBuffer history,
+			final float rate) {
+		sWriting = true;
+		Thread writer = new Thread("LoopbackWriter") {
+			@Override
+			public void run() {
+				long[] timestamps = new long[LOOPBACK_BLOCK];
+				float[] x = new float[LOOPBACK_BLOCK];
+				float[] y = new float[LOOPBACK_BLOCK];
+				float[] z = new float[LOOPBACK_BLOCK];
+				float[] r = new float[LOOPBACK_BLOCK];
+				long interval = (long) (1e9 / rate);
+				long start = System.nanoTime();
+				long sequence = 0;
+				while (sWriting) {
+					long wait = start + (sequence + LOOPBACK_BLOCK) * interval
+							- System.nanoTime();
+					if (wait > 0) {
+						try {
+							Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					// センサーと同じく、タイムスタンプは予定の発生時刻にする
+					for (int i = 0; i < LOOPBACK_BLOCK; i++) {
+						x[i] = expectedX(sequence + i);
+						y[i] = -x[i];
+						z[i] = GRAVITY;
+						r[i] = GRAVITY;
+						timestamps[i] = start + (sequence + i + 1) * interval;
+					}
+					long begin = System.nanoTime();
+					history.addAll(timestamps, x, y, z, r, 0, LOOPBACK_BLOCK);
+					sMaxAddTime = Math.max(sMaxAddTime, System.nanoTime()
+							- begin);
+					sequence += LOOPBACK_BLOCK;
+					sWritten = sequence;
+				}
+			}
+		};
+		writer.start();
+		return writer;
+	}
+
+	private static float expectedX(long sequence) {
+		return sequence % 1000;
+	}
+
+	/**
+	 * @param slow
+	 *            1フレームごとに待つミリ秒
+	 * @param loopback
+	 *            同じ時計のタイムスタンプで、x がシーケンス番号から決まる
+	 * @return 不整合の数
+	 */
+	private static int receive(InetSocketAddress address, float seconds,
+			long slow, boolean loopback) throws Exception {
+		SocketChannel channel = SocketChannel.open();
+		if (slow > 0) {
+			// 受信側に溜めず、送信側で欠けるようにする
+			channel.socket().setReceiveBufferSize(SLOW_RECEIVE_BUFFER_SIZE);
+		}
+		channel.connect(address);
+		channel.socket().setTcpNoDelay(true);
+		ByteBuffer buffer = ByteBuffer.allocate(StreamProtocol.HEADER_SIZE
+				+ RecordingFormat.MAX_CHANNELS * RecordingFormat.CHANNEL_SIZE);
+		try {
+			readFully(channel, buffer, StreamProtocol.HEADER_SIZE);
+			StreamProtocol.Header header = StreamProtocol
+					.readFixedHeader(buffer);
+			readFully(channel, buffer, header.channels.length
+					* RecordingFormat.CHANNEL_SIZE);
+			RecordingFormat.readChannels(buffer, header.channels);
+			System.out.print("encoding " + header.encoding + ", batch "
+					+ header.batchSize + ", channels");
+			for (int i = 0; i < header.channels.length; i++) {
+				System.out.print(" " + header.channels[i].name);
+			}
+			System.out.println();
+			return receiveFrames(channel, header, seconds, slow, loopback);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static int receiveFrames(SocketChannel channel,
+			StreamProtocol.Header header, float seconds, long slow,
+			boolean loopback) throws Exception {
+		int channels = header.channels.length;
+		ByteBuffer buffer = ByteBuffer.allocate(StreamProtocol.maxFrameSize(
+				header.encoding, header.batchSize));
+		StreamProtocol.Frame frame = new StreamProtocol.Frame(header);
+		long[] expected = new long[channels];
+		long[] lastTimestamps = new long[channels];
+		for (int i = 0; i < channels; i++) {
+			expected[i] = -1;
+			lastTimestamps[i] = Long.MIN_VALUE;
+		}
+
+		System.out.println("sec\tsamples/s\tKB/s\tframes\tlost"
+				+ (loopback ? "\ttransport mean/max(us)\te2e mean/max(us)"
+						: "\tframe gap max(ms)"));
+		long start = System.currentTimeMillis();
+		long end = start + (long) (seconds * 1000);
+		long nextReport = start + REPORT_INTERVAL;
+		long samples = 0, bytes = 0, frames = 0, lost = 0;
+		long transport = 0, transportMax = 0, e2e = 0, e2eMax = 0;
+		long lastArrival = 0, gapMax = 0;
+		long totalSamples = 0, totalLost = 0;
+		int errors = 0;
+		while (System.currentTimeMillis() < end) {
+			readFully(channel, buffer, 4);
+			int length = buffer.getInt();
+			if (length < 0 || length + 4 > buffer.capacity()) {
+				throw new IOException("broken frame length: " + length);
+			}
+			readFully(channel, buffer, length);
+			frame.read(buffer, length);
+			long now = System.nanoTime();
+
+			int ch = frame.channel;
+			if (ch >= channels || frame.count == 0) {
+				errors++;
+				continue;
+			}
+			if (expected[ch] >= 0) {
+				if (frame.firstSequence < expected[ch]) {
+					errors++;
+				} else {
+					lost += frame.firstSequence - expected[ch];
+				}
+			}
+			expected[ch] = frame.firstSequence + frame.count;
+			for (int i = 0; i < frame.count; i++) {
+				if (frame.timestamps[i] < lastTimestamps[ch]) {
+					errors++;
+				}
+				lastTimestamps[ch] = frame.timestamps[i];
+				if (loopback
+						&& frame.x[i] != expectedX(frame.firstSequence + i)) {
+					errors++;
+				}
+			}
+
+			samples += frame.count;
+			bytes += 4 + length;
+			frames++;
+			if (loopback) {
+				long t = now - frame.sendTime;
+				transport += t;
+				transportMax = Math.max(transportMax, t);
+				// 最も新しいサンプルの発生から受信まで
+				long e = now - frame.timestamps[frame.count - 1];
+				e2e += e;
+				e2eMax = Math.max(e2eMax, e);
+			} else if (lastArrival != 0) {
+				gapMax = Math.max(gapMax, now - lastArrival);
+			}
+			lastArrival = now;
+
+			long wall = System.currentTimeMillis();
+			if (wall >= nextReport) {
+				float elapsed = (wall - nextReport + REPORT_INTERVAL) / 1000f;
+				StringBuilder line = new StringBuilder();
+				line.append((wall - start) / 1000).append('\t').append(
+						Math.round(samples / elapsed)).append('\t').append(
+						Math.round(bytes / 1024f / elapsed)).append('\t')
+						.append(frames).append('\t').append(lost);
+				if (loopback) {
+					line.append('\t').append(transport / frames / 1000)
+							.append('/').append(transportMax / 1000).append(
+									'\t').append(e2e / frames / 1000).append(
+									'/').append(e2eMax / 1000);
+				} else {
+					line.append('\t').append(gapMax / 1000000);
+				}
+				System.out.println(line);
+				totalSamples += samples;
+				totalLost += lost;
+				samples = bytes = frames = lost = 0;
+				transport = transportMax = e2e = e2eMax = gapMax = 0;
+				nextReport = wall + REPORT_INTERVAL;
+			}
+
+			if (slow > 0) {
+				Thread.sleep(slow);
+			}
+		}
+		totalSamples += samples;
+		totalLost += lost;
+		System.out.println("received " + totalSamples + ", lost " + totalLost
+				+ ", errors " + errors);
+		return errors;
+	}
+
+	// ちょうど length バイトを読み、読み出せるように buffer を用意する
+	private static void readFully(SocketChannel channel, ByteBuffer buffer,
+			int length) throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("stream closed");
+			}
+		}
+		buffer.flip();
+	}
+}
@@ -0,0 +1,159 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+
+import jp.co.laurus.android.accelerometergraph.ChannelDescriptor;
+import jp.co.laurus.android.accelerometergraph.MinMaxPyramid;
+import jp.co.laurus.android.accelerometergraph.SampleBuffer;
+import jp.co.laurus.android.accelerometergraph.SamplePipeline;
+import jp.co.laurus.android.accelerometergraph.TriggerEngine;
+import jp.co.laurus.android.accelerometergraph.TriggerRule;
+
+/**
+ * トリガーの条件の評価量(サンプル/秒)と、トリガーからディスクまでの遅延
+ *
+ * 遅延は 500Hz(SENSOR_DELAY_FASTEST 程度)の実時間でサンプルを流し、
+ * 一定間隔の衝撃で発火させて計る。
+ */
+public class TriggerBenchmark {
+
+	private static final int SAMPLES = 4096;
+	private static final int BLOCK = 256;
+	private static final float GRAVITY = 9.80665f;
+
+	// 遅延の計測(500Hz で 10ms ごとに5件ずつ流し、2秒ごとに衝撃)
+	private static final int LATENCY_RATE = 500;
+	private static final int LATENCY_BLOCK = 5;
+	private static final int LATENCY_EVENTS = 5;
+	private static final int LATENCY_PRE = LATENCY_RATE / 2;
+	private static final int LATENCY_POST = LATENCY_RATE / 2;
+
+	private static final float[] THRESHOLDS = { 2 * GRAVITY, 0.5f,
+			0.3f * GRAVITY };
+
+	public static void run() throws Exception {
+		Harness.header("trigger (samples)");
+
+		final long[] timestamps = new long[SAMPLES];
+		final float[] r = new float[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			timestamps[i] = i * 2000000L;
+			r[i] = GRAVITY + (float) Math.sin(i * 0.05);
+		}
+
+		for (int type = 0; type < THRESHOLDS.length; type++) {
+			final TriggerRule rule = new TriggerRule(type, THRESHOLDS[type],
+					100000000L);
+			Harness.measure("rule " + TriggerRule.NAMES[type], "samples", 1,
+					new Harness.Task() {
+						@Override
+						public long run() {
+							for (int i = 0; i < SAMPLES; i += BLOCK) {
+								rule.process(timestamps, r, i, BLOCK);
+							}
+							return SAMPLES;
+						}
+					});
+		}
+
+		// パイプラインに組み込んだときの処理量
+		final float[] x = new float[SAMPLES];
+		final float[] y = new float[SAMPLES];
+		final float[] z = new float[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			z[i] = r[i];
+		}
+		final File dir = createDirectory();
+		try {
+			for (int trigger = 0; trigger < 2; trigger++) {
+				final SamplePipeline pipeline = createPipeline();
+				if (trigger > 0) {
+					pipeline.setTrigger(new TriggerEngine(new TriggerRule(
+							TriggerRule.MAGNITUDE, THRESHOLDS[0], 0),
+							LATENCY_PRE, LATENCY_POST, dir,
+							ChannelDescriptor.ACCELEROMETER));
+				}
+				Harness.measure(trigger > 0 ? "onSamples trigger"
+						: "onSamples no trigger", "samples", 1,
+						new Harness.Task() {
+							@Override
+							public long run() {
+								for (int i = 0; i < SAMPLES; i += BLOCK) {
+									pipeline.onSamples(timestamps, x, y, z, i,
+											BLOCK);
+								}
+								return SAMPLES;
+							}
+						});
+			}
+
+			if (Harness.isSelected("latency")) {
+				measureLatency(dir);
+			}
+		} finally {
+			File[] files = dir.listFiles();
+			for (int i = 0; files != null && i < files.length; i++) {
+				files[i].delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static void measureLatency(File dir) throws Exception {
+		SamplePipeline pipeline = createPipeline();
+		TriggerEngine engine = new TriggerEngine(new TriggerRule(
+				TriggerRule.MAGNITUDE, THRESHOLDS[0], 0), LATENCY_PRE,
+				LATENCY_POST, dir, ChannelDescriptor.ACCELEROMETER);
+		engine.start();
+		pipeline.setTrigger(engine);
+
+		long[] timestamps = new long[LATENCY_BLOCK];
+		float[] x = new float[LATENCY_BLOCK];
+		float[] y = new float[LATENCY_BLOCK];
+		float[] z = new float[LATENCY_BLOCK];
+		int count = LATENCY_RATE * 2 * LATENCY_EVENTS;
+		long interval = 1000000000L / LATENCY_RATE;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i += LATENCY_BLOCK) {
+			for (int j = 0; j < LATENCY_BLOCK; j++) {
+				int index = i + j;
+				timestamps[j] = index * interval;
+				z[j] = index % (LATENCY_RATE * 2) == LATENCY_RATE ? 4 * GRAVITY
+						: GRAVITY;
+			}
+			// 実時間に合わせて流す
+			long wait = start + (i + LATENCY_BLOCK) * interval
+					- System.nanoTime();
+			if (wait > 0) {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+			pipeline.onSamples(timestamps, x, y, z, 0, LATENCY_BLOCK);
+		}
+		engine.stop();
+
+		TriggerEngine.Event[] events = engine.getEvents();
+		long total = 0;
+		long max = 0;
+		for (int i = 0; i < events.length; i++) {
+			total += events[i].getLatency();
+			max = Math.max(max, events[i].getLatency());
+		}
+		if (events.length > 0) {
+			System.out.println("trigger to disk: " + events.length
+					+ " events, mean " + total / events.length / 1000
+					+ " us, max " + max / 1000 + " us");
+		}
+	}
+
+	private static SamplePipeline createPipeline() {
+		return new SamplePipeline(new SampleBuffer(2048), new SampleBuffer(
+				8192), MinMaxPyramid.createLive(16, 2048));
+	}
+
+	private static File createDirectory() throws Exception {
+		File dir = File.createTempFile("bench", "");
+		dir.delete();
+		dir.mkdir();
+		return dir;
+	}
+}
@@ -0,0 +1,144 @@
+package jp.co.laurus.android.accelerometergraph.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import jp.co.laurus.android.accelerometergraph.ChannelDescriptor;
+import jp.co.laurus.android.accelerometergraph.TriggerEngine;
+import jp.co.laurus.android.accelerometergraph.TriggerRule;
+
+/**
+ * トリガーの自己検査
+ *
+ * 1つのブロックに複数の衝撃を入れ、{@link TriggerEngine}が記録中の
+ * イベントに重ならない発火を全て記録すること、キューが一杯なら
+ * getMissed() に数えること、1サンプルずつ渡したときと同じ発火になることを
+ * 確かめる。書き込みスレッドを動かして、イベントのタイムスタンプも確かめる。
+ */
+public class TriggerCheck {
+
+	private static final int BLOCK = 256;
+	private static final long INTERVAL = 5000000L;
+	private static final float GRAVITY = 9.80665f;
+	private static final float THRESHOLD = 2 * GRAVITY;
+	private static final int PRE_SAMPLES = 10;
+	private static final int POST_SAMPLES = 20;
+
+	// 25 は 10 のイベントの記録中なので同じイベントになる
+	private static final int[] SHOCKS = { 10, 25, 60, 100, 121 };
+	private static final int[] EVENTS = { 10, 60, 100, 121 };
+
+	public static void run() throws Exception {
+		Check.header("trigger");
+		Signal signal = new Signal(SHOCKS);
+
+		TriggerEngine engine = createEngine(new File("."));
+		signal.feed(engine, BLOCK);
+		Check.equal("events in one block", engine.getTriggerCount(),
+				EVENTS.length);
+		Check.equal("missed in one block", engine.getMissed(), 0);
+
+		// 1サンプルずつ渡しても同じ
+		engine = createEngine(new File("."));
+		signal.feed(engine, 1);
+		Check.equal("events sample by sample", engine.getTriggerCount(),
+				EVENTS.length);
+
+		// 書き込みスレッドが動いていなければ、キューの8件を超えた分は失われる
+		int[] many = new int[12];
+		for (int i = 0; i < many.length; i++) {
+			many[i] = 5 + i * (POST_SAMPLES + 1);
+		}
+		engine = createEngine(new File("."));
+		new Signal(many).feed(engine, BLOCK);
+		Check.equal("queued in one block", engine.getTriggerCount(), 8);
+		Check.equal("missed in one block (queue full)", engine.getMissed(),
+				many.length - 8);
+
+		checkEvents(signal);
+	}
+
+	private static TriggerEngine createEngine(File dir) {
+		return new TriggerEngine(new TriggerRule(TriggerRule.MAGNITUDE,
+				THRESHOLD, 0), PRE_SAMPLES, POST_SAMPLES, dir,
+				ChannelDescriptor.ACCELEROMETER);
+	}
+
+	// 書き込んだイベントのタイムスタンプは発火したサンプルのもの
+	private static void checkEvents(Signal signal) throws Exception {
+		File dir = createDirectory();
+		try {
+			TriggerEngine engine = createEngine(dir);
+			engine.start();
+			signal.feed(engine, BLOCK);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (engine.getEvents().length < EVENTS.length
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			engine.stop();
+
+			TriggerEngine.Event[] events = engine.getEvents();
+			Check.equal("written events", events.length, EVENTS.length);
+			boolean ok = events.length == EVENTS.length;
+			for (int i = 0; ok && i < events.length; i++) {
+				ok &= events[i].getTimestamp() == signal.timestamps[EVENTS[i]]
+						&& events[i].getError() == null;
+			}
+			Check.that(ok, "event timestamps");
+		} finally {
+			File[] files = dir.listFiles();
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static File createDirectory() throws IOException {
+		File dir = File.createTempFile("events", "");
+		dir.delete();
+		if (!dir.mkdir()) {
+			throw new IOException("cannot create " + dir);
+		}
+		return dir;
+	}
+
+	// 静止した端末に、shocks の位置だけ1サンプルの衝撃を入れた1ブロック
+	private static class Signal {
+		final long[] timestamps = new long[BLOCK];
+		final float[] x = new float[BLOCK];
+		final float[] y = new float[BLOCK];
+		final float[] z = new float[BLOCK];
+		final float[] r = new float[BLOCK];
+
+		Signal(int[] shocks) {
+			for (int i = 0; i < BLOCK; i++) {
+				timestamps[i] = (i + 1) * INTERVAL;
+				z[i] = GRAVITY;
+			}
+			for (int i = 0; i < shocks.length; i++) {
+				z[shocks[i]] = 3 * GRAVITY;
+			}
+			for (int i = 0; i < BLOCK; i++) {
+				r[i] = Math.abs(z[i]);
+			}
+		}
+
+		// block サンプルずつ渡す
+		void feed(TriggerEngine engine, int block) {
+			long[] t = new long[block];
+			float[][] values = new float[4][block];
+			for (int start = 0; start < BLOCK; start += block) {
+				int length = Math.min(block, BLOCK - start);
+				System.arraycopy(timestamps, start, t, 0, length);
+				System.arraycopy(x, start, values[0], 0, length);
+				System.arraycopy(y, start, values[1], 0, length);
+				System.arraycopy(z, start, values[2], 0, length);
+				System.arraycopy(r, start, values[3], 0, length);
+				engine.onSamples(t, values[0], values[1], values[2],
+						values[3], length);
+			}
+		}
+	}
+}
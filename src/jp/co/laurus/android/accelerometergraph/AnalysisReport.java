@@ -0,0 +1,389 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 記録の統計(軸ごとの最小・最大・平均・RMS、ヒストグラム、ピーク)
+ *
+ * 記録の一部分ずつ集計して{@link #merge}でまとめられる。まとめる順は時間順で
+ * なければならない(部分の境目をまたぐピークを1つのイベントとして数えるため)。
+ *
+ * ピークのイベントは、大きさ(R)と baseline の差が threshold を超えている
+ * 連続したサンプルで、差が最大のサンプルを代表とする。差が大きい順に
+ * MAX_PEAKS 件を残す。
+ */
+public class AnalysisReport {
+
+	public static final int AXES = SampleBuffer.CHANNELS;
+	public static final int HISTOGRAM_BINS = 32;
+	public static final int MAX_PEAKS = 10;
+
+	private final float mBaseline;
+	private final float mThreshold;
+	// ヒストグラムの範囲(X, Y, Z は ±mRange, R は 0 〜 2 * mRange)
+	private final float mRange;
+
+	private long mCount;
+	private long mFirstTimestamp;
+	private long mLastTimestamp;
+	private final float[] mMin = new float[AXES];
+	private final float[] mMax = new float[AXES];
+	private final double[] mSum = new double[AXES];
+	private final double[] mSumSquares = new double[AXES];
+	private final long[][] mHistogram = new long[AXES][HISTOGRAM_BINS];
+
+	// イベントの数と、境目に接していないイベントの上位
+	private long mEventCount;
+	private int mPeakCount;
+	private final long[] mPeakTimestamps = new long[MAX_PEAKS];
+	private final float[] mPeakValues = new float[MAX_PEAKS];
+	// 先頭・末尾に接しているイベント(なければ値は負)
+	private float mHeadValue = -1;
+	private long mHeadTimestamp;
+	private float mTailValue = -1;
+	private long mTailTimestamp;
+	// 全体が1つのイベント(先頭と末尾は同じイベント)
+	private boolean mSpanning;
+
+	/**
+	 * @param baseline
+	 *            ピークを求めるときの大きさの基準(加速度なら重力加速度)
+	 * @param threshold
+	 *            baseline との差がこれを超えたらピークとする
+	 * @param range
+	 *            ヒストグラムの範囲
+	 */
+	public AnalysisReport(float baseline, float threshold, float range) {
+		mBaseline = baseline;
+		mThreshold = threshold;
+		mRange = range;
+		for (int axis = 0; axis < AXES; axis++) {
+			mMin[axis] = Float.MAX_VALUE;
+			mMax[axis] = -Float.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * 同じ条件の空の統計を作る
+	 */
+	public AnalysisReport newPartial() {
+		return new AnalysisReport(mBaseline, mThreshold, mRange);
+	}
+
+	/**
+	 * window のサンプルを時間順に追加する
+	 */
+	public void add(SampleWindow window) {
+		int size = window.size();
+		for (int i = 0; i < size; i++) {
+			long timestamp = window.getTimestamp(i);
+			if (mCount == 0) {
+				mFirstTimestamp = timestamp;
+			}
+			mLastTimestamp = timestamp;
+			mCount++;
+
+			for (int axis = 0; axis < AXES; axis++) {
+				float value = window.get(axis, i);
+				if (value < mMin[axis]) {
+					mMin[axis] = value;
+				}
+				if (value > mMax[axis]) {
+					mMax[axis] = value;
+				}
+				mSum[axis] += value;
+				mSumSquares[axis] += (double) value * value;
+				mHistogram[axis][binOf(axis, value)]++;
+			}
+
+			float deviation = Math.abs(window.get(SampleBuffer.CHANNEL_R, i)
+					- mBaseline);
+			addPeakSample(timestamp, deviation);
+		}
+	}
+
+	// 1件ずつ追加した部分は、{先頭のサンプル}{残り}の順に merge したものと同じ
+	private void addPeakSample(long timestamp, float deviation) {
+		boolean above = deviation > mThreshold;
+		if (mCount == 1) {
+			if (above) {
+				mEventCount = 1;
+				mHeadValue = deviation;
+				mHeadTimestamp = timestamp;
+				mTailValue = deviation;
+				mTailTimestamp = timestamp;
+				mSpanning = true;
+			}
+			return;
+		}
+		if (above) {
+			if (mTailValue >= 0) {
+				// 続いているイベント
+				if (deviation > mTailValue) {
+					mTailValue = deviation;
+					mTailTimestamp = timestamp;
+					if (mSpanning) {
+						mHeadValue = deviation;
+						mHeadTimestamp = timestamp;
+					}
+				}
+			} else {
+				mEventCount++;
+				mTailValue = deviation;
+				mTailTimestamp = timestamp;
+			}
+		} else if (mTailValue >= 0) {
+			// イベントが終わった
+			if (!mSpanning) {
+				addPeak(mTailTimestamp, mTailValue);
+			}
+			mSpanning = false;
+			mTailValue = -1;
+		}
+	}
+
+	/**
+	 * 直後の部分の統計を追加する
+	 */
+	public void merge(AnalysisReport next) {
+		if (next.mCount == 0) {
+			return;
+		}
+		if (mCount == 0) {
+			mFirstTimestamp = next.mFirstTimestamp;
+		}
+		mLastTimestamp = next.mLastTimestamp;
+		for (int axis = 0; axis < AXES; axis++) {
+			mMin[axis] = Math.min(mMin[axis], next.mMin[axis]);
+			mMax[axis] = Math.max(mMax[axis], next.mMax[axis]);
+			mSum[axis] += next.mSum[axis];
+			mSumSquares[axis] += next.mSumSquares[axis];
+			for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+				mHistogram[axis][bin] += next.mHistogram[axis][bin];
+			}
+		}
+		for (int i = 0; i < next.mPeakCount; i++) {
+			addPeak(next.mPeakTimestamps[i], next.mPeakValues[i]);
+		}
+		mergeEvents(next);
+		mCount += next.mCount;
+	}
+
+	private void mergeEvents(AnalysisReport next) {
+		if (mCount == 0) {
+			mEventCount = next.mEventCount;
+			mHeadValue = next.mHeadValue;
+			mHeadTimestamp = next.mHeadTimestamp;
+			mTailValue = next.mTailValue;
+			mTailTimestamp = next.mTailTimestamp;
+			mSpanning = next.mSpanning;
+			return;
+		}
+		mEventCount += next.mEventCount;
+		boolean joined = mTailValue >= 0 && next.mHeadValue >= 0;
+		if (joined) {
+			// 境目をまたぐイベントを1つにまとめる
+			mEventCount--;
+			float value = mTailValue;
+			long timestamp = mTailTimestamp;
+			if (next.mHeadValue > value) {
+				value = next.mHeadValue;
+				timestamp = next.mHeadTimestamp;
+			}
+			if (mSpanning) {
+				mHeadValue = value;
+				mHeadTimestamp = timestamp;
+			}
+			if (next.mSpanning) {
+				mTailValue = value;
+				mTailTimestamp = timestamp;
+			} else {
+				if (!mSpanning) {
+					addPeak(timestamp, value);
+				}
+				mTailValue = next.mTailValue;
+				mTailTimestamp = next.mTailTimestamp;
+			}
+			mSpanning = mSpanning && next.mSpanning;
+			return;
+		}
+
+		// 接していたイベントは内側になる(全体が1つのイベントなら先頭・末尾のまま)
+		if (mTailValue >= 0 && !mSpanning) {
+			addPeak(mTailTimestamp, mTailValue);
+		}
+		if (next.mHeadValue >= 0 && !next.mSpanning) {
+			addPeak(next.mHeadTimestamp, next.mHeadValue);
+		}
+		mTailValue = next.mTailValue;
+		mTailTimestamp = next.mTailTimestamp;
+		mSpanning = false;
+	}
+
+	// 上位 MAX_PEAKS 件に入れる(大きい順)
+	private void addPeak(long timestamp, float value) {
+		int position = mPeakCount;
+		if (position == MAX_PEAKS) {
+			if (value <= mPeakValues[MAX_PEAKS - 1]) {
+				return;
+			}
+			position--;
+		} else {
+			mPeakCount++;
+		}
+		while (position > 0 && mPeakValues[position - 1] < value) {
+			mPeakValues[position] = mPeakValues[position - 1];
+			mPeakTimestamps[position] = mPeakTimestamps[position - 1];
+			position--;
+		}
+		mPeakValues[position] = value;
+		mPeakTimestamps[position] = timestamp;
+	}
+
+	private int binOf(int axis, float value) {
+		float low = axis == SampleBuffer.CHANNEL_R ? 0 : -mRange;
+		int bin = (int) ((value - low) / (2 * mRange) * HISTOGRAM_BINS);
+		if (bin < 0) {
+			return 0;
+		}
+		return bin < HISTOGRAM_BINS ? bin : HISTOGRAM_BINS - 1;
+	}
+
+	public long getCount() {
+		return mCount;
+	}
+
+	public long getFirstTimestamp() {
+		return mFirstTimestamp;
+	}
+
+	public long getLastTimestamp() {
+		return mLastTimestamp;
+	}
+
+	public float getMin(int axis) {
+		return mMin[axis];
+	}
+
+	public float getMax(int axis) {
+		return mMax[axis];
+	}
+
+	public double getMean(int axis) {
+		return mCount > 0 ? mSum[axis] / mCount : 0;
+	}
+
+	public double getRms(int axis) {
+		return mCount > 0 ? Math.sqrt(mSumSquares[axis] / mCount) : 0;
+	}
+
+	/**
+	 * 軸のヒストグラムを返す(HISTOGRAM_BINS 個)
+	 */
+	public long[] getHistogram(int axis) {
+		return mHistogram[axis].clone();
+	}
+
+	/**
+	 * ヒストグラムの bin の下限を返す
+	 */
+	public float getBinStart(int axis, int bin) {
+		float low = axis == SampleBuffer.CHANNEL_R ? 0 : -mRange;
+		return low + 2 * mRange * bin / HISTOGRAM_BINS;
+	}
+
+	public long getEventCount() {
+		return mEventCount;
+	}
+
+	/**
+	 * ピークのイベントを大きい順に返す
+	 *
+	 * @return 記録の先頭・末尾に接しているイベントを含めた件数
+	 */
+	public int getPeaks(long[] timestamps, float[] values) {
+		AnalysisReport peaks = newPartial();
+		for (int i = 0; i < mPeakCount; i++) {
+			peaks.addPeak(mPeakTimestamps[i], mPeakValues[i]);
+		}
+		if (mHeadValue >= 0) {
+			peaks.addPeak(mHeadTimestamp, mHeadValue);
+		}
+		if (mTailValue >= 0 && !mSpanning) {
+			peaks.addPeak(mTailTimestamp, mTailValue);
+		}
+		int count = Math.min(peaks.mPeakCount, Math.min(timestamps.length,
+				values.length));
+		System.arraycopy(peaks.mPeakTimestamps, 0, timestamps, 0, count);
+		System.arraycopy(peaks.mPeakValues, 0, values, 0, count);
+		return count;
+	}
+
+	/**
+	 * 統計をテキストにして追記する(表示用)
+	 */
+	public void appendTo(StringBuilder builder) {
+		double seconds = (mLastTimestamp - mFirstTimestamp) / 1e9;
+		builder.append("samples ").append(mCount).append("  ");
+		appendFixed(builder, seconds);
+		builder.append("s");
+		if (seconds > 0) {
+			builder.append("  ");
+			appendFixed(builder, (mCount - 1) / seconds);
+			builder.append("Hz");
+		}
+		for (int axis = 0; axis < AXES; axis++) {
+			builder.append('\n').append("XYZR".charAt(axis));
+			if (mCount == 0) {
+				continue;
+			}
+			builder.append("  min ");
+			appendFixed(builder, mMin[axis]);
+			builder.append("  max ");
+			appendFixed(builder, mMax[axis]);
+			builder.append("  mean ");
+			appendFixed(builder, getMean(axis));
+			builder.append("  rms ");
+			appendFixed(builder, getRms(axis));
+		}
+
+		builder.append("\npeaks (>");
+		appendFixed(builder, mThreshold);
+		builder.append(") ").append(mEventCount);
+		long[] timestamps = new long[MAX_PEAKS];
+		float[] values = new float[MAX_PEAKS];
+		int count = getPeaks(timestamps, values);
+		for (int i = 0; i < count; i++) {
+			builder.append("\n  ");
+			appendFixed(builder, (timestamps[i] - mFirstTimestamp) / 1e9);
+			builder.append("s  ");
+			appendFixed(builder, values[i]);
+		}
+
+		builder.append("\nhistogram R");
+		long[] histogram = mHistogram[SampleBuffer.CHANNEL_R];
+		for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+			if (histogram[bin] > 0) {
+				builder.append("\n  ");
+				appendFixed(builder, getBinStart(SampleBuffer.CHANNEL_R, bin));
+				builder.append("  ").append(histogram[bin]);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		appendTo(builder);
+		return builder.toString();
+	}
+
+	// 小数点以下2桁
+	private static void appendFixed(StringBuilder builder, double value) {
+		long hundredths = Math.round(value * 100);
+		if (hundredths < 0) {
+			builder.append('-');
+			hundredths = -hundredths;
+		}
+		builder.append(hundredths / 100).append('.').append(
+				(hundredths / 10) % 10).append(hundredths % 10);
+	}
+}
@@ -0,0 +1,110 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 圧縮した保存用ファイル(.acz)の形式
+ *
+ * <pre>
+ * ヘッダ(32バイト + チャンネル表)
+ *   int   MAGIC
+ *   short VERSION
+ *   short 符号化の方式({@link SampleCodec}の ENCODING_*)
+ *   float 丸めの単位(ENCODING_DELTA のみ)
+ *   long  記録開始時刻(ミリ秒)
+ *   int   チャンネル数
+ *   チャンネル表({@link RecordingFormat}と同じ)
+ * ブロック(繰り返し)
+ *   int   BLOCK_MAGIC
+ *   int   チャンネル番号
+ *   int   サンプル数
+ *   int   符号化したバイト数
+ *   int   符号化した部分の CRC32
+ *   long  先頭のタイムスタンプ(ナノ秒)
+ *   {@link SampleCodec}で符号化したサンプル
+ * </pre>
+ *
+ * ブロックは単独で復元できるので、ヘッダだけをたどって索引を作れば
+ * 任意の位置から、あるいは複数のスレッドで並行して読み込める。
+ * 記録中の{@link RecordingFormat}のファイルはメモリマップで直接参照するため
+ * 固定長のままにし、こちらは長期保存用に書き出す。
+ */
+public class ArchiveFormat {
+
+	public static final String EXTENSION = ".acz";
+
+	public static final int MAGIC = 0x4143435a; // "ACCZ"
+	public static final short VERSION = 1;
+
+	public static final int HEADER_SIZE = 32;
+	public static final int BLOCK_HEADER_SIZE = 28;
+	public static final int BLOCK_MAGIC = 0x424c4b5a; // "BLKZ"
+
+	// 1ブロックあたりの最大サンプル数
+	public static final int BLOCK_RECORDS = 4096;
+
+	private ArchiveFormat() {
+	}
+
+	/**
+	 * ファイルのヘッダ
+	 */
+	public static class Header {
+		public int encoding = SampleCodec.ENCODING_XOR;
+		public float quantum;
+		public long startTime;
+		public ChannelDescriptor[] channels = { ChannelDescriptor.ACCELEROMETER };
+
+		/**
+		 * チャンネル表を含むヘッダのサイズ
+		 */
+		public int getSize() {
+			return HEADER_SIZE + channels.length
+					* RecordingFormat.CHANNEL_SIZE;
+		}
+	}
+
+	/**
+	 * buffer に header.getSize() バイトを書き込む
+	 */
+	public static void writeHeader(ByteBuffer buffer, Header header) {
+		int start = buffer.position();
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putShort((short) header.encoding);
+		buffer.putFloat(header.quantum);
+		buffer.putLong(header.startTime);
+		buffer.putInt(header.channels.length);
+		while (buffer.position() < start + HEADER_SIZE) {
+			buffer.put((byte) 0);
+		}
+		RecordingFormat.writeChannels(buffer, header.channels);
+	}
+
+	/**
+	 * 先頭の HEADER_SIZE バイトを読む
+	 *
+	 * header.channels はチャンネル数の長さの空の配列になるので、
+	 * {@link RecordingFormat#readChannels}で続きを読む。
+	 */
+	public static Header readFixedHeader(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+			throw new IOException("not an archive file");
+		}
+		short version = buffer.getShort();
+		if (version != VERSION) {
+			throw new IOException("unsupported archive version: " + version);
+		}
+		Header header = new Header();
+		header.encoding = buffer.getShort();
+		header.quantum = buffer.getFloat();
+		header.startTime = buffer.getLong();
+		int channelCount = buffer.getInt();
+		if (channelCount < 1 || channelCount > RecordingFormat.MAX_CHANNELS) {
+			throw new IOException("broken channel table: " + channelCount);
+		}
+		header.channels = new ChannelDescriptor[channelCount];
+		return header;
+	}
+}
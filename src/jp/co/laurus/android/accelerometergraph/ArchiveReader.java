@@ -0,0 +1,257 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * {@link ArchiveFormat}のファイルを読み込む
+ *
+ * 開いたときにはブロックのヘッダだけを読んで索引にし、サンプルは
+ * {@link #read}でブロック単位に復元する。{@link Block}をスレッドごとに
+ * 用意すれば、複数のスレッドから同時に読み込める。
+ * 途中で途切れたファイルは、最後の完全なブロックまでを有効とする。
+ */
+public class ArchiveReader {
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final ArchiveFormat.Header mHeader;
+
+	// ブロックの索引
+	private int mBlockCount;
+	private long[] mBlockOffsets = new long[64];
+	private long[] mBlockFirstTimestamps = new long[64];
+	private int[] mBlockChannels = new int[64];
+	private int[] mBlockSizes = new int[64];
+	private int[] mBlockLengths = new int[64];
+	private int[] mBlockChecksums = new int[64];
+	private final long[] mSampleCounts;
+
+	public ArchiveReader(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		try {
+			mChannel = mFile.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(ArchiveFormat.HEADER_SIZE);
+			RecordingFormat.readFully(mChannel, buffer, 0);
+			buffer.flip();
+			mHeader = ArchiveFormat.readFixedHeader(buffer);
+			ByteBuffer table = ByteBuffer.allocate(mHeader.getSize()
+					- ArchiveFormat.HEADER_SIZE);
+			RecordingFormat.readFully(mChannel, table,
+					ArchiveFormat.HEADER_SIZE);
+			table.flip();
+			RecordingFormat.readChannels(table, mHeader.channels);
+			// 符号化の方式を確かめる
+			new SampleCodec(mHeader.encoding, mHeader.quantum);
+			mSampleCounts = new long[mHeader.channels.length];
+			buildIndex();
+		} catch (IOException e) {
+			mFile.close();
+			throw e;
+		} catch (IllegalArgumentException e) {
+			mFile.close();
+			throw new IOException("unsupported encoding: " + e.getMessage());
+		}
+	}
+
+	public void close() throws IOException {
+		mFile.close();
+	}
+
+	/**
+	 * 記録開始時刻(ミリ秒)を返す
+	 */
+	public long getStartTime() {
+		return mHeader.startTime;
+	}
+
+	public ChannelDescriptor[] getChannels() {
+		return mHeader.channels.clone();
+	}
+
+	public int getEncoding() {
+		return mHeader.encoding;
+	}
+
+	public float getQuantum() {
+		return mHeader.quantum;
+	}
+
+	/**
+	 * channel のサンプル数を返す
+	 */
+	public long getSampleCount(int channel) {
+		return mSampleCounts[channel];
+	}
+
+	public int getBlockCount() {
+		return mBlockCount;
+	}
+
+	public int getBlockChannel(int block) {
+		return mBlockChannels[block];
+	}
+
+	public int getBlockSize(int block) {
+		return mBlockSizes[block];
+	}
+
+	public long getBlockFirstTimestamp(int block) {
+		return mBlockFirstTimestamps[block];
+	}
+
+	/**
+	 * 復元したブロックを入れる領域を作る
+	 */
+	public Block newBlock() {
+		return new Block(new SampleCodec(mHeader.encoding, mHeader.quantum));
+	}
+
+	/**
+	 * index 番目のブロックを復元する
+	 *
+	 * 同じ block を複数のスレッドで同時に使わなければ、スレッドセーフ。
+	 */
+	public void read(int index, Block block) throws IOException {
+		int length = mBlockLengths[index];
+		ByteBuffer buffer = block.mBuffer;
+		buffer.clear();
+		buffer.limit(length);
+		RecordingFormat.readFully(mChannel, buffer, mBlockOffsets[index]);
+		if (RecordingFormat.checksum(block.mCrc, block.mEncoded, 0, length) != mBlockChecksums[index]) {
+			throw new IOException("broken block: " + index);
+		}
+		int size = mBlockSizes[index];
+		block.mCodec.decode(block.mEncoded, 0, size, block.mTimestamps,
+				block.mX, block.mY, block.mZ, 0);
+		block.mIndex = index;
+		block.mChannel = mBlockChannels[index];
+		block.mSize = size;
+	}
+
+	/**
+	 * 復元した1ブロック分のサンプル
+	 */
+	public static class Block implements SampleWindow {
+		private final SampleCodec mCodec;
+		private final byte[] mEncoded = new byte[SampleCodec
+				.maxEncodedSize(ArchiveFormat.BLOCK_RECORDS)];
+		private final ByteBuffer mBuffer = ByteBuffer.wrap(mEncoded);
+		private final CRC32 mCrc = new CRC32();
+		private final long[] mTimestamps = new long[ArchiveFormat.BLOCK_RECORDS];
+		private final float[] mX = new float[ArchiveFormat.BLOCK_RECORDS];
+		private final float[] mY = new float[ArchiveFormat.BLOCK_RECORDS];
+		private final float[] mZ = new float[ArchiveFormat.BLOCK_RECORDS];
+		private int mIndex = -1;
+		private int mChannel;
+		private int mSize;
+
+		private Block(SampleCodec codec) {
+			mCodec = codec;
+		}
+
+		/**
+		 * 読み込んだブロックの番号を返す
+		 */
+		public int getIndex() {
+			return mIndex;
+		}
+
+		public int getChannel() {
+			return mChannel;
+		}
+
+		@Override
+		public int size() {
+			return mSize;
+		}
+
+		@Override
+		public long getTimestamp(int index) {
+			return mTimestamps[index];
+		}
+
+		@Override
+		public float get(int channel, int index) {
+			switch (channel) {
+			case SampleBuffer.CHANNEL_X:
+				return mX[index];
+			case SampleBuffer.CHANNEL_Y:
+				return mY[index];
+			case SampleBuffer.CHANNEL_Z:
+				return mZ[index];
+			default:
+				float x = mX[index];
+				float y = mY[index];
+				float z = mZ[index];
+				return (float) Math.sqrt(x * x + y * y + z * z);
+			}
+		}
+	}
+
+	// ブロックのヘッダを順に読んで索引を作る
+	private void buildIndex() throws IOException {
+		ByteBuffer blockHeader = ByteBuffer
+				.allocate(ArchiveFormat.BLOCK_HEADER_SIZE);
+		int maxLength = SampleCodec.maxEncodedSize(ArchiveFormat.BLOCK_RECORDS);
+		long position = mHeader.getSize();
+		long size = mChannel.size();
+		while (position + ArchiveFormat.BLOCK_HEADER_SIZE <= size) {
+			blockHeader.clear();
+			RecordingFormat.readFully(mChannel, blockHeader, position);
+			int channel = blockHeader.getInt(4);
+			int count = blockHeader.getInt(8);
+			int length = blockHeader.getInt(12);
+			if (blockHeader.getInt(0) != ArchiveFormat.BLOCK_MAGIC
+					|| channel < 0 || channel >= mSampleCounts.length
+					|| count <= 0 || count > ArchiveFormat.BLOCK_RECORDS
+					|| length <= 0 || length > maxLength) {
+				break;
+			}
+			long offset = position + ArchiveFormat.BLOCK_HEADER_SIZE;
+			if (offset + length > size) {
+				break;
+			}
+			addBlock(offset, channel, count, length, blockHeader.getInt(16),
+					blockHeader.getLong(20));
+			position = offset + length;
+		}
+	}
+
+	private void addBlock(long offset, int channel, int count, int length,
+			int checksum, long firstTimestamp) {
+		if (mBlockCount == mBlockOffsets.length) {
+			int capacity = mBlockCount * 2;
+			mBlockOffsets = grow(mBlockOffsets, capacity);
+			mBlockFirstTimestamps = grow(mBlockFirstTimestamps, capacity);
+			mBlockChannels = grow(mBlockChannels, capacity);
+			mBlockSizes = grow(mBlockSizes, capacity);
+			mBlockLengths = grow(mBlockLengths, capacity);
+			mBlockChecksums = grow(mBlockChecksums, capacity);
+		}
+		mBlockOffsets[mBlockCount] = offset;
+		mBlockFirstTimestamps[mBlockCount] = firstTimestamp;
+		mBlockChannels[mBlockCount] = channel;
+		mBlockSizes[mBlockCount] = count;
+		mBlockLengths[mBlockCount] = length;
+		mBlockChecksums[mBlockCount] = checksum;
+		mBlockCount++;
+		mSampleCounts[channel] += count;
+	}
+
+	private static long[] grow(long[] array, int length) {
+		long[] grown = new long[length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static int[] grow(int[] array, int length) {
+		int[] grown = new int[length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
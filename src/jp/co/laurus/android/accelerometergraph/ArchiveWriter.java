@@ -0,0 +1,125 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * サンプルを{@link ArchiveFormat}のファイルに圧縮して書き込む
+ *
+ * 作業領域は最初に確保し、書き込み中はオブジェクトを確保しないので、
+ * 取り込みと同じスレッドで書き込むこともできる。
+ */
+public class ArchiveWriter {
+
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	private final File mFile;
+	private final ArchiveFormat.Header mHeader = new ArchiveFormat.Header();
+	private final SampleCodec mCodec;
+
+	private final byte[] mBlock = new byte[ArchiveFormat.BLOCK_HEADER_SIZE
+			+ SampleCodec.maxEncodedSize(ArchiveFormat.BLOCK_RECORDS)];
+	private final ByteBuffer mBlockHeader = ByteBuffer.wrap(mBlock);
+	private final CRC32 mCrc = new CRC32();
+
+	private OutputStream mOutput;
+	private long mSampleCount;
+	private long mSize;
+
+	/**
+	 * @param quantum
+	 *            ENCODING_DELTA で丸める単位
+	 */
+	public ArchiveWriter(File file, ChannelDescriptor[] channels,
+			long startTime, int encoding, float quantum) {
+		if (channels.length < 1
+				|| channels.length > RecordingFormat.MAX_CHANNELS) {
+			throw new IllegalArgumentException("channels: " + channels.length);
+		}
+		mFile = file;
+		mCodec = new SampleCodec(encoding, quantum);
+		mHeader.encoding = encoding;
+		mHeader.quantum = quantum;
+		mHeader.startTime = startTime;
+		mHeader.channels = channels.clone();
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	public long getSampleCount() {
+		return mSampleCount;
+	}
+
+	/**
+	 * 書き込んだバイト数を返す
+	 */
+	public long getSize() {
+		return mSize;
+	}
+
+	public void open() throws IOException {
+		mOutput = new BufferedOutputStream(new FileOutputStream(mFile),
+				OUTPUT_BUFFER_SIZE);
+		ByteBuffer buffer = ByteBuffer.allocate(mHeader.getSize());
+		ArchiveFormat.writeHeader(buffer, mHeader);
+		mOutput.write(buffer.array());
+		mSize = buffer.capacity();
+	}
+
+	/**
+	 * channel のサンプルを書き込む
+	 *
+	 * BLOCK_RECORDS 件ごとに1ブロックになるので、まとめて渡すほど圧縮率がよい。
+	 */
+	public void write(int channel, long[] timestamps, float[] x, float[] y,
+			float[] z, int offset, int count) throws IOException {
+		if (channel < 0 || channel >= mHeader.channels.length) {
+			throw new IllegalArgumentException("channel: " + channel);
+		}
+		while (count > 0) {
+			int length = Math.min(count, ArchiveFormat.BLOCK_RECORDS);
+			int encoded = mCodec.encode(timestamps, x, y, z, offset, length,
+					mBlock, ArchiveFormat.BLOCK_HEADER_SIZE);
+			int crc = RecordingFormat.checksum(mCrc, mBlock,
+					ArchiveFormat.BLOCK_HEADER_SIZE, encoded);
+			mBlockHeader.clear();
+			mBlockHeader.putInt(ArchiveFormat.BLOCK_MAGIC);
+			mBlockHeader.putInt(channel);
+			mBlockHeader.putInt(length);
+			mBlockHeader.putInt(encoded);
+			mBlockHeader.putInt(crc);
+			mBlockHeader.putLong(timestamps[offset]);
+			mOutput.write(mBlock, 0, ArchiveFormat.BLOCK_HEADER_SIZE + encoded);
+
+			mSize += ArchiveFormat.BLOCK_HEADER_SIZE + encoded;
+			mSampleCount += length;
+			offset += length;
+			count -= length;
+		}
+	}
+
+	public void close() throws IOException {
+		if (mOutput != null) {
+			mOutput.close();
+			mOutput = null;
+		}
+	}
+
+	/**
+	 * 記録ファイルの全チャンネルを圧縮して書き出す
+	 *
+	 * @return 書き出したサンプル数
+	 */
+	public static long export(File source, File destination, int encoding,
+			float quantum) throws IOException {
+		return new RecordingExporter().exportArchive(source, destination,
+				encoding, quantum);
+	}
+}
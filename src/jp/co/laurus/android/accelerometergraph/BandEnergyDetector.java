@@ -0,0 +1,204 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 実加速度(R)の周波数帯ごとの振動の大きさを Goertzel 法で求める
+ *
+ * 帯を BINS 個のビンに等分し、それぞれの中心周波数だけを Goertzel 法で
+ * 計算するので、FFT を使わずに1件あたり(帯の数 × BINS)回の積和で済む。
+ * ブロックの長さはビンの間隔が帯の幅 / BINS になるように帯ごとに決め、
+ * ハン窓を掛ける。等間隔のビンのパワーの和は帯の中で平坦になり、帯の外へは
+ * ビン2つ分(帯の幅の 1/4)までしか漏れない。R から平均(重力)を引いてから
+ * 計算する。
+ *
+ * 区間ごとに、区間の中で終わったブロックの RMS を帯ごとに出力する。
+ * 正弦波ならその振幅の 1/√2 になる。ブロックはサンプル数で区切るので、
+ * サンプリング周波数は構築時の値から大きく変わらないこと。
+ */
+public class BandEnergyDetector extends FeatureExtractor {
+
+	/**
+	 * 帯の最大の数
+	 */
+	public static final int MAX_BANDS = MAX_VALUES;
+
+	/**
+	 * 1つの帯のビンの数
+	 */
+	public static final int BINS = 8;
+
+	// 平均(重力)を求める時定数(秒)
+	private static final float MEAN_TIME_CONSTANT = 1.0f;
+
+	private final int mBands;
+	private final float mSampleRate;
+	private final float[] mCenters;
+	private final int[] mBlockSizes;
+	// 帯ごとのハン窓と、ビンのパワーの和を平均のパワーにする係数
+	private final float[][] mWindows;
+	private final double[] mScales;
+
+	// ビンごとの Goertzel の係数と状態(band * BINS + bin)
+	private final float[] mCoefficients;
+	private final float[] mS1;
+	private final float[] mS2;
+	private final int[] mCounts;
+	// 区間の中で終わったブロックのパワーの合計と数
+	private final double[] mPowerSums;
+	private final int[] mBlocks;
+
+	private final float[] mValues;
+	private float mMean;
+	private boolean mPrimed;
+
+	/**
+	 * @param sampleRate
+	 *            サンプリング周波数(Hz)
+	 * @param lows
+	 *            帯の下限(Hz)
+	 * @param highs
+	 *            帯の上限(Hz, サンプリング周波数の半分以下)
+	 */
+	public BandEnergyDetector(float sampleRate, float[] lows, float[] highs) {
+		if (lows.length != highs.length || lows.length == 0
+				|| lows.length > MAX_BANDS) {
+			throw new IllegalArgumentException("bands: " + lows.length);
+		}
+		mBands = lows.length;
+		mSampleRate = sampleRate;
+		mCenters = new float[mBands];
+		mBlockSizes = new int[mBands];
+		mWindows = new float[mBands][];
+		mScales = new double[mBands];
+		mCoefficients = new float[mBands * BINS];
+		for (int band = 0; band < mBands; band++) {
+			float low = lows[band];
+			float high = highs[band];
+			if (!(low >= 0 && high > low && high <= sampleRate / 2)) {
+				throw new IllegalArgumentException("band: " + low + "-" + high);
+			}
+			mCenters[band] = (low + high) / 2;
+			int size = Math.max(2 * BINS, Math.round(BINS * sampleRate
+					/ (high - low)));
+			mBlockSizes[band] = size;
+
+			// ハン窓(周期的)の2乗の和は 3N/8
+			float[] window = new float[size];
+			double squares = 0;
+			for (int n = 0; n < size; n++) {
+				window[n] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * n
+						/ size));
+				squares += window[n] * window[n];
+			}
+			mWindows[band] = window;
+			// 正の周波数のビンの和なので2倍する
+			mScales[band] = 2 / (size * squares);
+
+			// ビンは帯を等分した区間の中央に置く
+			float spacing = (high - low) / BINS;
+			for (int bin = 0; bin < BINS; bin++) {
+				float frequency = low + (bin + 0.5f) * spacing;
+				mCoefficients[band * BINS + bin] = (float) (2 * Math
+						.cos(2 * Math.PI * frequency / sampleRate));
+			}
+		}
+		mS1 = new float[mBands * BINS];
+		mS2 = new float[mBands * BINS];
+		mCounts = new int[mBands];
+		mPowerSums = new double[mBands];
+		mBlocks = new int[mBands];
+		mValues = new float[mBands];
+	}
+
+	public int getBandCount() {
+		return mBands;
+	}
+
+	public float getSampleRate() {
+		return mSampleRate;
+	}
+
+	/**
+	 * 帯の中心周波数(Hz)を返す
+	 */
+	public float getCenter(int band) {
+		return mCenters[band];
+	}
+
+	public int getBlockSize(int band) {
+		return mBlockSizes[band];
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		for (int i = 0; i < mS1.length; i++) {
+			mS1[i] = 0;
+			mS2[i] = 0;
+		}
+		for (int band = 0; band < mBands; band++) {
+			mCounts[band] = 0;
+			mPowerSums[band] = 0;
+			mBlocks[band] = 0;
+		}
+		mPrimed = false;
+	}
+
+	@Override
+	public void process(long[] timestamps, float[] x, float[] y, float[] z,
+			float[] r, int offset, int length) {
+		float meanAlpha = Math.min(1, 1 / (mSampleRate * MEAN_TIME_CONSTANT));
+		int bands = mBands;
+		float[] coefficients = mCoefficients;
+		float[] s1 = mS1;
+		float[] s2 = mS2;
+		for (int i = offset; i < offset + length; i++) {
+			if (!mPrimed) {
+				mMean = r[i];
+				mPrimed = true;
+			}
+			mMean += (r[i] - mMean) * meanAlpha;
+			float value = r[i] - mMean;
+			for (int band = 0; band < bands; band++) {
+				float windowed = value * mWindows[band][mCounts[band]];
+				int end = (band + 1) * BINS;
+				for (int bin = band * BINS; bin < end; bin++) {
+					float s = windowed + coefficients[bin] * s1[bin] - s2[bin];
+					s2[bin] = s1[bin];
+					s1[bin] = s;
+				}
+				if (++mCounts[band] == mBlockSizes[band]) {
+					endBlock(band);
+				}
+			}
+			if (isReportDue(timestamps[i])) {
+				report(timestamps[i]);
+			}
+		}
+	}
+
+	// 帯のビンの |X|^2 の和から平均のパワー(正弦波なら振幅^2 / 2)を足す
+	private void endBlock(int band) {
+		double power = 0;
+		int end = (band + 1) * BINS;
+		for (int bin = band * BINS; bin < end; bin++) {
+			float s1 = mS1[bin];
+			float s2 = mS2[bin];
+			power += s1 * s1 + s2 * s2 - mCoefficients[bin] * s1 * s2;
+			mS1[bin] = 0;
+			mS2[bin] = 0;
+		}
+		mPowerSums[band] += power * mScales[band];
+		mBlocks[band]++;
+		mCounts[band] = 0;
+	}
+
+	private void report(long timestamp) {
+		for (int band = 0; band < mBands; band++) {
+			mValues[band] = mBlocks[band] > 0 ? (float) Math
+					.sqrt(mPowerSums[band] / mBlocks[band]) : 0;
+			mPowerSums[band] = 0;
+			mBlocks[band] = 0;
+		}
+		emit(TYPE_BAND_ENERGY, timestamp, mValues, mBands);
+	}
+}
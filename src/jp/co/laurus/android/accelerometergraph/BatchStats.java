@@ -0,0 +1,115 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * センサーから届いたまとまり(バッチ)の統計
+ *
+ * センサーハブの FIFO にためたサンプルは一度の起床でまとめて届くので、
+ * 届いた回数を起床の回数として数える。実効のサンプリング周波数はセンサーの
+ * タイムスタンプから、起床の頻度は受信時刻から求める。
+ */
+public class BatchStats {
+
+	private long mBatches;
+	private long mSamples;
+	private int mLastSize;
+	private int mMaxSize;
+
+	// センサーのタイムスタンプの範囲
+	private long mFirstTimestamp;
+	private long mLastTimestamp;
+	// 受信時刻の範囲
+	private long mFirstReceived;
+	private long mLastReceived;
+
+	/**
+	 * 1回の起床で届いたバッチを追加する
+	 *
+	 * @param received
+	 *            受信時刻(ナノ秒)
+	 */
+	public void add(long[] timestamps, int offset, int count, long received) {
+		if (count <= 0) {
+			return;
+		}
+		if (mBatches == 0) {
+			mFirstTimestamp = timestamps[offset];
+			mFirstReceived = received;
+		}
+		mLastTimestamp = timestamps[offset + count - 1];
+		mLastReceived = received;
+		mBatches++;
+		mSamples += count;
+		mLastSize = count;
+		if (count > mMaxSize) {
+			mMaxSize = count;
+		}
+	}
+
+	public void reset() {
+		mBatches = 0;
+		mSamples = 0;
+		mLastSize = 0;
+		mMaxSize = 0;
+		mFirstTimestamp = 0;
+		mLastTimestamp = 0;
+		mFirstReceived = 0;
+		mLastReceived = 0;
+	}
+
+	/**
+	 * 起床(バッチ)の回数を返す
+	 */
+	public long getBatches() {
+		return mBatches;
+	}
+
+	public long getSamples() {
+		return mSamples;
+	}
+
+	public double getMeanSize() {
+		return mBatches > 0 ? (double) mSamples / mBatches : 0;
+	}
+
+	public int getLastSize() {
+		return mLastSize;
+	}
+
+	public int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * タイムスタンプから求めたサンプリング周波数(Hz)を返す
+	 */
+	public double getEffectiveRate() {
+		long span = mLastTimestamp - mFirstTimestamp;
+		return span > 0 ? (mSamples - 1) * 1e9 / span : 0;
+	}
+
+	/**
+	 * 1分あたりの起床の回数を返す
+	 */
+	public double getWakeupsPerMinute() {
+		long span = mLastReceived - mFirstReceived;
+		return span > 0 ? (mBatches - 1) * 60e9 / span : 0;
+	}
+
+	/**
+	 * 統計をテキストにして追記する(表示用)
+	 */
+	public void appendTo(StringBuilder builder) {
+		appendTenths(builder, getEffectiveRate());
+		builder.append("Hz  batch ");
+		appendTenths(builder, getMeanSize());
+		builder.append('/').append(mMaxSize);
+		builder.append("  wake ");
+		appendTenths(builder, getWakeupsPerMinute());
+		builder.append("/min");
+	}
+
+	private static void appendTenths(StringBuilder builder, double value) {
+		long tenths = Math.round(value * 10);
+		builder.append(tenths / 10).append('.').append(tenths % 10);
+	}
+}
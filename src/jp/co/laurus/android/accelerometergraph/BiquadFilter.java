@@ -0,0 +1,106 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 2次IIRフィルタ(転置直接形II)
+ *
+ * 係数は RBJ の Audio EQ Cookbook に従って求める。
+ */
+public class BiquadFilter implements LinearFilter {
+
+	private final float mB0;
+	private final float mB1;
+	private final float mB2;
+	private final float mA1;
+	private final float mA2;
+
+	private float mZ1;
+	private float mZ2;
+
+	/**
+	 * 正規化済み(a0 = 1)の係数を指定して生成する
+	 */
+	public BiquadFilter(float b0, float b1, float b2, float a1, float a2) {
+		mB0 = b0;
+		mB1 = b1;
+		mB2 = b2;
+		mA1 = a1;
+		mA2 = a2;
+	}
+
+	public static BiquadFilter lowPass(float sampleRate, float frequency,
+			float q) {
+		double w0 = 2 * Math.PI * frequency / sampleRate;
+		double cos = Math.cos(w0);
+		double alpha = Math.sin(w0) / (2 * q);
+		return create((1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha,
+				-2 * cos, 1 - alpha);
+	}
+
+	public static BiquadFilter highPass(float sampleRate, float frequency,
+			float q) {
+		double w0 = 2 * Math.PI * frequency / sampleRate;
+		double cos = Math.cos(w0);
+		double alpha = Math.sin(w0) / (2 * q);
+		return create((1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha,
+				-2 * cos, 1 - alpha);
+	}
+
+	/**
+	 * 中心周波数でのゲインが 0dB のバンドパスフィルタを生成する
+	 */
+	public static BiquadFilter bandPass(float sampleRate, float frequency,
+			float q) {
+		double w0 = 2 * Math.PI * frequency / sampleRate;
+		double cos = Math.cos(w0);
+		double alpha = Math.sin(w0) / (2 * q);
+		return create(alpha, 0, -alpha, 1 + alpha, -2 * cos, 1 - alpha);
+	}
+
+	private static BiquadFilter create(double b0, double b1, double b2,
+			double a0, double a1, double a2) {
+		return new BiquadFilter((float) (b0 / a0), (float) (b1 / a0),
+				(float) (b2 / a0), (float) (a1 / a0), (float) (a2 / a0));
+	}
+
+	@Override
+	public double getMagnitude(float sampleRate, float frequency) {
+		double w = 2 * Math.PI * frequency / sampleRate;
+		double cos1 = Math.cos(w);
+		double sin1 = Math.sin(w);
+		double cos2 = Math.cos(2 * w);
+		double sin2 = Math.sin(2 * w);
+		double numRe = mB0 + mB1 * cos1 + mB2 * cos2;
+		double numIm = -(mB1 * sin1 + mB2 * sin2);
+		double denRe = 1 + mA1 * cos1 + mA2 * cos2;
+		double denIm = -(mA1 * sin1 + mA2 * sin2);
+		return Math.sqrt((numRe * numRe + numIm * numIm)
+				/ (denRe * denRe + denIm * denIm));
+	}
+
+	@Override
+	public void process(float[] input, float[] output, int offset, int length) {
+		float b0 = mB0;
+		float b1 = mB1;
+		float b2 = mB2;
+		float a1 = mA1;
+		float a2 = mA2;
+		float z1 = mZ1;
+		float z2 = mZ2;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			float x = input[i];
+			float y = b0 * x + z1;
+			z1 = b1 * x - a1 * y + z2;
+			z2 = b2 * x - a2 * y;
+			output[i] = y;
+		}
+		mZ1 = FilterChain.flush(z1);
+		mZ2 = FilterChain.flush(z2);
+	}
+
+	@Override
+	public void reset() {
+		mZ1 = 0;
+		mZ2 = 0;
+	}
+}
@@ -0,0 +1,194 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * センサーコールバック1回あたりの処理時間の計測
+ *
+ * 記録側(センサーのスレッド)ではメモリを確保しない。処理時間は指数的な幅の
+ * ヒストグラムに集計し、そこからパーセンタイルを求める。読み込み側の値は
+ * 表示用のため、記録中に読んでも厳密に一貫している必要はない。
+ */
+public class CallbackStats {
+
+	/**
+	 * 呼び出し元スレッドのメモリ確保回数を返す
+	 *
+	 * Android では Debug.getThreadAllocCount()、JVM では ThreadMXBean などを使う。
+	 */
+	public interface AllocationCounter {
+		long getCount();
+	}
+
+	// 2の累乗ごとに分割する数
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 + 1) * SUB_BUCKETS;
+
+	private static final long RATE_INTERVAL = 1000000000L;
+
+	private final long[] mHistogram = new long[BUCKETS];
+	private volatile long mCount;
+	private volatile long mTotalNanos;
+	private volatile long mMaxNanos;
+
+	private AllocationCounter mAllocationCounter;
+	private volatile long mAllocations;
+
+	private long mRateStart;
+	private long mRateCount;
+	private volatile float mEventsPerSecond;
+
+	public void setAllocationCounter(AllocationCounter counter) {
+		mAllocationCounter = counter;
+	}
+
+	/**
+	 * コールバックの開始時に呼ぶ
+	 *
+	 * @return 開始時刻(ナノ秒)
+	 */
+	public long begin() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * メモリ確保回数の計測を開始する(計測しない場合は0)
+	 */
+	public long beginAllocations() {
+		AllocationCounter counter = mAllocationCounter;
+		return counter == null ? 0 : counter.getCount();
+	}
+
+	/**
+	 * コールバックの終了時に呼ぶ
+	 */
+	public void end(long start, long allocationsAtStart) {
+		long now = System.nanoTime();
+		long elapsed = now - start;
+
+		AllocationCounter counter = mAllocationCounter;
+		if (counter != null) {
+			mAllocations += counter.getCount() - allocationsAtStart;
+		}
+
+		mHistogram[bucketOf(elapsed)]++;
+		mTotalNanos += elapsed;
+		if (elapsed > mMaxNanos) {
+			mMaxNanos = elapsed;
+		}
+		mCount++;
+
+		// 1秒ごとにイベントレートを更新
+		mRateCount++;
+		if (mRateStart == 0) {
+			mRateStart = now;
+			mRateCount = 0;
+		} else if (now - mRateStart >= RATE_INTERVAL) {
+			mEventsPerSecond = mRateCount * 1e9f / (now - mRateStart);
+			mRateStart = now;
+			mRateCount = 0;
+		}
+	}
+
+	public long getCount() {
+		return mCount;
+	}
+
+	public float getEventsPerSecond() {
+		return mEventsPerSecond;
+	}
+
+	public long getMeanNanos() {
+		long count = mCount;
+		return count == 0 ? 0 : mTotalNanos / count;
+	}
+
+	public long getMaxNanos() {
+		return mMaxNanos;
+	}
+
+	/**
+	 * 処理時間のパーセンタイル(ヒストグラムの区間の上限値)を返す
+	 *
+	 * @param percentile
+	 *            0.0〜1.0
+	 */
+	public long getPercentileNanos(double percentile) {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += mHistogram[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(count * percentile);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += mHistogram[i];
+			if (seen >= target) {
+				return upperBoundOf(i);
+			}
+		}
+		return mMaxNanos;
+	}
+
+	/**
+	 * 1イベントあたりのメモリ確保回数を返す(計測していない場合は0)
+	 */
+	public float getAllocationsPerEvent() {
+		long count = mCount;
+		return count == 0 ? 0 : (float) mAllocations / count;
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			mHistogram[i] = 0;
+		}
+		mCount = 0;
+		mTotalNanos = 0;
+		mMaxNanos = 0;
+		mAllocations = 0;
+		mRateStart = 0;
+		mRateCount = 0;
+		mEventsPerSecond = 0;
+	}
+
+	/**
+	 * 統計をテキストにして追記する(表示用)
+	 */
+	public void appendTo(StringBuilder builder) {
+		builder.append((int) getEventsPerSecond()).append(" ev/s  mean ");
+		appendMicros(builder, getMeanNanos());
+		builder.append("us  p99 ");
+		appendMicros(builder, getPercentileNanos(0.99));
+		builder.append("us  max ");
+		appendMicros(builder, getMaxNanos());
+		builder.append("us");
+		if (mAllocationCounter != null) {
+			builder.append("  alloc/ev ").append(getAllocationsPerEvent());
+		}
+	}
+
+	private static void appendMicros(StringBuilder builder, long nanos) {
+		builder.append(nanos / 1000).append('.').append((nanos / 100) % 10);
+	}
+
+	private static int bucketOf(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return nanos < 0 ? 0 : (int) nanos;
+		}
+		int bits = 64 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (bits - 1 - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return (bits - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int bits = bucket / SUB_BUCKETS + SUB_BUCKET_BITS;
+		int sub = bucket % SUB_BUCKETS;
+		int shift = bits - 1 - SUB_BUCKET_BITS;
+		return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,682 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * センサーの取り込みと記録を行うサービス
+ *
+ * 画面を消しても記録が途切れないように、チャンネルの一覧、センサーのリスナー、
+ * {@link Recorder}を Activity から切り離して持つ。センサーのコールバックは
+ * メインスレッドではなく専用の HandlerThread で受け取る。
+ *
+ * センサーは画面が表示しているか、記録中、トリガーで監視中、配信中のときだけ
+ * 動かす。それらの間はサービスをフォアグラウンドにし、CPU のウェイクロックを
+ * 保持する(画面は消えてよい)。
+ * Activity はバインドして履歴を読むだけなので、描画と記録は別々の間隔で動く。
+ */
+public class CaptureService extends Service {
+
+	private static final String TAG = "CaptureService";
+
+	private static final int NOTIFICATION_ID = 1;
+
+	// 加速度と一緒に取り込むセンサー(端末にあるものだけ)
+	private static final ChannelDescriptor[] EXTRA_CHANNELS = {
+			new ChannelDescriptor(ChannelDescriptor.TYPE_GYROSCOPE, 3,
+					"gyroscope"),
+			new ChannelDescriptor(ChannelDescriptor.TYPE_MAGNETIC_FIELD, 3,
+					"magnetic field"),
+			new ChannelDescriptor(ChannelDescriptor.TYPE_LINEAR_ACCELERATION,
+					3, "linear acceleration") };
+
+	// 表示する履歴は画面の幅(1ピクセル1サンプル)の分
+	private static final int HISTORY_CAPACITY = 2048;
+	// RAW の履歴は記録の書き込みと配信が遅れても失わない秒数の分
+	private static final int RAW_HISTORY_SECONDS = 40;
+	private static final int MIN_RAW_HISTORY_CAPACITY = 1024;
+	// ピラミッドは最上位のレベルでこの秒数を遡れるまでのレベルを持つ
+	private static final int PYRAMID_SECONDS = 24 * 60 * 60;
+	public static final int PYRAMID_LEVELS = 16;
+	private static final int PYRAMID_CAPACITY = 2048;
+	// 最大のサンプリング周波数が分からないセンサーの仮の値(Hz)
+	private static final float DEFAULT_MAX_SAMPLE_RATE = 200f;
+	// 配信の1フレームの最大サンプル数
+	private static final int STREAM_BATCH_SIZE = 64;
+	// 振動の大きさを求める帯(Hz)。歩行・走行、手の震えや乗り物、機械の振動
+	private static final float[] FEATURE_BAND_LOWS = { 0.5f, 3f, 10f };
+	private static final float[] FEATURE_BAND_HIGHS = { 3f, 10f, 30f };
+
+	/**
+	 * 同じプロセスの Activity からサービスを取得する
+	 */
+	public class LocalBinder extends Binder {
+		public CaptureService getService() {
+			return CaptureService.this;
+		}
+	}
+
+	private final IBinder mBinder = new LocalBinder();
+	private final ChannelRegistry mChannels = new ChannelRegistry(
+			FrameScheduler.SYSTEM_CLOCK);
+
+	private HandlerThread mSensorThread;
+	private SensorManager mSensorManager;
+	// チャンネルごとのセンサー(端末にないものは null)
+	private SensorSampleSource[] mSensorSources;
+	private SensorFusion mFusion;
+	private ReplaySampleSource mReplaySource;
+	private int mSensorDelay = SensorManager.SENSOR_DELAY_UI;
+	// バッチ取り込みの間隔と最大の通知遅延(マイクロ秒, 0 なら mSensorDelay)
+	private int mSamplingPeriod = 0;
+	private int mMaxReportLatency = 0;
+
+	private boolean mViewing = false;
+	private boolean mRunning = false;
+	private Recorder mRecorder;
+	private TriggerEngine mTrigger;
+	private StreamServer mStreamServer;
+	private FeatureSet mFeatures;
+	private FeatureLog mFeatureLog;
+	private final List<TriggerEngine.Event> mTriggerEvents = new ArrayList<TriggerEngine.Event>();
+	private PowerManager.WakeLock mWakeLock;
+	private boolean mForeground = false;
+
+	// 記録したイベントを、トリガーを切り替えても残るように集める
+	private final TriggerEngine.OnEventListener mEventListener = new TriggerEngine.OnEventListener() {
+		@Override
+		public void onEvent(TriggerEngine.Event event) {
+			synchronized (mTriggerEvents) {
+				mTriggerEvents.add(event);
+			}
+		}
+	};
+
+	/**
+	 * 表示・フィルタ・記録の単位となる処理を作る
+	 *
+	 * RAW の履歴とピラミッドのレベルの数はセンサーの最大のサンプリング周波数で
+	 * 決める。表示用の履歴とピラミッドは表示するときに作られる。
+	 */
+	public static SamplePipeline createPipeline(float maxSampleRate) {
+		int rawCapacity = Math.max(MIN_RAW_HISTORY_CAPACITY,
+				(int) (maxSampleRate * RAW_HISTORY_SECONDS));
+		double samples = (double) maxSampleRate * PYRAMID_SECONDS;
+		// レベル i のビンは 2^(i+1) サンプル
+		int levels = 1;
+		while (levels < PYRAMID_LEVELS
+				&& (double) PYRAMID_CAPACITY * (1L << levels) < samples) {
+			levels++;
+		}
+		return new SamplePipeline(new SampleBuffer(rawCapacity),
+				HISTORY_CAPACITY, levels, PYRAMID_CAPACITY);
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		Log.i(TAG, "CaptureService.onCreate()");
+
+		// センサーのコールバックを受け取るスレッド
+		mSensorThread = new HandlerThread("SensorThread",
+				Process.THREAD_PRIORITY_MORE_FAVORABLE);
+		mSensorThread.start();
+		Handler handler = new Handler(mSensorThread.getLooper());
+
+		mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+		List<Sensor> sensors = mSensorManager
+				.getSensorList(Sensor.TYPE_ACCELEROMETER);
+		Sensor accelerometer = null;
+		if (sensors.size() > 0) {
+			accelerometer = sensors.get(0);
+		} else {
+			Log.e(TAG, "加速度センサーが見つかりませんでした");
+		}
+		float accelerometerRate = SensorSampleSource.getMaxSampleRate(
+				accelerometer, DEFAULT_MAX_SAMPLE_RATE);
+		mChannels.register(ChannelDescriptor.ACCELEROMETER,
+				createPipeline(accelerometerRate));
+		for (int i = 0; i < EXTRA_CHANNELS.length; i++) {
+			sensors = mSensorManager.getSensorList(EXTRA_CHANNELS[i].type);
+			if (sensors.size() > 0) {
+				mChannels.register(EXTRA_CHANNELS[i], createPipeline(
+						SensorSampleSource.getMaxSampleRate(sensors.get(0),
+								DEFAULT_MAX_SAMPLE_RATE)));
+			}
+		}
+
+		// 加速度とジャイロから重力を除いた加速度を求める(加速度と同じ周波数)
+		mFusion = new SensorFusion(new OrientationFilter(), mChannels.register(
+				SensorFusion.LINEAR, createPipeline(accelerometerRate))
+				.getPipeline(), mChannels.register(SensorFusion.WORLD,
+				createPipeline(accelerometerRate)).getPipeline());
+		mChannels.get(0).setListener(mFusion.getAccelerometerSink());
+		ChannelRegistry.Channel gyroscope = mChannels
+				.find(ChannelDescriptor.TYPE_GYROSCOPE);
+		if (gyroscope != null) {
+			gyroscope.setListener(mFusion.getGyroscopeSink());
+		}
+
+		// チャンネルごとにセンサーを割り当てる(計算するチャンネルは除く)
+		mSensorSources = new SensorSampleSource[mChannels.size()];
+		for (int i = 0; i < mSensorSources.length; i++) {
+			ChannelDescriptor descriptor = mChannels.get(i).getDescriptor();
+			if (descriptor.isDerived()) {
+				continue;
+			}
+			Sensor sensor = i == 0 ? accelerometer : mSensorManager
+					.getSensorList(descriptor.type).get(0);
+			if (sensor != null) {
+				mSensorSources[i] = new SensorSampleSource(mSensorManager,
+						sensor, handler);
+			}
+		}
+
+		// 記録中だけ CPU を動かし続ける(画面は消えてよい)
+		PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+		mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+				TAG);
+		mWakeLock.setReferenceCounted(false);
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return mBinder;
+	}
+
+	@Override
+	public void onDestroy() {
+		Log.i(TAG, "CaptureService.onDestroy()");
+
+		stopTrigger();
+		stopStreaming();
+		stopFeatures();
+		Recorder recorder = stopRecording();
+		if (recorder != null) {
+			// 記録中に終了させられた場合もファイルを閉じておく
+			try {
+				recorder.close();
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage());
+			}
+		}
+		mViewing = false;
+		updateSources();
+		mSensorThread.quit();
+
+		super.onDestroy();
+	}
+
+	public ChannelRegistry getChannels() {
+		return mChannels;
+	}
+
+	/**
+	 * 画面が履歴を表示しているかを設定する
+	 *
+	 * 表示も記録もしていなければセンサーを止める。
+	 */
+	public void setViewing(boolean viewing) {
+		boolean running = mRunning;
+		mViewing = viewing;
+		updateSources();
+		if (viewing && running) {
+			// FIFO にたまっている分をすぐに表示する
+			flush();
+		}
+	}
+
+	/**
+	 * センサーの通知間隔(SensorManager.SENSOR_DELAY_*)を設定する
+	 */
+	public void setSensorDelay(int sensorDelay) {
+		if (sensorDelay == mSensorDelay) {
+			return;
+		}
+		mSensorDelay = sensorDelay;
+		restartSources();
+	}
+
+	public int getSensorDelay() {
+		return mSensorDelay;
+	}
+
+	/**
+	 * サンプリング間隔と最大の通知遅延(マイクロ秒)を設定する
+	 *
+	 * 通知遅延を長くするとセンサーハブがサンプルをためてまとめて通知するので、
+	 * CPU の起床が減る(長時間の記録向け)。samplingPeriod が 0 なら
+	 * {@link #setSensorDelay}の間隔に戻す。
+	 */
+	public void setBatching(int samplingPeriod, int maxReportLatency) {
+		if (samplingPeriod == mSamplingPeriod
+				&& maxReportLatency == mMaxReportLatency) {
+			return;
+		}
+		mSamplingPeriod = samplingPeriod;
+		mMaxReportLatency = maxReportLatency;
+		restartSources();
+	}
+
+	public int getSamplingPeriod() {
+		return mSamplingPeriod;
+	}
+
+	public int getMaxReportLatency() {
+		return mMaxReportLatency;
+	}
+
+	/**
+	 * センサーハブにためているサンプルをすぐに通知させる
+	 */
+	public void flush() {
+		for (int i = 0; i < mSensorSources.length; i++) {
+			if (mSensorSources[i] != null) {
+				mSensorSources[i].flush();
+			}
+		}
+	}
+
+	/**
+	 * チャンネルのセンサーから届いたバッチの統計を返す(センサーがなければ null)
+	 */
+	public BatchStats getBatchStats(int channel) {
+		if (mReplaySource != null || channel >= mSensorSources.length
+				|| mSensorSources[channel] == null) {
+			return null;
+		}
+		return mSensorSources[channel].getBatchStats();
+	}
+
+	/**
+	 * センサーの代わりに加速度のチャンネルへ流す信号を設定する(null ならセンサー)
+	 */
+	public void setReplaySource(ReplaySampleSource source) {
+		stopSources();
+		mReplaySource = source;
+		updateSources();
+	}
+
+	/**
+	 * 全チャンネルの記録を開始する
+	 */
+	public void startRecording(File file, long startTime) throws IOException {
+		if (mRecorder != null) {
+			throw new IllegalStateException("already recording");
+		}
+		Recorder recorder = new Recorder(mChannels.getRawHistories(),
+				mChannels.getDescriptors(), file, startTime);
+		recorder.open();
+		mRecorder = recorder;
+		updateForeground();
+		updateSources();
+	}
+
+	/**
+	 * 記録を終了する
+	 *
+	 * 返した{@link Recorder}はまだ閉じていないので、呼び出し元で
+	 * {@link Recorder#close()}する。
+	 *
+	 * @return 記録していなければ null
+	 */
+	public Recorder stopRecording() {
+		Recorder recorder = mRecorder;
+		if (recorder == null) {
+			return null;
+		}
+		mRecorder = null;
+		updateForeground();
+		updateSources();
+		return recorder;
+	}
+
+	/**
+	 * 記録中の{@link Recorder}を返す(記録していなければ null)
+	 */
+	public Recorder getRecorder() {
+		return mRecorder;
+	}
+
+	/**
+	 * 加速度のチャンネルをトリガーで監視し、イベントの前後を記録する
+	 *
+	 * 前後の秒数は、いまの通知間隔(再生中なら信号)のサンプリング周波数の
+	 * 目安でサンプル数にする。監視中ならトリガーを入れ替える。
+	 *
+	 * @param directory
+	 *            イベントを書き込むディレクトリ
+	 */
+	public void startTrigger(TriggerRule rule, float preSeconds,
+			float postSeconds, File directory) {
+		stopTrigger();
+		ChannelRegistry.Channel channel = mChannels.get(0);
+		SamplePipeline pipeline = channel.getPipeline();
+		float sampleRate = getNominalSampleRate();
+		TriggerEngine trigger = new TriggerEngine(rule, Math.round(preSeconds
+				* sampleRate), Math.max(1, Math.round(postSeconds
+				* sampleRate)), directory, channel.getDescriptor());
+		trigger.setOnEventListener(mEventListener);
+		trigger.start();
+		pipeline.setTrigger(trigger);
+		mTrigger = trigger;
+		updateForeground();
+		updateSources();
+	}
+
+	/**
+	 * トリガーでの監視を終了する(書き込み中のイベントは届いた分で閉じる)
+	 */
+	public void stopTrigger() {
+		TriggerEngine trigger = mTrigger;
+		if (trigger == null) {
+			return;
+		}
+		mChannels.get(0).getPipeline().setTrigger(null);
+		mTrigger = null;
+		trigger.stop();
+		updateForeground();
+		updateSources();
+	}
+
+	/**
+	 * 監視中のトリガーを返す(監視していなければ null)
+	 */
+	public TriggerEngine getTrigger() {
+		return mTrigger;
+	}
+
+	/**
+	 * 記録したイベントを古い順に返す
+	 */
+	public TriggerEngine.Event[] getTriggerEvents() {
+		synchronized (mTriggerEvents) {
+			return mTriggerEvents
+					.toArray(new TriggerEngine.Event[mTriggerEvents.size()]);
+		}
+	}
+
+	public int getTriggerEventCount() {
+		synchronized (mTriggerEvents) {
+			return mTriggerEvents.size();
+		}
+	}
+
+	/**
+	 * 全チャンネルの RAW のサンプルを TCP で配信する
+	 *
+	 * @param port
+	 *            待ち受けるポート
+	 */
+	public void startStreaming(int port) throws IOException {
+		if (mStreamServer != null) {
+			throw new IllegalStateException("already streaming");
+		}
+		StreamServer server = new StreamServer(mChannels.getRawHistories(),
+				mChannels.getDescriptors(), port, SampleCodec.ENCODING_XOR,
+				STREAM_BATCH_SIZE);
+		server.open();
+		mStreamServer = server;
+		updateForeground();
+		updateSources();
+	}
+
+	/**
+	 * 配信を終了し、全ての接続を閉じる
+	 */
+	public void stopStreaming() {
+		StreamServer server = mStreamServer;
+		if (server == null) {
+			return;
+		}
+		mStreamServer = null;
+		server.close();
+		updateForeground();
+		updateSources();
+	}
+
+	/**
+	 * 配信中の{@link StreamServer}を返す(配信していなければ null)
+	 */
+	public StreamServer getStreamServer() {
+		return mStreamServer;
+	}
+
+	/**
+	 * 加速度のチャンネルから歩数、傾き、帯ごとの振動を求めて file に記録する
+	 *
+	 * 振動の帯は、いまの通知間隔(再生中なら信号)のサンプリング周波数の目安で
+	 * 計算できる範囲に収める。
+	 *
+	 * @param startTime
+	 *            記録開始時刻(ミリ秒)
+	 */
+	public void startFeatures(File file, long startTime) throws IOException {
+		stopFeatures();
+		SamplePipeline pipeline = mChannels.get(0).getPipeline();
+		float sampleRate = getNominalSampleRate();
+		float nyquist = sampleRate / 2;
+		int bands = 0;
+		for (int i = 0; i < FEATURE_BAND_LOWS.length; i++) {
+			if (FEATURE_BAND_LOWS[i] < nyquist) {
+				bands++;
+			}
+		}
+		float[] lows = new float[bands];
+		float[] highs = new float[bands];
+		for (int i = 0; i < bands; i++) {
+			lows[i] = FEATURE_BAND_LOWS[i];
+			highs[i] = Math.min(FEATURE_BAND_HIGHS[i], nyquist);
+		}
+		FeatureExtractor[] extractors = bands > 0 ? new FeatureExtractor[] {
+				new StepDetector(), new TiltDetector(),
+				new BandEnergyDetector(sampleRate, lows, highs) }
+				: new FeatureExtractor[] { new StepDetector(),
+						new TiltDetector() };
+		FeatureSet features = new FeatureSet(extractors);
+
+		FeatureLog log = new FeatureLog(file, startTime);
+		log.open();
+		features.setOutput(log);
+		pipeline.setFeatures(features);
+		mFeatures = features;
+		mFeatureLog = log;
+		updateForeground();
+		updateSources();
+	}
+
+	/**
+	 * 特徴量の記録を終了する
+	 */
+	public void stopFeatures() {
+		FeatureLog log = mFeatureLog;
+		if (log == null) {
+			return;
+		}
+		mChannels.get(0).getPipeline().setFeatures(null);
+		mFeatures = null;
+		mFeatureLog = null;
+		try {
+			log.close();
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage());
+		}
+		updateForeground();
+		updateSources();
+	}
+
+	/**
+	 * 特徴量を記録中の{@link FeatureLog}を返す(記録していなければ null)
+	 */
+	public FeatureLog getFeatureLog() {
+		return mFeatureLog;
+	}
+
+	// 加速度のチャンネルに届くサンプリング周波数の目安(Hz)。センサーを
+	// 登録する前でも、いまの設定で届く周波数を返す
+	private float getNominalSampleRate() {
+		if (mReplaySource != null) {
+			float sampleRate = mReplaySource.getSampleRate();
+			if (sampleRate > 0) {
+				return sampleRate;
+			}
+		} else if (mSensorSources[0] != null) {
+			return mSensorSources[0].getNominalSampleRate(mSensorDelay,
+					mSamplingPeriod, DEFAULT_MAX_SAMPLE_RATE);
+		}
+		return mChannels.get(0).getPipeline().getSampleRate();
+	}
+
+	// 記録中、監視中、配信中、特徴量の記録中なら、画面との接続が切れても
+	// 動き続けるように開始状態にする
+	private void updateForeground() {
+		boolean foreground = mRecorder != null || mTrigger != null
+				|| mStreamServer != null || mFeatureLog != null;
+		if (foreground == mForeground) {
+			return;
+		}
+		mForeground = foreground;
+		if (foreground) {
+			mWakeLock.acquire();
+			startService(new Intent(this, CaptureService.class));
+			setForegroundCompat(true);
+		} else {
+			mWakeLock.release();
+			setForegroundCompat(false);
+			stopSelf();
+		}
+	}
+
+	private void updateSources() {
+		boolean run = mViewing || mRecorder != null || mTrigger != null
+				|| mStreamServer != null || mFeatureLog != null;
+		if (run && !mRunning) {
+			startSources();
+		} else if (!run && mRunning) {
+			stopSources();
+		}
+	}
+
+	private void restartSources() {
+		if (mRunning) {
+			stopSources();
+			startSources();
+		}
+	}
+
+	private void startSources() {
+		mRunning = true;
+		// 入力が変わると姿勢の続きにならないので推定し直す
+		mFusion.reset();
+		if (mFeatures != null) {
+			mFeatures.reset();
+		}
+		if (mReplaySource != null) {
+			// 生成した信号は加速度のチャンネルに流す
+			setNominalSampleRate(0, mReplaySource.getSampleRate());
+			mReplaySource.start(mChannels.get(0));
+			return;
+		}
+		for (int i = 0; i < mSensorSources.length; i++) {
+			if (mSensorSources[i] != null) {
+				// 通知間隔の設定ごとにタイムスタンプの統計を分ける
+				ChannelRegistry.Channel channel = mChannels.get(i);
+				channel.getPipeline().setSensorDelay(mSensorDelay);
+				mSensorSources[i].setSensorDelay(mSensorDelay);
+				mSensorSources[i].setBatching(mSamplingPeriod,
+						mMaxReportLatency);
+				setNominalSampleRate(i, mSensorSources[i]
+						.getNominalSampleRate(mSensorDelay, mSamplingPeriod,
+								DEFAULT_MAX_SAMPLE_RATE));
+				mSensorSources[i].start(channel);
+			}
+		}
+	}
+
+	// 登録する間隔からチャンネルのサンプリング周波数の目安を知らせる。
+	// 計算するチャンネルは加速度のタイムスタンプで届くので加速度と同じにする
+	private void setNominalSampleRate(int index, float sampleRate) {
+		if (sampleRate <= 0) {
+			return;
+		}
+		for (int i = 0; i < mChannels.size(); i++) {
+			ChannelRegistry.Channel channel = mChannels.get(i);
+			if (i == index
+					|| (index == 0 && channel.getDescriptor().isDerived())) {
+				channel.getPipeline().setNominalSampleRate(sampleRate);
+			}
+		}
+	}
+
+	private void stopSources() {
+		if (!mRunning) {
+			return;
+		}
+		mRunning = false;
+		if (mReplaySource != null) {
+			mReplaySource.stop();
+		}
+		for (int i = 0; i < mSensorSources.length; i++) {
+			if (mSensorSources[i] != null) {
+				mSensorSources[i].stop();
+			}
+		}
+	}
+
+	// startForeground() は API 5 からなので、なければ setForeground() を使う
+	private void setForegroundCompat(boolean foreground) {
+		NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+		Notification notification = null;
+		if (foreground) {
+			notification = new Notification(R.drawable.icon,
+					getString(R.string.recording_msg), System
+							.currentTimeMillis());
+			notification.flags |= Notification.FLAG_ONGOING_EVENT
+					| Notification.FLAG_NO_CLEAR;
+			PendingIntent intent = PendingIntent.getActivity(this, 0,
+					new Intent(this, MainActivity.class), 0);
+			notification.setLatestEventInfo(this, getString(R.string.app_name),
+					getString(R.string.recording_msg), intent);
+		}
+		try {
+			if (foreground) {
+				Method method = Service.class.getMethod("startForeground",
+						int.class, Notification.class);
+				method.invoke(this, NOTIFICATION_ID, notification);
+			} else {
+				Method method = Service.class.getMethod("stopForeground",
+						boolean.class);
+				method.invoke(this, true);
+			}
+			return;
+		} catch (NoSuchMethodException e) {
+			// 古い端末
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage());
+		}
+		setForeground(foreground);
+		if (foreground) {
+			notificationManager.notify(NOTIFICATION_ID, notification);
+		} else {
+			notificationManager.cancel(NOTIFICATION_ID);
+		}
+	}
+}
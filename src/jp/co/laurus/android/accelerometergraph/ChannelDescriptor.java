@@ -0,0 +1,46 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 記録・表示するセンサーの種類
+ *
+ * 種類の値は android.hardware.Sensor の TYPE_* と同じ。値は3軸
+ * ({@link SampleBuffer}の X, Y, Z)で保持し、1軸のセンサーは X だけを使う。
+ * 他のチャンネルから計算するチャンネルは、端末のセンサーと重ならないように
+ * TYPE_DERIVED 以上の値を使う。
+ */
+public class ChannelDescriptor {
+
+	public static final int TYPE_ACCELEROMETER = 1;
+	public static final int TYPE_MAGNETIC_FIELD = 2;
+	public static final int TYPE_GYROSCOPE = 4;
+	public static final int TYPE_LINEAR_ACCELERATION = 10;
+
+	public static final int TYPE_DERIVED = 0x10000;
+	public static final int TYPE_FUSED_LINEAR_ACCELERATION = TYPE_DERIVED + 1;
+	public static final int TYPE_WORLD_ACCELERATION = TYPE_DERIVED + 2;
+
+	public static final ChannelDescriptor ACCELEROMETER = new ChannelDescriptor(
+			TYPE_ACCELEROMETER, 3, "accelerometer");
+
+	public final int type;
+	public final int axes;
+	public final String name;
+
+	public ChannelDescriptor(int type, int axes, String name) {
+		this.type = type;
+		this.axes = axes;
+		this.name = name;
+	}
+
+	/**
+	 * 端末のセンサーではなく、他のチャンネルから計算するチャンネルか
+	 */
+	public boolean isDerived() {
+		return type >= TYPE_DERIVED;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
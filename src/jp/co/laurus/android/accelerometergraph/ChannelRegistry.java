@@ -0,0 +1,206 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 同時に取り込むセンサー(チャンネル)の一覧
+ *
+ * チャンネルごとに{@link SamplePipeline}(フィルタとロックしない履歴)を持ち、
+ * センサーのタイムスタンプを共通の時刻に揃えてから渡す。センサーごとに時計の
+ * 基準が違う端末があるため、最初の ALIGN_SAMPLES 件で「タイムスタンプ - 受信時刻」
+ * の最大値(受信の遅れが最も小さいもの)を差として求め、以降はその差を引く。
+ * 差が RESYNC_NANOS 以上ずれたら(端末のスリープなど)求め直す。
+ *
+ * チャンネルの追加は UI スレッドから行い、一覧は追加のたびに配列を作り直すので
+ * 読み込み側はロックしない。
+ *
+ * 時刻を揃えたサンプルは{@link Channel#setListener}で他の処理
+ * ({@link SensorFusion}など)にも渡せる。
+ */
+public class ChannelRegistry {
+
+	private static final int ALIGN_SAMPLES = 64;
+	private static final long RESYNC_NANOS = 1000000000L;
+	private static final int BLOCK_SIZE = 256;
+
+	/**
+	 * 1つのセンサー
+	 */
+	public class Channel implements SampleSource.Sink {
+		private final int mIndex;
+		private final ChannelDescriptor mDescriptor;
+		private final SamplePipeline mPipeline;
+
+		private long mOffset;
+		private int mAligned = 0;
+		private volatile SampleSource.Sink mListener;
+
+		// 時刻を揃えたブロックの作業領域
+		private final long[] mTimestamps = new long[BLOCK_SIZE];
+		private final float[] mX = new float[BLOCK_SIZE];
+		private final float[] mY = new float[BLOCK_SIZE];
+		private final float[] mZ = new float[BLOCK_SIZE];
+
+		private Channel(int index, ChannelDescriptor descriptor,
+				SamplePipeline pipeline) {
+			mIndex = index;
+			mDescriptor = descriptor;
+			mPipeline = pipeline;
+		}
+
+		public int getIndex() {
+			return mIndex;
+		}
+
+		public ChannelDescriptor getDescriptor() {
+			return mDescriptor;
+		}
+
+		public SamplePipeline getPipeline() {
+			return mPipeline;
+		}
+
+		/**
+		 * パイプラインの後に時刻を揃えたサンプルを受け取るものを設定する
+		 *
+		 * サンプルの供給元のスレッドから呼ばれる。null なら渡さない。
+		 */
+		public void setListener(SampleSource.Sink listener) {
+			mListener = listener;
+		}
+
+		/**
+		 * センサーのタイムスタンプと共通の時刻の差(ナノ秒)を返す
+		 */
+		public long getOffset() {
+			return mOffset;
+		}
+
+		@Override
+		public void onSample(long timestamp, float x, float y, float z) {
+			align(timestamp);
+			mPipeline.onSample(timestamp - mOffset, x, y, z);
+			SampleSource.Sink listener = mListener;
+			if (listener != null) {
+				listener.onSample(timestamp - mOffset, x, y, z);
+			}
+		}
+
+		@Override
+		public void onSamples(long[] timestamps, float[] x, float[] y,
+				float[] z, int offset, int count) {
+			if (count <= 0) {
+				return;
+			}
+			align(timestamps[offset + count - 1]);
+			long timeOffset = mOffset;
+			SampleSource.Sink listener = mListener;
+			while (count > 0) {
+				int length = Math.min(count, BLOCK_SIZE);
+				for (int i = 0; i < length; i++) {
+					mTimestamps[i] = timestamps[offset + i] - timeOffset;
+				}
+				System.arraycopy(x, offset, mX, 0, length);
+				System.arraycopy(y, offset, mY, 0, length);
+				System.arraycopy(z, offset, mZ, 0, length);
+				mPipeline.onSamples(mTimestamps, mX, mY, mZ, 0, length);
+				if (listener != null) {
+					listener.onSamples(mTimestamps, mX, mY, mZ, 0, length);
+				}
+				offset += length;
+				count -= length;
+			}
+		}
+
+		// 受信時刻から差を求める
+		private void align(long timestamp) {
+			long candidate = timestamp - mClock.nanoTime();
+			if (mAligned == 0) {
+				mOffset = candidate;
+				mAligned = 1;
+			} else if (mAligned < ALIGN_SAMPLES) {
+				if (candidate > mOffset) {
+					mOffset = candidate;
+				}
+				mAligned++;
+			} else if (candidate > mOffset + RESYNC_NANOS
+					|| candidate < mOffset - RESYNC_NANOS) {
+				mOffset = candidate;
+				mAligned = 1;
+			}
+		}
+	}
+
+	private final FrameScheduler.Clock mClock;
+	private volatile Channel[] mChannels = new Channel[0];
+
+	public ChannelRegistry(FrameScheduler.Clock clock) {
+		mClock = clock;
+	}
+
+	/**
+	 * チャンネルを追加する
+	 *
+	 * @return 追加したチャンネル(同じ種類がすでにあればそのチャンネル)
+	 */
+	public Channel register(ChannelDescriptor descriptor,
+			SamplePipeline pipeline) {
+		Channel existing = find(descriptor.type);
+		if (existing != null) {
+			return existing;
+		}
+		Channel[] channels = mChannels;
+		if (channels.length == RecordingFormat.MAX_CHANNELS) {
+			throw new IllegalStateException("too many channels");
+		}
+		Channel[] grown = new Channel[channels.length + 1];
+		System.arraycopy(channels, 0, grown, 0, channels.length);
+		Channel channel = new Channel(channels.length, descriptor, pipeline);
+		grown[channels.length] = channel;
+		mChannels = grown;
+		return channel;
+	}
+
+	public int size() {
+		return mChannels.length;
+	}
+
+	public Channel get(int index) {
+		return mChannels[index];
+	}
+
+	/**
+	 * type のチャンネルを返す(なければ null)
+	 */
+	public Channel find(int type) {
+		Channel[] channels = mChannels;
+		for (int i = 0; i < channels.length; i++) {
+			if (channels[i].mDescriptor.type == type) {
+				return channels[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 記録用にチャンネルの種類を並べる
+	 */
+	public ChannelDescriptor[] getDescriptors() {
+		Channel[] channels = mChannels;
+		ChannelDescriptor[] descriptors = new ChannelDescriptor[channels.length];
+		for (int i = 0; i < channels.length; i++) {
+			descriptors[i] = channels[i].mDescriptor;
+		}
+		return descriptors;
+	}
+
+	/**
+	 * 記録用にチャンネルの RAW の履歴を並べる
+	 */
+	public SampleBuffer[] getRawHistories() {
+		Channel[] channels = mChannels;
+		SampleBuffer[] histories = new SampleBuffer[channels.length];
+		for (int i = 0; i < channels.length; i++) {
+			histories[i] = channels[i].mPipeline.getRawHistory();
+		}
+		return histories;
+	}
+}
@@ -0,0 +1,117 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 解析用に書き出す列形式のファイル(.acol)の形式
+ *
+ * <pre>
+ * ヘッダ(32バイト + チャンネル表)
+ *   int   MAGIC
+ *   short VERSION
+ *   short 列の数(タイムスタンプ, x, y, z の4)
+ *   long  記録開始時刻(ミリ秒)
+ *   int   チャンネル数
+ *   チャンネル表({@link RecordingFormat}と同じ)
+ * 行グループ(繰り返し)
+ *   int   GROUP_MAGIC
+ *   int   チャンネル番号
+ *   int   行数(n)
+ *   int   予約(0)
+ *   long  タイムスタンプ(ナノ秒) × n
+ *   float x × n
+ *   float y × n
+ *   float z × n
+ * フッタ
+ *   (long 行グループの位置, int チャンネル番号, int 行数) × 行グループ数
+ *   int   行グループ数
+ *   int   FOOTER_MAGIC
+ * </pre>
+ *
+ * 同じ列の値が連続しているので、1つの軸だけを読むときは他の列を読み飛ばせる。
+ * 末尾のフッタに行グループの索引があるので、先頭から順にたどらなくても
+ * 任意の行グループを読める(Parquet と同じ考え方)。フッタが欠けていれば
+ * 書き出しが完了していない。
+ */
+public class ColumnarFormat {
+
+	public static final String EXTENSION = ".acol";
+
+	public static final int MAGIC = 0x41434f4c; // "ACOL"
+	public static final short VERSION = 1;
+	public static final int GROUP_MAGIC = 0x524f5747; // "ROWG"
+	public static final int FOOTER_MAGIC = 0x41434f46; // "ACOF"
+
+	public static final int HEADER_SIZE = 32;
+	public static final int GROUP_HEADER_SIZE = 16;
+	public static final int INDEX_ENTRY_SIZE = 16;
+	public static final int FOOTER_TAIL_SIZE = 8;
+	public static final int COLUMNS = 4;
+	public static final int ROW_SIZE = 8 + 4 * 3;
+
+	// 1つの行グループの最大の行数
+	public static final int GROUP_ROWS = 8192;
+
+	private ColumnarFormat() {
+	}
+
+	/**
+	 * ファイルのヘッダ
+	 */
+	public static class Header {
+		public long startTime;
+		public ChannelDescriptor[] channels = { ChannelDescriptor.ACCELEROMETER };
+
+		/**
+		 * チャンネル表を含むヘッダのサイズ
+		 */
+		public int getSize() {
+			return HEADER_SIZE + channels.length
+					* RecordingFormat.CHANNEL_SIZE;
+		}
+	}
+
+	/**
+	 * buffer に header.getSize() バイトを書き込む
+	 */
+	public static void writeHeader(ByteBuffer buffer, Header header) {
+		int start = buffer.position();
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putShort((short) COLUMNS);
+		buffer.putLong(header.startTime);
+		buffer.putInt(header.channels.length);
+		while (buffer.position() < start + HEADER_SIZE) {
+			buffer.put((byte) 0);
+		}
+		RecordingFormat.writeChannels(buffer, header.channels);
+	}
+
+	/**
+	 * 先頭の HEADER_SIZE バイトを読む
+	 *
+	 * header.channels はチャンネル数の長さの空の配列になるので、
+	 * {@link RecordingFormat#readChannels}で続きを読む。
+	 */
+	public static Header readFixedHeader(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+			throw new IOException("not a columnar file");
+		}
+		short version = buffer.getShort();
+		short columns = buffer.getShort();
+		if (version != VERSION || columns != COLUMNS) {
+			throw new IOException("unsupported columnar version: " + version);
+		}
+		Header header = new Header();
+		header.startTime = buffer.getLong();
+		int channelCount = buffer.getInt();
+		if (channelCount < 1 || channelCount > RecordingFormat.MAX_CHANNELS) {
+			throw new IOException("broken channel table: " + channelCount);
+		}
+		header.channels = new ChannelDescriptor[channelCount];
+		buffer.position(start + HEADER_SIZE);
+		return header;
+	}
+}
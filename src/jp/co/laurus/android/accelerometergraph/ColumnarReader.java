@@ -0,0 +1,152 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link ColumnarFormat}のファイルを読み込む
+ *
+ * 開いたときにヘッダと末尾のフッタ(行グループの索引)だけを読み、
+ * 行グループは{@link #read}で必要になったものだけを読む。
+ */
+public class ColumnarReader {
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final ColumnarFormat.Header mHeader;
+
+	// 行グループの索引
+	private final long[] mGroupOffsets;
+	private final int[] mGroupChannels;
+	private final int[] mGroupRows;
+	private final long[] mSampleCounts;
+
+	private ByteBuffer mBuffer = ByteBuffer.allocate(0);
+
+	public ColumnarReader(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		try {
+			mChannel = mFile.getChannel();
+			ByteBuffer buffer = ByteBuffer
+					.allocate(ColumnarFormat.HEADER_SIZE);
+			RecordingFormat.readFully(mChannel, buffer, 0);
+			buffer.flip();
+			mHeader = ColumnarFormat.readFixedHeader(buffer);
+			ByteBuffer table = ByteBuffer.allocate(mHeader.getSize()
+					- ColumnarFormat.HEADER_SIZE);
+			RecordingFormat.readFully(mChannel, table,
+					ColumnarFormat.HEADER_SIZE);
+			table.flip();
+			RecordingFormat.readChannels(table, mHeader.channels);
+
+			// 末尾から行グループの数を読み、索引を読む
+			long size = mChannel.size();
+			ByteBuffer tail = ByteBuffer
+					.allocate(ColumnarFormat.FOOTER_TAIL_SIZE);
+			if (size < mHeader.getSize() + ColumnarFormat.FOOTER_TAIL_SIZE) {
+				throw new IOException("incomplete columnar file");
+			}
+			RecordingFormat.readFully(mChannel, tail, size
+					- ColumnarFormat.FOOTER_TAIL_SIZE);
+			tail.flip();
+			int count = tail.getInt();
+			long indexSize = (long) count * ColumnarFormat.INDEX_ENTRY_SIZE;
+			if (tail.getInt() != ColumnarFormat.FOOTER_MAGIC || count < 0
+					|| indexSize > size - mHeader.getSize()
+							- ColumnarFormat.FOOTER_TAIL_SIZE) {
+				throw new IOException("incomplete columnar file");
+			}
+			ByteBuffer index = ByteBuffer.allocate((int) indexSize);
+			RecordingFormat.readFully(mChannel, index, size
+					- ColumnarFormat.FOOTER_TAIL_SIZE - indexSize);
+			index.flip();
+			mGroupOffsets = new long[count];
+			mGroupChannels = new int[count];
+			mGroupRows = new int[count];
+			mSampleCounts = new long[mHeader.channels.length];
+			for (int i = 0; i < count; i++) {
+				mGroupOffsets[i] = index.getLong();
+				mGroupChannels[i] = index.getInt();
+				mGroupRows[i] = index.getInt();
+				if (mGroupChannels[i] < 0
+						|| mGroupChannels[i] >= mSampleCounts.length
+						|| mGroupRows[i] < 0
+						|| mGroupRows[i] > ColumnarFormat.GROUP_ROWS) {
+					throw new IOException("broken row group index: " + i);
+				}
+				mSampleCounts[mGroupChannels[i]] += mGroupRows[i];
+			}
+		} catch (IOException e) {
+			mFile.close();
+			throw e;
+		}
+	}
+
+	public void close() throws IOException {
+		mFile.close();
+	}
+
+	/**
+	 * 記録開始時刻(ミリ秒)を返す
+	 */
+	public long getStartTime() {
+		return mHeader.startTime;
+	}
+
+	public ChannelDescriptor[] getChannels() {
+		return mHeader.channels.clone();
+	}
+
+	public long getSampleCount(int channel) {
+		return mSampleCounts[channel];
+	}
+
+	public int getGroupCount() {
+		return mGroupOffsets.length;
+	}
+
+	public int getGroupChannel(int group) {
+		return mGroupChannels[group];
+	}
+
+	public int getGroupRows(int group) {
+		return mGroupRows[group];
+	}
+
+	/**
+	 * 行グループを読み込む(配列は{@link ColumnarFormat#GROUP_ROWS}以上)
+	 *
+	 * @return 行数
+	 */
+	public int read(int group, long[] timestamps, float[] x, float[] y,
+			float[] z) throws IOException {
+		int rows = mGroupRows[group];
+		int size = ColumnarFormat.GROUP_HEADER_SIZE + rows
+				* ColumnarFormat.ROW_SIZE;
+		if (mBuffer.capacity() < size) {
+			mBuffer = ByteBuffer.allocate(size);
+		}
+		ByteBuffer buffer = mBuffer;
+		buffer.clear();
+		buffer.limit(size);
+		RecordingFormat.readFully(mChannel, buffer, mGroupOffsets[group]);
+		buffer.flip();
+		if (buffer.getInt() != ColumnarFormat.GROUP_MAGIC
+				|| buffer.getInt() != mGroupChannels[group]
+				|| buffer.getInt() != rows) {
+			throw new IOException("broken row group: " + group);
+		}
+		buffer.getInt();
+		buffer.asLongBuffer().get(timestamps, 0, rows);
+		buffer.position(buffer.position() + rows * 8);
+		buffer.asFloatBuffer().get(x, 0, rows);
+		buffer.position(buffer.position() + rows * 4);
+		buffer.asFloatBuffer().get(y, 0, rows);
+		buffer.position(buffer.position() + rows * 4);
+		buffer.asFloatBuffer().get(z, 0, rows);
+		return rows;
+	}
+}
@@ -0,0 +1,35 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 記録ファイルを CSV に変換する
+ *
+ * 各行は「タイムスタンプ(ナノ秒),x,y,z」。書き出しは{@link RecordingExporter}で
+ * 行う。進み具合の表示や中断が必要なときは RecordingExporter を直接使う。
+ */
+public class CsvExporter {
+
+	private CsvExporter() {
+	}
+
+	/**
+	 * @return 書き出したサンプル数
+	 */
+	public static long export(File source, File destination)
+			throws IOException {
+		return new RecordingExporter().exportCsv(source, destination, 0);
+	}
+
+	/**
+	 * {@link Resampler}で等間隔に変換して書き出す
+	 *
+	 * @return 書き出したサンプル数
+	 */
+	public static long exportResampled(File source, File destination,
+			int mode, float rate) throws IOException {
+		return new RecordingExporter().exportCsvResampled(source,
+				destination, 0, mode, rate);
+	}
+}
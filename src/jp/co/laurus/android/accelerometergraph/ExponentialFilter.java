@@ -0,0 +1,84 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 指数移動平均による1次のローパス/ハイパスフィルタ
+ *
+ * ハイパスは入力からローパスの出力を引いて求める。係数は処理中に変更してよい。
+ */
+public class ExponentialFilter implements LinearFilter {
+
+	private final boolean mHighPass;
+	private volatile float mRate;
+	private float mLowPass;
+
+	/**
+	 * @param rate
+	 *            新しい値の重み(0.0〜1.0)
+	 * @param highPass
+	 *            ハイパスフィルタとして使う場合は true
+	 */
+	public ExponentialFilter(float rate, boolean highPass) {
+		mRate = rate;
+		mHighPass = highPass;
+	}
+
+	public void setRate(float rate) {
+		mRate = rate;
+	}
+
+	public float getRate() {
+		return mRate;
+	}
+
+	@Override
+	public void process(float[] input, float[] output, int offset, int length) {
+		float rate = mRate;
+		float keep = 1 - rate;
+		float lowPass = mLowPass;
+		int end = offset + length;
+		if (mHighPass) {
+			for (int i = offset; i < end; i++) {
+				float value = input[i];
+				lowPass = (lowPass * keep) + (value * rate);
+				output[i] = value - lowPass;
+			}
+		} else {
+			for (int i = offset; i < end; i++) {
+				lowPass = (lowPass * keep) + (input[i] * rate);
+				output[i] = lowPass;
+			}
+		}
+		mLowPass = FilterChain.flush(lowPass);
+	}
+
+	@Override
+	public double getMagnitude(float sampleRate, float frequency) {
+		return magnitude(mRate, mHighPass, sampleRate, frequency);
+	}
+
+	/**
+	 * 新しい値の重みが rate の指数移動平均(とその残り)の振幅特性を返す
+	 *
+	 * ローパスは H = a / (1 - (1 - a) z^-1)、ハイパスは 1 - H。
+	 */
+	static double magnitude(float rate, boolean highPass, float sampleRate,
+			float frequency) {
+		double w = 2 * Math.PI * frequency / sampleRate;
+		double keep = 1 - rate;
+		double denRe = 1 - keep * Math.cos(w);
+		double denIm = keep * Math.sin(w);
+		double numRe = rate;
+		double numIm = 0;
+		if (highPass) {
+			numRe = denRe - rate;
+			numIm = denIm;
+		}
+		return Math.sqrt((numRe * numRe + numIm * numIm)
+				/ (denRe * denRe + denIm * denIm));
+	}
+
+	@Override
+	public void reset() {
+		mLowPass = 0;
+	}
+}
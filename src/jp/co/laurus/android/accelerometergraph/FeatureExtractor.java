@@ -0,0 +1,103 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * ライブのサンプルから特徴量を順に求めるもの
+ *
+ * {@link SamplePipeline}から RAW のサンプルと実加速度(R)をブロックごとに
+ * 渡される。センサーのスレッドで全サンプルに対して呼ばれるので、メモリを
+ * 確保せず、状態の大きさは一定にする。特徴量は数秒に1回程度の低い頻度で
+ * まとめて{@link Output}に渡すので、RAW のサンプルの代わりに長期間記録できる。
+ *
+ * 時間はタイムスタンプから求め、サンプリング周波数の揺れに左右されない。
+ */
+public abstract class FeatureExtractor {
+
+	public static final int TYPE_STEPS = 1;
+	public static final int TYPE_TILT = 2;
+	public static final int TYPE_BAND_ENERGY = 3;
+	public static final int TYPES = 4;
+
+	/**
+	 * 1件の特徴量の値の最大の数
+	 */
+	public static final int MAX_VALUES = 8;
+
+	/**
+	 * まとめて出力する間隔の既定値(ナノ秒)
+	 */
+	public static final long DEFAULT_REPORT_INTERVAL = 10 * 1000000000L;
+
+	/**
+	 * 特徴量を受け取る
+	 */
+	public interface Output {
+		/**
+		 * センサーのスレッドから呼ばれる
+		 *
+		 * @param values
+		 *            値(呼び出しの間だけ有効)
+		 */
+		void onFeature(int type, long timestamp, float[] values, int count);
+	}
+
+	private Output mOutput;
+	private long mReportInterval = DEFAULT_REPORT_INTERVAL;
+	private long mReportStart = -1;
+
+	public void setOutput(Output output) {
+		mOutput = output;
+	}
+
+	public Output getOutput() {
+		return mOutput;
+	}
+
+	/**
+	 * まとめて出力する間隔(ナノ秒)を設定する
+	 */
+	public void setReportInterval(long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval: " + interval);
+		}
+		mReportInterval = interval;
+	}
+
+	public long getReportInterval() {
+		return mReportInterval;
+	}
+
+	/**
+	 * timestamps[offset..offset+length-1] のサンプルを処理する
+	 */
+	public abstract void process(long[] timestamps, float[] x, float[] y,
+			float[] z, float[] r, int offset, int length);
+
+	/**
+	 * 状態を初期化する(供給の再開時など)
+	 */
+	public void reset() {
+		mReportStart = -1;
+	}
+
+	/**
+	 * まとめて出力する時刻になったか(なったら次の区間を始める)
+	 */
+	protected boolean isReportDue(long timestamp) {
+		if (mReportStart < 0) {
+			mReportStart = timestamp;
+			return false;
+		}
+		if (timestamp - mReportStart < mReportInterval) {
+			return false;
+		}
+		mReportStart = timestamp;
+		return true;
+	}
+
+	protected void emit(int type, long timestamp, float[] values, int count) {
+		Output output = mOutput;
+		if (output != null) {
+			output.onFeature(type, timestamp, values, count);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 特徴量を記録するファイル(.acf)の形式
+ *
+ * <pre>
+ * ヘッダ(16バイト)
+ *   int   MAGIC
+ *   short VERSION
+ *   short 予約(0)
+ *   long  記録開始時刻(ミリ秒)
+ * レコード(繰り返し)
+ *   long  タイムスタンプ(ナノ秒)
+ *   short 種類({@link FeatureExtractor}の TYPE_*)
+ *   short 値の数(n)
+ *   float 値 × n
+ * </pre>
+ *
+ * レコードは10秒に数件なので、1日でも数百 KB にしかならない。
+ * 書き込み中に止まったファイルは、末尾の不完全なレコードを読み飛ばせばよい。
+ */
+public class FeatureFormat {
+
+	public static final String EXTENSION = ".acf";
+
+	public static final int MAGIC = 0x41434654; // "ACFT"
+	public static final short VERSION = 1;
+
+	public static final int HEADER_SIZE = 16;
+	public static final int RECORD_HEADER_SIZE = 12;
+	public static final int MAX_RECORD_SIZE = RECORD_HEADER_SIZE + 4
+			* FeatureExtractor.MAX_VALUES;
+
+	private FeatureFormat() {
+	}
+
+	/**
+	 * 1件のレコード
+	 */
+	public static class Record {
+		public long timestamp;
+		public int type;
+		public int count;
+		public final float[] values = new float[FeatureExtractor.MAX_VALUES];
+	}
+
+	/**
+	 * buffer に HEADER_SIZE バイトを書き込む
+	 */
+	public static void writeHeader(ByteBuffer buffer, long startTime) {
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putShort((short) 0);
+		buffer.putLong(startTime);
+	}
+
+	/**
+	 * HEADER_SIZE バイトを読み、記録開始時刻を返す
+	 */
+	public static long readHeader(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+			throw new IOException("not a feature file");
+		}
+		short version = buffer.getShort();
+		if (version != VERSION) {
+			throw new IOException("unsupported feature version: " + version);
+		}
+		buffer.getShort();
+		return buffer.getLong();
+	}
+
+	public static void writeRecord(ByteBuffer buffer, int type,
+			long timestamp, float[] values, int count) {
+		buffer.putLong(timestamp);
+		buffer.putShort((short) type);
+		buffer.putShort((short) count);
+		for (int i = 0; i < count; i++) {
+			buffer.putFloat(values[i]);
+		}
+	}
+
+	/**
+	 * buffer から1件読む
+	 *
+	 * @return 1件が揃っていなければ false(buffer の位置は変えない)
+	 */
+	public static boolean readRecord(ByteBuffer buffer, Record record)
+			throws IOException {
+		if (buffer.remaining() < RECORD_HEADER_SIZE) {
+			return false;
+		}
+		int start = buffer.position();
+		long timestamp = buffer.getLong();
+		int type = buffer.getShort();
+		int count = buffer.getShort();
+		if (count < 0 || count > FeatureExtractor.MAX_VALUES) {
+			throw new IOException("broken feature record: " + count);
+		}
+		if (buffer.remaining() < count * 4) {
+			buffer.position(start);
+			return false;
+		}
+		record.timestamp = timestamp;
+		record.type = type;
+		record.count = count;
+		for (int i = 0; i < count; i++) {
+			record.values[i] = buffer.getFloat();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,206 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 特徴量を{@link FeatureFormat}のファイルに書き込み続けるスレッド
+ *
+ * センサーのスレッドからは固定長のキューに入れるだけで、一定間隔ごとに
+ * まとめて書き込む。キューが一杯なら捨てて数える。種類ごとに最後の値を
+ * 保持し、画面の表示に使う。
+ */
+public class FeatureLog extends Thread implements FeatureExtractor.Output {
+
+	private static final long WRITE_INTERVAL = 1000;
+	private static final int QUEUE_SIZE = 256;
+
+	private final File mFile;
+	private final long mStartTime;
+
+	// キュー(this で同期する)
+	private final long[] mQueueTimestamps = new long[QUEUE_SIZE];
+	private final int[] mQueueTypes = new int[QUEUE_SIZE];
+	private final int[] mQueueCounts = new int[QUEUE_SIZE];
+	private final float[][] mQueueValues =
+			new float[QUEUE_SIZE][FeatureExtractor.MAX_VALUES];
+	private int mQueued;
+	private int mTaken;
+
+	// 種類ごとの最後の値(this で同期する)
+	private final long[] mLatestTimestamps = new long[FeatureExtractor.TYPES];
+	private final int[] mLatestCounts = new int[FeatureExtractor.TYPES];
+	private final float[][] mLatestValues =
+			new float[FeatureExtractor.TYPES][FeatureExtractor.MAX_VALUES];
+
+	private final ByteBuffer mBuffer = ByteBuffer.allocate(QUEUE_SIZE
+			* FeatureFormat.MAX_RECORD_SIZE);
+	private RandomAccessFile mRandomAccessFile;
+	private FileChannel mChannel;
+	private long mPosition;
+
+	private final Object mWakeLock = new Object();
+	private volatile boolean mRunning;
+	private volatile long mRecordCount;
+	private volatile int mDropped;
+	private IOException mError;
+
+	/**
+	 * @param startTime
+	 *            記録開始時刻(ミリ秒)
+	 */
+	public FeatureLog(File file, long startTime) {
+		super("FeatureLog");
+		mFile = file;
+		mStartTime = startTime;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * 書き込んだレコードの数を返す
+	 */
+	public long getRecordCount() {
+		return mRecordCount;
+	}
+
+	/**
+	 * キューが一杯で捨てたレコードの数を返す
+	 */
+	public int getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * ファイルを作ってヘッダを書き込み、書き込みスレッドを開始する
+	 */
+	public void open() throws IOException {
+		mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+		mRandomAccessFile.setLength(0);
+		mChannel = mRandomAccessFile.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(FeatureFormat.HEADER_SIZE);
+		FeatureFormat.writeHeader(header, mStartTime);
+		header.flip();
+		try {
+			RecordingFormat.writeFully(mChannel, header, 0);
+		} catch (IOException e) {
+			mRandomAccessFile.close();
+			throw e;
+		}
+		mPosition = FeatureFormat.HEADER_SIZE;
+		mRunning = true;
+		start();
+	}
+
+	/**
+	 * キューに残ったレコードを書き込んでファイルを閉じる
+	 */
+	public void close() throws IOException {
+		synchronized (mWakeLock) {
+			mRunning = false;
+			mWakeLock.notifyAll();
+		}
+		boolean joined = false;
+		while (!joined) {
+			try {
+				join();
+				joined = true;
+			} catch (InterruptedException e) {
+				// 書き込みが終わるまで待つ
+			}
+		}
+		if (mError != null) {
+			throw mError;
+		}
+	}
+
+	@Override
+	public void onFeature(int type, long timestamp, float[] values, int count) {
+		synchronized (this) {
+			if (type >= 0 && type < FeatureExtractor.TYPES) {
+				mLatestTimestamps[type] = timestamp;
+				mLatestCounts[type] = count;
+				System.arraycopy(values, 0, mLatestValues[type], 0, count);
+			}
+			if (mQueued - mTaken >= QUEUE_SIZE) {
+				mDropped++;
+				return;
+			}
+			int index = mQueued % QUEUE_SIZE;
+			mQueueTimestamps[index] = timestamp;
+			mQueueTypes[index] = type;
+			mQueueCounts[index] = count;
+			System.arraycopy(values, 0, mQueueValues[index], 0, count);
+			mQueued++;
+		}
+	}
+
+	/**
+	 * type の最後の値を out にコピーする
+	 *
+	 * @return 値の数(まだなければ -1)
+	 */
+	public synchronized int getLatest(int type, float[] out) {
+		if (mLatestTimestamps[type] == 0) {
+			return -1;
+		}
+		int count = mLatestCounts[type];
+		System.arraycopy(mLatestValues[type], 0, out, 0, count);
+		return count;
+	}
+
+	@Override
+	public void run() {
+		try {
+			try {
+				while (mRunning) {
+					drain();
+					synchronized (mWakeLock) {
+						if (mRunning) {
+							try {
+								mWakeLock.wait(WRITE_INTERVAL);
+							} catch (InterruptedException e) {
+								// 次の書き込みへ
+							}
+						}
+					}
+				}
+				drain();
+			} finally {
+				mRandomAccessFile.close();
+			}
+		} catch (IOException e) {
+			mError = e;
+		}
+	}
+
+	// キューのレコードをまとめて書き込む
+	private void drain() throws IOException {
+		ByteBuffer buffer = mBuffer;
+		buffer.clear();
+		int records = 0;
+		synchronized (this) {
+			while (mTaken < mQueued) {
+				int index = mTaken % QUEUE_SIZE;
+				FeatureFormat.writeRecord(buffer, mQueueTypes[index],
+						mQueueTimestamps[index], mQueueValues[index],
+						mQueueCounts[index]);
+				mTaken++;
+				records++;
+			}
+		}
+		if (records == 0) {
+			return;
+		}
+		buffer.flip();
+		int length = buffer.remaining();
+		RecordingFormat.writeFully(mChannel, buffer, mPosition);
+		mPosition += length;
+		mRecordCount += records;
+	}
+}
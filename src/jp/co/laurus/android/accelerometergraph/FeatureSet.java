@@ -0,0 +1,56 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 複数の{@link FeatureExtractor}に同じサンプルを渡す
+ *
+ * {@link SamplePipeline#setFeatures}には1つしか設定できないので、
+ * これでまとめて設定する。出力先は全ての特徴量で共通。
+ */
+public class FeatureSet extends FeatureExtractor {
+
+	private final FeatureExtractor[] mExtractors;
+
+	public FeatureSet(FeatureExtractor[] extractors) {
+		mExtractors = extractors.clone();
+	}
+
+	public int size() {
+		return mExtractors.length;
+	}
+
+	public FeatureExtractor get(int index) {
+		return mExtractors[index];
+	}
+
+	@Override
+	public void setOutput(Output output) {
+		super.setOutput(output);
+		for (int i = 0; i < mExtractors.length; i++) {
+			mExtractors[i].setOutput(output);
+		}
+	}
+
+	@Override
+	public void setReportInterval(long interval) {
+		super.setReportInterval(interval);
+		for (int i = 0; i < mExtractors.length; i++) {
+			mExtractors[i].setReportInterval(interval);
+		}
+	}
+
+	@Override
+	public void process(long[] timestamps, float[] x, float[] y, float[] z,
+			float[] r, int offset, int length) {
+		for (int i = 0; i < mExtractors.length; i++) {
+			mExtractors[i].process(timestamps, x, y, z, r, offset, length);
+		}
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		for (int i = 0; i < mExtractors.length; i++) {
+			mExtractors[i].reset();
+		}
+	}
+}
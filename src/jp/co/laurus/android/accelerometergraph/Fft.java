@@ -0,0 +1,139 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 実数列の高速フーリエ変換(基数2)
+ *
+ * 長さ n の実数列を長さ n/2 の複素数列とみなして変換し、最後に実数列の
+ * スペクトルに分解する。三角関数とビット反転の表は生成時に作り、変換中は
+ * メモリを確保しない。
+ */
+public class Fft {
+
+	private final int mSize;
+	private final int mHalf;
+	// cos(2πk/n), sin(2πk/n) (k < n/2)
+	private final float[] mCos;
+	private final float[] mSin;
+	// 長さ n/2 のビット反転
+	private final int[] mReverse;
+
+	/**
+	 * @param size
+	 *            変換の長さ(4以上の2の累乗)
+	 */
+	public Fft(int size) {
+		if (size < 4 || (size & (size - 1)) != 0) {
+			throw new IllegalArgumentException("size: " + size);
+		}
+		mSize = size;
+		mHalf = size / 2;
+		mCos = new float[mHalf];
+		mSin = new float[mHalf];
+		for (int k = 0; k < mHalf; k++) {
+			double angle = 2 * Math.PI * k / size;
+			mCos[k] = (float) Math.cos(angle);
+			mSin[k] = (float) Math.sin(angle);
+		}
+		mReverse = new int[mHalf];
+		int bits = Integer.numberOfTrailingZeros(mHalf);
+		for (int i = 0; i < mHalf; i++) {
+			mReverse[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+	}
+
+	public int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * data を置き換えて変換する
+	 *
+	 * 結果は data[0] = X[0], data[1] = X[n/2] (どちらも実数)、
+	 * data[2k] = Re X[k], data[2k+1] = Im X[k] (0 < k < n/2) の順に並ぶ。
+	 */
+	public void realForward(float[] data) {
+		complexForward(data);
+
+		// 複素数列のスペクトルから実数列のスペクトルを求める
+		float r0 = data[0];
+		float i0 = data[1];
+		data[0] = r0 + i0;
+		data[1] = r0 - i0;
+
+		int half = mHalf;
+		for (int k = 1; k <= half / 2; k++) {
+			int j = half - k;
+			float ar = data[2 * k];
+			float ai = data[2 * k + 1];
+			float br = data[2 * j];
+			float bi = data[2 * j + 1];
+
+			float er = (ar + br) * 0.5f;
+			float ei = (ai - bi) * 0.5f;
+			float or = (ai + bi) * 0.5f;
+			float oi = (br - ar) * 0.5f;
+			float c = mCos[k];
+			float s = mSin[k];
+			float tr = c * or + s * oi;
+			float ti = c * oi - s * or;
+
+			data[2 * k] = er + tr;
+			data[2 * k + 1] = ei + ti;
+			if (j != k) {
+				data[2 * j] = er - tr;
+				data[2 * j + 1] = -ei + ti;
+			}
+		}
+	}
+
+	/**
+	 * {@link #realForward}の結果から振幅を求める(n/2 + 1 個)
+	 */
+	public void magnitudes(float[] data, float[] magnitudes) {
+		magnitudes[0] = Math.abs(data[0]);
+		magnitudes[mHalf] = Math.abs(data[1]);
+		for (int k = 1; k < mHalf; k++) {
+			float re = data[2 * k];
+			float im = data[2 * k + 1];
+			magnitudes[k] = (float) Math.sqrt(re * re + im * im);
+		}
+	}
+
+	// 長さ n/2 の複素数列(実部・虚部の交互)を変換する
+	private void complexForward(float[] data) {
+		int count = mHalf;
+		for (int i = 0; i < count; i++) {
+			int j = mReverse[i];
+			if (j > i) {
+				float re = data[2 * i];
+				float im = data[2 * i + 1];
+				data[2 * i] = data[2 * j];
+				data[2 * i + 1] = data[2 * j + 1];
+				data[2 * j] = re;
+				data[2 * j + 1] = im;
+			}
+		}
+
+		for (int length = 2; length <= count; length <<= 1) {
+			int span = length >> 1;
+			// 長さ n/2 の回転因子は長さ n の表を1つおきに使う
+			int stride = 2 * (count / length);
+			for (int k = 0; k < span; k++) {
+				float wr = mCos[k * stride];
+				float wi = -mSin[k * stride];
+				for (int start = k; start < count; start += length) {
+					int a = 2 * start;
+					int b = 2 * (start + span);
+					float br = data[b] * wr - data[b + 1] * wi;
+					float bi = data[b] * wi + data[b + 1] * wr;
+					float ar = data[a];
+					float ai = data[a + 1];
+					data[a] = ar + br;
+					data[a + 1] = ai + bi;
+					data[b] = ar - br;
+					data[b + 1] = ai - bi;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 複数のフィルタを順にかける
+ */
+public class FilterChain implements SampleFilter {
+
+	// これより小さい状態は0にする(非正規化数での演算は遅い端末がある)
+	private static final float FLUSH_LIMIT = 1e-30f;
+
+	private final SampleFilter[] mStages;
+
+	public FilterChain(SampleFilter... stages) {
+		mStages = stages.clone();
+	}
+
+	public int getStageCount() {
+		return mStages.length;
+	}
+
+	public SampleFilter getStage(int index) {
+		return mStages[index];
+	}
+
+	@Override
+	public void process(float[] input, float[] output, int offset, int length) {
+		SampleFilter[] stages = mStages;
+		if (stages.length == 0) {
+			if (input != output) {
+				System.arraycopy(input, offset, output, offset, length);
+			}
+			return;
+		}
+		stages[0].process(input, output, offset, length);
+		for (int i = 1; i < stages.length; i++) {
+			stages[i].process(output, output, offset, length);
+		}
+	}
+
+	@Override
+	public void reset() {
+		for (SampleFilter stage : mStages) {
+			stage.reset();
+		}
+	}
+
+	/**
+	 * 全ての段をかけた振幅特性を返す
+	 *
+	 * @return 線形でない段({@link LinearFilter}でない段)があれば NaN
+	 */
+	public double getMagnitude(float sampleRate, float frequency) {
+		double magnitude = 1;
+		for (SampleFilter stage : mStages) {
+			if (!(stage instanceof LinearFilter)) {
+				return Double.NaN;
+			}
+			magnitude *= ((LinearFilter) stage).getMagnitude(sampleRate,
+					frequency);
+		}
+		return magnitude;
+	}
+
+	/**
+	 * IIR フィルタの状態をブロックの終わりで整える
+	 *
+	 * 入力が止まると状態が非正規化数のまま残り続けるので0にする。NaN や
+	 * 無限大も0にして、1つの異常な値で以降の出力が全て壊れないようにする。
+	 */
+	static float flush(float value) {
+		float abs = Math.abs(value);
+		return abs >= FLUSH_LIMIT && abs <= Float.MAX_VALUE ? value : 0;
+	}
+}
@@ -0,0 +1,92 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 画面から選べるフィルタの組み合わせ
+ *
+ * RAW/LOW/HIGH はラジオボタン、それ以外はメニューから選ぶ。LOW と HIGH の
+ * 係数は Filter rate のシークバーで変更する。
+ */
+public class FilterPresets {
+
+	public static final int RAW = 0;
+	public static final int LOW = 1;
+	public static final int HIGH = 2;
+	public static final int BIQUAD_LOW = 3;
+	public static final int BIQUAD_HIGH = 4;
+	public static final int BAND = 5;
+	public static final int MOVING_AVERAGE = 6;
+	public static final int MEDIAN = 7;
+	public static final int KALMAN = 8;
+
+	/**
+	 * メニューに表示する名前(RAW/LOW/HIGH以外)
+	 */
+	public static final CharSequence[] EXTRA_NAMES = { "LOW 5Hz (biquad)",
+			"HIGH 0.5Hz (biquad)", "BAND 1-10Hz", "AVERAGE(8)", "MEDIAN(5)",
+			"KALMAN" };
+	public static final int[] EXTRA_PRESETS = { BIQUAD_LOW, BIQUAD_HIGH,
+			BAND, MOVING_AVERAGE, MEDIAN, KALMAN };
+
+	private FilterPresets() {
+	}
+
+	/**
+	 * 1チャンネル分のフィルタを生成する
+	 *
+	 * @param sampleRate
+	 *            サンプリング周波数(Hz)
+	 * @param filterRate
+	 *            LOW/HIGH の係数
+	 */
+	public static FilterChain create(int preset, float sampleRate,
+			float filterRate) {
+		// ナイキスト周波数を超えないようにする
+		float nyquist = sampleRate / 2;
+		switch (preset) {
+		case LOW:
+			return new FilterChain(new ExponentialFilter(filterRate, false));
+		case HIGH:
+			return new FilterChain(new ExponentialFilter(filterRate, true));
+		case BIQUAD_LOW:
+			return new FilterChain(BiquadFilter.lowPass(sampleRate, Math.min(
+					5f, nyquist * 0.9f), 0.7071f));
+		case BIQUAD_HIGH:
+			return new FilterChain(BiquadFilter.highPass(sampleRate, 0.5f,
+					0.7071f));
+		case BAND:
+			// 1Hz〜10Hzの幾何平均を中心周波数にする
+			float low = 1f;
+			float high = Math.min(10f, nyquist * 0.9f);
+			float center = (float) Math.sqrt(low * high);
+			return new FilterChain(BiquadFilter.bandPass(sampleRate, center,
+					center / (high - low)));
+		case MOVING_AVERAGE:
+			return new FilterChain(new MovingAverageFilter(8));
+		case MEDIAN:
+			return new FilterChain(new MedianFilter(5));
+		case KALMAN:
+			return new FilterChain(new KalmanFilter(0.01f, 0.5f));
+		default:
+			return new FilterChain();
+		}
+	}
+
+	/**
+	 * 係数がサンプリング周波数で決まる(周波数が変わったら作り直す)なら true
+	 */
+	public static boolean dependsOnSampleRate(int preset) {
+		return preset == BIQUAD_LOW || preset == BIQUAD_HIGH || preset == BAND;
+	}
+
+	/**
+	 * フィルタの係数を変更する(LOW/HIGH のみ)
+	 */
+	public static void setFilterRate(FilterChain chain, float filterRate) {
+		for (int i = 0; i < chain.getStageCount(); i++) {
+			SampleFilter stage = chain.getStage(i);
+			if (stage instanceof ExponentialFilter) {
+				((ExponentialFilter) stage).setRate(filterRate);
+			}
+		}
+	}
+}
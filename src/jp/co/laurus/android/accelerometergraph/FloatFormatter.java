@@ -0,0 +1,124 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 数値を ASCII の10進数で byte 配列に書き込む
+ *
+ * String.valueOf() と違って文字列を作らないので、CSV の書き出しで
+ * 1件ごとにメモリを確保しない。小数は指定の桁数に四捨五入し、末尾の0は
+ * 省く(9.8 は "9.8", 2.0 は "2")。固定小数で表せない大きさと NaN・無限大
+ * だけは String.valueOf() の表記にする。
+ */
+public class FloatFormatter {
+
+	/**
+	 * 小数点以下の最大の桁数
+	 */
+	public static final int MAX_DECIMALS = 9;
+
+	// 固定小数で書く整数部の最大の桁数
+	private static final int MAX_INTEGER_DIGITS = 9;
+
+	/**
+	 * writeLong() が書き込む最大のバイト数
+	 */
+	public static final int MAX_LONG_LENGTH = 20;
+
+	/**
+	 * writeFloat() が書き込む最大のバイト数(符号と小数点を含む)
+	 */
+	public static final int MAX_FLOAT_LENGTH = 2 + MAX_INTEGER_DIGITS
+			+ MAX_DECIMALS;
+
+	// 10^0 〜 10^18
+	private static final long[] POWERS = new long[19];
+	static {
+		POWERS[0] = 1;
+		for (int i = 1; i < POWERS.length; i++) {
+			POWERS[i] = POWERS[i - 1] * 10;
+		}
+	}
+
+	private static final double MAX_FIXED = POWERS[MAX_INTEGER_DIGITS];
+
+	private static final byte[] LONG_MIN = String.valueOf(Long.MIN_VALUE)
+			.getBytes();
+
+	private FloatFormatter() {
+	}
+
+	/**
+	 * @return 書き込んだ次の位置
+	 */
+	public static int writeLong(long value, byte[] out, int position) {
+		if (value == Long.MIN_VALUE) {
+			System.arraycopy(LONG_MIN, 0, out, position, LONG_MIN.length);
+			return position + LONG_MIN.length;
+		}
+		if (value < 0) {
+			out[position++] = '-';
+			value = -value;
+		}
+		return writeDigits(value, countDigits(value), out, position);
+	}
+
+	/**
+	 * @param decimals
+	 *            小数点以下の桁数(0〜MAX_DECIMALS)
+	 * @return 書き込んだ次の位置
+	 */
+	public static int writeFloat(float value, int decimals, byte[] out,
+			int position) {
+		double magnitude = value < 0 ? -(double) value : value;
+		if (!(magnitude < MAX_FIXED)) {
+			// NaN, 無限大, 大きな値
+			String text = String.valueOf(value);
+			for (int i = 0; i < text.length(); i++) {
+				out[position++] = (byte) text.charAt(i);
+			}
+			return position;
+		}
+		long unit = POWERS[decimals];
+		long scaled = (long) (magnitude * unit + 0.5);
+		if (scaled == 0) {
+			// -0 にしない
+			out[position++] = '0';
+			return position;
+		}
+		if (value < 0) {
+			out[position++] = '-';
+		}
+		long integer = scaled / unit;
+		long fraction = scaled - integer * unit;
+		position = writeDigits(integer, countDigits(integer), out, position);
+		if (fraction == 0) {
+			return position;
+		}
+		int digits = decimals;
+		while (fraction % 10 == 0) {
+			fraction /= 10;
+			digits--;
+		}
+		out[position++] = '.';
+		// 小数点の直後の0も含めて digits 桁を書く
+		return writeDigits(fraction, digits, out, position);
+	}
+
+	// value(0以上)を length 桁で書く(足りない上位の桁は0で埋める)
+	private static int writeDigits(long value, int length, byte[] out,
+			int position) {
+		int end = position + length;
+		for (int i = end - 1; i >= position; i--) {
+			out[i] = (byte) ('0' + (int) (value % 10));
+			value /= 10;
+		}
+		return end;
+	}
+
+	private static int countDigits(long value) {
+		int digits = 1;
+		while (digits < POWERS.length && value >= POWERS[digits]) {
+			digits++;
+		}
+		return digits;
+	}
+}
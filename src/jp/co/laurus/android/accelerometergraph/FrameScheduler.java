@@ -0,0 +1,226 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * グラフを描画するタイミングを決める
+ *
+ * 描画スレッドは{@link #awaitFrame()}で待ち、新しいサンプルや操作があったときに
+ * {@link #requestFrame()}で起こされる。描画の間隔は画面のリフレッシュ周期の
+ * 倍数とし、サンプリング周期と描画にかかった時間に合わせて広げる。
+ * 要求がなければ描画しない。
+ *
+ * 時刻と待機は{@link Clock}を通して行うので、端末がなくても動作を確認できる。
+ */
+public class FrameScheduler {
+
+	/**
+	 * 時刻の取得と待機
+	 */
+	public interface Clock {
+		long nanoTime();
+
+		/**
+		 * lock のモニタを持った状態で呼ばれ、最大 nanos ナノ秒
+		 * (0なら通知まで)待つ
+		 */
+		void await(Object lock, long nanos) throws InterruptedException;
+	}
+
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public void await(Object lock, long nanos) throws InterruptedException {
+			lock.wait(nanos / 1000000, (int) (nanos % 1000000));
+		}
+	};
+
+	// 描画時間に対する描画間隔の最小の比率
+	private static final float COST_FACTOR = 2f;
+	// 描画時間の移動平均の重み
+	private static final float COST_WEIGHT = 0.1f;
+
+	private final Clock mClock;
+	private final Object mLock = new Object();
+
+	private long mVsyncPeriod = 1000000000L / 60;
+	private long mSampleInterval = 0;
+	private long mRenderCost = 0;
+
+	private volatile boolean mPending = false;
+	private boolean mInteractive = false;
+	private boolean mEnabled = false;
+	private boolean mQuit = false;
+	private boolean mWaiting = false;
+
+	private long mLastFrame = Long.MIN_VALUE;
+	private long mFrameStart;
+	private long mFrameCount;
+
+	public FrameScheduler(Clock clock) {
+		mClock = clock;
+	}
+
+	/**
+	 * 画面のリフレッシュレートを設定する
+	 */
+	public void setRefreshRate(float refreshRate) {
+		if (refreshRate > 0) {
+			synchronized (mLock) {
+				mVsyncPeriod = (long) (1e9f / refreshRate);
+			}
+		}
+	}
+
+	/**
+	 * サンプリング周波数を設定する(これより速く描画しても表示は変わらない)
+	 */
+	public void setSampleRate(float sampleRate) {
+		synchronized (mLock) {
+			mSampleInterval = sampleRate > 0 ? (long) (1e9f / sampleRate) : 0;
+		}
+	}
+
+	/**
+	 * 描画してよいかを設定する(画面がないときや停止中は false)
+	 */
+	public void setEnabled(boolean enabled) {
+		synchronized (mLock) {
+			mEnabled = enabled;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * 待機中の描画スレッドを終了させる
+	 */
+	public void quit() {
+		synchronized (mLock) {
+			mQuit = true;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * 新しいデータがあることを知らせる(どのスレッドからでもよい)
+	 *
+	 * 既に要求済みなら何もしないので、サンプルごとに呼んでもよい。
+	 */
+	public void requestFrame() {
+		if (mPending) {
+			return;
+		}
+		synchronized (mLock) {
+			mPending = true;
+			if (mWaiting) {
+				mLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * 操作に応じた描画を要求する(サンプリング周期に関係なく描画する)
+	 */
+	public void requestInteractiveFrame() {
+		synchronized (mLock) {
+			mPending = true;
+			mInteractive = true;
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * 描画すべき時刻まで待つ(描画スレッドから呼ぶ)
+	 *
+	 * @return 終了するなら false
+	 */
+	public boolean awaitFrame() throws InterruptedException {
+		synchronized (mLock) {
+			while (!mQuit) {
+				long wait = 0;
+				if (mEnabled && mPending) {
+					long now = mClock.nanoTime();
+					long due = nextFrameTime(now);
+					if (due <= now) {
+						mPending = false;
+						mInteractive = false;
+						mLastFrame = now;
+						mFrameStart = now;
+						mFrameCount++;
+						return true;
+					}
+					wait = due - now;
+				}
+				mWaiting = true;
+				try {
+					mClock.await(mLock, wait);
+				} finally {
+					mWaiting = false;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * 描画が終わったときに呼ぶ(描画スレッドから呼ぶ)
+	 */
+	public void frameDone() {
+		synchronized (mLock) {
+			long cost = mClock.nanoTime() - mFrameStart;
+			if (mRenderCost == 0) {
+				mRenderCost = cost;
+			} else {
+				mRenderCost += (long) ((cost - mRenderCost) * COST_WEIGHT);
+			}
+		}
+	}
+
+	/**
+	 * 現在の条件での描画間隔(ナノ秒)を返す
+	 */
+	public long getFrameInterval() {
+		synchronized (mLock) {
+			long interval = (long) (mRenderCost * COST_FACTOR);
+			if (!mInteractive && mSampleInterval > interval) {
+				interval = mSampleInterval;
+			}
+			// リフレッシュ周期の倍数に切り上げる
+			long frames = Math.max(1, (interval + mVsyncPeriod - 1)
+					/ mVsyncPeriod);
+			return frames * mVsyncPeriod;
+		}
+	}
+
+	/**
+	 * 直前の描画と現在時刻から次に描画する時刻を求める
+	 *
+	 * 間に合わなかったフレームを取り戻そうとはしない。
+	 */
+	public long nextFrameTime(long now) {
+		synchronized (mLock) {
+			if (mLastFrame == Long.MIN_VALUE) {
+				return now;
+			}
+			long due = mLastFrame + getFrameInterval();
+			return due < now ? now : due;
+		}
+	}
+
+	public long getRenderCost() {
+		synchronized (mLock) {
+			return mRenderCost;
+		}
+	}
+
+	/**
+	 * 描画したフレーム数を返す
+	 */
+	public long getFrameCount() {
+		synchronized (mLock) {
+			return mFrameCount;
+		}
+	}
+}
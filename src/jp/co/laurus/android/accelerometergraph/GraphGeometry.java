@@ -0,0 +1,81 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * グラフの線分の座標を求める
+ *
+ * 座標は Canvas.drawLines() にそのまま渡せるように (x0, y0, x1, y1) の
+ * 繰り返しで float[] に書き込む。描画から切り離してあるので、端末がなくても
+ * 処理時間を測れる。
+ */
+public class GraphGeometry {
+
+	private GraphGeometry() {
+	}
+
+	/**
+	 * history の channel を折れ線にした線分の座標を points に書き込む
+	 *
+	 * 最後のサンプルを lastX に置き、それより前のサンプルはタイムスタンプの
+	 * 間隔に合わせて左に並べる(平均の間隔が step ピクセル)。
+	 * タイムスタンプがなければ step ピクセルずつ並べる。
+	 *
+	 * @param points
+	 *            (history.size() - 1) * 4 以上の長さ
+	 * @return 書き込んだ要素の数
+	 */
+	public static int linePoints(SampleWindow history, int channel,
+			float lastX, int step, float zeroLineY, float scale, float[] points) {
+		int size = history.size();
+		if (size <= 1) {
+			return 0;
+		}
+		long lastTime = history.getTimestamp(size - 1);
+		long span = lastTime - history.getTimestamp(0);
+		double xScale = span > 0 ? (double) step * (size - 1) / span : 0;
+
+		float beforeX = xOf(history, 0, size, lastTime, lastX, step, xScale);
+		float beforeY = zeroLineY - (history.get(channel, 0) * scale);
+		int n = 0;
+		for (int i = 1; i < size; i++) {
+			float x = xOf(history, i, size, lastTime, lastX, step, xScale);
+			float y = zeroLineY - (history.get(channel, i) * scale);
+			points[n++] = beforeX;
+			points[n++] = beforeY;
+			points[n++] = x;
+			points[n++] = y;
+			beforeX = x;
+			beforeY = y;
+		}
+		return n;
+	}
+
+	/**
+	 * 最小値から最大値までの縦線を1ピクセル列ずつ並べた座標を書き込む
+	 *
+	 * @param points
+	 *            bins * 4 以上の長さ
+	 * @return 書き込んだ要素の数
+	 */
+	public static int envelopePoints(float[] min, float[] max, int bins,
+			float firstX, float zeroLineY, float scale, float[] points) {
+		int n = 0;
+		for (int i = 0; i < bins; i++) {
+			float x = firstX + i;
+			points[n++] = x;
+			points[n++] = zeroLineY - (max[i] * scale);
+			points[n++] = x;
+			// 最小値と最大値が同じでも1ピクセルは描く
+			points[n++] = zeroLineY - (min[i] * scale) + 1;
+		}
+		return n;
+	}
+
+	// i 番目のサンプルの横軸の位置
+	private static float xOf(SampleWindow history, int i, int size,
+			long lastTime, float lastX, int step, double xScale) {
+		if (xScale == 0) {
+			return lastX - (size - 1 - i) * step;
+		}
+		return lastX - (float) ((lastTime - history.getTimestamp(i)) * xScale);
+	}
+}
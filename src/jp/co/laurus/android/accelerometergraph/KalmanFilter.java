@@ -0,0 +1,89 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 値が一定(ランダムウォーク)であることを仮定した1次元のカルマンフィルタ
+ *
+ * ゲインは数サンプルで定常値に収束するので、その後は定常ゲインを重みとする
+ * 指数移動平均と同じ特性になる。
+ */
+public class KalmanFilter implements LinearFilter {
+
+	private final float mProcessNoise;
+	private final float mMeasurementNoise;
+
+	private float mEstimate;
+	private float mErrorCovariance;
+	private boolean mInitialized;
+
+	/**
+	 * @param processNoise
+	 *            1サンプルあたりの真値の変化の分散
+	 * @param measurementNoise
+	 *            測定値の分散
+	 */
+	public KalmanFilter(float processNoise, float measurementNoise) {
+		mProcessNoise = processNoise;
+		mMeasurementNoise = measurementNoise;
+	}
+
+	@Override
+	public void process(float[] input, float[] output, int offset, int length) {
+		float q = mProcessNoise;
+		float r = mMeasurementNoise;
+		float estimate = mEstimate;
+		float p = mErrorCovariance;
+		int start = offset;
+		int end = offset + length;
+		if (!mInitialized && length > 0) {
+			// 最初の測定値で初期化
+			estimate = input[offset];
+			p = r;
+			output[offset] = estimate;
+			mInitialized = true;
+			start++;
+		}
+		for (int i = start; i < end; i++) {
+			// 予測
+			p += q;
+			// 更新
+			float gain = p / (p + r);
+			estimate += gain * (input[i] - estimate);
+			p *= (1 - gain);
+			output[i] = estimate;
+		}
+		if (Float.isNaN(estimate) || Float.isInfinite(estimate)) {
+			// 次の測定値から初期化し直す
+			mInitialized = false;
+		}
+		mEstimate = FilterChain.flush(estimate);
+		mErrorCovariance = p;
+	}
+
+	/**
+	 * 定常状態のゲインを返す
+	 *
+	 * 予測後の誤差分散 P は P^2 - qP - qr = 0 の正の解で、ゲインは P / (P + r)。
+	 */
+	public double getSteadyStateGain() {
+		double q = mProcessNoise;
+		double r = mMeasurementNoise;
+		double p = (q + Math.sqrt(q * q + 4 * q * r)) / 2;
+		return p / (p + r);
+	}
+
+	/**
+	 * 定常状態での振幅特性を返す
+	 */
+	@Override
+	public double getMagnitude(float sampleRate, float frequency) {
+		return ExponentialFilter.magnitude((float) getSteadyStateGain(),
+				false, sampleRate, frequency);
+	}
+
+	@Override
+	public void reset() {
+		mEstimate = 0;
+		mErrorCovariance = 0;
+		mInitialized = false;
+	}
+}
@@ -0,0 +1,15 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 振幅特性を計算できる線形のフィルタ
+ */
+public interface LinearFilter extends SampleFilter {
+
+	/**
+	 * 指定した周波数での振幅特性を返す
+	 *
+	 * @param sampleRate
+	 *            サンプリング周波数(Hz)
+	 */
+	double getMagnitude(float sampleRate, float frequency);
+}
@@ -1,28 +1,39 @@
 package jp.co.laurus.android.accelerometergraph;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.util.Iterator;
-import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.res.Resources;
+import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.format.DateFormat;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -31,6 +42,7 @@ import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.CheckBox;
@@ -50,29 +62,121 @@ public class MainActivity extends Activity {
 
 	private static final String TAG = "Accelerometer Graph";
 
-	private static final int DATA_R = 3;
-
 	private static final int STATUS_START = 1;
 	private static final int STATUS_STOP = 2;
 
-	private static final int PASS_FILTER_RAW = 0;
-	private static final int PASS_FILTER_LOW = 1;
-	private static final int PASS_FILTER_HIGH = 2;
-
 	private static final int MENU_SENSOR_DELAY = (Menu.FIRST + 1);
 	private static final int MENU_START_SAVE = (Menu.FIRST + 2);
 	private static final int MENU_SAVE = (Menu.FIRST + 3);
 	private static final int MENU_END = (Menu.FIRST + 4);
+	private static final int MENU_STATS = (Menu.FIRST + 5);
+	private static final int MENU_FILTER = (Menu.FIRST + 6);
+	private static final int MENU_OPEN = (Menu.FIRST + 7);
+	private static final int MENU_LIVE = (Menu.FIRST + 8);
+	private static final int MENU_ZOOM_AXIS = (Menu.FIRST + 9);
+	private static final int MENU_DRAWING = (Menu.FIRST + 10);
+	private static final int MENU_RESAMPLE = (Menu.FIRST + 11);
+	private static final int MENU_SPECTRUM = (Menu.FIRST + 12);
+	private static final int MENU_SOURCE = (Menu.FIRST + 13);
+	private static final int MENU_CHANNEL = (Menu.FIRST + 14);
+	private static final int MENU_BATCHING = (Menu.FIRST + 15);
+	private static final int MENU_FLUSH = (Menu.FIRST + 16);
+	private static final int MENU_FORMAT = (Menu.FIRST + 17);
+	private static final int MENU_ANALYZE = (Menu.FIRST + 18);
+	private static final int MENU_ROLLING = (Menu.FIRST + 19);
+	private static final int MENU_TRIGGER = (Menu.FIRST + 20);
+	private static final int MENU_EVENTS = (Menu.FIRST + 21);
+	private static final int MENU_STREAM = (Menu.FIRST + 22);
+	private static final int MENU_FEATURES = (Menu.FIRST + 23);
 
 	private static final int DIALOG_SAVE_PROGRESS = 0;
 
-	private float[] mCurrents = new float[4];
-	private ConcurrentLinkedQueue<float[]> mHistory = new ConcurrentLinkedQueue<float[]>();
-	private ConcurrentLinkedQueue<float[]> mRawHistory = new ConcurrentLinkedQueue<float[]>();
-	private TextView[] mAccValueViews = new TextView[4];
-	private float[] mLowPassFilters = { 0.0f, 0.0f, 0.0f, 0.0f };
-	private boolean[] mGraphs = { true, true, true, true };
-	private int[] mAngleColors = new int[4];
+	private static final String[] SENSOR_DELAY_NAMES = { "FASTEST", "GAME",
+			"UI", "NORMAL" };
+
+	// 書き出し時のリサンプリング(方式, 周波数)
+	private static final int[] RESAMPLE_MODES = { -1, Resampler.LINEAR,
+			Resampler.SINC, Resampler.LINEAR, Resampler.SINC };
+	private static final float[] RESAMPLE_RATES = { 0, 50, 50, 100, 100 };
+	private static final CharSequence[] RESAMPLE_NAMES = { "なし",
+			"線形 50Hz", "sinc 50Hz", "線形 100Hz", "sinc 100Hz" };
+
+	// 保存するファイルの形式
+	private static final int FORMAT_CSV = RecordingExporter.FORMAT_CSV;
+	private static final int FORMAT_ARCHIVE = RecordingExporter.FORMAT_ARCHIVE;
+	private static final int FORMAT_COLUMNAR = RecordingExporter.FORMAT_COLUMNAR;
+	private static final CharSequence[] FORMAT_NAMES = { "CSV",
+			"圧縮 (" + ArchiveFormat.EXTENSION + ")",
+			"列形式 (" + ColumnarFormat.EXTENSION + ")" };
+
+	// 保存の進み具合を更新する間隔(ミリ秒)
+	private static final int SAVE_PROGRESS_INTERVAL = 200;
+
+	// スペクトル解析の長さと間隔
+	private static final int SPECTRUM_SIZE = 256;
+	private static final int SPECTRUM_HOP = SPECTRUM_SIZE / 4;
+	private static final CharSequence[] SPECTRUM_NAMES = { "オフ", "X", "Y",
+			"Z", "R", "窓: Hann", "窓: Hamming" };
+
+	// 入力(センサーか、生成した信号の等速再生)
+	private static final CharSequence[] SOURCE_NAMES = { "センサー", "正弦波 2Hz",
+			"スイープ 0.5-25Hz", "インパルス 1秒ごと", "ノイズ" };
+	private static final int[] SOURCE_SIGNALS = { -1, SignalGenerator.SINE,
+			SignalGenerator.SWEEP, SignalGenerator.IMPULSE,
+			SignalGenerator.NOISE };
+	private static final float SIGNAL_SAMPLE_RATE = 100f;
+
+	// バッチ取り込みの設定(サンプリング間隔と最大の通知遅延, マイクロ秒)
+	private static final CharSequence[] BATCHING_NAMES = { "なし",
+			"100Hz / 1s", "100Hz / 10s", "50Hz / 60s", "10Hz / 300s" };
+	private static final int[] BATCHING_PERIODS = { 0, 10000, 10000, 20000,
+			100000 };
+	private static final int[] BATCHING_LATENCIES = { 0, 1000000, 10000000,
+			60000000, 300000000 };
+
+	// 移動統計の窓(秒)と、表示の更新間隔(ミリ秒)
+	private static final CharSequence[] ROLLING_NAMES = { "なし", "0.5秒",
+			"1秒", "5秒", "10秒" };
+	private static final float[] ROLLING_SECONDS = { 0, 0.5f, 1, 5, 10 };
+	private static final long ROLLING_UPDATE_INTERVAL = 250;
+	private static final char[] ROLLING_AXES = { 'X', 'Y', 'Z', 'R' };
+
+	// イベントを記録するトリガーの条件(しきい値は m/s^2)と、前後に記録する秒数
+	private static final CharSequence[] TRIGGER_NAMES = { "なし", "衝撃 (2G超)",
+			"振動 (0.5m/s^2超)", "落下 (0.3G未満 0.1秒)" };
+	private static final int[] TRIGGER_TYPES = { -1, TriggerRule.MAGNITUDE,
+			TriggerRule.HIGH_PASS_ENERGY, TriggerRule.FREE_FALL };
+	private static final float[] TRIGGER_THRESHOLDS = { 0, 2 * 9.80665f, 0.5f,
+			0.3f * 9.80665f };
+	private static final long TRIGGER_DURATION = 100000000L;
+	private static final float TRIGGER_PRE_SECONDS = 2f;
+	private static final float TRIGGER_POST_SECONDS = 3f;
+
+	// ライブのサンプルを配信するポート
+	private static final int STREAM_PORT = 8765;
+
+	// 記録ファイルのピラミッドの最も細かいビン(2^6サンプル)
+	private static final int PLAYBACK_PYRAMID_SHIFT = 6;
+
+	// 時間軸の倍率(0: mLineWidthピクセルで1サンプル, 1: 1ピクセルで1サンプル,
+	// 2以上: 1ピクセルで2^(倍率-1)サンプルの最小値と最大値)
+	private static final int ENVELOPE_ZOOM = 2;
+	private static final int MAX_TIME_ZOOM = CaptureService.PYRAMID_LEVELS + 1;
+
+	// 取り込むセンサーと、グラフに表示しているセンサーの処理
+	// (サービスに接続するまではチャンネルがなく、何も表示しない)
+	private ChannelRegistry mChannels = new ChannelRegistry(
+			FrameScheduler.SYSTEM_CLOCK);
+	private volatile SamplePipeline mPipeline;
+	private int mShownChannel = 0;
+	private int mPreset = FilterPresets.RAW;
+	private float mFilterRate = 0.1f;
+	private TextView[] mAccValueViews = new TextView[SampleBuffer.CHANNELS];
+	private float[] mCurrentValues = new float[SampleBuffer.CHANNELS];
+	private float[] mDisplayedValues = new float[SampleBuffer.CHANNELS];
+	// 描画スレッドも読むので、変更するときは配列ごと入れ替える
+	private volatile boolean[] mGraphs = { true, true, true, true };
+	private int[] mAngleColors = new int[SampleBuffer.CHANNELS];
 
 	private int mBGColor;
 	private int mZeroLineColor;
@@ -80,127 +184,321 @@ public class MainActivity extends Activity {
 
 	private GraphView mGraphView;
 	private TextView mFilterRateView;
-	private SensorManager mSensorManager;
-	private Sensor mAccelerometer;
+	private RadioGroup mPassFilterGroup;
+	private TextView mStatsView;
+	private SpectrumView mSpectrumView;
+	private TextView mPeakView;
+	private StringBuilder mStatsText = new StringBuilder();
+	// 特徴量の最後の値を受け取る
+	private final float[] mFeatureValues =
+			new float[FeatureExtractor.MAX_VALUES];
+	private TextView mRollingView;
+	private StringBuilder mRollingText = new StringBuilder();
+	private int mRollingIndex = 0;
+	private long mRollingUpdateTime = 0;
+	private CaptureService mService;
+	private boolean mResumed = false;
+	private int mSourceIndex = 0;
+	private int mBatchingIndex = 0;
+	private int mTriggerIndex = 0;
+	private int mKnownEvents = 0;
 
 	private int mSensorDelay = SensorManager.SENSOR_DELAY_UI;
-	private int mMaxHistorySize;
-	private boolean mDrawRoop = true;
-	private int mDrawDelay = 100;
+	private boolean mDrawRoop = false;
+	private FrameScheduler mScheduler = new FrameScheduler(
+			FrameScheduler.SYSTEM_CLOCK);
 	private int mLineWidth = 2;
-	private int mGraphScale = 6;
+	private volatile int mGraphScale = 6;
 	private int mZeroLineY = 230;
-	private int mZeroLineYOffset = 0;
+	private volatile int mZeroLineYOffset = 0;
 	private float mTouchOffset;
 	private int mStatus = STATUS_START;
-	private int mPassFilter = PASS_FILTER_RAW;
-	private float mFilterRate = 0.1f;
 	private boolean mRecording = false;
+	private long mUiUpdateDelay = 16;
+	private volatile boolean mShowStats = false;
+	private volatile boolean mBatchedDrawing = true;
+	private CallbackStats mFrameStats = new CallbackStats();
 	private long mRecTime = 0;
+	private Recorder mRecorder;
+	private volatile RecordingReader mPlaybackReader;
+	private File mPlaybackFile;
+	private volatile MinMaxPyramid mPlaybackPyramid;
+	private volatile int mTimeZoom = 0;
+	private volatile long mViewOffset = 0;
+	private long mViewOffsetStart = 0;
+	private float mTouchOffsetX;
+	private boolean mZoomTime = false;
+	private int mResample = 0;
+	private int mFormat = FORMAT_CSV;
+	private final RecordingExporter mExporter = new RecordingExporter();
+	private ProgressDialog mSaveProgress;
+	private SessionDatabase mSessions;
+
+	// スペクトル解析(UI スレッドで行う)
+	private SpectrumAnalyzer mSpectrumAnalyzer;
+	private int mSpectrumChannel = -1;
+	private int mSpectrumWindow = WindowFunction.HANN;
+	private SampleBuffer.Cursor mSpectrumCursor;
+	private long[] mSpectrumTimestamps = new long[SPECTRUM_SIZE];
+	private float[][] mSpectrumValues = new float[SampleBuffer.CHANNELS][SPECTRUM_SIZE];
+	private float[][] mSpectrumInput = new float[1][];
+	private Resampler mSpectrumResampler;
+	private float mSpectrumRate;
+	private RecordingReader mSpectrumReader;
+	private RecordingReader.Window mSpectrumWindowOfReader;
+	private long mSpectrumEnd;
+	private float mDisplayedPeak = -1;
+
+	private Resampler.Output mSpectrumOutput = new Resampler.Output() {
+		@Override
+		public void onSample(long timestamp, float[] values) {
+			mSpectrumAnalyzer.add(values[0]);
+		}
+	};
 
-	private SensorEventListener mSensorEventListener = new SensorEventListener() {
+	private CallbackStats.AllocationCounter mAllocationCounter = new CallbackStats.AllocationCounter() {
 		@Override
-		public void onAccuracyChanged(Sensor sensor, int accuracy) {
-			Log.i(TAG, "mSensorEventListener.onAccuracyChanged()");
+		public long getCount() {
+			return Debug.getThreadAllocCount();
 		}
+	};
 
+	// 表示しているセンサーにサンプルが追加されたら描画を要求
+	private SamplePipeline.OnSamplesAddedListener mSamplesAddedListener = new SamplePipeline.OnSamplesAddedListener() {
 		@Override
-		public void onSensorChanged(SensorEvent event) {
-			Log.i(TAG, "mSensorEventListener.onSensorChanged()");
+		public void onSamplesAdded() {
+			mScheduler.requestFrame();
+		}
+	};
 
-			// RAW履歴を登録
-			if (mRecording) {
-				mRawHistory.add(event.values.clone());
-			}
-
-			for (int angle = 0; angle < 3; angle++) {
-				float value = event.values[angle];
-				// ローパスフィルタを作成
-				mLowPassFilters[angle] = (mLowPassFilters[angle] * (1 - mFilterRate))
-						+ (value * mFilterRate);
-				// フィルタをかける
-				switch (mPassFilter) {
-				case PASS_FILTER_LOW:
-					value = mLowPassFilters[angle];
-					break;
-				case PASS_FILTER_HIGH:
-					value -= mLowPassFilters[angle];
-					break;
-				}
-				mCurrents[angle] = value;
-				mAccValueViews[angle].setText(String.valueOf(value));
+	private Runnable mUiUpdater = new Runnable() {
+		@Override
+		public void run() {
+			if (mPipeline == null) {
+				// サービスに接続するまで待つ
+				mHandler.postDelayed(this, mUiUpdateDelay);
+				return;
 			}
 
-			// 実加速度の計算
-			Double dReal = new Double(Math.abs(Math.sqrt(Math.pow(
-					event.values[SensorManager.DATA_X], 2)
-					+ Math.pow(event.values[SensorManager.DATA_Y], 2)
-					+ Math.pow(event.values[SensorManager.DATA_Z], 2))));
-			float fReal = dReal.floatValue();
-			// ローパスフィルタを作成
-			mLowPassFilters[DATA_R] = (mLowPassFilters[DATA_R] * (1 - mFilterRate))
-					+ (fReal * mFilterRate);
-			// フィルタをかける
-			switch (mPassFilter) {
-			case PASS_FILTER_LOW:
-				fReal = mLowPassFilters[DATA_R];
-				break;
-			case PASS_FILTER_HIGH:
-				fReal -= mLowPassFilters[DATA_R];
-				break;
+			// 値が変わったときだけ表示を更新
+			float[] values = mCurrentValues;
+			if (mPipeline.getCurrents(values)) {
+				for (int angle = 0; angle < SampleBuffer.CHANNELS; angle++) {
+					float value = values[angle];
+					if (value != mDisplayedValues[angle]) {
+						mDisplayedValues[angle] = value;
+						mAccValueViews[angle].setText(String.valueOf(value));
+					}
+				}
 			}
-			mCurrents[DATA_R] = fReal;
-			mAccValueViews[DATA_R].setText(String.valueOf(fReal));
 
-			synchronized (this) {
-				// 履歴を登録
-				if (mHistory.size() >= mMaxHistorySize) {
-					mHistory.poll();
+			if (mShowStats) {
+				mStatsText.setLength(0);
+				mPipeline.getStats().appendTo(mStatsText);
+				BatchStats batch = mService != null ? mService
+						.getBatchStats(mShownChannel) : null;
+				if (batch != null && batch.getBatches() > 0) {
+					mStatsText.append('\n');
+					batch.appendTo(mStatsText);
+				}
+				for (int delay = 0; delay < SamplePipeline.SENSOR_DELAYS; delay++) {
+					TimingStats timing = mPipeline.getTimingStats(delay);
+					if (timing.getCount() > 0) {
+						mStatsText.append('\n').append(SENSOR_DELAY_NAMES[delay])
+								.append(": ");
+						timing.appendTo(mStatsText);
+					}
 				}
-				mHistory.add(mCurrents.clone());
+				StreamServer server = mService != null ? mService
+						.getStreamServer() : null;
+				if (server != null) {
+					mStatsText.append("\nstream: clients ").append(
+							server.getClientCount()).append("  sent ").append(
+							server.getSentSamples()).append("  dropped ")
+							.append(server.getDropped());
+				}
+				FeatureLog featureLog = mService != null ? mService
+						.getFeatureLog() : null;
+				if (featureLog != null) {
+					appendFeatures(featureLog);
+				}
+				mStatsView.setText(mStatsText);
+			}
+
+			if (mRollingIndex > 0) {
+				updateRollingStats();
+			}
+
+			if (mService != null) {
+				checkTriggerEvents();
+			}
+
+			if (mSpectrumChannel >= 0) {
+				updateSpectrum();
+			}
+
+			// 描画間隔をサンプリング周波数に合わせる
+			mScheduler.setSampleRate(mPipeline.getSampleRate());
+
+			mHandler.postDelayed(this, mUiUpdateDelay);
+		}
+	};
+
+	private Runnable mSaveProgressUpdater = new Runnable() {
+		@Override
+		public void run() {
+			long total = mExporter.getTotal();
+			if (mSaveProgress != null && total > 0) {
+				mSaveProgress.setProgress((int) (mExporter.getProcessed()
+						* 100 / total));
 			}
+			mHandler.postDelayed(this, SAVE_PROGRESS_INTERVAL);
 		}
 	};
 
 	private Handler mHandler = new Handler() {
 		@Override
 		public void handleMessage(Message msg) {
+			mHandler.removeCallbacks(mSaveProgressUpdater);
 			dismissDialog(DIALOG_SAVE_PROGRESS);
 
 			Bundle data = msg.getData();
 			if (data.getBoolean("success")) {
-				// RAW履歴と記録開始時間を初期化
-				mRawHistory = new ConcurrentLinkedQueue<float[]>();
+				// 記録開始時間を初期化
+				mRecorder = null;
 				mRecTime = 0;
 			}
 
 			Toast.makeText(MainActivity.this, data.getString("msg"),
 					Toast.LENGTH_SHORT).show();
-
-			startGraph();
 		}
 	};
 
 	private void startGraph() {
-		// センサーリスナーを登録
-		if (mAccelerometer != null) {
-			mSensorManager.registerListener(mSensorEventListener,
-					mAccelerometer, mSensorDelay);
+		// 表示の更新を開始
+		mHandler.removeCallbacks(mUiUpdater);
+		mHandler.post(mUiUpdater);
+
+		// サンプルの供給を開始
+		startSource();
+
+		// グラフの描画を再開
+		mDrawRoop = true;
+		mGraphView.updateDrawing();
+	}
+
+	private ServiceConnection mServiceConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			Log.i(TAG, "MainActivity.onServiceConnected()");
+			mService = ((CaptureService.LocalBinder) binder).getService();
+
+			// サービスの履歴を表示し、画面の設定を反映する
+			mChannels = mService.getChannels();
+			setPreset(mPreset);
+			setFilterRate(mFilterRate);
+			setStatsEnabled(mShowStats);
+			mService.setSensorDelay(mSensorDelay);
+			mService.setBatching(BATCHING_PERIODS[mBatchingIndex],
+					BATCHING_LATENCIES[mBatchingIndex]);
+			// 画面を閉じる前に表示していたチャンネルを表示し直す
+			showChannel(mShownChannel < mChannels.size() ? mShownChannel : 0);
+
+			// 画面を閉じている間に始めた記録を引き継ぐ
+			// (記録していなければ、保存し直す記録ファイルはそのまま残す)
+			Recorder recorder = mService.getRecorder();
+			mRecording = recorder != null;
+			if (mRecording) {
+				mRecorder = recorder;
+				mRecTime = recorder.getStartTime();
+			}
+
+			// 監視中のトリガーと記録済みのイベントを引き継ぐ
+			mTriggerIndex = 0;
+			TriggerEngine trigger = mService.getTrigger();
+			for (int i = 1; trigger != null && i < TRIGGER_TYPES.length; i++) {
+				if (TRIGGER_TYPES[i] == trigger.getRule().getType()) {
+					mTriggerIndex = i;
+				}
+			}
+			mKnownEvents = mService.getTriggerEventCount();
+
+			if (mResumed && mStatus == STATUS_START) {
+				startSource();
+			}
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			mService = null;
+		}
+	};
+
+	private void startSource() {
+		// センサーはサービスのスレッドで履歴を登録する(画面表示はmUiUpdaterで行う)
+		if (mService != null) {
+			mService.setViewing(true);
+		}
+	}
+
+	private void stopSource() {
+		// 記録中ならセンサーは止まらない
+		if (mService != null) {
+			mService.setViewing(false);
+		}
+	}
+
+	private void setPreset(int preset) {
+		mPreset = preset;
+		for (int i = 0; i < mChannels.size(); i++) {
+			mChannels.get(i).getPipeline().setPreset(preset);
+		}
+	}
+
+	private void setFilterRate(float filterRate) {
+		mFilterRate = filterRate;
+		for (int i = 0; i < mChannels.size(); i++) {
+			mChannels.get(i).getPipeline().setFilterRate(filterRate);
 		}
+	}
 
-		if (!mDrawRoop) {
-			// グラフの描画を再開
-			mDrawRoop = true;
-			mGraphView.surfaceCreated(mGraphView.getHolder());
+	private void setStatsEnabled(boolean enabled) {
+		for (int i = 0; i < mChannels.size(); i++) {
+			CallbackStats stats = mChannels.get(i).getPipeline().getStats();
+			if (enabled) {
+				stats.reset();
+				stats.setAllocationCounter(mAllocationCounter);
+			} else {
+				stats.setAllocationCounter(null);
+			}
 		}
 	}
 
 	private void stopGraph() {
-		// センサーリスナーを解除
-		mSensorManager.unregisterListener(mSensorEventListener);
+		// サンプルの供給を止める
+		stopSource();
 
 		// グラフの描画を止める
 		mDrawRoop = false;
+		mGraphView.updateDrawing();
+
+		// 表示の更新を止める
+		mHandler.removeCallbacks(mUiUpdater);
+	}
+
+	private void setShowStats(boolean showStats) {
+		mShowStats = showStats;
+		if (showStats) {
+			// コールバック内のメモリ確保回数も計測する
+			Debug.startAllocCounting();
+			setStatsEnabled(true);
+			mFrameStats.reset();
+			mStatsView.setVisibility(View.VISIBLE);
+		} else {
+			setStatsEnabled(false);
+			Debug.stopAllocCounting();
+			mStatsView.setVisibility(View.GONE);
+		}
 	}
 
 	/** Called when the activity is first created. */
@@ -220,6 +518,9 @@ public class MainActivity extends Activity {
 		// レイアウトをセット
 		setContentView(R.layout.main);
 
+		// 記録ファイルのカタログ
+		mSessions = new SessionDatabase(this);
+
 		// フレームレイアウトを取得
 		FrameLayout frame = (FrameLayout) findViewById(R.id.frame);
 
@@ -230,25 +531,26 @@ public class MainActivity extends Activity {
 		mStringColor = resources.getColor(R.color.string);
 		mBGColor = resources.getColor(R.color.background);
 		mZeroLineColor = resources.getColor(R.color.zero_line);
-		mAngleColors[SensorManager.DATA_X] = resources
+		mAngleColors[SampleBuffer.CHANNEL_X] = resources
 				.getColor(R.color.accele_x);
-		mAngleColors[SensorManager.DATA_Y] = resources
+		mAngleColors[SampleBuffer.CHANNEL_Y] = resources
 				.getColor(R.color.accele_y);
-		mAngleColors[SensorManager.DATA_Z] = resources
+		mAngleColors[SampleBuffer.CHANNEL_Z] = resources
 				.getColor(R.color.accele_z);
-		mAngleColors[DATA_R] = resources.getColor(R.color.accele_r);
+		mAngleColors[SampleBuffer.CHANNEL_R] = resources.getColor(R.color.accele_r);
 
 		// グラフビューをフレームレイアウトに追加
 		mGraphView = new GraphView(this);
 		frame.addView(mGraphView, 0);
 
+
 		// チェックボックスにリスナーをセット
-		CheckBox[] checkboxes = new CheckBox[4];
-		checkboxes[SensorManager.DATA_X] = (CheckBox) findViewById(R.id.accele_x);
-		checkboxes[SensorManager.DATA_Y] = (CheckBox) findViewById(R.id.accele_y);
-		checkboxes[SensorManager.DATA_Z] = (CheckBox) findViewById(R.id.accele_z);
-		checkboxes[DATA_R] = (CheckBox) findViewById(R.id.accele_r);
-		for (int i = 0; i < 4; i++) {
+		CheckBox[] checkboxes = new CheckBox[SampleBuffer.CHANNELS];
+		checkboxes[SampleBuffer.CHANNEL_X] = (CheckBox) findViewById(R.id.accele_x);
+		checkboxes[SampleBuffer.CHANNEL_Y] = (CheckBox) findViewById(R.id.accele_y);
+		checkboxes[SampleBuffer.CHANNEL_Z] = (CheckBox) findViewById(R.id.accele_z);
+		checkboxes[SampleBuffer.CHANNEL_R] = (CheckBox) findViewById(R.id.accele_r);
+		for (int i = 0; i < SampleBuffer.CHANNELS; i++) {
 			if (mGraphs[i]) {
 				checkboxes[i].setChecked(true);
 			}
@@ -257,46 +559,65 @@ public class MainActivity extends Activity {
 						@Override
 						public void onCheckedChanged(CompoundButton buttonView,
 								boolean isChecked) {
+							boolean[] graphs = mGraphs.clone();
 							switch (buttonView.getId()) {
 							case R.id.accele_x:
-								mGraphs[SensorManager.DATA_X] = isChecked;
+								graphs[SampleBuffer.CHANNEL_X] = isChecked;
 								break;
 							case R.id.accele_y:
-								mGraphs[SensorManager.DATA_Y] = isChecked;
+								graphs[SampleBuffer.CHANNEL_Y] = isChecked;
 								break;
 							case R.id.accele_z:
-								mGraphs[SensorManager.DATA_Z] = isChecked;
+								graphs[SampleBuffer.CHANNEL_Z] = isChecked;
 								break;
 							case R.id.accele_r:
-								mGraphs[DATA_R] = isChecked;
+								graphs[SampleBuffer.CHANNEL_R] = isChecked;
 								break;
 							}
+							mGraphs = graphs;
+							mScheduler.requestInteractiveFrame();
 						}
 					});
 		}
 
 		// 値を格納するTextViewを取得
-		mAccValueViews[SensorManager.DATA_X] = (TextView) findViewById(R.id.accele_x_value);
-		mAccValueViews[SensorManager.DATA_Y] = (TextView) findViewById(R.id.accele_y_value);
-		mAccValueViews[SensorManager.DATA_Z] = (TextView) findViewById(R.id.accele_z_value);
-		mAccValueViews[DATA_R] = (TextView) findViewById(R.id.accele_r_value);
+		mAccValueViews[SampleBuffer.CHANNEL_X] = (TextView) findViewById(R.id.accele_x_value);
+		mAccValueViews[SampleBuffer.CHANNEL_Y] = (TextView) findViewById(R.id.accele_y_value);
+		mAccValueViews[SampleBuffer.CHANNEL_Z] = (TextView) findViewById(R.id.accele_z_value);
+		mAccValueViews[SampleBuffer.CHANNEL_R] = (TextView) findViewById(R.id.accele_r_value);
+
+		// 統計表示用TextViewを取得
+		mStatsView = (TextView) findViewById(R.id.stats);
+		mRollingView = (TextView) findViewById(R.id.rolling_stats);
+
+		// スペクトル表示用のViewを取得
+		mSpectrumView = (SpectrumView) findViewById(R.id.spectrum);
+		mPeakView = (TextView) findViewById(R.id.peak_value);
+
+		// 表示の更新間隔を画面のリフレッシュレートに合わせる
+		float refreshRate = getWindowManager().getDefaultDisplay()
+				.getRefreshRate();
+		if (refreshRate > 0) {
+			mUiUpdateDelay = (long) (1000 / refreshRate);
+		}
+		mScheduler.setRefreshRate(refreshRate);
 
 		// Pass filter 選択ラジオボタンにリスナーを登録
-		RadioGroup passFilterGroup = (RadioGroup) findViewById(R.id.pass_filter);
-		passFilterGroup.check(R.id.pass_filter_raw);
-		passFilterGroup
+		mPassFilterGroup = (RadioGroup) findViewById(R.id.pass_filter);
+		mPassFilterGroup.check(R.id.pass_filter_raw);
+		mPassFilterGroup
 				.setOnCheckedChangeListener(new RadioGroup.OnCheckedChangeListener() {
 					@Override
 					public void onCheckedChanged(RadioGroup group, int checkedId) {
 						switch (checkedId) {
 						case R.id.pass_filter_raw:
-							mPassFilter = PASS_FILTER_RAW;
+							setPreset(FilterPresets.RAW);
 							break;
 						case R.id.pass_filter_low:
-							mPassFilter = PASS_FILTER_LOW;
+							setPreset(FilterPresets.LOW);
 							break;
 						case R.id.pass_filter_high:
-							mPassFilter = PASS_FILTER_HIGH;
+							setPreset(FilterPresets.HIGH);
 							break;
 						}
 					}
@@ -304,18 +625,19 @@ public class MainActivity extends Activity {
 
 		// Filter rate 表示用TextViewを取得
 		mFilterRateView = (TextView) findViewById(R.id.filter_rate_value);
-		mFilterRateView.setText(String.valueOf((int) (mFilterRate * 100)) + "%");
+		float filterRate = mFilterRate;
+		mFilterRateView.setText(String.valueOf((int) (filterRate * 100)) + "%");
 
 		// Filter rate 変更シークバーにリスナーを登録
 		SeekBar filterRateBar = (SeekBar) findViewById(R.id.filter_rate);
 		filterRateBar.setMax(100);
-		filterRateBar.setProgress((int) (mFilterRate * 100));
+		filterRateBar.setProgress((int) (filterRate * 100));
 		filterRateBar
 				.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
 					@Override
 					public void onProgressChanged(SeekBar seekBar,
 							int progress, boolean fromUser) {
-						mFilterRate = (float) progress / 100;
+						setFilterRate((float) progress / 100);
 						mFilterRateView.setText(String.valueOf(progress) + "%");
 					}
 
@@ -333,15 +655,9 @@ public class MainActivity extends Activity {
 	protected void onStart() {
 		Log.i(TAG, "MainActivity.onStart()");
 
-		// 初期化
-		mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-		List<Sensor> sensors = mSensorManager
-				.getSensorList(Sensor.TYPE_ACCELEROMETER);
-		if (sensors.size() > 0) {
-			mAccelerometer = sensors.get(0);
-		} else {
-			Log.e(TAG, "加速度センサーが見つかりませんでした");
-		}
+		// 取り込みを行うサービスに接続
+		bindService(new Intent(this, CaptureService.class),
+				mServiceConnection, BIND_AUTO_CREATE);
 
 		super.onStart();
 	}
@@ -350,6 +666,7 @@ public class MainActivity extends Activity {
 	protected void onResume() {
 		Log.i(TAG, "MainActivity.onResume()");
 
+		mResumed = true;
 		startGraph();
 
 		super.onResume();
@@ -359,6 +676,7 @@ public class MainActivity extends Activity {
 	protected void onPause() {
 		Log.i(TAG, "MainActivity.onPause()");
 
+		mResumed = false;
 		stopGraph();
 
 		super.onPause();
@@ -368,8 +686,13 @@ public class MainActivity extends Activity {
 	protected void onStop() {
 		Log.i(TAG, "MainActivity.onStop()");
 
-		mSensorManager = null;
-		mAccelerometer = null;
+		// 記録中ならサービスはそのまま記録を続ける
+		if (mService != null) {
+			mService.setViewing(false);
+			mPipeline.setOnSamplesAddedListener(null);
+			mService = null;
+		}
+		unbindService(mServiceConnection);
 
 		super.onStop();
 	}
@@ -378,6 +701,11 @@ public class MainActivity extends Activity {
 	protected void onDestroy() {
 		Log.i(TAG, "MainActivity.onDestroy()");
 
+		// 描画スレッドを終了
+		mGraphView.quit();
+
+		mSessions.close();
+
 		super.onDestroy();
 	}
 
@@ -397,26 +725,37 @@ public class MainActivity extends Activity {
 		case KeyEvent.ACTION_DOWN:
 			switch (event.getKeyCode()) {
 			case KeyEvent.KEYCODE_VOLUME_UP:
-				// グラフ倍率をインクリメント
-				mGraphScale++;
+				if (mZoomTime) {
+					// 時間軸を拡大
+					if (mTimeZoom > 0) {
+						mTimeZoom--;
+					}
+				} else {
+					// グラフ倍率をインクリメント
+					mGraphScale++;
+				}
+				mScheduler.requestInteractiveFrame();
 				return true;
 			case KeyEvent.KEYCODE_VOLUME_DOWN:
-				if (mGraphScale > 1) {
+				if (mZoomTime) {
+					// 時間軸を縮小
+					if (mTimeZoom < getMaxTimeZoom()) {
+						mTimeZoom++;
+					}
+				} else if (mGraphScale > 1) {
 					// グラフ倍率をデクリメント
 					mGraphScale--;
 				}
+				mScheduler.requestInteractiveFrame();
 				return true;
 			case KeyEvent.KEYCODE_FOCUS:
 				if (mStatus == STATUS_START) {
-					// センサーリスナーを停止
-					mSensorManager.unregisterListener(mSensorEventListener);
+					// サンプルの供給を停止
+					stopSource();
 					mStatus = STATUS_STOP;
 				} else {
-					if (mAccelerometer != null) {
-						// センサーリスナーを再開
-						mSensorManager.registerListener(mSensorEventListener,
-								mAccelerometer, mSensorDelay);
-					}
+					// サンプルの供給を再開
+					startSource();
 					mStatus = STATUS_START;
 				}
 				return true;
@@ -439,9 +778,12 @@ public class MainActivity extends Activity {
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
 		// グラフをY軸方向にスライドできるようにする
+		// X軸方向のスライドで表示する時間を移動する
 		switch (event.getAction()) {
 		case MotionEvent.ACTION_DOWN:
 			mTouchOffset = event.getY();
+			mTouchOffsetX = event.getX();
+			mViewOffsetStart = mViewOffset;
 			break;
 		case MotionEvent.ACTION_UP:
 			mZeroLineY += mZeroLineYOffset;
@@ -449,21 +791,86 @@ public class MainActivity extends Activity {
 			break;
 		case MotionEvent.ACTION_MOVE:
 			mZeroLineYOffset = (int) (event.getY() - mTouchOffset);
+			long offset = mViewOffsetStart
+					+ (long) ((event.getX() - mTouchOffsetX) * getSamplesPerPixel(mTimeZoom));
+			RecordingReader reader = mPlaybackReader;
+			SamplePipeline pipeline = mPipeline;
+			long max = reader != null ? reader.getSampleCount()
+					: pipeline != null ? pipeline.getHistory().getSequence() : 0;
+			mViewOffset = Math.max(0, Math.min(offset, max));
 			break;
 		}
+		mScheduler.requestInteractiveFrame();
 		return super.onTouchEvent(event);
 	}
 
+	// 時間軸の倍率の上限(ライブの表示ではピラミッドのレベルまで)
+	private int getMaxTimeZoom() {
+		SamplePipeline pipeline = mPipeline;
+		if (mPlaybackReader != null || pipeline == null) {
+			return MAX_TIME_ZOOM;
+		}
+		return pipeline.getPyramid().getLastShift() + 1;
+	}
+
+	private float getSamplesPerPixel(int timeZoom) {
+		if (timeZoom == 0) {
+			return 1f / mLineWidth;
+		}
+		return 1L << (timeZoom - 1);
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		menu.add(Menu.NONE, MENU_SENSOR_DELAY, Menu.NONE,
 				R.string.sensor_delay_label).setIcon(
 				android.R.drawable.ic_menu_rotate);
+		menu.add(Menu.NONE, MENU_BATCHING, Menu.NONE, R.string.batching_label)
+				.setIcon(android.R.drawable.ic_menu_agenda);
+		menu.add(Menu.NONE, MENU_FLUSH, Menu.NONE, R.string.flush_label)
+				.setIcon(android.R.drawable.ic_menu_revert);
+		menu.add(Menu.NONE, MENU_SOURCE, Menu.NONE, R.string.source_label)
+				.setIcon(android.R.drawable.ic_menu_upload);
+		menu.add(Menu.NONE, MENU_CHANNEL, Menu.NONE, R.string.channel_label)
+				.setIcon(android.R.drawable.ic_menu_compass);
 		menu.add(Menu.NONE, MENU_START_SAVE, Menu.NONE,
 				R.string.start_save_label).setIcon(
 				android.R.drawable.ic_menu_recent_history);
 		menu.add(Menu.NONE, MENU_SAVE, Menu.NONE, R.string.save_label).setIcon(
 				android.R.drawable.ic_menu_save);
+		menu.add(Menu.NONE, MENU_OPEN, Menu.NONE, R.string.open_label)
+				.setIcon(android.R.drawable.ic_menu_gallery);
+		menu.add(Menu.NONE, MENU_LIVE, Menu.NONE, R.string.live_label)
+				.setIcon(android.R.drawable.ic_menu_view);
+		menu.add(Menu.NONE, MENU_TRIGGER, Menu.NONE, R.string.trigger_label)
+				.setIcon(android.R.drawable.ic_menu_compass);
+		menu.add(Menu.NONE, MENU_EVENTS, Menu.NONE, R.string.events_label)
+				.setIcon(android.R.drawable.ic_menu_agenda);
+		menu.add(Menu.NONE, MENU_STREAM, Menu.NONE,
+				R.string.start_stream_label).setIcon(
+				android.R.drawable.ic_menu_share);
+		menu.add(Menu.NONE, MENU_FEATURES, Menu.NONE,
+				R.string.start_features_label).setIcon(
+				android.R.drawable.ic_menu_directions);
+		menu.add(Menu.NONE, MENU_ANALYZE, Menu.NONE, R.string.analyze_label)
+				.setIcon(android.R.drawable.ic_menu_info_details);
+		menu.add(Menu.NONE, MENU_ZOOM_AXIS, Menu.NONE, R.string.zoom_time_label)
+				.setIcon(android.R.drawable.ic_menu_zoom);
+		menu.add(Menu.NONE, MENU_DRAWING, Menu.NONE,
+				R.string.drawing_single_label).setIcon(
+				android.R.drawable.ic_menu_edit);
+		menu.add(Menu.NONE, MENU_SPECTRUM, Menu.NONE, R.string.spectrum_label)
+				.setIcon(android.R.drawable.ic_menu_view);
+		menu.add(Menu.NONE, MENU_RESAMPLE, Menu.NONE, R.string.resample_label)
+				.setIcon(android.R.drawable.ic_menu_preferences);
+		menu.add(Menu.NONE, MENU_FORMAT, Menu.NONE, R.string.format_label)
+				.setIcon(android.R.drawable.ic_menu_save);
+		menu.add(Menu.NONE, MENU_FILTER, Menu.NONE, R.string.filter_label)
+				.setIcon(android.R.drawable.ic_menu_manage);
+		menu.add(Menu.NONE, MENU_ROLLING, Menu.NONE, R.string.rolling_label)
+				.setIcon(android.R.drawable.ic_menu_info_details);
+		menu.add(Menu.NONE, MENU_STATS, Menu.NONE, R.string.stats_label)
+				.setIcon(android.R.drawable.ic_menu_info_details);
 		menu.add(Menu.NONE, MENU_END, Menu.NONE, R.string.end_label).setIcon(
 				android.R.drawable.ic_menu_close_clear_cancel);
 		return super.onCreateOptionsMenu(menu);
@@ -471,13 +878,27 @@ public class MainActivity extends Activity {
 
 	@Override
 	public boolean onPrepareOptionsMenu(Menu menu) {
-		if (mRecording) {
-			menu.findItem(MENU_START_SAVE).setVisible(false);
-			menu.findItem(MENU_SAVE).setVisible(true);
-		} else {
-			menu.findItem(MENU_START_SAVE).setVisible(true);
-			menu.findItem(MENU_SAVE).setVisible(false);
-		}
+		menu.findItem(MENU_START_SAVE).setVisible(!mRecording);
+		// 中断・失敗した保存は、記録ファイルが残っているのでやり直せる
+		menu.findItem(MENU_SAVE).setVisible(mRecording || mRecorder != null);
+		menu.findItem(MENU_LIVE).setVisible(mPlaybackReader != null);
+		menu.findItem(MENU_ANALYZE).setVisible(mPlaybackReader != null);
+		menu.findItem(MENU_FLUSH).setVisible(
+				BATCHING_LATENCIES[mBatchingIndex] > 0);
+		menu.findItem(MENU_ZOOM_AXIS).setTitle(
+				mZoomTime ? R.string.zoom_value_label
+						: R.string.zoom_time_label);
+		menu.findItem(MENU_DRAWING).setTitle(
+				mBatchedDrawing ? R.string.drawing_single_label
+						: R.string.drawing_batched_label);
+		menu.findItem(MENU_STREAM).setTitle(
+				mService != null && mService.getStreamServer() != null
+						? R.string.stop_stream_label
+						: R.string.start_stream_label);
+		menu.findItem(MENU_FEATURES).setTitle(
+				mService != null && mService.getFeatureLog() != null
+						? R.string.stop_features_label
+						: R.string.start_features_label);
 		return super.onPrepareOptionsMenu(menu);
 	}
 
@@ -487,19 +908,80 @@ public class MainActivity extends Activity {
 		case MENU_SENSOR_DELAY:
 			selectSensorDelay();
 			break;
+		case MENU_BATCHING:
+			selectBatching();
+			break;
+		case MENU_FLUSH:
+			// FIFO にたまっているサンプルをすぐに取り込む
+			if (mService != null) {
+				mService.flush();
+			}
+			break;
+		case MENU_SOURCE:
+			selectSource();
+			break;
+		case MENU_CHANNEL:
+			selectChannel();
+			break;
 		case MENU_START_SAVE:
-			mRecTime = System.currentTimeMillis();
-			mRecording = true;
-			Toast.makeText(this, R.string.start_save_msg, Toast.LENGTH_SHORT)
-					.show();
+			startRecording();
 			break;
 		case MENU_SAVE:
 			saveHistory();
 			break;
+		case MENU_STATS:
+			setShowStats(!mShowStats);
+			break;
+		case MENU_ROLLING:
+			selectRollingWindow();
+			break;
+		case MENU_TRIGGER:
+			selectTrigger();
+			break;
+		case MENU_EVENTS:
+			showTriggerEvents();
+			break;
+		case MENU_STREAM:
+			toggleStreaming();
+			break;
+		case MENU_FEATURES:
+			toggleFeatures();
+			break;
+		case MENU_FILTER:
+			selectFilter();
+			break;
+		case MENU_OPEN:
+			selectRecording();
+			break;
+		case MENU_LIVE:
+			closeRecording();
+			break;
+		case MENU_ANALYZE:
+			analyzeRecording();
+			break;
+		case MENU_ZOOM_AXIS:
+			// 音量キーで拡大縮小する軸を切り替える
+			mZoomTime = !mZoomTime;
+			break;
+		case MENU_DRAWING:
+			// 描画方法を切り替える(フレーム時間の比較用)
+			mBatchedDrawing = !mBatchedDrawing;
+			mFrameStats.reset();
+			break;
+		case MENU_RESAMPLE:
+			selectResample();
+			break;
+		case MENU_FORMAT:
+			selectFormat();
+			break;
+		case MENU_SPECTRUM:
+			selectSpectrum();
+			break;
 		case MENU_END:
 			finish();
 			break;
 		}
+		mScheduler.requestInteractiveFrame();
 		return super.onOptionsItemSelected(item);
 	}
 
@@ -525,22 +1007,771 @@ public class MainActivity extends Activity {
 					break;
 				}
 				// リスナーを再登録
-				stopGraph();
-				startGraph();
+				if (mService != null) {
+					mService.setSensorDelay(mSensorDelay);
+				}
 			}
 		});
 		dialogBuilder.show();
 	}
 
-	private void saveHistory() {
-		// レコーディングを停止
-		mRecording = false;
+	private void selectBatching() {
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setSingleChoiceItems(BATCHING_NAMES, mBatchingIndex,
+				new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						// なしなら Sensor Delay の設定で登録し直す
+						mBatchingIndex = which;
+						if (mService != null) {
+							mService.setBatching(BATCHING_PERIODS[which],
+									BATCHING_LATENCIES[which]);
+						}
+						dialog.dismiss();
+					}
+				});
+		dialogBuilder.show();
+	}
 
-		// グラフ停止
-		stopGraph();
+	private void selectTrigger() {
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setSingleChoiceItems(TRIGGER_NAMES, mTriggerIndex,
+				new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						dialog.dismiss();
+						if (mService == null) {
+							return;
+						}
+						mTriggerIndex = which;
+						if (which == 0) {
+							mService.stopTrigger();
+							return;
+						}
+						// イベントは記録ファイルと同じディレクトリに書き込む
+						File dir = new File(getRecordingDirectory());
+						if (!dir.exists()) {
+							dir.mkdirs();
+						}
+						mService.startTrigger(new TriggerRule(
+								TRIGGER_TYPES[which], TRIGGER_THRESHOLDS[which],
+								TRIGGER_DURATION), TRIGGER_PRE_SECONDS,
+								TRIGGER_POST_SECONDS, dir);
+						Toast.makeText(MainActivity.this,
+								R.string.trigger_msg, Toast.LENGTH_SHORT)
+								.show();
+					}
+				});
+		dialogBuilder.show();
+	}
+
+	private void toggleStreaming() {
+		if (mService == null) {
+			return;
+		}
+		if (mService.getStreamServer() != null) {
+			mService.stopStreaming();
+			Toast.makeText(this, R.string.stop_stream_msg, Toast.LENGTH_SHORT)
+					.show();
+			return;
+		}
+		try {
+			mService.startStreaming(STREAM_PORT);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage());
+			Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+			return;
+		}
+		// 接続先をクライアントに入力してもらうため、アドレスを表示する
+		Toast.makeText(
+				this,
+				getString(R.string.stream_msg) + " " + getLocalAddress() + ":"
+						+ mService.getStreamServer().getPort(),
+				Toast.LENGTH_LONG).show();
+	}
+
+	private void toggleFeatures() {
+		if (mService == null) {
+			return;
+		}
+		if (mService.getFeatureLog() != null) {
+			mService.stopFeatures();
+			Toast.makeText(this, R.string.stop_features_msg,
+					Toast.LENGTH_SHORT).show();
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		try {
+			// 記録ファイルと同じディレクトリに書き込む
+			File dir = new File(getRecordingDirectory());
+			if (!dir.exists()) {
+				dir.mkdirs();
+			}
+			File file = new File(dir, DateFormat.format("yyyyMMddkkmmss",
+					startTime)
+					+ FeatureFormat.EXTENSION);
+			mService.startFeatures(file, startTime);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage());
+			Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+			return;
+		}
+		Toast.makeText(this, R.string.features_msg, Toast.LENGTH_SHORT).show();
+	}
+
+	// 統計の表示に特徴量の最後の値を追加する
+	private void appendFeatures(FeatureLog log) {
+		float[] values = mFeatureValues;
+		int count = log.getLatest(FeatureExtractor.TYPE_STEPS, values);
+		if (count >= 3) {
+			mStatsText.append("\nsteps: ").append((long) values[2]).append(
+					"  cadence ").append(Math.round(values[1])).append(
+					" spm");
+		}
+		count = log.getLatest(FeatureExtractor.TYPE_TILT, values);
+		if (count >= 1) {
+			mStatsText.append("\ntilt: ").append(Math.round(values[0]))
+					.append(" deg");
+		}
+		count = log.getLatest(FeatureExtractor.TYPE_BAND_ENERGY, values);
+		if (count > 0) {
+			mStatsText.append("\nbands:");
+			for (int band = 0; band < count; band++) {
+				mStatsText.append(' ').append(
+						Math.round(values[band] * 1000) / 1000f);
+			}
+		}
+		if (log.getDropped() > 0) {
+			mStatsText.append("\nfeatures dropped ").append(log.getDropped());
+		}
+	}
+
+	// ループバック以外の IPv4 アドレスを返す(なければ localhost)
+	private static String getLocalAddress() {
+		try {
+			Enumeration<NetworkInterface> interfaces = NetworkInterface
+					.getNetworkInterfaces();
+			while (interfaces != null && interfaces.hasMoreElements()) {
+				Enumeration<InetAddress> addresses = interfaces.nextElement()
+						.getInetAddresses();
+				while (addresses.hasMoreElements()) {
+					InetAddress address = addresses.nextElement();
+					if (address instanceof Inet4Address
+							&& !address.isLoopbackAddress()) {
+						return address.getHostAddress();
+					}
+				}
+			}
+		} catch (SocketException e) {
+			Log.e(TAG, e.getMessage());
+		}
+		return "localhost";
+	}
+
+	// 新しく記録したイベントを知らせる
+	private void checkTriggerEvents() {
+		int count = mService.getTriggerEventCount();
+		if (count == mKnownEvents) {
+			return;
+		}
+		mKnownEvents = count;
+		TriggerEngine.Event[] events = mService.getTriggerEvents();
+		TriggerEngine.Event event = events[events.length - 1];
+		Toast.makeText(this,
+				getString(R.string.event_msg) + " " + formatEvent(event),
+				Toast.LENGTH_SHORT).show();
+	}
+
+	private void showTriggerEvents() {
+		if (mService == null) {
+			return;
+		}
+		final TriggerEngine.Event[] events = mService.getTriggerEvents();
+		if (events.length == 0) {
+			Toast.makeText(this, R.string.no_events, Toast.LENGTH_SHORT)
+					.show();
+			return;
+		}
+		// 新しい順に並べる
+		Collections.reverse(Arrays.asList(events));
+		CharSequence[] names = new CharSequence[events.length];
+		for (int i = 0; i < events.length; i++) {
+			names[i] = formatEvent(events[i]);
+		}
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setItems(names, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				if (events[which].getError() == null) {
+					openRecording(events[which].getFile());
+				}
+			}
+		});
+		dialogBuilder.show();
+	}
+
+	// 時刻、条件、トリガーからディスクまでの遅延
+	private String formatEvent(TriggerEngine.Event event) {
+		StringBuilder text = new StringBuilder();
+		text.append(DateFormat.format("kk:mm:ss", event.getWallTime()));
+		text.append(' ').append(TRIGGER_NAMES[event.getType() + 1]);
+		if (event.getError() != null) {
+			text.append(' ').append(event.getError());
+		} else if (event.getLatency() >= 0) {
+			text.append(' ').append(event.getLatency() / 100000 / 10.0)
+					.append("ms");
+		}
+		return text.toString();
+	}
+
+	private void selectRollingWindow() {
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setSingleChoiceItems(ROLLING_NAMES, mRollingIndex,
+				new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						mRollingIndex = which;
+						applyRollingWindow();
+						dialog.dismiss();
+					}
+				});
+		dialogBuilder.show();
+	}
+
+	// 表示しているチャンネルに移動統計の窓を設定する
+	private void applyRollingWindow() {
+		if (mPipeline == null) {
+			// サービスに接続して表示するチャンネルが決まったときに設定する
+			return;
+		}
+		int samples = getRollingWindow();
+		mPipeline.setRollingWindow(samples);
+		mRollingUpdateTime = 0;
+		if (samples > 0) {
+			mRollingView.setVisibility(View.VISIBLE);
+		} else {
+			mRollingView.setVisibility(View.GONE);
+		}
+	}
+
+	// 窓の秒数をいまのサンプリング周波数でサンプル数にする
+	private int getRollingWindow() {
+		if (mRollingIndex == 0) {
+			return 0;
+		}
+		return Math.max(2, Math.round(ROLLING_SECONDS[mRollingIndex]
+				* mPipeline.getSampleRate()));
+	}
+
+	// 移動統計の表示を間引いて更新する
+	private void updateRollingStats() {
+		long now = SystemClock.uptimeMillis();
+		if (now - mRollingUpdateTime < ROLLING_UPDATE_INTERVAL) {
+			return;
+		}
+		mRollingUpdateTime = now;
+
+		// サンプリング周波数が変わって窓の長さが1割以上ずれたら設定し直す
+		int window = getRollingWindow();
+		int current = mPipeline.getRollingWindow();
+		if (Math.abs(window - current) * 10 > current) {
+			applyRollingWindow();
+			return;
+		}
+
+		mRollingText.setLength(0);
+		for (int angle = 0; angle < SampleBuffer.CHANNELS; angle++) {
+			RollingStats stats = mPipeline.getRollingStats(angle);
+			if (stats == null || !mGraphs[angle]) {
+				continue;
+			}
+			if (mRollingText.length() > 0) {
+				mRollingText.append('\n');
+			}
+			mRollingText.append(ROLLING_AXES[angle]).append("  ");
+			stats.getResult().appendTo(mRollingText);
+		}
+		mRollingView.setText(mRollingText);
+	}
+
+	private void selectChannel() {
+		if (mChannels.size() == 0) {
+			return;
+		}
+		final ChannelDescriptor[] descriptors = mChannels.getDescriptors();
+		CharSequence[] names = new CharSequence[descriptors.length];
+		int selected = 0;
+		for (int i = 0; i < descriptors.length; i++) {
+			names[i] = descriptors[i].name;
+			if (mChannels.get(i).getPipeline() == mPipeline) {
+				selected = i;
+			}
+		}
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setSingleChoiceItems(names, selected,
+				new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						showChannel(which);
+						dialog.dismiss();
+					}
+				});
+		dialogBuilder.show();
+	}
+
+	private ChannelDescriptor getShownDescriptor() {
+		for (int i = 0; i < mChannels.size(); i++) {
+			if (mChannels.get(i).getPipeline() == mPipeline) {
+				return mChannels.get(i).getDescriptor();
+			}
+		}
+		return ChannelDescriptor.ACCELEROMETER;
+	}
+
+	// グラフと値の表示を index のチャンネルに切り替える
+	private void showChannel(int index) {
+		SamplePipeline pipeline = mChannels.get(index).getPipeline();
+		if (pipeline == mPipeline) {
+			// onStop() で外したリスナーを付け直す(サービスが記録などで
+			// 動き続けていた場合は同じパイプラインのまま)
+			pipeline.setOnSamplesAddedListener(mSamplesAddedListener);
+			return;
+		}
+		// 表示用の履歴は表示するチャンネルにだけ作る
+		pipeline.prepareDisplay();
+		if (mPipeline != null) {
+			mPipeline.setOnSamplesAddedListener(null);
+			mPipeline.setRollingWindow(0);
+		}
+		pipeline.setOnSamplesAddedListener(mSamplesAddedListener);
+		mPipeline = pipeline;
+		mShownChannel = index;
+		mTimeZoom = Math.min(mTimeZoom, getMaxTimeZoom());
+		applyRollingWindow();
+		mViewOffset = 0;
+		resetSpectrum();
+		mScheduler.setSampleRate(pipeline.getSampleRate());
+		mScheduler.requestInteractiveFrame();
+	}
+
+	private void selectSource() {
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setSingleChoiceItems(SOURCE_NAMES, mSourceIndex,
+				new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						if (mService != null) {
+							mSourceIndex = which;
+							mService.setReplaySource(createReplaySource(which));
+						}
+						dialog.dismiss();
+					}
+				});
+		dialogBuilder.show();
+	}
+
+	// 生成した信号を元のタイミングで繰り返し再生する(センサーなら null)
+	private ReplaySampleSource createReplaySource(int index) {
+		int signal = SOURCE_SIGNALS[index];
+		if (signal < 0) {
+			return null;
+		}
+		SignalGenerator generator = new SignalGenerator(signal,
+				SIGNAL_SAMPLE_RATE, -1);
+		switch (signal) {
+		case SignalGenerator.SINE:
+			generator.setAmplitude(5f);
+			generator.setFrequency(2f, 2f);
+			break;
+		case SignalGenerator.SWEEP:
+			generator.setAmplitude(5f);
+			generator.setFrequency(0.5f, 25f);
+			generator.setPeriod(20f);
+			break;
+		case SignalGenerator.IMPULSE:
+			generator.setAmplitude(10f);
+			generator.setPeriod(1f);
+			break;
+		default:
+			generator.setAmplitude(1f);
+			break;
+		}
+		return new ReplaySampleSource(generator);
+	}
+
+	private void selectSpectrum() {
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setItems(SPECTRUM_NAMES,
+				new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						switch (which) {
+						case 0:
+							mSpectrumChannel = -1;
+							break;
+						case 5:
+							mSpectrumWindow = WindowFunction.HANN;
+							break;
+						case 6:
+							mSpectrumWindow = WindowFunction.HAMMING;
+							break;
+						default:
+							mSpectrumChannel = which - 1;
+							break;
+						}
+						resetSpectrum();
+					}
+				});
+		dialogBuilder.show();
+	}
+
+	private void resetSpectrum() {
+		boolean visible = mSpectrumChannel >= 0;
+		mSpectrumView.setVisibility(visible ? View.VISIBLE : View.GONE);
+		mPeakView.setVisibility(visible ? View.VISIBLE : View.GONE);
+		mSpectrumView.clear();
+		if (!visible) {
+			mSpectrumAnalyzer = null;
+			mSpectrumCursor = null;
+			return;
+		}
+		mSpectrumView.setLineColor(mAngleColors[mSpectrumChannel]);
+
+		mSpectrumAnalyzer = new SpectrumAnalyzer(SPECTRUM_SIZE, SPECTRUM_HOP,
+				mSpectrumWindow);
+		mSpectrumAnalyzer.setOnSpectrumListener(mSpectrumView);
+		mSpectrumAnalyzer.setSampleRate(mSpectrumRate);
+		mSpectrumResampler = null;
+		mSpectrumReader = null;
+		// サービスに接続する前は showChannel() で作り直す
+		mSpectrumCursor = mPipeline != null ? mPipeline.getHistory()
+				.newCursor() : null;
+	}
+
+	private void updateSpectrum() {
+		RecordingReader reader = mPlaybackReader;
+		if (reader != null) {
+			updateRecordingSpectrum(reader);
+		} else {
+			updateLiveSpectrum();
+		}
+
+		float peak = mSpectrumAnalyzer.getPeakFrequency();
+		if (peak != mDisplayedPeak) {
+			mDisplayedPeak = peak;
+			mPeakView.setText(String.valueOf(Math.round(peak * 10) / 10f)
+					+ "Hz");
+		}
+	}
+
+	private void updateLiveSpectrum() {
+		if (mSpectrumReader != null) {
+			// 記録の再生から戻ったら最初からやり直す
+			mSpectrumReader = null;
+			mSpectrumView.clear();
+			mSpectrumAnalyzer.reset();
+			mSpectrumCursor = mPipeline.getHistory().newCursor();
+		}
+
+		// タイムスタンプを使って等間隔にしてから解析する
+		float rate = Math.round(mPipeline.getSampleRate());
+		if (mSpectrumResampler == null
+				|| Math.abs(rate - mSpectrumRate) > mSpectrumRate * 0.1f) {
+			mSpectrumRate = rate;
+			mSpectrumResampler = new Resampler(1, Resampler.LINEAR, rate,
+					mSpectrumOutput);
+			mSpectrumAnalyzer.setSampleRate(rate);
+			mSpectrumAnalyzer.reset();
+		}
+		mSpectrumInput[0] = mSpectrumValues[mSpectrumChannel];
+		int count;
+		while ((count = mSpectrumCursor.read(mSpectrumValues,
+				mSpectrumTimestamps, SPECTRUM_SIZE)) > 0) {
+			mSpectrumResampler.process(mSpectrumTimestamps, mSpectrumInput,
+					0, count);
+		}
+	}
+
+	private void updateRecordingSpectrum(RecordingReader reader) {
+		long end = reader.getSampleCount() - mViewOffset;
+		if (reader == mSpectrumReader && end == mSpectrumEnd) {
+			return;
+		}
+		if (reader != mSpectrumReader) {
+			mSpectrumWindowOfReader = reader.newWindow();
+			mSpectrumReader = reader;
+		}
+		mSpectrumEnd = end;
+		mSpectrumView.clear();
+
+		// 表示位置までのスペクトログラムを古い順に求める
+		synchronized (reader) {
+			if (reader != mPlaybackReader) {
+				return;
+			}
+			RecordingReader.Window window = mSpectrumWindowOfReader;
+			for (int row = SpectrumView.ROWS - 1; row >= 0; row--) {
+				long rowEnd = end - (long) row * SPECTRUM_HOP;
+				if (rowEnd < SPECTRUM_SIZE) {
+					continue;
+				}
+				reader.read(window, rowEnd - SPECTRUM_SIZE, SPECTRUM_SIZE);
+				mSpectrumAnalyzer.analyze(window, mSpectrumChannel);
+			}
+		}
+	}
+
+	private void selectResample() {
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setSingleChoiceItems(RESAMPLE_NAMES, mResample,
+				new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						// CSV に書き出すときに等間隔に変換する
+						mResample = which;
+						dialog.dismiss();
+					}
+				});
+		dialogBuilder.show();
+	}
+
+	private void selectFormat() {
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setSingleChoiceItems(FORMAT_NAMES, mFormat,
+				new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						// 長時間の記録は圧縮すると CSV の数分の一になる
+						mFormat = which;
+						dialog.dismiss();
+					}
+				});
+		dialogBuilder.show();
+	}
+
+	private void selectFilter() {
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setItems(FilterPresets.EXTRA_NAMES,
+				new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						// RAW/LOW/HIGH 以外のフィルタを選んだらラジオボタンを外す
+						mPassFilterGroup.clearCheck();
+						setPreset(FilterPresets.EXTRA_PRESETS[which]);
+					}
+				});
+		dialogBuilder.show();
+	}
+
+	private String getRecordingDirectory() {
+		String appName = getResources().getString(R.string.app_name);
+		return Environment.getExternalStorageDirectory().toString() + "/"
+				+ appName;
+	}
+
+	private void startRecording() {
+		if (mService == null) {
+			return;
+		}
+		mRecTime = System.currentTimeMillis();
+		try {
+			// SDカードにディレクトリがなければ作成
+			String dirPath = getRecordingDirectory();
+			File dir = new File(dirPath);
+			if (!dir.exists()) {
+				dir.mkdirs();
+			}
+
+			// 記録ファイルへの書き込みを開始
+			File file = new File(dirPath, DateFormat.format("yyyyMMddkkmmss",
+					mRecTime)
+					+ RecordingFormat.EXTENSION);
+			// 全チャンネルを1つのファイルにサービスで記録する
+			mService.startRecording(file, mRecTime);
+			mRecorder = mService.getRecorder();
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage());
+			mRecorder = null;
+			Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+			return;
+		}
+
+		mRecording = true;
+		Toast.makeText(this, R.string.start_save_msg, Toast.LENGTH_SHORT)
+				.show();
+	}
+
+	private void selectRecording() {
+		// カタログを更新してから一覧を表示する(記録中のファイルは除く)
+		File active = mRecording && mRecorder != null ? mRecorder.getFile()
+				: null;
+		new CatalogThread(active).start();
+	}
+
+	private void showSessions(final long[] ids, final String[] names,
+			final long[] startTimes, final long[] firstTimestamps,
+			final int[] tileCounts, CharSequence[] labels) {
+		if (ids.length == 0) {
+			Toast.makeText(this, R.string.no_recordings, Toast.LENGTH_SHORT)
+					.show();
+			return;
+		}
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setItems(labels, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				File file = new File(getRecordingDirectory(), names[which]);
+				if (tileCounts[which] > 1) {
+					selectMinute(file, ids[which], startTimes[which],
+							firstTimestamps[which]);
+				} else {
+					openRecording(file);
+				}
+			}
+		});
+		dialogBuilder.show();
+	}
+
+	// 1分ごとの最小・最大の一覧から表示する時刻を選ぶ(一覧は別スレッドで読む)
+	private void selectMinute(File file, long sessionId, long startTime,
+			long firstTimestamp) {
+		new TileThread(file, sessionId, startTime, firstTimestamp).start();
+	}
+
+	private void showMinutes(final File file, final long firstTimestamp,
+			final long[] minutes, CharSequence[] labels) {
+		final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setTitle(file.getName());
+		dialogBuilder.setItems(labels, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				if (which == 0) {
+					openRecording(file);
+				} else {
+					// その分の終わりを右端に表示する
+					openRecording(file, firstTimestamp + (minutes[which] + 1)
+							* SessionIndexer.TILE_INTERVAL);
+				}
+			}
+		});
+		dialogBuilder.show();
+	}
+
+	// 開始時刻、長さ、周波数、チャンネル数
+	private static String formatSession(long startTime, long duration,
+			double sampleRate, String channelTypes) {
+		StringBuilder text = new StringBuilder();
+		text.append(DateFormat.format("yyyy/MM/dd kk:mm", startTime));
+		long seconds = duration / 1000;
+		text.append("  ").append(seconds / 60).append(':');
+		if (seconds % 60 < 10) {
+			text.append('0');
+		}
+		text.append(seconds % 60);
+		text.append("  ").append(Math.round(sampleRate)).append("Hz");
+		text.append("  ").append(channelTypes.split(",").length)
+				.append("ch");
+		return text.toString();
+	}
+
+	private void openRecording(File file) {
+		openRecording(file, -1);
+	}
+
+	/**
+	 * 記録ファイルを別スレッドで開き、開けたら表示する
+	 *
+	 * @param timestamp
+	 *            右端に表示するタイムスタンプ(ナノ秒, 負なら末尾)
+	 */
+	private void openRecording(File file, long timestamp) {
+		// 表示しているセンサーが記録にあればそのチャンネルを開く
+		new OpenThread(file, getShownDescriptor().type, timestamp).start();
+	}
+
+	/**
+	 * @param viewOffset
+	 *            右端から末尾までのサンプル数
+	 */
+	private void showRecording(File file, RecordingReader reader,
+			long viewOffset) {
+		// サンプルの供給を停止して記録の末尾を表示
+		if (mStatus == STATUS_START) {
+			stopSource();
+			mStatus = STATUS_STOP;
+		}
+		closeReader();
+		mViewOffset = viewOffset;
+		mPlaybackReader = reader;
+		mPlaybackFile = file;
+		mScheduler.requestInteractiveFrame();
+
+		// 長い時間を表示するためのピラミッドを別スレッドで作成
+		new PyramidThread(file, reader).start();
+	}
+
+	private void analyzeRecording() {
+		RecordingReader reader = mPlaybackReader;
+		if (reader == null) {
+			return;
+		}
+		Toast.makeText(this, R.string.analyzing_msg, Toast.LENGTH_SHORT)
+				.show();
+		new AnalyzeThread(mPlaybackFile, reader.getChannelIndex()).start();
+	}
+
+	private void showReport(String title, String text) {
+		AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(this);
+		dialogBuilder.setTitle(title);
+		dialogBuilder.setMessage(text);
+		dialogBuilder.setPositiveButton(android.R.string.ok, null);
+		dialogBuilder.show();
+	}
+
+	private void closeRecording() {
+		closeReader();
+		mViewOffset = 0;
+
+		// サンプルの供給を再開
+		if (mStatus == STATUS_STOP) {
+			startSource();
+		}
+		mStatus = STATUS_START;
+		mScheduler.requestInteractiveFrame();
+	}
+
+	private void closeReader() {
+		RecordingReader reader = mPlaybackReader;
+		if (reader != null) {
+			mPlaybackReader = null;
+			mPlaybackPyramid = null;
+			// ライブの表示のピラミッドはレベルが少ないことがある
+			mTimeZoom = Math.min(mTimeZoom, getMaxTimeZoom());
+			// 描画中でなくなるのを待って閉じる
+			synchronized (reader) {
+				try {
+					reader.close();
+				} catch (Exception e) {
+					Log.e(TAG, e.getMessage());
+				}
+			}
+		}
+	}
 
-		// プログレスダイアログを表示
+	private void saveHistory() {
+		// レコーディングを停止(保存のやり直しでは、すでに停止している)
+		if (mRecording) {
+			mRecording = false;
+			if (mService != null) {
+				mService.stopRecording();
+			}
+		}
+
+		// グラフは止めずに、プログレスダイアログを表示
 		showDialog(DIALOG_SAVE_PROGRESS);
+		mSaveProgress.setProgress(0);
+		mHandler.removeCallbacks(mSaveProgressUpdater);
+		mHandler.postDelayed(mSaveProgressUpdater, SAVE_PROGRESS_INTERVAL);
 
 		// 保存用Threadを開始
 		SaveThread thread = new SaveThread();
@@ -555,10 +1786,18 @@ public class MainActivity extends Activity {
 			saveProgress.setTitle("保存中");
 			saveProgress.setMessage("履歴を保存しています");
 			saveProgress.setIndeterminate(false);
-			saveProgress.setProgressStyle(ProgressDialog.STYLE_SPINNER);
+			saveProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
 			saveProgress.setMax(100);
-			saveProgress.setCancelable(false);
-			saveProgress.show();
+			// 戻るキーで中断する(記録ファイルは残るので保存し直せる)
+			saveProgress.setCancelable(true);
+			saveProgress
+					.setOnCancelListener(new DialogInterface.OnCancelListener() {
+						@Override
+						public void onCancel(DialogInterface dialog) {
+							mExporter.cancel();
+						}
+					});
+			mSaveProgress = saveProgress;
 			return saveProgress;
 		}
 		return super.onCreateDialog(id);
@@ -567,8 +1806,34 @@ public class MainActivity extends Activity {
 	private class GraphView extends SurfaceView implements
 			SurfaceHolder.Callback, Runnable {
 
-		private Thread mThread;
+		// 描画スレッドは1つだけ作り、画面がない間は待機させる
+		private final Thread mThread = new Thread(this, "GraphView");
 		private SurfaceHolder mHolder;
+		private final Object mSurfaceLock = new Object();
+		private boolean mSurfaceReady = false;
+
+		// 描画用の作業領域(描画スレッドのみが使う)
+		private final SampleBuffer.View mView = new SampleBuffer.View();
+		private RecordingReader.Window mWindow;
+		private RecordingReader mWindowReader;
+		private float[][] mBinMin;
+		private float[][] mBinMax;
+		private int mBufferWidth = -1;
+		private final Paint mTextPaint = new Paint();
+		private final Paint mZeroLinePaint = new Paint();
+		private final Paint[] mLinePaints = new Paint[SampleBuffer.CHANNELS];
+
+		// 目盛りを描いた画像と、描いたときの位置・倍率
+		private Bitmap mGrid;
+		private Canvas mGridCanvas;
+		private float mGridZeroLineY;
+		private int mGridScale;
+
+		// drawLines() に渡す座標(x0, y0, x1, y1 の繰り返し)
+		private float[] mPoints;
+
+		private final StringBuilder mFrameText = new StringBuilder();
+		private final char[] mFrameChars = new char[64];
 
 		public GraphView(Context context) {
 			super(context);
@@ -578,30 +1843,75 @@ public class MainActivity extends Activity {
 			mHolder = getHolder();
 			mHolder.addCallback(this);
 
+			mTextPaint.setColor(mStringColor);
+			mTextPaint.setAntiAlias(true);
+			mTextPaint.setTextSize(14);
+
+			mZeroLinePaint.setColor(mZeroLineColor);
+			mZeroLinePaint.setAntiAlias(true);
+
+			for (int i = 0; i < SampleBuffer.CHANNELS; i++) {
+				mLinePaints[i] = new Paint();
+				mLinePaints[i].setColor(mAngleColors[i]);
+				mLinePaints[i].setAntiAlias(true);
+				mLinePaints[i].setStrokeWidth(2);
+			}
+
 			setFocusable(true);
 			requestFocus();
+
+			mThread.start();
 		}
 
 		@Override
 		public void surfaceChanged(SurfaceHolder holder, int format, int width,
 				int height) {
 			Log.i(TAG, "GraphView.surfaceChanged()");
+
+			mScheduler.requestInteractiveFrame();
 		}
 
 		@Override
 		public void surfaceCreated(SurfaceHolder holder) {
 			Log.i(TAG, "GraphView.surfaceCreated()");
 
-			mDrawRoop = true;
-			mThread = new Thread(this);
-			mThread.start();
+			synchronized (mSurfaceLock) {
+				mSurfaceReady = true;
+			}
+			updateDrawing();
+			mScheduler.requestInteractiveFrame();
 		}
 
 		@Override
 		public void surfaceDestroyed(SurfaceHolder holder) {
 			Log.i(TAG, "GraphView.surfaceDestroyed()");
 
-			mDrawRoop = false;
+			// 描画中のフレームが終わるのを待ってから戻る
+			synchronized (mSurfaceLock) {
+				mSurfaceReady = false;
+			}
+			updateDrawing();
+		}
+
+		/**
+		 * 画面の有無と mDrawRoop に合わせて描画を止める・再開する
+		 */
+		public void updateDrawing() {
+			boolean enabled;
+			synchronized (mSurfaceLock) {
+				enabled = mSurfaceReady && mDrawRoop;
+			}
+			mScheduler.setEnabled(enabled);
+			if (enabled) {
+				mScheduler.requestInteractiveFrame();
+			}
+		}
+
+		/**
+		 * 描画スレッドを終了する
+		 */
+		public void quit() {
+			mScheduler.quit();
 			boolean roop = true;
 			while (roop) {
 				try {
@@ -611,144 +1921,481 @@ public class MainActivity extends Activity {
 					Log.e(TAG, e.getMessage());
 				}
 			}
-			mThread = null;
 		}
 
 		@Override
 		public void run() {
 			Log.i(TAG, "GraphView.run()");
 
-			int width = getWidth();
-			mMaxHistorySize = (int) ((width - 20) / mLineWidth);
+			try {
+				while (mScheduler.awaitFrame()) {
+					synchronized (mSurfaceLock) {
+						if (mSurfaceReady) {
+							drawFrame();
+						}
+					}
+					mScheduler.frameDone();
+				}
+			} catch (InterruptedException e) {
+				Log.e(TAG, e.getMessage());
+			}
+		}
 
-			Paint textPaint = new Paint();
-			textPaint.setColor(mStringColor);
-			textPaint.setAntiAlias(true);
-			textPaint.setTextSize(14);
+		private void drawFrame() {
+			Canvas canvas = mHolder.lockCanvas();
+
+			if (canvas == null) {
+				return;
+			}
 
-			Paint zeroLinePaint = new Paint();
-			zeroLinePaint.setColor(mZeroLineColor);
-			zeroLinePaint.setAntiAlias(true);
+			long frameStart = mFrameStats.begin();
 
-			Paint[] linePaints = new Paint[4];
-			for (int i = 0; i < 4; i++) {
-				linePaints[i] = new Paint();
-				linePaints[i].setColor(mAngleColors[i]);
-				linePaints[i].setAntiAlias(true);
-				linePaints[i].setStrokeWidth(2);
+			int width = getWidth();
+			int height = getHeight();
+			int columns = Math.max(1, width - 20);
+			if (width != mBufferWidth) {
+				// 画面の幅が変わったときだけ作業領域を作り直す
+				mBinMin = new float[SampleBuffer.CHANNELS][columns];
+				mBinMax = new float[SampleBuffer.CHANNELS][columns];
+				mPoints = new float[columns * 4];
+				mBufferWidth = width;
+			}
+			float[][] binMin = mBinMin;
+			float[][] binMax = mBinMax;
+			Paint[] linePaints = mLinePaints;
+
+			float zeroLineY = mZeroLineY + mZeroLineYOffset;
+
+			// 目盛りは変化したときだけ描き直した画像を使う
+			updateGrid(width, height, zeroLineY, mZeroLinePaint);
+			canvas.drawBitmap(mGrid, 0, 0, null);
+
+			int zoom = mTimeZoom;
+			long offset = mViewOffset;
+			RecordingReader reader = mPlaybackReader;
+			// 表示するチャンネルはフレームの途中で切り替えない
+			// (サービスに接続するまでは null で、目盛りだけを描く)
+			SamplePipeline pipeline = mPipeline;
+			if (reader != null) {
+				// 記録ファイルの表示範囲を直接参照して描画
+				synchronized (reader) {
+					if (reader == mPlaybackReader) {
+						if (reader != mWindowReader) {
+							mWindow = reader.newWindow();
+							mWindowReader = reader;
+						}
+						RecordingReader.Window window = mWindow;
+						long end = reader.getSampleCount() - offset;
+						if (zoom < ENVELOPE_ZOOM) {
+							int step = zoom == 0 ? mLineWidth : 1;
+							int count = columns / step;
+							readWindow(reader, window, end, count);
+							drawHistory(canvas, window, width, step, zeroLineY,
+									linePaints);
+						} else {
+							int shift = zoom - 1;
+							int bins = 0;
+							MinMaxPyramid pyramid = mPlaybackPyramid;
+							if (pyramid != null) {
+								bins = pyramid.read(shift, end, columns,
+										binMin, binMax);
+							}
+							if (shift < PLAYBACK_PYRAMID_SHIFT) {
+								// 細かいビンは記録から直接求める
+								readWindow(reader, window, end,
+										columns << shift);
+								bins = MinMaxPyramid.reduce(window, shift,
+										binMin, binMax);
+							}
+							drawEnvelope(canvas, bins, width, zeroLineY,
+									binMin, binMax, linePaints);
+						}
+					}
+				}
+			} else if (pipeline != null) {
+				SampleBuffer history = pipeline.getHistory();
+				long end = history.getSequence() - offset;
+				if (zoom < ENVELOPE_ZOOM) {
+					// ロックもコピーもせずに直近の履歴を参照して描画し、
+					// 描画中に上書きされていたら次のフレームで描き直す
+					int step = zoom == 0 ? mLineWidth : 1;
+					history.view(mView, end, columns / step);
+					drawHistory(canvas, mView, width, step, zeroLineY,
+							linePaints);
+					if (!mView.isValid()) {
+						mScheduler.requestFrame();
+					}
+				} else {
+					int bins = pipeline.getPyramid().read(zoom - 1, end,
+							columns, binMin, binMax);
+					drawEnvelope(canvas, bins, width, zeroLineY, binMin,
+							binMax, linePaints);
+				}
 			}
 
-			while (mDrawRoop) {
-				Canvas canvas = mHolder.lockCanvas();
+			if (mShowStats) {
+				drawFrameTime(canvas, width, mTextPaint);
+			}
+			mFrameStats.end(frameStart, 0);
 
-				if (canvas == null) {
-					break;
+			mHolder.unlockCanvasAndPost(canvas);
+		}
+
+		private void updateGrid(int width, int height, float zeroLineY,
+				Paint zeroLinePaint) {
+			if (mGrid != null && mGrid.getWidth() == width
+					&& mGrid.getHeight() == height
+					&& mGridZeroLineY == zeroLineY
+					&& mGridScale == mGraphScale) {
+				return;
+			}
+			if (mGrid == null || mGrid.getWidth() != width
+					|| mGrid.getHeight() != height) {
+				if (mGrid != null) {
+					mGrid.recycle();
 				}
+				mGrid = Bitmap.createBitmap(width, height,
+						Bitmap.Config.RGB_565);
+				mGridCanvas = new Canvas(mGrid);
+			}
+			mGridZeroLineY = zeroLineY;
+			mGridScale = mGraphScale;
 
-				canvas.drawColor(mBGColor);
+			Canvas canvas = mGridCanvas;
+			canvas.drawColor(mBGColor);
 
-				float zeroLineY = mZeroLineY + mZeroLineYOffset;
+			float twoLineY = zeroLineY - (20 * mGridScale);
+			float oneLineY = zeroLineY - (10 * mGridScale);
+			float minasOneLineY = zeroLineY + (10 * mGridScale);
+			float minasTwoLineY = zeroLineY + (20 * mGridScale);
 
-				synchronized (mHolder) {
-					float twoLineY = zeroLineY - (20 * mGraphScale);
-					float oneLineY = zeroLineY - (10 * mGraphScale);
-					float minasOneLineY = zeroLineY + (10 * mGraphScale);
-					float minasTwoLineY = zeroLineY + (20 * mGraphScale);
+			canvas.drawText("2", 5, twoLineY + 5, zeroLinePaint);
+			canvas.drawLine(20, twoLineY, width, twoLineY, zeroLinePaint);
 
-					canvas.drawText("2", 5, twoLineY + 5, zeroLinePaint);
-					canvas.drawLine(20, twoLineY, width, twoLineY,
-							zeroLinePaint);
+			canvas.drawText("1", 5, oneLineY + 5, zeroLinePaint);
+			canvas.drawLine(20, oneLineY, width, oneLineY, zeroLinePaint);
 
-					canvas.drawText("1", 5, oneLineY + 5, zeroLinePaint);
-					canvas.drawLine(20, oneLineY, width, oneLineY,
-							zeroLinePaint);
+			canvas.drawText("0", 5, zeroLineY + 5, zeroLinePaint);
+			canvas.drawLine(20, zeroLineY, width, zeroLineY, zeroLinePaint);
 
-					canvas.drawText("0", 5, zeroLineY + 5, zeroLinePaint);
-					canvas.drawLine(20, zeroLineY, width, zeroLineY,
-							zeroLinePaint);
+			canvas.drawText("-1", 5, minasOneLineY + 5, zeroLinePaint);
+			canvas.drawLine(20, minasOneLineY, width, minasOneLineY,
+					zeroLinePaint);
 
-					canvas.drawText("-1", 5, minasOneLineY + 5, zeroLinePaint);
-					canvas.drawLine(20, minasOneLineY, width, minasOneLineY,
-							zeroLinePaint);
+			canvas.drawText("-2", 5, minasTwoLineY + 5, zeroLinePaint);
+			canvas.drawLine(20, minasTwoLineY, width, minasTwoLineY,
+					zeroLinePaint);
+		}
 
-					canvas.drawText("-2", 5, minasTwoLineY + 5, zeroLinePaint);
-					canvas.drawLine(20, minasTwoLineY, width, minasTwoLineY,
-							zeroLinePaint);
+		// 1フレームの描画にかかった時間を右上に表示
+		private void drawFrameTime(Canvas canvas, int width, Paint textPaint) {
+			StringBuilder text = mFrameText;
+			text.setLength(0);
+			text.append(mBatchedDrawing ? "batch " : "line ");
+			appendMillis(text, mFrameStats.getMeanNanos());
+			text.append("ms p95 ");
+			appendMillis(text, mFrameStats.getPercentileNanos(0.95));
+			text.append("ms max ");
+			appendMillis(text, mFrameStats.getMaxNanos());
+			text.append("ms / ");
+			appendMillis(text, mScheduler.getFrameInterval());
+			text.append("ms");
+			int length = Math.min(text.length(), mFrameChars.length);
+			text.getChars(0, length, mFrameChars, 0);
+			canvas.drawText(mFrameChars, 0, length, width - 280, 20, textPaint);
+		}
 
-					if (mHistory.size() > 1) {
-						Iterator<float[]> iterator = mHistory.iterator();
-						float[] before = new float[4];
-						int x = width - mHistory.size() * mLineWidth;
-						int beforeX = x;
-						x += mLineWidth;
+		// ナノ秒をミリ秒の小数第1位まで追加する(文字列を生成しない)
+		private void appendMillis(StringBuilder text, long nanos) {
+			long tenths = nanos / 100000;
+			text.append(tenths / 10).append('.').append(tenths % 10);
+		}
 
-						if (iterator.hasNext()) {
-							float[] history = iterator.next();
-							for (int angle = 0; angle < 4; angle++) {
-								before[angle] = zeroLineY
-										- (history[angle] * mGraphScale);
-							}
-							while (iterator.hasNext()) {
-								history = iterator.next();
-								for (int angle = 0; angle < 4; angle++) {
-									float startY = zeroLineY
-											- (history[angle] * mGraphScale);
-									float stopY = before[angle];
-									if (mGraphs[angle]) {
-										canvas.drawLine(x, startY, beforeX,
-												stopY, linePaints[angle]);
-									}
-									before[angle] = startY;
-								}
-								beforeX = x;
-								x += mLineWidth;
-							}
-						}
+		// end 番目のサンプルより前の最大 count 件を window に設定する
+		private void readWindow(RecordingReader reader,
+				RecordingReader.Window window, long end, int count) {
+			long start = end - count;
+			if (start < 0) {
+				count += start;
+				start = 0;
+			}
+			reader.read(window, start, count);
+		}
+
+		private void drawHistory(Canvas canvas, SampleWindow history,
+				int width, int step, float zeroLineY, Paint[] linePaints) {
+			float[] points = mPoints;
+			boolean[] graphs = mGraphs;
+			for (int angle = 0; angle < SampleBuffer.CHANNELS; angle++) {
+				if (!graphs[angle]) {
+					continue;
+				}
+				int n = GraphGeometry.linePoints(history, angle, width - step,
+						step, zeroLineY, mGraphScale, points);
+				drawSegments(canvas, points, n, linePaints[angle]);
+			}
+		}
+
+		// 1ピクセル列ごとに最小値から最大値までの線を描画
+		private void drawEnvelope(Canvas canvas, int bins, int width,
+				float zeroLineY, float[][] binMin, float[][] binMax,
+				Paint[] linePaints) {
+			float[] points = mPoints;
+			boolean[] graphs = mGraphs;
+			for (int angle = 0; angle < SampleBuffer.CHANNELS; angle++) {
+				if (!graphs[angle]) {
+					continue;
+				}
+				int n = GraphGeometry.envelopePoints(binMin[angle],
+						binMax[angle], bins, width - bins, zeroLineY,
+						mGraphScale, points);
+				drawSegments(canvas, points, n, linePaints[angle]);
+			}
+		}
+
+		private void drawSegments(Canvas canvas, float[] points, int n,
+				Paint paint) {
+			if (n == 0) {
+				return;
+			}
+			if (mBatchedDrawing) {
+				// チャンネルごとに線分の座標をまとめて1回で描画
+				canvas.drawLines(points, 0, n, paint);
+			} else {
+				for (int i = 0; i < n; i += 4) {
+					canvas.drawLine(points[i], points[i + 1], points[i + 2],
+							points[i + 3], paint);
+				}
+			}
+		}
+	}
+
+	private class OpenThread extends Thread {
+		private final File mFile;
+		private final int mType;
+		private final long mTimestamp;
+
+		public OpenThread(File file, int type, long timestamp) {
+			mFile = file;
+			mType = type;
+			mTimestamp = timestamp;
+		}
+
+		@Override
+		public void run() {
+			// ヘッダーと索引を読むので UI スレッドでは開かない
+			final RecordingReader reader;
+			long viewOffset = 0;
+			try {
+				reader = RecordingReader.openType(mFile, mType);
+				if (mTimestamp >= 0) {
+					viewOffset = Math.max(0, reader.getSampleCount() - 1
+							- reader.findIndex(mTimestamp));
+				}
+			} catch (final Exception e) {
+				Log.e(TAG, e.getMessage());
+				mHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(MainActivity.this, e.getMessage(),
+								Toast.LENGTH_SHORT).show();
 					}
+				});
+				return;
+			}
+			final long offset = viewOffset;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					showRecording(mFile, reader, offset);
 				}
+			});
+		}
+	}
+
+	private class PyramidThread extends Thread {
+		private final File mFile;
+		private final RecordingReader mReader;
 
-				mHolder.unlockCanvasAndPost(canvas);
+		public PyramidThread(File file, RecordingReader reader) {
+			mFile = file;
+			mReader = reader;
+		}
 
+		@Override
+		public void run() {
+			// 描画用とは別に開いて読み込む
+			try {
+				RecordingReader reader = new RecordingReader(mFile, mReader
+						.getChannelIndex());
 				try {
-					Thread.sleep(mDrawDelay);
-				} catch (InterruptedException e) {
-					Log.e(TAG, e.getMessage());
+					MinMaxPyramid pyramid = MinMaxPyramid.createFor(reader,
+							PLAYBACK_PYRAMID_SHIFT);
+					if (mPlaybackReader == mReader) {
+						mPlaybackPyramid = pyramid;
+						mScheduler.requestInteractiveFrame();
+					}
+				} finally {
+					reader.close();
 				}
+			} catch (Exception e) {
+				Log.e(TAG, e.getMessage());
 			}
 		}
 	}
 
-	private class SaveThread extends Thread {
+	private class CatalogThread extends Thread {
+		private final File mActive;
+
+		public CatalogThread(File active) {
+			mActive = active;
+		}
+
 		@Override
 		public void run() {
-			// CSVデータを作成
-			StringBuilder csvData = new StringBuilder();
-			Iterator<float[]> iterator = mRawHistory.iterator();
-			while (iterator.hasNext()) {
-				float[] values = iterator.next();
-				for (int angle = 0; angle < 3; angle++) {
-					csvData.append(String.valueOf(values[angle]));
-					if (angle < 3) {
-						csvData.append(",");
-					}
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			// 追加・変更された記録ファイルだけを読んで索引を作る
+			File dir = new File(getRecordingDirectory());
+			new SessionIndexer().sync(dir, mSessions, mActive);
+
+			Cursor cursor = mSessions.querySessions();
+			final int count = cursor.getCount();
+			final long[] ids = new long[count];
+			final String[] names = new String[count];
+			final long[] startTimes = new long[count];
+			final long[] firstTimestamps = new long[count];
+			final int[] tileCounts = new int[count];
+			final CharSequence[] labels = new CharSequence[count];
+			try {
+				for (int i = 0; cursor.moveToNext(); i++) {
+					ids[i] = cursor.getLong(SessionDatabase.COLUMN_ID);
+					names[i] = cursor.getString(SessionDatabase.COLUMN_NAME);
+					startTimes[i] = cursor
+							.getLong(SessionDatabase.COLUMN_START_TIME);
+					firstTimestamps[i] = cursor
+							.getLong(SessionDatabase.COLUMN_FIRST_TIMESTAMP);
+					tileCounts[i] = cursor
+							.getInt(SessionDatabase.COLUMN_TILE_COUNT);
+					labels[i] = formatSession(startTimes[i], cursor
+							.getLong(SessionDatabase.COLUMN_END_TIME)
+							- startTimes[i], cursor
+							.getDouble(SessionDatabase.COLUMN_SAMPLE_RATE),
+							cursor.getString(
+									SessionDatabase.COLUMN_CHANNEL_TYPES));
+				}
+			} finally {
+				cursor.close();
+			}
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					showSessions(ids, names, startTimes, firstTimestamps,
+							tileCounts, labels);
+				}
+			});
+		}
+	}
+
+	private class TileThread extends Thread {
+		private final File mFile;
+		private final long mSessionId;
+		private final long mStartTime;
+		private final long mFirstTimestamp;
+
+		public TileThread(File file, long sessionId, long startTime,
+				long firstTimestamp) {
+			mFile = file;
+			mSessionId = sessionId;
+			mStartTime = startTime;
+			mFirstTimestamp = firstTimestamp;
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			Cursor cursor = mSessions.queryTiles(mSessionId, 0);
+			final long[] minutes = new long[cursor.getCount() + 1];
+			final CharSequence[] labels = new CharSequence[minutes.length];
+			try {
+				minutes[0] = -1;
+				labels[0] = "全体(末尾)";
+				for (int i = 1; cursor.moveToNext(); i++) {
+					minutes[i] = cursor.getLong(0);
+					StringBuilder label = new StringBuilder();
+					label.append(DateFormat.format("kk:mm", mStartTime
+							+ minutes[i] * 60000));
+					// 大きさ(R)の範囲
+					label.append("  ").append(
+							Math.round(cursor.getFloat(8) * 10) / 10.0);
+					label.append(" - ").append(
+							Math.round(cursor.getFloat(9) * 10) / 10.0);
+					labels[i] = label;
 				}
-				csvData.append("\n");
+			} finally {
+				cursor.close();
 			}
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					showMinutes(mFile, mFirstTimestamp, minutes, labels);
+				}
+			});
+		}
+	}
+
+	private class AnalyzeThread extends Thread {
+		private final File mFile;
+		private final int mChannel;
+
+		public AnalyzeThread(File file, int channel) {
+			mFile = file;
+			mChannel = channel;
+		}
+
+		@Override
+		public void run() {
+			// 端末のコア数だけスレッドを使って集計する
+			RecordingAnalyzer analyzer = new RecordingAnalyzer(Runtime
+					.getRuntime().availableProcessors());
+			String text;
+			try {
+				text = analyzer.analyze(mFile, mChannel).toString();
+			} catch (Exception e) {
+				Log.e(TAG, e.getMessage());
+				text = e.getMessage();
+			} finally {
+				analyzer.shutdown();
+			}
+			final String report = text;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					showReport(mFile.getName(), report);
+				}
+			});
+		}
+	}
+
+	private class SaveThread extends Thread {
+		@Override
+		public void run() {
+			// 描画と取り込みを妨げないように優先度を下げる
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
 			// メッセージングの準備
 			Message msg = new Message();
 			Bundle bundle = new Bundle();
 
+			Recorder recorder = mRecorder;
 			try {
-				// SDカードにディレクトリがなければ作成
-				String appName = getResources().getString(R.string.app_name);
-				String dirPath = Environment.getExternalStorageDirectory()
-						.toString()
-						+ "/" + appName;
-				File dir = new File(dirPath);
-				if (!dir.exists()) {
-					dir.mkdirs();
+				if (recorder == null) {
+					throw new IOException(MainActivity.this.getResources()
+							.getString(R.string.save_no_recording));
 				}
+				// 記録ファイルへの書き込みを終了(やり直しでは何もしない)
+				recorder.close();
 
 				// CSVファイル名を作成
 				StringBuilder fileName = new StringBuilder();
@@ -756,27 +2403,41 @@ public class MainActivity extends Activity {
 				fileName.append("-");
 				fileName.append(DateFormat.format("yyyyMMddkkmmss", System
 						.currentTimeMillis()));
-				fileName.append(".csv");
+				if (mFormat == FORMAT_ARCHIVE) {
+					fileName.append(ArchiveFormat.EXTENSION);
+				} else if (mFormat == FORMAT_COLUMNAR) {
+					fileName.append(ColumnarFormat.EXTENSION);
+				} else {
+					fileName.append(".csv");
+				}
 
-				// CSVファイルへ保存
-				File file = new File(dirPath, fileName.toString());
-				if (file.createNewFile()) {
-					FileOutputStream fileOutputStream = new FileOutputStream(
-							file);
-					// データを書き込む
-					fileOutputStream.write(csvData.toString().getBytes());
-					fileOutputStream.close();
+				// 記録ファイルを変換
+				File file = new File(getRecordingDirectory(), fileName
+						.toString());
+				int mode = RESAMPLE_MODES[mResample];
+				if (mFormat == FORMAT_CSV && mode >= 0) {
+					mExporter.exportCsvResampled(recorder.getFile(), file, 0,
+							mode, RESAMPLE_RATES[mResample]);
+				} else {
+					// 圧縮と列形式は全チャンネルを書き出す
+					mExporter.export(mFormat, recorder.getFile(), file);
 				}
 
 				// ファイルへの出力完了を通知
 				bundle.putString("msg", MainActivity.this.getResources()
 						.getString(R.string.save_complate));
 				bundle.putBoolean("success", true);
+			} catch (InterruptedIOException e) {
+				// 中断を通知(記録ファイルは残すので「保存」でやり直せる)
+				bundle.putString("msg", MainActivity.this.getResources()
+						.getString(R.string.save_cancelled));
+				bundle.putBoolean("success", false);
 			} catch (Exception e) {
-				Log.e(TAG, e.getMessage());
+				Log.e(TAG, "save failed", e);
 
 				// ファイルへの出力失敗を通知
-				bundle.putString("msg", e.getMessage());
+				bundle.putString("msg", MainActivity.this.getResources()
+						.getString(R.string.save_failed, e.getMessage()));
 				bundle.putBoolean("success", false);
 			}
 
@@ -0,0 +1,90 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 直近 N 件の中央値
+ *
+ * 窓の値を整列済みの配列でも保持し、1件ごとに削除と挿入を行う(O(N))。
+ * スパイク状のノイズの除去に使う小さな窓を想定している。
+ */
+public class MedianFilter implements SampleFilter {
+
+	private final float[] mWindow;
+	private final float[] mSorted;
+	private int mIndex;
+	private int mCount;
+
+	public MedianFilter(int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("windowSize: " + windowSize);
+		}
+		mWindow = new float[windowSize];
+		mSorted = new float[windowSize];
+	}
+
+	@Override
+	public void process(float[] input, float[] output, int offset, int length) {
+		float[] window = mWindow;
+		float[] sorted = mSorted;
+		int size = window.length;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			float value = input[i];
+			int count = mCount;
+			if (Float.isNaN(value)) {
+				// NaN は並べられないので窓に入れず、直前の中央値を出力する
+				output[i] = count > 0 ? median(sorted, count) : value;
+				continue;
+			}
+			if (count == size) {
+				// 一番古い値を整列済み配列から取り除く
+				int remove = indexOf(sorted, count, window[mIndex]);
+				System.arraycopy(sorted, remove + 1, sorted, remove, count
+						- remove - 1);
+				count--;
+			}
+			// 挿入位置を探して詰める
+			int insert = count;
+			while (insert > 0 && sorted[insert - 1] > value) {
+				sorted[insert] = sorted[insert - 1];
+				insert--;
+			}
+			sorted[insert] = value;
+			count++;
+
+			window[mIndex] = value;
+			if (++mIndex == size) {
+				mIndex = 0;
+			}
+			mCount = count;
+
+			output[i] = median(sorted, count);
+		}
+	}
+
+	private static float median(float[] sorted, int count) {
+		if ((count & 1) == 1) {
+			return sorted[count >> 1];
+		}
+		return (sorted[(count >> 1) - 1] + sorted[count >> 1]) / 2;
+	}
+
+	private static int indexOf(float[] sorted, int count, float value) {
+		int low = 0;
+		int high = count - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sorted[mid] < value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	@Override
+	public void reset() {
+		mIndex = 0;
+		mCount = 0;
+	}
+}
@@ -0,0 +1,288 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 解像度ごとの最小値・最大値を保持するピラミッド
+ *
+ * レベル i は 2^(firstShift + i) サンプルごとの最小値と最大値(ビン)を
+ * リングバッファに保持し、サンプルの追加に合わせて少しずつ更新する。
+ * グラフは1ピクセル列を1ビンとして描画するので、表示する時間の長さによらず
+ * 描画の回数は画面の幅で決まる。
+ *
+ * 書き込みは1スレッド、読み込みは{@link #read}でロックせずに行う。
+ */
+public class MinMaxPyramid {
+
+	private final int mFirstShift;
+	private final int mLevels;
+	private final int[] mCapacities;
+	private final float[][][] mMin;
+	private final float[][][] mMax;
+
+	// 書き込み中のビンの最小値・最大値
+	private final float[][] mPendingMin;
+	private final float[][] mPendingMax;
+
+	// 公開済みのサンプル数と、書き込み中の範囲の終端
+	private volatile long mSampleCount;
+	private volatile long mClaimed;
+
+	/**
+	 * @param firstShift
+	 *            レベル0のビンのサンプル数(2^firstShift)
+	 * @param capacities
+	 *            レベルごとに保持するビンの数
+	 */
+	public MinMaxPyramid(int firstShift, int[] capacities) {
+		mFirstShift = firstShift;
+		mLevels = capacities.length;
+		mCapacities = capacities.clone();
+		mMin = new float[mLevels][][];
+		mMax = new float[mLevels][][];
+		for (int level = 0; level < mLevels; level++) {
+			mMin[level] = new float[SampleBuffer.CHANNELS][capacities[level]];
+			mMax[level] = new float[SampleBuffer.CHANNELS][capacities[level]];
+		}
+		mPendingMin = new float[mLevels][SampleBuffer.CHANNELS];
+		mPendingMax = new float[mLevels][SampleBuffer.CHANNELS];
+	}
+
+	/**
+	 * 途切れなく流れてくるサンプル用(古いビンは上書きされる)
+	 */
+	public static MinMaxPyramid createLive(int levels, int capacity) {
+		int[] capacities = new int[levels];
+		for (int level = 0; level < levels; level++) {
+			capacities[level] = capacity;
+		}
+		return new MinMaxPyramid(1, capacities);
+	}
+
+	/**
+	 * 件数が決まっているサンプル用(全体を保持する)
+	 */
+	public static MinMaxPyramid createFor(long sampleCount, int firstShift) {
+		int levels = 1;
+		while ((sampleCount >> (firstShift + levels - 1)) > 1) {
+			levels++;
+		}
+		int[] capacities = new int[levels];
+		for (int level = 0; level < levels; level++) {
+			capacities[level] = (int) Math.max(1,
+					sampleCount >> (firstShift + level));
+		}
+		return new MinMaxPyramid(firstShift, capacities);
+	}
+
+	/**
+	 * 記録ファイル全体のピラミッドを作る(時間がかかるので UI スレッドでは呼ばない)
+	 */
+	public static MinMaxPyramid createFor(RecordingReader reader,
+			int firstShift) {
+		long count = reader.getSampleCount();
+		MinMaxPyramid pyramid = createFor(count, firstShift);
+		RecordingReader.Window window = reader.newWindow();
+		int size = RecordingFormat.CHUNK_RECORDS;
+		float[][] values = new float[SampleBuffer.CHANNELS][size];
+		for (long index = 0; index < count; index += size) {
+			reader.read(window, index, size);
+			int length = window.size();
+			for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+				float[] dest = values[channel];
+				for (int i = 0; i < length; i++) {
+					dest[i] = window.get(channel, i);
+				}
+			}
+			pyramid.addAll(values[SampleBuffer.CHANNEL_X],
+					values[SampleBuffer.CHANNEL_Y],
+					values[SampleBuffer.CHANNEL_Z],
+					values[SampleBuffer.CHANNEL_R], 0, length);
+		}
+		return pyramid;
+	}
+
+	/**
+	 * ピラミッドを使わずに、window の先頭から 2^shift サンプルごとの
+	 * 最小値・最大値を求める
+	 *
+	 * @return 求めたビンの数
+	 */
+	public static int reduce(SampleWindow window, int shift, float[][] min,
+			float[][] max) {
+		int binSize = 1 << shift;
+		int bins = Math.min(window.size() >> shift, min[0].length);
+		for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+			float[] binMin = min[channel];
+			float[] binMax = max[channel];
+			int index = 0;
+			for (int bin = 0; bin < bins; bin++) {
+				float low = window.get(channel, index);
+				float high = low;
+				for (int i = 1; i < binSize; i++) {
+					float value = window.get(channel, index + i);
+					if (value < low) {
+						low = value;
+					} else if (value > high) {
+						high = value;
+					}
+				}
+				binMin[bin] = low;
+				binMax[bin] = high;
+				index += binSize;
+			}
+		}
+		return bins;
+	}
+
+	public long getSampleCount() {
+		return mSampleCount;
+	}
+
+	/**
+	 * レベル0のビンのサンプル数の2の対数
+	 */
+	public int getFirstShift() {
+		return mFirstShift;
+	}
+
+	/**
+	 * 保持している最大のビンのサンプル数の2の対数
+	 */
+	public int getLastShift() {
+		return mFirstShift + mLevels - 1;
+	}
+
+	/**
+	 * サンプルを追加する(書き込みスレッドからのみ呼ぶこと)
+	 */
+	public void addAll(float[] x, float[] y, float[] z, float[] r,
+			int offset, int length) {
+		long count = mSampleCount;
+		mClaimed = count + length;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			accumulate(0, SampleBuffer.CHANNEL_X, x[i], x[i], count);
+			accumulate(0, SampleBuffer.CHANNEL_Y, y[i], y[i], count);
+			accumulate(0, SampleBuffer.CHANNEL_Z, z[i], z[i], count);
+			accumulate(0, SampleBuffer.CHANNEL_R, r[i], r[i], count);
+			count++;
+			commit(0, count);
+		}
+		mSampleCount = count;
+	}
+
+	/**
+	 * 1サンプルを追加する(書き込みスレッドからのみ呼ぶこと)
+	 */
+	public void add(float x, float y, float z, float r) {
+		long count = mSampleCount;
+		mClaimed = count + 1;
+		accumulate(0, SampleBuffer.CHANNEL_X, x, x, count);
+		accumulate(0, SampleBuffer.CHANNEL_Y, y, y, count);
+		accumulate(0, SampleBuffer.CHANNEL_Z, z, z, count);
+		accumulate(0, SampleBuffer.CHANNEL_R, r, r, count);
+		count++;
+		commit(0, count);
+		mSampleCount = count;
+	}
+
+	private void accumulate(int level, int channel, float min, float max,
+			long count) {
+		// ビンの最初の値なら初期化
+		int shift = mFirstShift + level;
+		if ((count & ((1L << shift) - 1)) == 0) {
+			mPendingMin[level][channel] = min;
+			mPendingMax[level][channel] = max;
+		} else {
+			if (min < mPendingMin[level][channel]) {
+				mPendingMin[level][channel] = min;
+			}
+			if (max > mPendingMax[level][channel]) {
+				mPendingMax[level][channel] = max;
+			}
+		}
+	}
+
+	// ビンが埋まっていれば書き込み、上のレベルにまとめる
+	private void commit(int level, long count) {
+		while (level < mLevels) {
+			int shift = mFirstShift + level;
+			if ((count & ((1L << shift) - 1)) != 0) {
+				return;
+			}
+			long bin = (count >> shift) - 1;
+			int index = (int) (bin % mCapacities[level]);
+			float[] pendingMin = mPendingMin[level];
+			float[] pendingMax = mPendingMax[level];
+			for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+				mMin[level][channel][index] = pendingMin[channel];
+				mMax[level][channel][index] = pendingMax[channel];
+			}
+
+			int parent = level + 1;
+			if (parent < mLevels) {
+				long start = count - (1L << shift);
+				for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+					accumulate(parent, channel, pendingMin[channel],
+							pendingMax[channel], start);
+				}
+			}
+			level = parent;
+		}
+	}
+
+	/**
+	 * 2^shift サンプルごとのビンを、end 番目のサンプルより前で完結している
+	 * ものから新しい順に最大 columns 件、古い順に min/max へコピーする
+	 *
+	 * @return コピーしたビンの数(対応するレベルがなければ0)
+	 */
+	public int read(int shift, long end, int columns, float[][] min,
+			float[][] max) {
+		int level = shift - mFirstShift;
+		if (level < 0 || level >= mLevels) {
+			return 0;
+		}
+		int capacity = mCapacities[level];
+		long last = Math.min(end, mSampleCount) >> shift;
+		long first = Math.max(0, last - columns);
+		// 上書きされていないビンだけを使う
+		long safe = (mClaimed >> shift) - capacity + 1;
+		if (first < safe) {
+			first = safe;
+		}
+		int count = (int) (last - first);
+		if (count <= 0) {
+			return 0;
+		}
+		copy(level, first, count, min, max);
+
+		// コピー中に上書きされた分を捨てる
+		long lost = ((mClaimed >> shift) - capacity + 1) - first;
+		if (lost > 0) {
+			int n = (int) Math.min(lost, count);
+			for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+				System.arraycopy(min[channel], n, min[channel], 0, count - n);
+				System.arraycopy(max[channel], n, max[channel], 0, count - n);
+			}
+			count -= n;
+		}
+		return count;
+	}
+
+	private void copy(int level, long first, int count, float[][] min,
+			float[][] max) {
+		int capacity = mCapacities[level];
+		int from = (int) (first % capacity);
+		int head = Math.min(count, capacity - from);
+		for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+			System.arraycopy(mMin[level][channel], from, min[channel], 0, head);
+			System.arraycopy(mMax[level][channel], from, max[channel], 0, head);
+			if (head < count) {
+				System.arraycopy(mMin[level][channel], 0, min[channel], head,
+						count - head);
+				System.arraycopy(mMax[level][channel], 0, max[channel], head,
+						count - head);
+			}
+		}
+	}
+}
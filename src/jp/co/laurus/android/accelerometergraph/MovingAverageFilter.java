@@ -0,0 +1,74 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 直近 N 件の単純移動平均
+ */
+public class MovingAverageFilter implements LinearFilter {
+
+	private final float[] mWindow;
+	private int mIndex;
+	private int mCount;
+	private double mSum;
+
+	public MovingAverageFilter(int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("windowSize: " + windowSize);
+		}
+		mWindow = new float[windowSize];
+	}
+
+	@Override
+	public void process(float[] input, float[] output, int offset, int length) {
+		float[] window = mWindow;
+		int size = window.length;
+		int index = mIndex;
+		int count = mCount;
+		double sum = mSum;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			float value = input[i];
+			if (count < size) {
+				count++;
+			} else {
+				sum -= window[index];
+			}
+			window[index] = value;
+			sum += value;
+			if (++index == size) {
+				index = 0;
+			}
+			output[i] = (float) (sum / count);
+		}
+		mIndex = index;
+		mCount = count;
+		if (Double.isNaN(sum) || Double.isInfinite(sum)) {
+			// NaN が窓から出たら元に戻るように、窓から合計を求め直す
+			sum = 0;
+			for (int i = 0; i < count; i++) {
+				sum += window[i];
+			}
+		}
+		mSum = sum;
+	}
+
+	/**
+	 * 窓が埋まった後の振幅特性 |sin(Nω/2) / (N sin(ω/2))| を返す
+	 */
+	@Override
+	public double getMagnitude(float sampleRate, float frequency) {
+		double w = 2 * Math.PI * frequency / sampleRate;
+		int size = mWindow.length;
+		double den = size * Math.sin(w / 2);
+		if (Math.abs(den) < 1e-12) {
+			return 1;
+		}
+		return Math.abs(Math.sin(size * w / 2) / den);
+	}
+
+	@Override
+	public void reset() {
+		mIndex = 0;
+		mCount = 0;
+		mSum = 0;
+	}
+}
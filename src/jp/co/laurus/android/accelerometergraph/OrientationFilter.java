@@ -0,0 +1,209 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 加速度とジャイロから端末の姿勢を推定する相補フィルタ(Mahony)
+ *
+ * 姿勢は端末の座標から世界の座標(Z が鉛直上向き)への回転を表す四元数で
+ * 持つ。ジャイロのサンプルで角速度を積分し、加速度のサンプルで推定した
+ * 重力の向きと測った向きのずれ(外積)を角速度の補正として戻す。ずれの積分は
+ * ジャイロのバイアスの推定になる。2つのセンサーは別々の間隔で届いてよい。
+ *
+ * ジャイロがなければ(まだ届いていなければ)加速度の向きに時定数
+ * 1/KP_WITHOUT_GYROSCOPE 秒で追従するだけになる。
+ * 磁気センサーは使わないので、世界の座標の向き(方位)は最初の姿勢から
+ * ゆっくりずれていくが、鉛直方向は保たれる。
+ *
+ * 1件あたり平方根2回と数十回の四則演算で、メモリを確保しない。
+ * 同時に複数のスレッドから呼ばないこと。
+ */
+public class OrientationFilter {
+
+	public static final float GRAVITY = 9.80665f;
+
+	// 比例・積分のゲイン(rad/s)
+	public static final float DEFAULT_KP = 1.0f;
+	public static final float DEFAULT_KI = 0.05f;
+	// ジャイロがないときの比例のゲイン(回転に遅れないように強くする)
+	private static final float KP_WITHOUT_GYROSCOPE = 20f;
+	// 1回の補正で回す割合の上限(間隔が長いときに行き過ぎないように)
+	private static final float MAX_CORRECTION = 0.5f;
+	// 大きさが重力からこれ以上ずれた加速度では補正しない(動いている最中)
+	private static final float ACCEL_REJECTION = 0.25f * GRAVITY;
+	// これより間隔が空いたら積分しない(秒, 停止や再開)
+	private static final float MAX_INTERVAL = 0.5f;
+
+	private final float mKp;
+	private final float mKi;
+
+	// 端末から世界への回転
+	private float mQ0 = 1, mQ1, mQ2, mQ3;
+	// ジャイロのバイアスの推定(積分の項)
+	private float mBiasX, mBiasY, mBiasZ;
+	private boolean mInitialized;
+	private long mLastGyro = -1;
+	private long mLastAccel = -1;
+
+	public OrientationFilter() {
+		this(DEFAULT_KP, DEFAULT_KI);
+	}
+
+	public OrientationFilter(float kp, float ki) {
+		mKp = kp;
+		mKi = ki;
+	}
+
+	public void reset() {
+		mQ0 = 1;
+		mQ1 = mQ2 = mQ3 = 0;
+		mBiasX = mBiasY = mBiasZ = 0;
+		mInitialized = false;
+		mLastGyro = -1;
+		mLastAccel = -1;
+	}
+
+	/**
+	 * 加速度から姿勢を求めたか
+	 */
+	public boolean isInitialized() {
+		return mInitialized;
+	}
+
+	/**
+	 * ジャイロのサンプルで姿勢を進める
+	 *
+	 * @param timestamp
+	 *            タイムスタンプ(ナノ秒)
+	 * @param gx
+	 *            端末の座標での角速度(rad/s)
+	 */
+	public void updateGyroscope(long timestamp, float gx, float gy, float gz) {
+		long last = mLastGyro;
+		mLastGyro = timestamp;
+		float dt = (timestamp - last) * 1e-9f;
+		if (last < 0 || !mInitialized || dt <= 0 || dt > MAX_INTERVAL) {
+			return;
+		}
+		rotate(gx - mBiasX, gy - mBiasY, gz - mBiasZ, dt);
+	}
+
+	/**
+	 * 加速度のサンプルで重力の向きを補正する
+	 *
+	 * 最初のサンプルでは、その向きを鉛直にした姿勢から始める。
+	 *
+	 * @param ax
+	 *            端末の座標での加速度(m/s^2, 静止時に上向きに +G)
+	 */
+	public void updateAccelerometer(long timestamp, float ax, float ay,
+			float az) {
+		long last = mLastAccel;
+		mLastAccel = timestamp;
+		float norm = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+		if (norm == 0) {
+			return;
+		}
+		float nx = ax / norm;
+		float ny = ay / norm;
+		float nz = az / norm;
+		if (!mInitialized) {
+			initialize(nx, ny, nz);
+			return;
+		}
+		float dt = (timestamp - last) * 1e-9f;
+		if (last < 0 || dt <= 0 || dt > MAX_INTERVAL
+				|| Math.abs(norm - GRAVITY) > ACCEL_REJECTION) {
+			return;
+		}
+
+		// 推定した上向き(世界の Z を端末の座標で見たもの)とのずれ
+		float vx = 2 * (mQ1 * mQ3 - mQ0 * mQ2);
+		float vy = 2 * (mQ0 * mQ1 + mQ2 * mQ3);
+		float vz = mQ0 * mQ0 - mQ1 * mQ1 - mQ2 * mQ2 + mQ3 * mQ3;
+		float ex = ny * vz - nz * vy;
+		float ey = nz * vx - nx * vz;
+		float ez = nx * vy - ny * vx;
+
+		// 積分の項はジャイロのバイアスとして引く
+		mBiasX -= mKi * ex * dt;
+		mBiasY -= mKi * ey * dt;
+		mBiasZ -= mKi * ez * dt;
+		float kp = Math.min(mLastGyro < 0 ? KP_WITHOUT_GYROSCOPE : mKp,
+				MAX_CORRECTION / dt);
+		rotate(kp * ex, kp * ey, kp * ez, dt);
+	}
+
+	/**
+	 * 加速度から重力を除いた端末の座標での加速度を out[outOffset..+2] に求める
+	 */
+	public void getLinearAcceleration(float ax, float ay, float az,
+			float[] out, int outOffset) {
+		float vx = 2 * (mQ1 * mQ3 - mQ0 * mQ2);
+		float vy = 2 * (mQ0 * mQ1 + mQ2 * mQ3);
+		float vz = mQ0 * mQ0 - mQ1 * mQ1 - mQ2 * mQ2 + mQ3 * mQ3;
+		out[outOffset] = ax - GRAVITY * vx;
+		out[outOffset + 1] = ay - GRAVITY * vy;
+		out[outOffset + 2] = az - GRAVITY * vz;
+	}
+
+	/**
+	 * 端末の座標のベクトルを世界の座標に回して out[outOffset..+2] に求める
+	 */
+	public void toWorld(float x, float y, float z, float[] out, int outOffset) {
+		// v' = v + 2 q0 (u × v) + 2 u × (u × v) (u = (q1, q2, q3))
+		float tx = 2 * (mQ2 * z - mQ3 * y);
+		float ty = 2 * (mQ3 * x - mQ1 * z);
+		float tz = 2 * (mQ1 * y - mQ2 * x);
+		out[outOffset] = x + mQ0 * tx + (mQ2 * tz - mQ3 * ty);
+		out[outOffset + 1] = y + mQ0 * ty + (mQ3 * tx - mQ1 * tz);
+		out[outOffset + 2] = z + mQ0 * tz + (mQ1 * ty - mQ2 * tx);
+	}
+
+	/**
+	 * 姿勢の四元数(w, x, y, z)を out[outOffset..+3] にコピーする
+	 */
+	public void getQuaternion(float[] out, int outOffset) {
+		out[outOffset] = mQ0;
+		out[outOffset + 1] = mQ1;
+		out[outOffset + 2] = mQ2;
+		out[outOffset + 3] = mQ3;
+	}
+
+	// 単位ベクトル n を世界の Z に重ねる最小の回転から始める
+	private void initialize(float nx, float ny, float nz) {
+		if (nz < -0.9999f) {
+			// 裏返し(X 軸まわりに半回転)
+			mQ0 = 0;
+			mQ1 = 1;
+			mQ2 = 0;
+			mQ3 = 0;
+		} else {
+			// (1 + n・z, n × z) を正規化すると半分の角の四元数になる
+			mQ0 = 1 + nz;
+			mQ1 = ny;
+			mQ2 = -nx;
+			mQ3 = 0;
+			normalize();
+		}
+		mInitialized = true;
+	}
+
+	// q += 0.5 q ⊗ (0, ω) dt
+	private void rotate(float wx, float wy, float wz, float dt) {
+		float h = 0.5f * dt;
+		float q0 = mQ0, q1 = mQ1, q2 = mQ2, q3 = mQ3;
+		mQ0 = q0 + (-q1 * wx - q2 * wy - q3 * wz) * h;
+		mQ1 = q1 + (q0 * wx + q2 * wz - q3 * wy) * h;
+		mQ2 = q2 + (q0 * wy - q1 * wz + q3 * wx) * h;
+		mQ3 = q3 + (q0 * wz + q1 * wy - q2 * wx) * h;
+		normalize();
+	}
+
+	private void normalize() {
+		float norm = (float) Math.sqrt(mQ0 * mQ0 + mQ1 * mQ1 + mQ2 * mQ2
+				+ mQ3 * mQ3);
+		mQ0 /= norm;
+		mQ1 /= norm;
+		mQ2 /= norm;
+		mQ3 /= norm;
+	}
+}
@@ -0,0 +1,283 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * 加速度を{@link RecordingFormat}のファイルに書き込み続けるスレッド
+ *
+ * センサーのスレッドからは書き込まず、RAW の履歴を{@link SampleBuffer.Cursor}
+ * で一定間隔ごとに読み出してチャンク単位で書き込む。そのため記録時間によらず
+ * 使用するメモリは一定になる。複数のチャンネルを記録するときは、チャンネルごとの
+ * チャンクが一杯になった順に書き込む。
+ *
+ * {@link #setRange}で範囲を決めると、過去のサンプルから記録を始め、終端まで
+ * 書き込むと自分で終了する(イベントの前後の切り出し用)。その場合は遅延を
+ * 短くするため、チャンクが一杯になるのを待たずに毎回書き込む。
+ */
+public class Recorder extends Thread {
+
+	private static final long WRITE_INTERVAL = 100;
+
+	private final SampleBuffer[] mSources;
+	private final ChannelDescriptor[] mDescriptors;
+	private final File mFile;
+	private final long mStartTime;
+
+	private final float[][] mValues = new float[SampleBuffer.CHANNELS][RecordingFormat.CHUNK_RECORDS];
+	private final long[] mTimestamps = new long[RecordingFormat.CHUNK_RECORDS];
+	// チャンネルごとに書き込み中のチャンク
+	private final ByteBuffer[] mChunks;
+	private final int[] mPending;
+	private final CRC32 mCrc = new CRC32();
+
+	private RandomAccessFile mRandomAccessFile;
+	private FileChannel mChannel;
+	private volatile SampleBuffer.Cursor[] mCursors;
+	private long mPosition;
+	// 記録するシーケンスの範囲(mRangeStart が負なら開始時点から閉じるまで)
+	private long mRangeStart = -1;
+	private long mRangeEnd = Long.MAX_VALUE;
+
+	// 書き込み中に割り込むとチャンネルが閉じられるので、割り込まずに起こす
+	private final Object mWakeLock = new Object();
+	private volatile boolean mRunning;
+	private volatile long mSampleCount;
+	private volatile int mChunkCount;
+	private volatile long mFirstWriteTime;
+	private IOException mError;
+
+	/**
+	 * @param source
+	 *            RAW の履歴
+	 * @param startTime
+	 *            記録開始時刻(ミリ秒)
+	 */
+	public Recorder(SampleBuffer source, File file, long startTime) {
+		this(new SampleBuffer[] { source },
+				new ChannelDescriptor[] { ChannelDescriptor.ACCELEROMETER },
+				file, startTime);
+	}
+
+	/**
+	 * @param sources
+	 *            チャンネルごとの RAW の履歴
+	 * @param descriptors
+	 *            sources と同じ順のチャンネルの種類
+	 */
+	public Recorder(SampleBuffer[] sources, ChannelDescriptor[] descriptors,
+			File file, long startTime) {
+		super("Recorder");
+		if (sources.length != descriptors.length || sources.length < 1
+				|| sources.length > RecordingFormat.MAX_CHANNELS) {
+			throw new IllegalArgumentException("channels: " + sources.length);
+		}
+		mSources = sources.clone();
+		mDescriptors = descriptors.clone();
+		mFile = file;
+		mStartTime = startTime;
+		mChunks = new ByteBuffer[sources.length];
+		for (int i = 0; i < sources.length; i++) {
+			mChunks[i] = ByteBuffer.allocate(RecordingFormat.CHUNK_HEADER_SIZE
+					+ RecordingFormat.CHUNK_RECORDS
+					* RecordingFormat.RECORD_SIZE);
+		}
+		mPending = new int[sources.length];
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * 記録開始時刻(ミリ秒)を返す
+	 */
+	public long getStartTime() {
+		return mStartTime;
+	}
+
+	public long getSampleCount() {
+		return mSampleCount;
+	}
+
+	/**
+	 * 書き込みが追いつかずに失われたサンプル数を返す
+	 */
+	public long getDropped() {
+		SampleBuffer.Cursor[] cursors = mCursors;
+		if (cursors == null) {
+			return 0;
+		}
+		long dropped = 0;
+		for (int i = 0; i < cursors.length; i++) {
+			dropped += cursors[i].getDropped();
+		}
+		return dropped;
+	}
+
+	/**
+	 * 記録するシーケンスの範囲を設定する(1チャンネルのときだけ、開始前に呼ぶ)
+	 *
+	 * @param start
+	 *            最初のサンプルのシーケンス(履歴に残っていれば過去でもよい)
+	 * @param end
+	 *            最後のサンプルの次のシーケンス
+	 */
+	public void setRange(long start, long end) {
+		if (mSources.length != 1 || start < 0 || end < start) {
+			throw new IllegalArgumentException("range: " + start + "-" + end);
+		}
+		mRangeStart = start;
+		mRangeEnd = end;
+	}
+
+	/**
+	 * 最初のチャンクを書き込んだ時刻(System.nanoTime())を返す(まだなら 0)
+	 */
+	public long getFirstWriteTime() {
+		return mFirstWriteTime;
+	}
+
+	/**
+	 * ファイルを作成して記録を開始する
+	 */
+	public void open() throws IOException {
+		mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+		mRandomAccessFile.setLength(0);
+		mChannel = mRandomAccessFile.getChannel();
+
+		RecordingFormat.Header header = new RecordingFormat.Header();
+		header.startTime = mStartTime;
+		header.channels = mDescriptors;
+		ByteBuffer buffer = ByteBuffer.allocate(header.getSize());
+		RecordingFormat.writeHeader(buffer, header);
+		buffer.flip();
+		RecordingFormat.writeFully(mChannel, buffer, 0);
+		mPosition = header.getSize();
+
+		// これ以降に追加されたサンプルを記録する
+		SampleBuffer.Cursor[] cursors = new SampleBuffer.Cursor[mSources.length];
+		for (int i = 0; i < cursors.length; i++) {
+			cursors[i] = mRangeStart >= 0 ? mSources[i]
+					.newCursor(mRangeStart) : mSources[i].newCursor();
+		}
+		mCursors = cursors;
+		mRunning = true;
+		start();
+	}
+
+	/**
+	 * 残りのサンプルを書き込み、ファイルを閉じる
+	 */
+	public void close() throws IOException {
+		synchronized (mWakeLock) {
+			mRunning = false;
+			mWakeLock.notifyAll();
+		}
+		boolean joined = false;
+		while (!joined) {
+			try {
+				join();
+				joined = true;
+			} catch (InterruptedException e) {
+				// 書き込みが終わるまで待つ
+			}
+		}
+		if (mError != null) {
+			throw mError;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			try {
+				while (mRunning) {
+					drain();
+					if (mRangeStart >= 0) {
+						flushChunk(0);
+						if (mCursors[0].getPosition() >= mRangeEnd) {
+							break;
+						}
+					}
+					synchronized (mWakeLock) {
+						if (mRunning) {
+							try {
+								mWakeLock.wait(WRITE_INTERVAL);
+							} catch (InterruptedException e) {
+								// 次の書き込みへ
+							}
+						}
+					}
+				}
+				drain();
+				for (int i = 0; i < mChunks.length; i++) {
+					flushChunk(i);
+				}
+				RecordingFormat.finalizeHeader(mChannel, mSampleCount,
+						mChunkCount);
+			} finally {
+				mRandomAccessFile.close();
+			}
+		} catch (IOException e) {
+			mError = e;
+		}
+	}
+
+	// 未読のサンプルをチャンクに詰め、一杯になったら書き込む
+	private void drain() throws IOException {
+		SampleBuffer.Cursor[] cursors = mCursors;
+		for (int channel = 0; channel < cursors.length; channel++) {
+			ByteBuffer chunk = mChunks[channel];
+			SampleBuffer.Cursor cursor = cursors[channel];
+			int read;
+			while ((read = cursor.read(mValues, mTimestamps, (int) Math.min(
+					RecordingFormat.CHUNK_RECORDS - mPending[channel],
+					mRangeEnd - cursor.getPosition()))) > 0) {
+				if (mPending[channel] == 0) {
+					chunk.clear();
+					chunk.position(RecordingFormat.CHUNK_HEADER_SIZE);
+				}
+				for (int i = 0; i < read; i++) {
+					chunk.putLong(mTimestamps[i]);
+					chunk.putFloat(mValues[SampleBuffer.CHANNEL_X][i]);
+					chunk.putFloat(mValues[SampleBuffer.CHANNEL_Y][i]);
+					chunk.putFloat(mValues[SampleBuffer.CHANNEL_Z][i]);
+				}
+				mPending[channel] += read;
+				if (mPending[channel] == RecordingFormat.CHUNK_RECORDS) {
+					flushChunk(channel);
+				}
+			}
+		}
+	}
+
+	private void flushChunk(int channel) throws IOException {
+		int pending = mPending[channel];
+		if (pending == 0) {
+			return;
+		}
+		ByteBuffer chunk = mChunks[channel];
+		int payload = pending * RecordingFormat.RECORD_SIZE;
+		int crc = RecordingFormat.checksum(mCrc, chunk.array(),
+				RecordingFormat.CHUNK_HEADER_SIZE, payload);
+		chunk.putInt(0, RecordingFormat.CHUNK_MAGIC);
+		chunk.putInt(4, pending);
+		chunk.putInt(8, crc);
+		chunk.putInt(12, channel);
+		chunk.flip();
+		RecordingFormat.writeFully(mChannel, chunk, mPosition);
+		mPosition += RecordingFormat.CHUNK_HEADER_SIZE + payload;
+
+		if (mFirstWriteTime == 0) {
+			mFirstWriteTime = System.nanoTime();
+		}
+		mSampleCount += pending;
+		mChunkCount++;
+		mPending[channel] = 0;
+	}
+}
@@ -0,0 +1,277 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 保存した記録(.acc, .acz)をブロックに分け、複数のスレッドで集計する
+ *
+ * 記録を連続したブロックの範囲(スレッド数 × SPLITS 個)に分けてスレッドプールで
+ * 並行して{@link AnalysisReport}に集計し、最後に時間順にまとめる。範囲を
+ * スレッド数より細かく分けるのは、早く終わったスレッドが次の範囲を取って
+ * 処理量の偏りをならすため。
+ *
+ * ForkJoinPool は API 21 からなので、java.util.concurrent の固定サイズの
+ * スレッドプールを使う(範囲の中で待ち合わせないのでデッドロックしない)。
+ */
+public class RecordingAnalyzer {
+
+	// 1スレッドあたりの範囲の数
+	private static final int SPLITS = 4;
+	// .acc を読み込むときのブロックのサンプル数
+	private static final int BLOCK_SIZE = ArchiveFormat.BLOCK_RECORDS;
+
+	public static final float DEFAULT_THRESHOLD = 9.80665f;
+	public static final float DEFAULT_RANGE = 2 * 9.80665f;
+	private static final float GRAVITY = 9.80665f;
+
+	private final int mThreads;
+	private final ExecutorService mExecutor;
+	private float mThreshold = DEFAULT_THRESHOLD;
+	private float mRange = DEFAULT_RANGE;
+
+	public RecordingAnalyzer(int threads) {
+		mThreads = Math.max(1, threads);
+		mExecutor = Executors.newFixedThreadPool(mThreads, new ThreadFactory() {
+			private int mCount = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Analyzer-" + mCount++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public int getThreads() {
+		return mThreads;
+	}
+
+	/**
+	 * ピークとみなす大きさの差を設定する
+	 */
+	public void setThreshold(float threshold) {
+		mThreshold = threshold;
+	}
+
+	/**
+	 * ヒストグラムの範囲を設定する
+	 */
+	public void setRange(float range) {
+		mRange = range;
+	}
+
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * file の channel を集計する
+	 *
+	 * 拡張子が{@link ArchiveFormat#EXTENSION}なら圧縮したファイルとして読む。
+	 */
+	public AnalysisReport analyze(File file, int channel) throws IOException {
+		Input input;
+		if (file.getName().endsWith(ArchiveFormat.EXTENSION)) {
+			input = new ArchiveInput(file, channel);
+		} else {
+			input = new RecordingInput(file, channel);
+		}
+		try {
+			// 加速度は重力加速度との差でピークを求める
+			float baseline = input.getType() == ChannelDescriptor.TYPE_ACCELEROMETER ? GRAVITY
+					: 0;
+			return analyze(input, new AnalysisReport(baseline, mThreshold,
+					mRange));
+		} finally {
+			input.close();
+		}
+	}
+
+	private AnalysisReport analyze(final Input input,
+			final AnalysisReport report) throws IOException {
+		int blocks = input.getBlockCount();
+		int ranges = Math.min(blocks, mThreads * SPLITS);
+		List<Future<AnalysisReport>> futures = new ArrayList<Future<AnalysisReport>>(
+				ranges);
+		for (int i = 0; i < ranges; i++) {
+			final int from = (int) ((long) blocks * i / ranges);
+			final int to = (int) ((long) blocks * (i + 1) / ranges);
+			futures.add(mExecutor.submit(new Callable<AnalysisReport>() {
+				@Override
+				public AnalysisReport call() throws Exception {
+					AnalysisReport partial = report.newPartial();
+					Worker worker = input.newWorker();
+					try {
+						for (int block = from; block < to; block++) {
+							partial.add(worker.read(block));
+						}
+					} finally {
+						worker.close();
+					}
+					return partial;
+				}
+			}));
+		}
+
+		// 時間順にまとめる
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				report.merge(futures.get(i).get());
+			}
+		} catch (InterruptedException e) {
+			cancel(futures);
+			throw new IOException("interrupted");
+		} catch (ExecutionException e) {
+			cancel(futures);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(String.valueOf(cause));
+		}
+		return report;
+	}
+
+	private static void cancel(List<Future<AnalysisReport>> futures) {
+		for (int i = 0; i < futures.size(); i++) {
+			futures.get(i).cancel(true);
+		}
+	}
+
+	// ブロック単位で読める記録
+	private interface Input {
+		int getType();
+
+		int getBlockCount();
+
+		Worker newWorker() throws IOException;
+
+		void close() throws IOException;
+	}
+
+	// スレッドごとの読み込み
+	private interface Worker {
+		SampleWindow read(int block) throws IOException;
+
+		void close() throws IOException;
+	}
+
+	// .acc はメモリマップの状態を共有できないので、範囲ごとに開き直す
+	private static class RecordingInput implements Input {
+		private final File mFile;
+		private final int mChannel;
+		private final int mType;
+		private final int mBlockCount;
+
+		public RecordingInput(File file, int channel) throws IOException {
+			RecordingReader reader = new RecordingReader(file, channel);
+			try {
+				mFile = file;
+				mChannel = channel;
+				mType = reader.getChannels()[channel].type;
+				mBlockCount = (int) ((reader.getSampleCount() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+			} finally {
+				reader.close();
+			}
+		}
+
+		@Override
+		public int getType() {
+			return mType;
+		}
+
+		@Override
+		public int getBlockCount() {
+			return mBlockCount;
+		}
+
+		@Override
+		public Worker newWorker() throws IOException {
+			final RecordingReader reader = new RecordingReader(mFile, mChannel);
+			final RecordingReader.Window window = reader.newWindow();
+			return new Worker() {
+				@Override
+				public SampleWindow read(int block) {
+					reader.read(window, (long) block * BLOCK_SIZE, BLOCK_SIZE);
+					return window;
+				}
+
+				@Override
+				public void close() throws IOException {
+					reader.close();
+				}
+			};
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	// .acz はブロックの領域をスレッドごとに用意すれば1つの reader を共有できる
+	private static class ArchiveInput implements Input {
+		private final ArchiveReader mReader;
+		private final int mType;
+		private final int[] mBlocks;
+
+		public ArchiveInput(File file, int channel) throws IOException {
+			mReader = new ArchiveReader(file);
+			ChannelDescriptor[] channels = mReader.getChannels();
+			if (channel < 0 || channel >= channels.length) {
+				mReader.close();
+				throw new IOException("no such channel: " + channel);
+			}
+			mType = channels[channel].type;
+			int count = 0;
+			int[] blocks = new int[mReader.getBlockCount()];
+			for (int i = 0; i < blocks.length; i++) {
+				if (mReader.getBlockChannel(i) == channel) {
+					blocks[count++] = i;
+				}
+			}
+			mBlocks = new int[count];
+			System.arraycopy(blocks, 0, mBlocks, 0, count);
+		}
+
+		@Override
+		public int getType() {
+			return mType;
+		}
+
+		@Override
+		public int getBlockCount() {
+			return mBlocks.length;
+		}
+
+		@Override
+		public Worker newWorker() {
+			final ArchiveReader.Block data = mReader.newBlock();
+			return new Worker() {
+				@Override
+				public SampleWindow read(int block) throws IOException {
+					mReader.read(mBlocks[block], data);
+					return data;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+
+		@Override
+		public void close() throws IOException {
+			mReader.close();
+		}
+	}
+}
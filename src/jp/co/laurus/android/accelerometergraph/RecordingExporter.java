@@ -0,0 +1,475 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 記録ファイルを CSV、列形式({@link ColumnarFormat})、圧縮
+ * ({@link ArchiveFormat})に書き出す
+ *
+ * 記録ファイルを{@link RecordingReader}で一定の件数ずつ読みながら書き出すので、
+ * ファイルの大きさによらずメモリは一定。CSV の数値は{@link FloatFormatter}で
+ * 作業用の配列に直接書き、大きな direct バッファにまとめてから書き込む。
+ * バッファは書き出しのたびに確保せず、同じインスタンスで使い回す。
+ *
+ * 書き出しは呼び出したスレッドで行う。別のスレッドから{@link #getProcessed}と
+ * {@link #getTotal}で進み具合を読み、{@link #cancel}で中断できる。中断したときは
+ * 書きかけのファイルを削除して InterruptedIOException を投げる。
+ * 同時に書き出せるのは1つだけ。
+ */
+public class RecordingExporter {
+
+	public static final int FORMAT_CSV = 0;
+	public static final int FORMAT_ARCHIVE = 1;
+	public static final int FORMAT_COLUMNAR = 2;
+
+	/**
+	 * CSV の小数点以下の桁数の既定値
+	 */
+	public static final int DEFAULT_DECIMALS = 6;
+
+	private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+	private static final int TEXT_BUFFER_SIZE = 64 * 1024;
+	private static final int WINDOW_SIZE = RecordingFormat.CHUNK_RECORDS;
+	// CSV の1行の最大のバイト数
+	private static final int MAX_LINE_LENGTH = FloatFormatter.MAX_LONG_LENGTH
+			+ 3 * (1 + FloatFormatter.MAX_FLOAT_LENGTH) + 1;
+
+	// 作業領域(書き出しのたびに使い回す)
+	private ByteBuffer mOutput;
+	private final byte[] mText = new byte[TEXT_BUFFER_SIZE];
+	private int mTextLength;
+	private final long[] mTimestamps = new long[ColumnarFormat.GROUP_ROWS];
+	private final float[][] mValues = new float[3][ColumnarFormat.GROUP_ROWS];
+	private long[] mGroupOffsets = new long[64];
+	private int[] mGroupChannels = new int[64];
+	private int[] mGroupRows = new int[64];
+
+	private FileChannel mChannel;
+	private long mPosition;
+	private int mDecimals = DEFAULT_DECIMALS;
+
+	private volatile boolean mCancelled;
+	private volatile long mProcessed;
+	private volatile long mTotal;
+
+	/**
+	 * CSV の小数点以下の桁数を設定する
+	 */
+	public void setDecimals(int decimals) {
+		if (decimals < 0 || decimals > FloatFormatter.MAX_DECIMALS) {
+			throw new IllegalArgumentException("decimals: " + decimals);
+		}
+		mDecimals = decimals;
+	}
+
+	/**
+	 * 書き出し中のものを中断する(書き出しの前に呼んでもよい)
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * 書き出したサンプル数を返す
+	 */
+	public long getProcessed() {
+		return mProcessed;
+	}
+
+	/**
+	 * 書き出すサンプル数を返す(分からなければ 0)
+	 */
+	public long getTotal() {
+		return mTotal;
+	}
+
+	/**
+	 * format の形式で全体を書き出す(CSV は加速度のチャンネルだけ)
+	 *
+	 * @return 書き出したサンプル数
+	 */
+	public long export(int format, File source, File destination)
+			throws IOException {
+		switch (format) {
+		case FORMAT_CSV:
+			return exportCsv(source, destination, 0);
+		case FORMAT_ARCHIVE:
+			return exportArchive(source, destination,
+					SampleCodec.ENCODING_XOR, 0);
+		case FORMAT_COLUMNAR:
+			return exportColumnar(source, destination);
+		default:
+			throw new IllegalArgumentException("format: " + format);
+		}
+	}
+
+	/**
+	 * 1チャンネルを「タイムスタンプ(ナノ秒),x,y,z」の行で書き出す
+	 *
+	 * @return 書き出したサンプル数
+	 */
+	public synchronized long exportCsv(File source, File destination,
+			int channel) throws IOException {
+		RecordingReader reader = new RecordingReader(source, channel);
+		boolean completed = false;
+		try {
+			begin(reader.getSampleCount());
+			open(destination);
+			RecordingReader.Window window = reader.newWindow();
+			long count = reader.getSampleCount();
+			for (long index = 0; index < count; index += WINDOW_SIZE) {
+				checkCancelled();
+				reader.read(window, index, WINDOW_SIZE);
+				int size = window.size();
+				for (int i = 0; i < size; i++) {
+					appendLine(window.getTimestamp(i), window.get(
+							SampleBuffer.CHANNEL_X, i), window.get(
+							SampleBuffer.CHANNEL_Y, i), window.get(
+							SampleBuffer.CHANNEL_Z, i));
+				}
+				mProcessed += size;
+			}
+			flushText();
+			flushOutput();
+			completed = true;
+			return count;
+		} finally {
+			finish(destination, completed);
+			reader.close();
+		}
+	}
+
+	/**
+	 * 1チャンネルを{@link Resampler}で等間隔に変換して CSV に書き出す
+	 *
+	 * @return 書き出したサンプル数
+	 */
+	public synchronized long exportCsvResampled(File source,
+			File destination, int channel, int mode, float rate)
+			throws IOException {
+		RecordingReader reader = new RecordingReader(source, channel);
+		boolean completed = false;
+		try {
+			begin(reader.getSampleCount());
+			open(destination);
+			ResampledWriter writer = new ResampledWriter();
+			Resampler resampler = new Resampler(3, mode, rate, writer);
+			RecordingReader.Window window = reader.newWindow();
+			long count = reader.getSampleCount();
+			for (long index = 0; index < count; index += WINDOW_SIZE) {
+				checkCancelled();
+				reader.read(window, index, WINDOW_SIZE);
+				int size = copyWindow(window, 0);
+				resampler.process(mTimestamps, mValues, 0, size);
+				writer.checkError();
+				mProcessed += size;
+			}
+			resampler.flush();
+			writer.checkError();
+			flushText();
+			flushOutput();
+			completed = true;
+			return writer.mCount;
+		} finally {
+			finish(destination, completed);
+			reader.close();
+		}
+	}
+
+	/**
+	 * 全チャンネルを列形式で書き出す
+	 *
+	 * @return 書き出したサンプル数
+	 */
+	public synchronized long exportColumnar(File source, File destination)
+			throws IOException {
+		RecordingReader reader = new RecordingReader(source);
+		boolean completed = false;
+		try {
+			ChannelDescriptor[] channels = reader.getChannels();
+			begin(countSamples(source, reader, channels.length));
+			open(destination);
+
+			ColumnarFormat.Header header = new ColumnarFormat.Header();
+			header.startTime = reader.getStartTime();
+			header.channels = channels;
+			ColumnarFormat.writeHeader(mOutput, header);
+
+			int groupCount = 0;
+			long total = 0;
+			for (int channel = 0; channel < channels.length; channel++) {
+				if (channel > 0) {
+					reader.close();
+					reader = new RecordingReader(source, channel);
+				}
+				RecordingReader.Window window = reader.newWindow();
+				long count = reader.getSampleCount();
+				int rows = 0;
+				for (long index = 0; index < count; index += WINDOW_SIZE) {
+					checkCancelled();
+					reader.read(window, index, WINDOW_SIZE);
+					rows += copyWindow(window, rows);
+					if (rows + WINDOW_SIZE > ColumnarFormat.GROUP_ROWS
+							|| index + WINDOW_SIZE >= count) {
+						writeGroup(groupCount++, channel, rows);
+						mProcessed += rows;
+						total += rows;
+						rows = 0;
+					}
+				}
+			}
+			writeFooter(groupCount);
+			flushOutput();
+			completed = true;
+			return total;
+		} finally {
+			finish(destination, completed);
+			reader.close();
+		}
+	}
+
+	/**
+	 * 全チャンネルを{@link ArchiveWriter}で圧縮して書き出す
+	 *
+	 * @return 書き出したサンプル数
+	 */
+	public synchronized long exportArchive(File source, File destination,
+			int encoding, float quantum) throws IOException {
+		RecordingReader reader = new RecordingReader(source);
+		ArchiveWriter writer = null;
+		boolean completed = false;
+		try {
+			ChannelDescriptor[] channels = reader.getChannels();
+			begin(countSamples(source, reader, channels.length));
+			writer = new ArchiveWriter(destination, channels, reader
+					.getStartTime(), encoding, quantum);
+			writer.open();
+
+			float[][] values = mValues;
+			for (int channel = 0; channel < channels.length; channel++) {
+				if (channel > 0) {
+					reader.close();
+					reader = new RecordingReader(source, channel);
+				}
+				RecordingReader.Window window = reader.newWindow();
+				long count = reader.getSampleCount();
+				// 1回の write() が1ブロックになるので、ブロック単位で読む
+				int step = ArchiveFormat.BLOCK_RECORDS;
+				for (long index = 0; index < count; index += step) {
+					checkCancelled();
+					reader.read(window, index, step);
+					int size = copyWindow(window, 0);
+					writer.write(channel, mTimestamps, values[0], values[1],
+							values[2], 0, size);
+					mProcessed += size;
+				}
+			}
+			writer.close();
+			completed = true;
+			return writer.getSampleCount();
+		} finally {
+			if (writer != null && !completed) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					// 削除するので閉じられなくてよい
+				}
+			}
+			mCancelled = false;
+			if (!completed) {
+				destination.delete();
+			}
+			reader.close();
+		}
+	}
+
+	private void begin(long total) {
+		mProcessed = 0;
+		mTotal = total;
+	}
+
+	// 全チャンネルのサンプル数を数える(reader は最初のチャンネル)
+	private static long countSamples(File source, RecordingReader reader,
+			int channels) throws IOException {
+		long total = reader.getSampleCount();
+		for (int channel = 1; channel < channels; channel++) {
+			RecordingReader other = new RecordingReader(source, channel);
+			total += other.getSampleCount();
+			other.close();
+		}
+		return total;
+	}
+
+	private void checkCancelled() throws IOException {
+		if (mCancelled) {
+			throw new InterruptedIOException("export cancelled");
+		}
+	}
+
+	private void open(File destination) throws IOException {
+		if (mOutput == null) {
+			mOutput = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+		}
+		RandomAccessFile file = new RandomAccessFile(destination, "rw");
+		file.setLength(0);
+		mChannel = file.getChannel();
+		mPosition = 0;
+		mOutput.clear();
+		mTextLength = 0;
+	}
+
+	// ファイルを閉じ、完了しなかったら削除する
+	private void finish(File destination, boolean completed)
+			throws IOException {
+		mCancelled = false;
+		FileChannel channel = mChannel;
+		mChannel = null;
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} finally {
+			if (!completed) {
+				destination.delete();
+			}
+		}
+	}
+
+	// 窓のサンプルを作業用の配列の offset 以降にコピーする
+	private int copyWindow(RecordingReader.Window window, int offset) {
+		int size = window.size();
+		float[] x = mValues[0];
+		float[] y = mValues[1];
+		float[] z = mValues[2];
+		for (int i = 0; i < size; i++) {
+			mTimestamps[offset + i] = window.getTimestamp(i);
+			x[offset + i] = window.get(SampleBuffer.CHANNEL_X, i);
+			y[offset + i] = window.get(SampleBuffer.CHANNEL_Y, i);
+			z[offset + i] = window.get(SampleBuffer.CHANNEL_Z, i);
+		}
+		return size;
+	}
+
+	private void appendLine(long timestamp, float x, float y, float z)
+			throws IOException {
+		if (mTextLength > TEXT_BUFFER_SIZE - MAX_LINE_LENGTH) {
+			flushText();
+		}
+		byte[] text = mText;
+		int decimals = mDecimals;
+		int position = FloatFormatter.writeLong(timestamp, text, mTextLength);
+		text[position++] = ',';
+		position = FloatFormatter.writeFloat(x, decimals, text, position);
+		text[position++] = ',';
+		position = FloatFormatter.writeFloat(y, decimals, text, position);
+		text[position++] = ',';
+		position = FloatFormatter.writeFloat(z, decimals, text, position);
+		text[position++] = '\n';
+		mTextLength = position;
+	}
+
+	// 作業用の配列の文字を direct バッファに移す
+	private void flushText() throws IOException {
+		if (mOutput.remaining() < mTextLength) {
+			flushOutput();
+		}
+		mOutput.put(mText, 0, mTextLength);
+		mTextLength = 0;
+	}
+
+	private void flushOutput() throws IOException {
+		mOutput.flip();
+		int length = mOutput.remaining();
+		RecordingFormat.writeFully(mChannel, mOutput, mPosition);
+		mPosition += length;
+		mOutput.clear();
+	}
+
+	private void writeGroup(int group, int channel, int rows)
+			throws IOException {
+		int size = ColumnarFormat.GROUP_HEADER_SIZE + rows
+				* ColumnarFormat.ROW_SIZE;
+		if (mOutput.remaining() < size) {
+			flushOutput();
+		}
+		if (group == mGroupOffsets.length) {
+			mGroupOffsets = grow(mGroupOffsets);
+			mGroupChannels = grow(mGroupChannels);
+			mGroupRows = grow(mGroupRows);
+		}
+		mGroupOffsets[group] = mPosition + mOutput.position();
+		mGroupChannels[group] = channel;
+		mGroupRows[group] = rows;
+
+		ByteBuffer output = mOutput;
+		output.putInt(ColumnarFormat.GROUP_MAGIC);
+		output.putInt(channel);
+		output.putInt(rows);
+		output.putInt(0);
+		// 列ごとにまとめて書き込む
+		output.asLongBuffer().put(mTimestamps, 0, rows);
+		output.position(output.position() + rows * 8);
+		for (int axis = 0; axis < 3; axis++) {
+			output.asFloatBuffer().put(mValues[axis], 0, rows);
+			output.position(output.position() + rows * 4);
+		}
+	}
+
+	private void writeFooter(int groupCount) throws IOException {
+		for (int i = 0; i < groupCount; i++) {
+			if (mOutput.remaining() < ColumnarFormat.INDEX_ENTRY_SIZE) {
+				flushOutput();
+			}
+			mOutput.putLong(mGroupOffsets[i]);
+			mOutput.putInt(mGroupChannels[i]);
+			mOutput.putInt(mGroupRows[i]);
+		}
+		if (mOutput.remaining() < ColumnarFormat.FOOTER_TAIL_SIZE) {
+			flushOutput();
+		}
+		mOutput.putInt(groupCount);
+		mOutput.putInt(ColumnarFormat.FOOTER_MAGIC);
+	}
+
+	private static long[] grow(long[] array) {
+		long[] grown = new long[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static int[] grow(int[] array) {
+		int[] grown = new int[array.length * 2];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	// Resampler の出力を書き出す(例外は後で投げ直す)
+	private class ResampledWriter implements Resampler.Output {
+		private IOException mError;
+		private long mCount;
+
+		@Override
+		public void onSample(long timestamp, float[] values) {
+			if (mError != null) {
+				return;
+			}
+			try {
+				appendLine(timestamp, values[0], values[1], values[2]);
+				mCount++;
+			} catch (IOException e) {
+				mError = e;
+			}
+		}
+
+		public void checkError() throws IOException {
+			if (mError != null) {
+				throw mError;
+			}
+		}
+	}
+}
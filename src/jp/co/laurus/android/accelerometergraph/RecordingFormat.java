@@ -0,0 +1,260 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * 加速度の記録ファイル(.acc)の形式
+ *
+ * <pre>
+ * ヘッダ(64バイト + チャンネル表)
+ *   int   MAGIC
+ *   short VERSION
+ *   short フラグ(FLAG_FINALIZED)
+ *   int   ヘッダのサイズ(チャンネル表を含む)
+ *   int   1サンプルのサイズ
+ *   long  記録開始時刻(ミリ秒)
+ *   long  サンプル数(全チャンネルの合計、終了処理で書き込む)
+ *   int   チャンク数(終了処理で書き込む)
+ *   int   チャンネル数
+ *   チャンネル表(CHANNEL_SIZE バイト) × チャンネル数
+ *     int   センサーの種類
+ *     int   軸の数
+ *     byte[24] 名前(UTF-8、0で埋める)
+ * チャンク(繰り返し)
+ *   int   CHUNK_MAGIC
+ *   int   サンプル数
+ *   int   サンプル部分の CRC32
+ *   int   チャンネル番号
+ *   サンプル(long タイムスタンプ(ナノ秒), float x, float y, float z) × サンプル数
+ * </pre>
+ *
+ * チャンネルごとにチャンクを作り、一杯になった順にファイルへ書き込むので、
+ * 各チャンネルのチャンクは時間順に交互に並ぶ。タイムスタンプは全チャンネルで
+ * 共通の時刻({@link ChannelRegistry})。
+ * バージョン1のファイルはチャンネル表がなく、加速度だけを含む。
+ *
+ * 終了処理が行われなかったファイルは、CRC が一致する最後のチャンクまでを有効とする。
+ */
+public class RecordingFormat {
+
+	public static final String EXTENSION = ".acc";
+
+	public static final int MAGIC = 0x41434347; // "ACCG"
+	public static final short VERSION = 2;
+	public static final short VERSION_1 = 1;
+	public static final short FLAG_FINALIZED = 0x0001;
+
+	public static final int HEADER_SIZE = 64;
+	public static final int CHANNEL_SIZE = 32;
+	public static final int MAX_CHANNELS = 64;
+	public static final int CHUNK_HEADER_SIZE = 16;
+	public static final int CHUNK_MAGIC = 0x43484e4b; // "CHNK"
+	public static final int RECORD_SIZE = 8 + 4 * 3;
+
+	// 1チャンクあたりの最大サンプル数
+	public static final int CHUNK_RECORDS = 1024;
+
+	private static final int OFFSET_FLAGS = 6;
+	private static final int OFFSET_SAMPLE_COUNT = 24;
+	private static final int CHANNEL_NAME_SIZE = 24;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private RecordingFormat() {
+	}
+
+	/**
+	 * ファイルのヘッダ
+	 */
+	public static class Header {
+		public short version;
+		public short flags;
+		public long startTime;
+		public long sampleCount;
+		public int chunkCount;
+		public ChannelDescriptor[] channels = { ChannelDescriptor.ACCELEROMETER };
+
+		/**
+		 * チャンネル表を含むヘッダのサイズ
+		 */
+		public int getSize() {
+			return HEADER_SIZE + channels.length * CHANNEL_SIZE;
+		}
+
+		public boolean isFinalized() {
+			return (flags & FLAG_FINALIZED) != 0;
+		}
+	}
+
+	/**
+	 * buffer に header.getSize() バイトを書き込む
+	 */
+	public static void writeHeader(ByteBuffer buffer, Header header) {
+		int start = buffer.position();
+		ChannelDescriptor[] channels = header.channels;
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putShort(header.flags);
+		buffer.putInt(header.getSize());
+		buffer.putInt(RECORD_SIZE);
+		buffer.putLong(header.startTime);
+		buffer.putLong(header.sampleCount);
+		buffer.putInt(header.chunkCount);
+		buffer.putInt(channels.length);
+		while (buffer.position() < start + HEADER_SIZE) {
+			buffer.put((byte) 0);
+		}
+		writeChannels(buffer, channels);
+	}
+
+	/**
+	 * チャンネル表(CHANNEL_SIZE バイト × チャンネル数)を書き込む
+	 */
+	public static void writeChannels(ByteBuffer buffer,
+			ChannelDescriptor[] channels) {
+		for (int i = 0; i < channels.length; i++) {
+			buffer.putInt(channels[i].type);
+			buffer.putInt(channels[i].axes);
+			byte[] name = channels[i].name.getBytes(UTF_8);
+			int length = Math.min(name.length, CHANNEL_NAME_SIZE);
+			buffer.put(name, 0, length);
+			for (int j = length; j < CHANNEL_NAME_SIZE; j++) {
+				buffer.put((byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * 先頭の HEADER_SIZE バイトを読む
+	 *
+	 * チャンネル表はまだ読まないので、{@link #readChannels}で続きを読む。
+	 *
+	 * @return チャンネル表を含むヘッダのサイズ
+	 */
+	private static int readFixedHeader(ByteBuffer buffer, Header header)
+			throws IOException {
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+			throw new IOException("not a recording file");
+		}
+		header.version = buffer.getShort();
+		header.flags = buffer.getShort();
+		int headerSize = buffer.getInt();
+		int recordSize = buffer.getInt();
+		if ((header.version != VERSION && header.version != VERSION_1)
+				|| headerSize < HEADER_SIZE || recordSize != RECORD_SIZE) {
+			throw new IOException("unsupported recording version: "
+					+ header.version);
+		}
+		header.startTime = buffer.getLong();
+		header.sampleCount = buffer.getLong();
+		header.chunkCount = buffer.getInt();
+		if (header.version == VERSION_1) {
+			return HEADER_SIZE;
+		}
+		int channelCount = buffer.getInt();
+		if (channelCount < 1 || channelCount > MAX_CHANNELS
+				|| headerSize != HEADER_SIZE + channelCount * CHANNEL_SIZE) {
+			throw new IOException("broken channel table: " + channelCount);
+		}
+		header.channels = new ChannelDescriptor[channelCount];
+		return headerSize;
+	}
+
+	/**
+	 * channels の長さだけチャンネル表を読む
+	 */
+	public static void readChannels(ByteBuffer buffer,
+			ChannelDescriptor[] channels) {
+		byte[] name = new byte[CHANNEL_NAME_SIZE];
+		for (int i = 0; i < channels.length; i++) {
+			int type = buffer.getInt();
+			int axes = buffer.getInt();
+			buffer.get(name);
+			int length = 0;
+			while (length < CHANNEL_NAME_SIZE && name[length] != 0) {
+				length++;
+			}
+			channels[i] = new ChannelDescriptor(type, axes, new String(name,
+					0, length, UTF_8));
+		}
+	}
+
+	public static Header readHeader(ByteBuffer buffer) throws IOException {
+		Header header = new Header();
+		int start = buffer.position();
+		int size = readFixedHeader(buffer, header);
+		if (size > HEADER_SIZE) {
+			buffer.position(start + HEADER_SIZE);
+			if (buffer.remaining() < size - HEADER_SIZE) {
+				throw new IOException("unexpected end of header");
+			}
+			readChannels(buffer, header.channels);
+		}
+		return header;
+	}
+
+	public static Header readHeader(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, buffer, 0);
+		buffer.flip();
+		Header header = new Header();
+		int size = readFixedHeader(buffer, header);
+		if (size > HEADER_SIZE) {
+			ByteBuffer table = ByteBuffer.allocate(size - HEADER_SIZE);
+			readFully(channel, table, HEADER_SIZE);
+			table.flip();
+			readChannels(table, header.channels);
+		}
+		return header;
+	}
+
+	/**
+	 * 終了処理としてサンプル数とチャンク数、フラグをヘッダに書き込む
+	 */
+	public static void finalizeHeader(FileChannel channel, long sampleCount,
+			int chunkCount) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8 + 4);
+		buffer.putLong(sampleCount);
+		buffer.putInt(chunkCount);
+		buffer.flip();
+		writeFully(channel, buffer, OFFSET_SAMPLE_COUNT);
+		// 件数を書き込んだ後でフラグを立てる
+		channel.force(false);
+		ByteBuffer flags = ByteBuffer.allocate(2);
+		flags.putShort(FLAG_FINALIZED);
+		flags.flip();
+		writeFully(channel, flags, OFFSET_FLAGS);
+		channel.force(false);
+	}
+
+	/**
+	 * チャンクのサンプル部分の CRC32 を求める
+	 */
+	public static int checksum(CRC32 crc, byte[] array, int offset, int length) {
+		crc.reset();
+		crc.update(array, offset, length);
+		return (int) crc.getValue();
+	}
+
+	public static void readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("unexpected end of file");
+			}
+			position += read;
+		}
+	}
+
+	public static void writeFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
@@ -0,0 +1,448 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * {@link RecordingFormat}のファイルをメモリマップして読み込む
+ *
+ * 開いたときにはチャンクのヘッダだけを読み、チャンクごとの先頭のタイムスタンプを
+ * 索引にする。サンプルは必要になった範囲だけを一定の大きさの区間ごとにマップし、
+ * {@link Window}からコピーせずに参照する。そのためヒープより大きなファイルも扱える。
+ * 複数のチャンネルを含むファイルは、開くときに選んだ1チャンネルのチャンクだけを
+ * 索引にする。
+ */
+public class RecordingReader {
+
+	// 1回にマップする最大のバイト数
+	private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+	// 同時にマップしておく区間の数
+	private static final int MAPPED_SEGMENTS = 4;
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final RecordingFormat.Header mHeader;
+	private final int mChannelIndex;
+
+	// チャンクの索引
+	private int mChunkCount;
+	private long[] mChunkOffsets = new long[64];
+	private long[] mChunkFirstIndexes = new long[64];
+	private long[] mChunkFirstTimestamps = new long[64];
+	private int[] mChunkSizes = new int[64];
+	private long mSampleCount;
+
+	// 区間ごとの先頭のチャンク
+	private int mSegmentCount;
+	private int[] mSegmentFirstChunks = new int[8];
+
+	private final MappedByteBuffer[] mMapped = new MappedByteBuffer[MAPPED_SEGMENTS];
+	private final int[] mMappedSegments = new int[MAPPED_SEGMENTS];
+	private final long[] mMappedOffsets = new long[MAPPED_SEGMENTS];
+	private int mNextMapped;
+
+	public RecordingReader(File file) throws IOException {
+		this(file, 0);
+	}
+
+	/**
+	 * @param channel
+	 *            読み込むチャンネルの番号
+	 */
+	public RecordingReader(File file, int channel) throws IOException {
+		this(file, channel, -1);
+	}
+
+	// type が 0 以上なら、channel の代わりにヘッダーから type のチャンネルを選ぶ
+	private RecordingReader(File file, int channel, int type)
+			throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		try {
+			mChannel = mFile.getChannel();
+			mHeader = RecordingFormat.readHeader(mChannel);
+			if (type >= 0) {
+				channel = Math.max(0, findChannel(type));
+			}
+			if (channel < 0 || channel >= mHeader.channels.length) {
+				throw new IOException("no such channel: " + channel);
+			}
+			mChannelIndex = channel;
+			buildIndex();
+		} catch (IOException e) {
+			mFile.close();
+			throw e;
+		}
+		for (int i = 0; i < MAPPED_SEGMENTS; i++) {
+			mMappedSegments[i] = -1;
+		}
+	}
+
+	public void close() throws IOException {
+		for (int i = 0; i < MAPPED_SEGMENTS; i++) {
+			mMapped[i] = null;
+		}
+		mFile.close();
+	}
+
+	/**
+	 * 記録開始時刻(ミリ秒)を返す
+	 */
+	public long getStartTime() {
+		return mHeader.startTime;
+	}
+
+	/**
+	 * ファイルに含まれるチャンネルを返す
+	 */
+	public ChannelDescriptor[] getChannels() {
+		return mHeader.channels.clone();
+	}
+
+	/**
+	 * 読み込んでいるチャンネルの番号を返す
+	 */
+	/**
+	 * type(Sensor.TYPE_*)のチャンネルを開く
+	 *
+	 * 記録にそのセンサーがなければ先頭のチャンネルを開く。
+	 */
+	public static RecordingReader openType(File file, int type)
+			throws IOException {
+		return new RecordingReader(file, 0, type);
+	}
+
+	public int getChannelIndex() {
+		return mChannelIndex;
+	}
+
+	/**
+	 * type のチャンネルの番号を返す(なければ -1)
+	 */
+	public int findChannel(int type) {
+		ChannelDescriptor[] channels = mHeader.channels;
+		for (int i = 0; i < channels.length; i++) {
+			if (channels[i].type == type) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 終了処理が行われていない(記録中に中断された)ファイルなら false
+	 */
+	public boolean isFinalized() {
+		return mHeader.isFinalized();
+	}
+
+	public long getSampleCount() {
+		return mSampleCount;
+	}
+
+	public int getChunkCount() {
+		return mChunkCount;
+	}
+
+	public long getFirstTimestamp() {
+		return mSampleCount == 0 ? 0 : getTimestamp(0);
+	}
+
+	public long getLastTimestamp() {
+		return mSampleCount == 0 ? 0 : getTimestamp(mSampleCount - 1);
+	}
+
+	public long getTimestamp(long index) {
+		int chunk = chunkOf(index);
+		ByteBuffer buffer = map(chunk);
+		return buffer.getLong(recordPosition(chunk, index));
+	}
+
+	/**
+	 * timestamp 以前で最も新しいサンプルの位置を返す
+	 *
+	 * timestamp が先頭より前なら0を返す。
+	 */
+	public long findIndex(long timestamp) {
+		if (mChunkCount == 0) {
+			return 0;
+		}
+		// 索引からチャンクを探す
+		int low = 0;
+		int high = mChunkCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (mChunkFirstTimestamps[mid] <= timestamp) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		int chunk = low;
+
+		// チャンクの中を探す
+		ByteBuffer buffer = map(chunk);
+		long first = mChunkFirstIndexes[chunk];
+		int lowIndex = 0;
+		int highIndex = mChunkSizes[chunk] - 1;
+		while (lowIndex < highIndex) {
+			int mid = (lowIndex + highIndex + 1) >>> 1;
+			if (buffer.getLong(recordPosition(chunk, first + mid)) <= timestamp) {
+				lowIndex = mid;
+			} else {
+				highIndex = mid - 1;
+			}
+		}
+		return first + lowIndex;
+	}
+
+	/**
+	 * index から最大 count 件の範囲を window に設定する
+	 */
+	public void read(Window window, long index, int count) {
+		if (index < 0) {
+			index = 0;
+		}
+		window.mStart = index;
+		window.mSize = (int) Math.max(0, Math.min(count, mSampleCount - index));
+		window.mChunk = -1;
+	}
+
+	public Window newWindow() {
+		return new Window();
+	}
+
+	/**
+	 * ファイル上の連続したサンプルの範囲
+	 *
+	 * 値はマップしたファイルから直接読み、配列にはコピーしない。
+	 */
+	public class Window implements SampleWindow {
+		private long mStart;
+		private int mSize;
+
+		// 直前に参照したチャンク
+		private int mChunk = -1;
+		private long mChunkFirst;
+		private long mChunkEnd;
+		private ByteBuffer mBuffer;
+		private int mBase;
+
+		private Window() {
+		}
+
+		public long getStart() {
+			return mStart;
+		}
+
+		@Override
+		public int size() {
+			return mSize;
+		}
+
+		@Override
+		public long getTimestamp(int index) {
+			int position = position(index);
+			return mBuffer.getLong(position);
+		}
+
+		@Override
+		public float get(int channel, int index) {
+			int position = position(index) + 8;
+			ByteBuffer buffer = mBuffer;
+			if (channel == SampleBuffer.CHANNEL_R) {
+				float x = buffer.getFloat(position);
+				float y = buffer.getFloat(position + 4);
+				float z = buffer.getFloat(position + 8);
+				return (float) Math.sqrt(x * x + y * y + z * z);
+			}
+			return buffer.getFloat(position + channel * 4);
+		}
+
+		private int position(int index) {
+			long global = mStart + index;
+			if (global < mChunkFirst || global >= mChunkEnd || mChunk < 0) {
+				int chunk = chunkOf(global);
+				mChunk = chunk;
+				mChunkFirst = mChunkFirstIndexes[chunk];
+				mChunkEnd = mChunkFirst + mChunkSizes[chunk];
+				mBuffer = map(chunk);
+				mBase = recordPosition(chunk, mChunkFirst);
+			}
+			return mBase + (int) (global - mChunkFirst)
+					* RecordingFormat.RECORD_SIZE;
+		}
+	}
+
+	private int chunkOf(long index) {
+		int low = 0;
+		int high = mChunkCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (mChunkFirstIndexes[mid] <= index) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	// chunk を含む区間のマップ上での index の位置
+	private int recordPosition(int chunk, long index) {
+		int slot = mappedSlotOf(chunk);
+		long offset = mChunkOffsets[chunk] - mMappedOffsets[slot];
+		return (int) (offset + (index - mChunkFirstIndexes[chunk])
+				* RecordingFormat.RECORD_SIZE);
+	}
+
+	private int mappedSlotOf(int chunk) {
+		int segment = segmentOf(chunk);
+		for (int i = 0; i < MAPPED_SEGMENTS; i++) {
+			if (mMappedSegments[i] == segment) {
+				return i;
+			}
+		}
+		map(chunk);
+		return mappedSlotOf(chunk);
+	}
+
+	private MappedByteBuffer map(int chunk) {
+		int segment = segmentOf(chunk);
+		for (int i = 0; i < MAPPED_SEGMENTS; i++) {
+			if (mMappedSegments[i] == segment) {
+				return mMapped[i];
+			}
+		}
+
+		// 一番古い区間と入れ替える
+		int first = mSegmentFirstChunks[segment];
+		int last = segment + 1 < mSegmentCount ? mSegmentFirstChunks[segment + 1] - 1
+				: mChunkCount - 1;
+		long start = mChunkOffsets[first];
+		long end = mChunkOffsets[last] + (long) mChunkSizes[last]
+				* RecordingFormat.RECORD_SIZE;
+		MappedByteBuffer buffer;
+		try {
+			buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, start, end
+					- start);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+		int slot = mNextMapped;
+		mNextMapped = (mNextMapped + 1) % MAPPED_SEGMENTS;
+		mMapped[slot] = buffer;
+		mMappedSegments[slot] = segment;
+		mMappedOffsets[slot] = start;
+		return buffer;
+	}
+
+	private int segmentOf(int chunk) {
+		int low = 0;
+		int high = mSegmentCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (mSegmentFirstChunks[mid] <= chunk) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	// チャンクのヘッダを順に読んで索引を作る
+	private void buildIndex() throws IOException {
+		boolean verify = !mHeader.isFinalized();
+		ByteBuffer chunkHeader = ByteBuffer.allocate(RecordingFormat.CHUNK_HEADER_SIZE + 8);
+		ByteBuffer records = verify ? ByteBuffer
+				.allocate(RecordingFormat.CHUNK_RECORDS
+						* RecordingFormat.RECORD_SIZE) : null;
+		CRC32 crc = new CRC32();
+
+		long position = mHeader.getSize();
+		long size = mChannel.size();
+		long segmentStart = position;
+		// 他のチャンネルを含めて読んだチャンクの数
+		int chunks = 0;
+		while (position + chunkHeader.capacity() <= size) {
+			if (!verify && chunks == mHeader.chunkCount) {
+				break;
+			}
+			chunkHeader.clear();
+			RecordingFormat.readFully(mChannel, chunkHeader, position);
+			int count = chunkHeader.getInt(4);
+			if (chunkHeader.getInt(0) != RecordingFormat.CHUNK_MAGIC
+					|| count <= 0 || count > RecordingFormat.CHUNK_RECORDS) {
+				break;
+			}
+			long offset = position + RecordingFormat.CHUNK_HEADER_SIZE;
+			int payload = count * RecordingFormat.RECORD_SIZE;
+			if (offset + payload > size) {
+				break;
+			}
+			if (verify) {
+				// 中断されたファイルは CRC が一致するチャンクまでを使う
+				records.clear();
+				records.limit(payload);
+				RecordingFormat.readFully(mChannel, records, offset);
+				if (RecordingFormat.checksum(crc, records.array(), 0, payload) != chunkHeader
+						.getInt(8)) {
+					break;
+				}
+			}
+			chunks++;
+			if (chunkHeader.getInt(12) != mChannelIndex) {
+				position = offset + payload;
+				continue;
+			}
+
+			if (mSegmentCount == 0
+					|| offset + payload - segmentStart > SEGMENT_SIZE) {
+				addSegment(mChunkCount);
+				segmentStart = offset;
+			}
+			addChunk(offset, count, chunkHeader
+					.getLong(RecordingFormat.CHUNK_HEADER_SIZE));
+			position = offset + payload;
+		}
+	}
+
+	private void addChunk(long offset, int count, long firstTimestamp) {
+		if (mChunkCount == mChunkOffsets.length) {
+			int length = mChunkCount * 2;
+			mChunkOffsets = grow(mChunkOffsets, length);
+			mChunkFirstIndexes = grow(mChunkFirstIndexes, length);
+			mChunkFirstTimestamps = grow(mChunkFirstTimestamps, length);
+			int[] sizes = new int[length];
+			System.arraycopy(mChunkSizes, 0, sizes, 0, mChunkCount);
+			mChunkSizes = sizes;
+		}
+		mChunkOffsets[mChunkCount] = offset;
+		mChunkFirstIndexes[mChunkCount] = mSampleCount;
+		mChunkFirstTimestamps[mChunkCount] = firstTimestamp;
+		mChunkSizes[mChunkCount] = count;
+		mChunkCount++;
+		mSampleCount += count;
+	}
+
+	private void addSegment(int firstChunk) {
+		if (mSegmentCount == mSegmentFirstChunks.length) {
+			int[] segments = new int[mSegmentCount * 2];
+			System.arraycopy(mSegmentFirstChunks, 0, segments, 0,
+					mSegmentCount);
+			mSegmentFirstChunks = segments;
+		}
+		mSegmentFirstChunks[mSegmentCount++] = firstChunk;
+	}
+
+	private static long[] grow(long[] array, int length) {
+		long[] grown = new long[length];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
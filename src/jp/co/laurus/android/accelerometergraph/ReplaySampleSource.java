@@ -0,0 +1,302 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.IOException;
+
+/**
+ * 記録ファイルや生成した信号を再生してサンプルを供給する
+ *
+ * 専用のスレッドで{@link Input}から読み、元のタイミング、その N 倍の速さ、
+ * または待たずにできるだけ速く{@link SampleSource.Sink}へ渡す。期限を
+ * 過ぎたサンプルはまとめて渡す。タイムスタンプは開始時刻からの元の間隔に
+ * 置き換えるので、止めてから再開しても単調に増える。
+ *
+ * 時刻と待機は{@link FrameScheduler.Clock}を通して行う。
+ */
+public class ReplaySampleSource implements SampleSource {
+
+	/**
+	 * 再生するサンプル
+	 */
+	public interface Input {
+		/**
+		 * 続きのサンプルを最大 max 件書き込む
+		 *
+		 * @return 書き込んだ件数(終わりなら0)
+		 */
+		int read(long[] timestamps, float[] x, float[] y, float[] z, int max)
+				throws IOException;
+
+		/**
+		 * サンプリング周波数(Hz)を返す(分からなければ0)
+		 */
+		float getSampleRate();
+	}
+
+	/**
+	 * 記録ファイルを先頭から順に読む
+	 */
+	public static class RecordingInput implements Input {
+		private final RecordingReader mReader;
+		private final RecordingReader.Window mWindow;
+		private long mPosition;
+
+		public RecordingInput(RecordingReader reader) {
+			mReader = reader;
+			mWindow = reader.newWindow();
+		}
+
+		@Override
+		public int read(long[] timestamps, float[] x, float[] y, float[] z,
+				int max) {
+			RecordingReader.Window window = mWindow;
+			mReader.read(window, mPosition, max);
+			int count = window.size();
+			for (int i = 0; i < count; i++) {
+				timestamps[i] = window.getTimestamp(i);
+				x[i] = window.get(SampleBuffer.CHANNEL_X, i);
+				y[i] = window.get(SampleBuffer.CHANNEL_Y, i);
+				z[i] = window.get(SampleBuffer.CHANNEL_Z, i);
+			}
+			mPosition += count;
+			return count;
+		}
+
+		@Override
+		public float getSampleRate() {
+			long count = mReader.getSampleCount();
+			long span = mReader.getLastTimestamp() - mReader.getFirstTimestamp();
+			return count > 1 && span > 0 ? (count - 1) * 1e9f / span : 0;
+		}
+	}
+
+	/**
+	 * 速さに指定すると待たずに再生する
+	 */
+	public static final float AS_FAST_AS_POSSIBLE = 0;
+
+	private static final int BLOCK_SIZE = 256;
+
+	private final Input mInput;
+	private final FrameScheduler.Clock mClock;
+	private final Object mLock = new Object();
+
+	private final long[] mTimestamps = new long[BLOCK_SIZE];
+	private final float[] mX = new float[BLOCK_SIZE];
+	private final float[] mY = new float[BLOCK_SIZE];
+	private final float[] mZ = new float[BLOCK_SIZE];
+	// 読んだがまだ渡していない範囲
+	private int mNext;
+	private int mCount;
+	// 元のタイムスタンプと供給するタイムスタンプの差
+	private long mTimestampOffset;
+	private boolean mAnchored = false;
+
+	private volatile float mSpeed = 1f;
+	private Thread mThread;
+	private volatile boolean mRunning;
+	private volatile boolean mFinished;
+	private IOException mError;
+
+	private volatile long mSampleCount;
+	private volatile long mElapsedNanos;
+	private volatile long mMaxLateness;
+	private long mTotalLateness;
+	private volatile long mDeliveries;
+
+	public ReplaySampleSource(Input input) {
+		this(input, FrameScheduler.SYSTEM_CLOCK);
+	}
+
+	public ReplaySampleSource(Input input, FrameScheduler.Clock clock) {
+		mInput = input;
+		mClock = clock;
+	}
+
+	/**
+	 * 再生の速さ(元のタイミングに対する倍率)を設定する
+	 *
+	 * {@link #AS_FAST_AS_POSSIBLE}なら待たない。次の{@link #start}から有効。
+	 */
+	public void setSpeed(float speed) {
+		mSpeed = speed;
+	}
+
+	public float getSpeed() {
+		return mSpeed;
+	}
+
+	/**
+	 * 再生するサンプルのサンプリング周波数(Hz)を返す(分からなければ0)
+	 *
+	 * 速さを変えてもタイムスタンプは元の間隔のまま渡すので、元の周波数になる。
+	 */
+	public float getSampleRate() {
+		return mInput.getSampleRate();
+	}
+
+	@Override
+	public void start(final Sink sink) {
+		stop();
+		mRunning = true;
+		mThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long start = mClock.nanoTime();
+				try {
+					replay(sink, start);
+				} catch (IOException e) {
+					mError = e;
+				} finally {
+					mElapsedNanos += mClock.nanoTime() - start;
+				}
+			}
+		}, "ReplaySampleSource");
+		mThread.start();
+	}
+
+	@Override
+	public void stop() {
+		Thread thread = mThread;
+		if (thread == null) {
+			return;
+		}
+		synchronized (mLock) {
+			mRunning = false;
+			mLock.notifyAll();
+		}
+		join(thread);
+		mThread = null;
+	}
+
+	/**
+	 * 入力の終わりまで再生するのを待つ
+	 */
+	public void awaitFinished() throws IOException {
+		Thread thread = mThread;
+		if (thread != null) {
+			join(thread);
+		}
+		if (mError != null) {
+			throw mError;
+		}
+	}
+
+	/**
+	 * 入力の終わりまで再生したら true
+	 */
+	public boolean isFinished() {
+		return mFinished;
+	}
+
+	public long getSampleCount() {
+		return mSampleCount;
+	}
+
+	/**
+	 * 再生していた時間の合計(ナノ秒)を返す
+	 */
+	public long getElapsedNanos() {
+		return mElapsedNanos;
+	}
+
+	/**
+	 * 予定の時刻から最も遅れて渡したときの遅れ(ナノ秒)を返す
+	 */
+	public long getMaxLateness() {
+		return mMaxLateness;
+	}
+
+	public long getMeanLateness() {
+		long deliveries = mDeliveries;
+		return deliveries == 0 ? 0 : mTotalLateness / deliveries;
+	}
+
+	private void replay(Sink sink, long start) throws IOException {
+		float speed = mSpeed;
+		long[] timestamps = mTimestamps;
+		// 再開したときは未送信のサンプルから時刻を合わせ直す
+		long base = mNext < mCount ? timestamps[mNext] : 0;
+		boolean rebase = mNext < mCount;
+
+		while (mRunning) {
+			if (mNext == mCount) {
+				mCount = mInput.read(timestamps, mX, mY, mZ, BLOCK_SIZE);
+				mNext = 0;
+				if (mCount <= 0) {
+					mCount = 0;
+					mFinished = true;
+					return;
+				}
+				if (!mAnchored) {
+					mTimestampOffset = start - timestamps[0];
+					mAnchored = true;
+				}
+				for (int i = 0; i < mCount; i++) {
+					timestamps[i] += mTimestampOffset;
+				}
+				if (!rebase) {
+					base = timestamps[0];
+					rebase = true;
+				}
+			}
+
+			if (speed <= AS_FAST_AS_POSSIBLE) {
+				deliver(sink, mCount, 0);
+				continue;
+			}
+
+			// 期限を過ぎたサンプルをまとめて渡す
+			long now = mClock.nanoTime();
+			int end = mNext;
+			while (end < mCount
+					&& dueTime(timestamps[end], base, start, speed) <= now) {
+				end++;
+			}
+			if (end > mNext) {
+				deliver(sink, end,
+						now - dueTime(timestamps[mNext], base, start, speed));
+				continue;
+			}
+			long wait = dueTime(timestamps[mNext], base, start, speed) - now;
+			synchronized (mLock) {
+				if (mRunning) {
+					try {
+						mClock.await(mLock, wait);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	// base のサンプルを start に渡したときに timestamp を渡す時刻
+	private static long dueTime(long timestamp, long base, long start,
+			float speed) {
+		return start + (long) ((timestamp - base) / (double) speed);
+	}
+
+	private void deliver(Sink sink, int end, long lateness) {
+		int count = end - mNext;
+		sink.onSamples(mTimestamps, mX, mY, mZ, mNext, count);
+		mNext = end;
+		mSampleCount += count;
+		mTotalLateness += lateness;
+		mDeliveries++;
+		if (lateness > mMaxLateness) {
+			mMaxLateness = lateness;
+		}
+	}
+
+	private static void join(Thread thread) {
+		boolean joined = false;
+		while (!joined) {
+			try {
+				thread.join();
+				joined = true;
+			} catch (InterruptedException e) {
+				// 再生が終わるまで待つ
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 不等間隔のサンプルを一定の周波数のサンプルに変換する
+ *
+ * センサーの通知間隔はばらつくため、FFT などの解析や書き出しの前に
+ * タイムスタンプを使って等間隔の時刻の値を求める。
+ * 線形補間と、窓付き sinc 補間の2つの方式がある。sinc 補間は各サンプルの
+ * 重みに前後の間隔をかけて正規化するので、間隔のばらつきや欠落があっても
+ * 振幅が変わらない。
+ *
+ * 入力は{@link #process}で少しずつ渡し、出力は{@link Output}で受け取る。
+ * 処理中にメモリを確保しない。
+ */
+public class Resampler {
+
+	public static final int LINEAR = 0;
+	public static final int SINC = 1;
+
+	/**
+	 * 等間隔になったサンプルを受け取る
+	 *
+	 * values は呼び出しの間だけ有効。
+	 */
+	public interface Output {
+		void onSample(long timestamp, float[] values);
+	}
+
+	// sinc 補間で参照する片側の零点の数
+	private static final int SINC_ZEROS = 8;
+	// 出力周波数に対する遮断周波数の比率
+	private static final double CUTOFF_RATIO = 0.45;
+	// 保持する入力サンプル数(2の累乗)
+	private static final int HISTORY_SIZE = 1024;
+
+	private final int mChannels;
+	private final int mMode;
+	private final long mPeriod;
+	private final Output mOutput;
+
+	// 最近の入力サンプル
+	private final long[] mTimestamps = new long[HISTORY_SIZE];
+	private final float[][] mValues;
+	private long mCount;
+
+	private final float[] mResult;
+	private long mNextTime = Long.MIN_VALUE;
+	private double mInputInterval;
+
+	/**
+	 * @param mode
+	 *            {@link #LINEAR}か{@link #SINC}
+	 * @param outputRate
+	 *            出力の周波数(Hz)
+	 */
+	public Resampler(int channels, int mode, float outputRate, Output output) {
+		if (outputRate <= 0) {
+			throw new IllegalArgumentException("outputRate: " + outputRate);
+		}
+		mChannels = channels;
+		mMode = mode;
+		mPeriod = (long) (1e9 / outputRate);
+		mOutput = output;
+		mValues = new float[channels][HISTORY_SIZE];
+		mResult = new float[channels];
+	}
+
+	public int getMode() {
+		return mMode;
+	}
+
+	/**
+	 * 出力の間隔(ナノ秒)を返す
+	 */
+	public long getPeriod() {
+		return mPeriod;
+	}
+
+	/**
+	 * 入力を最初からやり直す
+	 */
+	public void reset() {
+		mCount = 0;
+		mNextTime = Long.MIN_VALUE;
+		mInputInterval = 0;
+	}
+
+	/**
+	 * サンプルを追加し、求まった出力を{@link Output}に渡す
+	 *
+	 * @param values
+	 *            チャンネルごとの値
+	 */
+	public void process(long[] timestamps, float[][] values, int offset,
+			int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			long timestamp = timestamps[i];
+			if (mCount > 0 && timestamp <= latestTimestamp()) {
+				// 逆戻りしたサンプルは使わない
+				continue;
+			}
+			append(timestamp, values, i);
+			if (mNextTime == Long.MIN_VALUE) {
+				// 最初の出力は最初の入力に合わせる
+				mNextTime = timestamp;
+			}
+			if (mMode == LINEAR) {
+				emitLinear();
+			} else {
+				emitSinc(false);
+			}
+		}
+	}
+
+	/**
+	 * 残っている入力から求められる出力をすべて渡す(入力の終わりで呼ぶ)
+	 */
+	public void flush() {
+		if (mMode == SINC && mCount > 0) {
+			emitSinc(true);
+		}
+	}
+
+	private long latestTimestamp() {
+		return mTimestamps[(int) (mCount - 1) & (HISTORY_SIZE - 1)];
+	}
+
+	private void append(long timestamp, float[][] values, int index) {
+		if (mCount > 0) {
+			// 入力の間隔の移動平均
+			double interval = timestamp - latestTimestamp();
+			mInputInterval = mInputInterval == 0 ? interval : mInputInterval
+					* 0.99 + interval * 0.01;
+		}
+		int slot = (int) mCount & (HISTORY_SIZE - 1);
+		mTimestamps[slot] = timestamp;
+		for (int channel = 0; channel < mChannels; channel++) {
+			mValues[channel][slot] = values[channel][index];
+		}
+		mCount++;
+	}
+
+	private void emitLinear() {
+		if (mCount < 2) {
+			if (mNextTime == latestTimestamp()) {
+				int slot = (int) (mCount - 1) & (HISTORY_SIZE - 1);
+				for (int channel = 0; channel < mChannels; channel++) {
+					mResult[channel] = mValues[channel][slot];
+				}
+				mOutput.onSample(mNextTime, mResult);
+				mNextTime += mPeriod;
+			}
+			return;
+		}
+		int current = (int) (mCount - 1) & (HISTORY_SIZE - 1);
+		int previous = (int) (mCount - 2) & (HISTORY_SIZE - 1);
+		long t0 = mTimestamps[previous];
+		long t1 = mTimestamps[current];
+		while (mNextTime <= t1) {
+			if (mNextTime >= t0) {
+				float fraction = (float) (mNextTime - t0) / (t1 - t0);
+				for (int channel = 0; channel < mChannels; channel++) {
+					float v0 = mValues[channel][previous];
+					float v1 = mValues[channel][current];
+					mResult[channel] = v0 + (v1 - v0) * fraction;
+				}
+				mOutput.onSample(mNextTime, mResult);
+			}
+			mNextTime += mPeriod;
+		}
+	}
+
+	private void emitSinc(boolean flush) {
+		// 遮断周波数は入力と出力の低い方のナイキスト周波数の手前
+		double inputPeriod = mInputInterval > 0 ? mInputInterval : mPeriod;
+		double cutoff = CUTOFF_RATIO / Math.max(inputPeriod, mPeriod);
+		// 保持している入力に収まるように窓を狭める
+		double halfWidth = Math.min(SINC_ZEROS / (2 * cutoff), inputPeriod
+				* (HISTORY_SIZE / 2 - 1));
+		long first = Math.max(0, mCount - HISTORY_SIZE);
+
+		long latest = latestTimestamp();
+		while (flush ? mNextTime <= latest : mNextTime + halfWidth <= latest) {
+			interpolate(mNextTime, cutoff, halfWidth, first);
+			mOutput.onSample(mNextTime, mResult);
+			mNextTime += mPeriod;
+		}
+	}
+
+	private void interpolate(long time, double cutoff, double halfWidth,
+			long first) {
+		for (int channel = 0; channel < mChannels; channel++) {
+			mResult[channel] = 0;
+		}
+		double weightSum = 0;
+		// 窓の中の入力を新しい順にたどる
+		for (long n = mCount - 1; n >= first; n--) {
+			int slot = (int) n & (HISTORY_SIZE - 1);
+			double offset = mTimestamps[slot] - time;
+			if (offset > halfWidth) {
+				continue;
+			}
+			if (offset < -halfWidth) {
+				break;
+			}
+			// サンプルが受け持つ時間の幅で重みをつける
+			long previous = n > first ? mTimestamps[(int) (n - 1)
+					& (HISTORY_SIZE - 1)] : mTimestamps[slot];
+			long next = n < mCount - 1 ? mTimestamps[(int) (n + 1)
+					& (HISTORY_SIZE - 1)] : mTimestamps[slot];
+			double span = next - previous;
+			if (span <= 0) {
+				span = 1;
+			}
+			double weight = kernel(2 * cutoff * offset, offset / halfWidth)
+					* span;
+			weightSum += weight;
+			for (int channel = 0; channel < mChannels; channel++) {
+				mResult[channel] += (float) (weight * mValues[channel][slot]);
+			}
+		}
+		if (weightSum != 0) {
+			for (int channel = 0; channel < mChannels; channel++) {
+				mResult[channel] /= weightSum;
+			}
+		}
+	}
+
+	// Blackman 窓をかけた sinc 関数
+	private static double kernel(double x, double position) {
+		double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+		double phase = Math.PI * (position + 1);
+		double window = 0.42 - 0.5 * Math.cos(phase) + 0.08
+				* Math.cos(2 * phase);
+		return sinc * window;
+	}
+}
@@ -0,0 +1,262 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 直近 window 件の値の統計(平均、分散、RMS、最小・最大、波高率)
+ *
+ * 1件ごとに定数時間で更新し、メモリも確保しない。平均と分散は Welford 法を
+ * 窓から抜ける値にも使って更新し、最小値・最大値は単調なデック(両端キュー)で
+ * 求める。RMS は分散と平均から求める(RMS^2 = 分散 + 平均^2)。
+ *
+ * 更新はセンサーのスレッドで行い、{@link #add}の最後に値を公開するので、
+ * 他のスレッドからは getter で一貫した値を読める。
+ */
+public class RollingStats {
+
+	private final int mWindow;
+	private final float[] mValues;
+	// 追加したサンプルの数と、次に書き込む窓の中の位置
+	private long mCount;
+	private int mSlot;
+
+	// 窓の中の平均と偏差平方和
+	private double mMean;
+	private double mM2;
+
+	// 最小値・最大値の候補の番号(mCount の値)と値(先頭が最小・最大)
+	private final long[] mMinIndices;
+	private final float[] mMinValues;
+	private int mMinHead;
+	private int mMinSize;
+	private final long[] mMaxIndices;
+	private final float[] mMaxValues;
+	private int mMaxHead;
+	private int mMaxSize;
+
+	// 公開した値
+	private volatile Result mResult = new Result();
+	private Result mSpare = new Result();
+
+	/**
+	 * ある時点の統計
+	 */
+	public static class Result {
+		private int mSize;
+		private float mMean;
+		private float mVariance;
+		private float mMin;
+		private float mMax;
+
+		/**
+		 * 窓の中のサンプル数
+		 */
+		public int size() {
+			return mSize;
+		}
+
+		public float getMean() {
+			return mMean;
+		}
+
+		/**
+		 * 分散(母分散)を返す
+		 */
+		public float getVariance() {
+			return mVariance;
+		}
+
+		/**
+		 * 平均を除いた成分の RMS(標準偏差)を返す
+		 */
+		public float getStandardDeviation() {
+			return (float) Math.sqrt(mVariance);
+		}
+
+		public float getRms() {
+			return (float) Math.sqrt(mVariance + mMean * mMean);
+		}
+
+		public float getMin() {
+			return mMin;
+		}
+
+		public float getMax() {
+			return mMax;
+		}
+
+		public float getPeakToPeak() {
+			return mMax - mMin;
+		}
+
+		/**
+		 * 平均を除いた成分の波高率(ピーク / RMS)を返す(振動がなければ 0)
+		 */
+		public float getCrestFactor() {
+			float deviation = getStandardDeviation();
+			if (deviation <= 0) {
+				return 0;
+			}
+			float peak = Math.max(mMax - mMean, mMean - mMin);
+			return peak / deviation;
+		}
+
+		/**
+		 * 表示用の文字列を追加する(メモリを確保しない)
+		 */
+		public void appendTo(StringBuilder builder) {
+			builder.append("rms ");
+			appendFixed(builder, getRms());
+			builder.append("  p-p ");
+			appendFixed(builder, getPeakToPeak());
+			builder.append("  sd ");
+			appendFixed(builder, getStandardDeviation());
+			builder.append("  cf ");
+			appendFixed(builder, getCrestFactor());
+		}
+	}
+
+	public RollingStats(int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("window: " + window);
+		}
+		mWindow = window;
+		mValues = new float[window];
+		mMinIndices = new long[window];
+		mMinValues = new float[window];
+		mMaxIndices = new long[window];
+		mMaxValues = new float[window];
+	}
+
+	public int getWindow() {
+		return mWindow;
+	}
+
+	/**
+	 * 最後に公開した統計を返す
+	 *
+	 * 返した値は次の{@link #add}以降も変わらないが、その次の add で再利用される
+	 * ので、表示などすぐに使い終わる用途に限る。
+	 */
+	public Result getResult() {
+		return mResult;
+	}
+
+	/**
+	 * 値を順に追加して統計を公開する
+	 */
+	public void add(float[] values, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			add(values[i]);
+		}
+		publish();
+	}
+
+	private void add(float value) {
+		int window = mWindow;
+		long index = mCount;
+		int slot = mSlot;
+
+		if (index < window) {
+			// 窓が一杯になるまでは普通の Welford 法
+			double delta = value - mMean;
+			mMean += delta / (index + 1);
+			mM2 += delta * (value - mMean);
+		} else {
+			// 抜ける値と入る値を同時に入れ替える
+			float old = mValues[slot];
+			double mean = mMean + (value - old) / window;
+			mM2 += (value - old) * (value - mean + old - mMean);
+			if (mM2 < 0) {
+				mM2 = 0;
+			}
+			mMean = mean;
+		}
+		mValues[slot] = value;
+		mSlot = slot + 1 == window ? 0 : slot + 1;
+		mCount = index + 1;
+
+		// 窓から抜けた候補を捨てる
+		long oldest = index - window + 1;
+		if (mMinSize > 0 && mMinIndices[mMinHead] < oldest) {
+			mMinHead = next(mMinHead);
+			mMinSize--;
+		}
+		if (mMaxSize > 0 && mMaxIndices[mMaxHead] < oldest) {
+			mMaxHead = next(mMaxHead);
+			mMaxSize--;
+		}
+
+		// 新しい値より大きい(小さい)候補は最小(最大)にならない
+		int tail = mMinHead + mMinSize;
+		while (mMinSize > 0 && mMinValues[wrap(tail - 1)] >= value) {
+			mMinSize--;
+			tail--;
+		}
+		tail = wrap(tail);
+		mMinIndices[tail] = index;
+		mMinValues[tail] = value;
+		mMinSize++;
+
+		tail = mMaxHead + mMaxSize;
+		while (mMaxSize > 0 && mMaxValues[wrap(tail - 1)] <= value) {
+			mMaxSize--;
+			tail--;
+		}
+		tail = wrap(tail);
+		mMaxIndices[tail] = index;
+		mMaxValues[tail] = value;
+		mMaxSize++;
+	}
+
+	private int next(int position) {
+		return position + 1 == mWindow ? 0 : position + 1;
+	}
+
+	// 0 から 2 * window - 1 の位置を窓の中に戻す
+	private int wrap(int position) {
+		return position >= mWindow ? position - mWindow : position;
+	}
+
+	public void reset() {
+		mCount = 0;
+		mSlot = 0;
+		mMean = 0;
+		mM2 = 0;
+		mMinHead = 0;
+		mMinSize = 0;
+		mMaxHead = 0;
+		mMaxSize = 0;
+		publish();
+	}
+
+	// 作業中でない方の Result に書いて入れ替える
+	private void publish() {
+		Result result = mSpare;
+		int size = (int) Math.min(mCount, mWindow);
+		result.mSize = size;
+		if (size == 0) {
+			result.mMean = 0;
+			result.mVariance = 0;
+			result.mMin = 0;
+			result.mMax = 0;
+		} else {
+			result.mMean = (float) mMean;
+			result.mVariance = (float) (mM2 / size);
+			result.mMin = mMinValues[mMinHead];
+			result.mMax = mMaxValues[mMaxHead];
+		}
+		mSpare = mResult;
+		mResult = result;
+	}
+
+	// 小数点以下2桁
+	private static void appendFixed(StringBuilder builder, double value) {
+		long hundredths = Math.round(value * 100);
+		if (hundredths < 0) {
+			builder.append('-');
+			hundredths = -hundredths;
+		}
+		builder.append(hundredths / 100).append('.').append(
+				(hundredths / 10) % 10).append(hundredths % 10);
+	}
+}
@@ -0,0 +1,395 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 加速度の履歴を保持するリングバッファ
+ *
+ * 書き込みは1スレッド(センサーのコールバック)、読み込みは{@link Snapshot}、
+ * {@link View}か{@link Cursor}を使い、ロックせずに行う。値はチャンネルごとの
+ * float[] とタイムスタンプの long[] に分けて保持し、追加時にメモリを確保しない。
+ *
+ * 書き込みスレッドは値を書き終えてから volatile のシーケンス番号を進めて
+ * 公開し、上書きする範囲は先に mClaimed で知らせる。読み込み側はシーケンスを
+ * 読んでから値を読み、読み終えてから上書きされていないかを確かめる。
+ * Java 5 にはフェンスがないので、確かめる前にダミーの volatile の書き込みを
+ * 行い、値の読み込みが確認の読み込みより後にずれないようにする(volatile の
+ * 書き込みより前の読み込みはその後に移らず、書き込みとその後の volatile の
+ * 読み込みも入れ替わらない)。書き込み側も同じく、mClaimed を書いた後に
+ * volatile で読み直してから値を書き込む。
+ * Cursor は読み込むスレッドごとに作れば、互いに影響せずに進められる
+ * (描画、統計、記録がそれぞれ別の Cursor を持つ)。
+ */
+public class SampleBuffer {
+
+	public static final int CHANNEL_X = 0;
+	public static final int CHANNEL_Y = 1;
+	public static final int CHANNEL_Z = 2;
+	public static final int CHANNEL_R = 3;
+	public static final int CHANNELS = 4;
+
+	private final int mCapacity;
+	private final int mMask;
+	private final float[][] mValues;
+	private final long[] mTimestamps;
+
+	// 書き込み済みのサンプル数(次に書き込むシーケンス番号)
+	private volatile long mSequence = 0;
+	// addAll() で書き込み中の範囲の終端
+	private volatile long mClaimed = 0;
+	// 読み込み側が値を読み終えたことを示すダミー(値は使わない)
+	private volatile int mFence;
+
+	/**
+	 * @param capacity
+	 *            保持するサンプル数(2の累乗に切り上げる)
+	 */
+	public SampleBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity: " + capacity);
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mCapacity = size;
+		mMask = size - 1;
+		mValues = new float[CHANNELS][size];
+		mTimestamps = new long[size];
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * これまでに追加されたサンプル数を返す
+	 */
+	public long getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * 保持しているサンプル数を返す
+	 */
+	public int size() {
+		long sequence = mSequence;
+		return sequence < mCapacity ? (int) sequence : mCapacity;
+	}
+
+	/**
+	 * サンプルを追加する(書き込みスレッドからのみ呼ぶこと)
+	 */
+	public void add(long timestamp, float x, float y, float z, float r) {
+		long sequence = mSequence;
+		int index = (int) sequence & mMask;
+		mValues[CHANNEL_X][index] = x;
+		mValues[CHANNEL_Y][index] = y;
+		mValues[CHANNEL_Z][index] = z;
+		mValues[CHANNEL_R][index] = r;
+		mTimestamps[index] = timestamp;
+		// 値を書き終えてからシーケンスを公開する
+		mSequence = sequence + 1;
+	}
+
+	/**
+	 * 複数のサンプルをまとめて追加する(書き込みスレッドからのみ呼ぶこと)
+	 *
+	 * シーケンスは最後に1回だけ公開する。
+	 */
+	public void addAll(long[] timestamps, float[] x, float[] y, float[] z,
+			float[] r, int offset, int count) {
+		long sequence = mSequence;
+		if (count > mCapacity) {
+			// 残らない分は書き込まない
+			int skip = count - mCapacity;
+			offset += skip;
+			count -= skip;
+			sequence += skip;
+		}
+		// 上書きする範囲を先に知らせる。書いた mClaimed を volatile で読み直し、
+		// 値の書き込みが知らせるより前にずれないようにする
+		mClaimed = sequence + count;
+		int index = (int) (mClaimed - count) & mMask;
+		int first = Math.min(count, mCapacity - index);
+		int second = count - first;
+		copyIn(x, y, z, r, timestamps, offset, index, first);
+		if (second > 0) {
+			copyIn(x, y, z, r, timestamps, offset + first, 0, second);
+		}
+		mSequence = sequence + count;
+	}
+
+	private void copyIn(float[] x, float[] y, float[] z, float[] r,
+			long[] timestamps, int from, int to, int count) {
+		System.arraycopy(x, from, mValues[CHANNEL_X], to, count);
+		System.arraycopy(y, from, mValues[CHANNEL_Y], to, count);
+		System.arraycopy(z, from, mValues[CHANNEL_Z], to, count);
+		System.arraycopy(r, from, mValues[CHANNEL_R], to, count);
+		System.arraycopy(timestamps, from, mTimestamps, to, count);
+	}
+
+	/**
+	 * 直近の最大 maxCount 件を snapshot にコピーする
+	 *
+	 * コピー中に上書きされたサンプルは結果から除かれる。
+	 */
+	public void snapshot(Snapshot snapshot, int maxCount) {
+		snapshot(snapshot, Long.MAX_VALUE, maxCount);
+	}
+
+	/**
+	 * end 番目のサンプルより前の最大 maxCount 件を snapshot にコピーする
+	 */
+	public void snapshot(Snapshot snapshot, long end, int maxCount) {
+		end = Math.max(0, Math.min(end, mSequence));
+		int count = (int) Math.min(end, mCapacity);
+		count = Math.min(count, Math.min(maxCount, snapshot.mCapacity));
+		long start = end - count;
+
+		copy(start, count, snapshot.mValues, snapshot.mTimestamps, 0);
+
+		// コピー中に書き込みスレッドが追い越した分を捨てる
+		int lost = (int) Math.max(0, firstSafeSequence() - start);
+		if (lost > count) {
+			lost = count;
+		}
+		snapshot.mOffset = lost;
+		snapshot.mSize = count - lost;
+		snapshot.mFirstSequence = start + lost;
+	}
+
+	/**
+	 * end 番目のサンプルより前の最大 maxCount 件を、コピーせずに view で参照する
+	 *
+	 * 参照中に書き込みスレッドに上書きされることがあるので、使い終わったら
+	 * {@link View#isValid()}で確かめ、上書きされていれば読み直す。
+	 */
+	public void view(View view, long end, int maxCount) {
+		end = Math.max(0, Math.min(end, mSequence));
+		long start = Math.max(end - Math.max(0, maxCount), Math.max(0,
+				firstSafeSequence()));
+		if (start > end) {
+			start = end;
+		}
+		view.mBuffer = this;
+		view.mStart = start;
+		view.mSize = (int) (end - start);
+	}
+
+	/**
+	 * 最後に追加したサンプルの値をチャンネルごとに values にコピーする
+	 *
+	 * コピー中に上書きされたら読み直すので、チャンネル間で一貫した値になる。
+	 *
+	 * @return まだサンプルがなければ false
+	 */
+	public boolean getLatest(float[] values) {
+		while (true) {
+			long sequence = mSequence;
+			if (sequence == 0) {
+				return false;
+			}
+			int index = (int) (sequence - 1) & mMask;
+			for (int channel = 0; channel < CHANNELS; channel++) {
+				values[channel] = mValues[channel][index];
+			}
+			if (firstSafeSequence() <= sequence - 1) {
+				return true;
+			}
+		}
+	}
+
+	public Cursor newCursor() {
+		return new Cursor(mSequence);
+	}
+
+	/**
+	 * sequence 以降のサンプルを読み込む位置を作る
+	 *
+	 * すでに上書きされた分は、最初の読み込みで読み飛ばして数える。
+	 */
+	public Cursor newCursor(long sequence) {
+		return new Cursor(Math.min(Math.max(sequence, 0), mSequence));
+	}
+
+	// 上書きされていないことが保証される最も古いシーケンス
+	// (書き込み中の分を除く)。値を読んだ後の確認に使うので、先に
+	// volatile の書き込みで値の読み込みを確定させる
+	private long firstSafeSequence() {
+		mFence = 0;
+		long sequence = mSequence;
+		return Math.max(sequence + 1, mClaimed) - mCapacity;
+	}
+
+	private void copy(long start, int count, float[][] values,
+			long[] timestamps, int offset) {
+		int from = (int) start & mMask;
+		int first = Math.min(count, mCapacity - from);
+		int second = count - first;
+		for (int channel = 0; channel < CHANNELS; channel++) {
+			System.arraycopy(mValues[channel], from, values[channel], offset,
+					first);
+			if (second > 0) {
+				System.arraycopy(mValues[channel], 0, values[channel], offset
+						+ first, second);
+			}
+		}
+		System.arraycopy(mTimestamps, from, timestamps, offset, first);
+		if (second > 0) {
+			System.arraycopy(mTimestamps, 0, timestamps, offset + first,
+					second);
+		}
+	}
+
+	/**
+	 * 読み込みスレッドが使う履歴のコピー
+	 *
+	 * 領域は生成時に確保し、{@link SampleBuffer#snapshot}で使い回す。
+	 */
+	public static class Snapshot implements SampleWindow {
+		private final int mCapacity;
+		private final float[][] mValues;
+		private final long[] mTimestamps;
+		private int mOffset;
+		private int mSize;
+		private long mFirstSequence;
+
+		public Snapshot(int capacity) {
+			mCapacity = capacity;
+			mValues = new float[CHANNELS][capacity];
+			mTimestamps = new long[capacity];
+		}
+
+		@Override
+		public int size() {
+			return mSize;
+		}
+
+		@Override
+		public float get(int channel, int index) {
+			return mValues[channel][mOffset + index];
+		}
+
+		@Override
+		public long getTimestamp(int index) {
+			return mTimestamps[mOffset + index];
+		}
+
+		/**
+		 * 先頭のサンプルのシーケンス番号を返す
+		 */
+		public long getFirstSequence() {
+			return mFirstSequence;
+		}
+	}
+
+	/**
+	 * リングバッファの一部をコピーせずに参照する
+	 *
+	 * 描画のように毎回全体を読み直す用途向け。値はバッファを直接読むので、
+	 * 読み終えた後に{@link #isValid()}が false なら、途中で上書きされた値が
+	 * 混ざっている。
+	 */
+	public static class View implements SampleWindow {
+		private SampleBuffer mBuffer;
+		private long mStart;
+		private int mSize;
+
+		@Override
+		public int size() {
+			return mSize;
+		}
+
+		@Override
+		public float get(int channel, int index) {
+			SampleBuffer buffer = mBuffer;
+			return buffer.mValues[channel][(int) (mStart + index)
+					& buffer.mMask];
+		}
+
+		@Override
+		public long getTimestamp(int index) {
+			SampleBuffer buffer = mBuffer;
+			return buffer.mTimestamps[(int) (mStart + index) & buffer.mMask];
+		}
+
+		/**
+		 * 先頭のサンプルのシーケンス番号を返す
+		 */
+		public long getFirstSequence() {
+			return mStart;
+		}
+
+		/**
+		 * 参照している範囲がまだ上書きされていないかを返す
+		 */
+		public boolean isValid() {
+			SampleBuffer buffer = mBuffer;
+			return buffer == null || buffer.firstSafeSequence() <= mStart;
+		}
+	}
+
+	/**
+	 * 前回の読み込み以降に追加されたサンプルを順に取り出すための位置
+	 *
+	 * 読み込みが追いつかずに上書きされたサンプルは読み飛ばし、
+	 * {@link #getDropped()}に数える。
+	 */
+	public class Cursor {
+		private long mNext;
+		private long mDropped;
+
+		private Cursor(long next) {
+			mNext = next;
+		}
+
+		/**
+		 * 未読のサンプル数を返す
+		 */
+		public int available() {
+			return (int) Math.min(mSequence - mNext, mCapacity);
+		}
+
+		/**
+		 * 未読のサンプルを最大 maxCount 件コピーし、読み込み位置を進める
+		 *
+		 * @return コピーした件数
+		 */
+		public int read(float[][] values, long[] timestamps, int maxCount) {
+			long end = mSequence;
+			long safe = end - mCapacity + 1;
+			if (mNext < safe) {
+				mDropped += safe - mNext;
+				mNext = safe;
+			}
+			int count = (int) Math.min(end - mNext, maxCount);
+			if (count <= 0) {
+				return 0;
+			}
+			copy(mNext, count, values, timestamps, 0);
+
+			// コピー中に上書きされていたら先頭を詰める
+			long lost = firstSafeSequence() - mNext;
+			if (lost > 0) {
+				int n = (int) Math.min(lost, count);
+				for (int channel = 0; channel < CHANNELS; channel++) {
+					System.arraycopy(values[channel], n, values[channel], 0,
+							count - n);
+				}
+				System.arraycopy(timestamps, n, timestamps, 0, count - n);
+				mDropped += n;
+				count -= n;
+				mNext += n;
+			}
+			mNext += count;
+			return count;
+		}
+
+		public long getPosition() {
+			return mNext;
+		}
+
+		public long getDropped() {
+			return mDropped;
+		}
+	}
+}
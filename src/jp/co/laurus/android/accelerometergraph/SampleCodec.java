@@ -0,0 +1,285 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * サンプルのブロックを圧縮する
+ *
+ * <pre>
+ * タイムスタンプ
+ *   先頭の値、最初の差、以降は差の差を zig-zag 符号化した可変長整数で並べる
+ *   (間隔がほぼ一定なので多くは1バイトになる)
+ * 値(X, Y, Z の順に軸ごと、バイト境界に揃える)
+ *   ENCODING_XOR:   直前の値とのビットの排他的論理和(Gorilla 形式、可逆)
+ *     0                 前と同じ値
+ *     10 + 有効ビット   前回と同じ範囲に収まる
+ *     11 + 先頭の0の数(5ビット) + 有効ビット数 - 1(5ビット) + 有効ビット
+ *   ENCODING_DELTA: quantum 単位に丸めた値の差を zig-zag 符号化した可変長整数
+ *                   (丸めの分だけ誤差が出る)
+ * </pre>
+ *
+ * ブロックは単独で復元できる。作業領域は呼び出し側の配列だけで、
+ * 符号化・復元ともにオブジェクトを確保しない。1つのインスタンスを複数の
+ * スレッドから同時に使うことはできない。
+ */
+public class SampleCodec {
+
+	public static final int ENCODING_XOR = 1;
+	public static final int ENCODING_DELTA = 2;
+
+	private static final int AXES = 3;
+
+	private final int mEncoding;
+	private final float mQuantum;
+
+	// 書き込み・読み込み中の位置とビット
+	private byte[] mBuffer;
+	private int mPosition;
+	private long mBits;
+	private int mBitCount;
+
+	/**
+	 * @param quantum
+	 *            ENCODING_DELTA で丸める単位(ENCODING_XOR では使わない)
+	 */
+	public SampleCodec(int encoding, float quantum) {
+		if (encoding != ENCODING_XOR && encoding != ENCODING_DELTA) {
+			throw new IllegalArgumentException("encoding: " + encoding);
+		}
+		if (encoding == ENCODING_DELTA && !(quantum > 0)) {
+			throw new IllegalArgumentException("quantum: " + quantum);
+		}
+		mEncoding = encoding;
+		mQuantum = quantum;
+	}
+
+	public int getEncoding() {
+		return mEncoding;
+	}
+
+	public float getQuantum() {
+		return mQuantum;
+	}
+
+	/**
+	 * count 件を符号化したときの最大のバイト数
+	 */
+	public static int maxEncodedSize(int count) {
+		// 可変長整数は最大10バイト(XOR は1件あたり最大 2 + 10 + 32 ビット)
+		return 10 * count * (1 + AXES) + AXES;
+	}
+
+	/**
+	 * @return out に書き込んだバイト数
+	 */
+	public int encode(long[] timestamps, float[] x, float[] y, float[] z,
+			int offset, int count, byte[] out, int outOffset) {
+		mBuffer = out;
+		mPosition = outOffset;
+
+		// タイムスタンプ
+		long previous = 0;
+		long previousDelta = 0;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			long timestamp = timestamps[i];
+			if (i == offset) {
+				writeVarLong(timestamp);
+			} else {
+				long delta = timestamp - previous;
+				writeVarLong(delta - previousDelta);
+				previousDelta = delta;
+			}
+			previous = timestamp;
+		}
+
+		// 値
+		for (int axis = 0; axis < AXES; axis++) {
+			float[] values = axis == 0 ? x : axis == 1 ? y : z;
+			if (mEncoding == ENCODING_XOR) {
+				encodeXor(values, offset, count);
+			} else {
+				encodeDelta(values, offset, count);
+			}
+		}
+
+		mBuffer = null;
+		return mPosition - outOffset;
+	}
+
+	/**
+	 * encode() で符号化した count 件を復元する
+	 *
+	 * @return 読み込んだバイト数
+	 */
+	public int decode(byte[] in, int inOffset, int count, long[] timestamps,
+			float[] x, float[] y, float[] z, int offset) {
+		mBuffer = in;
+		mPosition = inOffset;
+
+		long previous = 0;
+		long delta = 0;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			long value = readVarLong();
+			if (i == offset) {
+				previous = value;
+			} else {
+				delta += value;
+				previous += delta;
+			}
+			timestamps[i] = previous;
+		}
+
+		for (int axis = 0; axis < AXES; axis++) {
+			float[] values = axis == 0 ? x : axis == 1 ? y : z;
+			if (mEncoding == ENCODING_XOR) {
+				decodeXor(values, offset, count);
+			} else {
+				decodeDelta(values, offset, count);
+			}
+		}
+
+		mBuffer = null;
+		return mPosition - inOffset;
+	}
+
+	private void encodeXor(float[] values, int offset, int count) {
+		mBits = 0;
+		mBitCount = 0;
+		int previous = 0;
+		int previousLeading = -1;
+		int previousTrailing = 0;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			int bits = Float.floatToRawIntBits(values[i]);
+			if (i == offset) {
+				writeBits(bits, 32);
+				previous = bits;
+				continue;
+			}
+			int xor = bits ^ previous;
+			previous = bits;
+			if (xor == 0) {
+				writeBits(0, 1);
+				continue;
+			}
+			int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+			int trailing = Integer.numberOfTrailingZeros(xor);
+			if (previousLeading >= 0 && leading >= previousLeading
+					&& trailing >= previousTrailing) {
+				// 前回の範囲を使う
+				writeBits(2, 2);
+				writeBits(xor >>> previousTrailing, 32 - previousLeading
+						- previousTrailing);
+			} else {
+				int length = 32 - leading - trailing;
+				writeBits(3, 2);
+				writeBits(leading, 5);
+				writeBits(length - 1, 5);
+				writeBits(xor >>> trailing, length);
+				previousLeading = leading;
+				previousTrailing = trailing;
+			}
+		}
+		alignBits();
+	}
+
+	private void decodeXor(float[] values, int offset, int count) {
+		mBits = 0;
+		mBitCount = 0;
+		int previous = 0;
+		int previousLeading = 0;
+		int previousTrailing = 0;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			if (i == offset) {
+				previous = readBits(32);
+			} else if (readBits(1) != 0) {
+				if (readBits(1) != 0) {
+					previousLeading = readBits(5);
+					int length = readBits(5) + 1;
+					previousTrailing = 32 - previousLeading - length;
+				}
+				int length = 32 - previousLeading - previousTrailing;
+				previous ^= readBits(length) << previousTrailing;
+			}
+			values[i] = Float.intBitsToFloat(previous);
+		}
+		// 残りは詰め物
+		mBitCount = 0;
+	}
+
+	private void encodeDelta(float[] values, int offset, int count) {
+		float scale = 1f / mQuantum;
+		long previous = 0;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			long quantized = Math.round(values[i] * scale);
+			writeVarLong(quantized - previous);
+			previous = quantized;
+		}
+	}
+
+	private void decodeDelta(float[] values, int offset, int count) {
+		float quantum = mQuantum;
+		long previous = 0;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			previous += readVarLong();
+			values[i] = previous * quantum;
+		}
+	}
+
+	// zig-zag 符号化して7ビットずつ書き込む
+	private void writeVarLong(long value) {
+		long zigzag = (value << 1) ^ (value >> 63);
+		byte[] buffer = mBuffer;
+		int position = mPosition;
+		while ((zigzag & ~0x7fL) != 0) {
+			buffer[position++] = (byte) ((zigzag & 0x7f) | 0x80);
+			zigzag >>>= 7;
+		}
+		buffer[position++] = (byte) zigzag;
+		mPosition = position;
+	}
+
+	private long readVarLong() {
+		byte[] buffer = mBuffer;
+		int position = mPosition;
+		long zigzag = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buffer[position++];
+			zigzag |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		mPosition = position;
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+
+	// 上位ビットから順に最大32ビットを書き込む
+	private void writeBits(int value, int count) {
+		mBits = (mBits << count) | (value & ((1L << count) - 1));
+		mBitCount += count;
+		while (mBitCount >= 8) {
+			mBitCount -= 8;
+			mBuffer[mPosition++] = (byte) (mBits >>> mBitCount);
+		}
+	}
+
+	// 最後のバイトの残りを0で埋める
+	private void alignBits() {
+		if (mBitCount > 0) {
+			writeBits(0, 8 - mBitCount);
+		}
+	}
+
+	private int readBits(int count) {
+		while (mBitCount < count) {
+			mBits = (mBits << 8) | (mBuffer[mPosition++] & 0xff);
+			mBitCount += 8;
+		}
+		mBitCount -= count;
+		return (int) ((mBits >>> mBitCount) & ((1L << count) - 1));
+	}
+}
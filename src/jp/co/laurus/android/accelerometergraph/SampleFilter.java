@@ -0,0 +1,20 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 1チャンネル分のサンプル列にかけるフィルタ
+ *
+ * サンプルはブロック単位で処理する。input と output に同じ配列を渡して
+ * その場で処理してもよい。状態を持つため、チャンネルごとに別のインスタンスを使う。
+ */
+public interface SampleFilter {
+
+	/**
+	 * input[offset]〜input[offset + length - 1] を処理して output の同じ位置に書き込む
+	 */
+	void process(float[] input, float[] output, int offset, int length);
+
+	/**
+	 * 内部状態を初期化する
+	 */
+	void reset();
+}
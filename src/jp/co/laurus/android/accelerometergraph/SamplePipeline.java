@@ -0,0 +1,472 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * センサーから受け取った加速度にフィルタをかけ、履歴に登録する処理
+ *
+ * センサーのコールバックから毎回呼ばれるため、ログ出力やメモリの確保を
+ * 行わない。画面への表示は{@link #getCurrents(float[])}を使って UI 側で間引いて
+ * 行う。
+ * フィルタはチャンネルごとの{@link SampleFilter}をブロック単位でかける。
+ * 窓を設定すると、フィルタ後の値の移動統計({@link RollingStats})も更新する。
+ *
+ * 処理はセンサーのスレッドだけが行い、結果は{@link SampleBuffer}の履歴を通して
+ * 他のスレッドに渡す。フィルタ後の履歴とピラミッドは表示にだけ使うので、
+ * {@link #prepareDisplay()}で表示するまで作らない。設定は volatile のフィールドに、作り直した配列などを
+ * 入れ替えて公開する(書き換え中の状態はセンサーのスレッドから見えない)。
+ *
+ * サンプリング周波数はセンサーの登録時の目安から推定を始める。周波数で係数が
+ * 決まるフィルタは、推定が作ったときの周波数から大きくずれたらセンサーの
+ * スレッドで作り直す(周波数が変わったときだけなので、定常では確保しない)。
+ */
+public class SamplePipeline implements SampleSource.Sink {
+
+	/**
+	 * 履歴にサンプルが追加されたことを受け取る
+	 *
+	 * センサーのスレッドから呼ばれるので、すぐに戻ること。
+	 */
+	public interface OnSamplesAddedListener {
+		void onSamplesAdded();
+	}
+
+	private static final int BLOCK_SIZE = 256;
+
+	// SensorManager.SENSOR_DELAY_* の数
+	public static final int SENSOR_DELAYS = 4;
+
+	// サンプリング周波数が分かるまでの仮の値
+	private static final float DEFAULT_SAMPLE_RATE = 50f;
+	// フィルタを作り直すサンプリング周波数のずれの割合
+	private static final float FILTER_RATE_TOLERANCE = 0.1f;
+
+	private final SampleBuffer mRawHistory;
+	// 表示用の履歴とピラミッド(作るまでは null)
+	private volatile Display mDisplay;
+	private final int mHistoryCapacity;
+	private final int mPyramidLevels;
+	private final int mPyramidCapacity;
+	private final CallbackStats mStats = new CallbackStats();
+
+	// センサーの通知間隔の設定ごとのタイムスタンプの統計
+	private final TimingStats[] mTimingStats;
+	private volatile int mSensorDelay = 0;
+
+	// ブロック処理用の作業領域
+	private final long[] mTimestamps = new long[BLOCK_SIZE];
+	private final float[][] mBlock = new float[SampleBuffer.CHANNELS][BLOCK_SIZE];
+
+	private volatile FilterChain[] mFilters;
+	private volatile int mPreset = FilterPresets.RAW;
+	private volatile float mFilterRate = 0.1f;
+	// フィルタを作ったサンプリング周波数(周波数によらないフィルタなら0)
+	private volatile float mFilterSampleRate = 0;
+
+	// フィルタ後の値の移動統計(null なら集計しない)
+	private volatile RollingStats[] mRollingStats;
+	// RAW の値を監視するトリガー(null なら監視しない)
+	private volatile TriggerEngine mTrigger;
+	// RAW の値から特徴量を求めるもの(null なら求めない)
+	private volatile FeatureExtractor mFeatures;
+
+	private volatile OnSamplesAddedListener mListener;
+
+	private long mLastTimestamp;
+	private volatile float mSampleRate = DEFAULT_SAMPLE_RATE;
+	private volatile float mNominalSampleRate = DEFAULT_SAMPLE_RATE;
+	// 次のブロックで推定を目安の周波数からやり直す
+	private volatile boolean mRestartSampleRate = false;
+
+	/**
+	 * @param history
+	 *            フィルタ後の履歴
+	 * @param rawHistory
+	 *            フィルタをかける前の履歴(記録用)
+	 * @param pyramid
+	 *            フィルタ後の値の最小値・最大値(長い時間の表示用)
+	 */
+	public SamplePipeline(SampleBuffer history, SampleBuffer rawHistory,
+			MinMaxPyramid pyramid) {
+		this(rawHistory, 0, 0, 0);
+		mDisplay = new Display(history, pyramid);
+	}
+
+	/**
+	 * 表示用の履歴とピラミッドは{@link #prepareDisplay()}で作る
+	 *
+	 * @param rawHistory
+	 *            フィルタをかける前の履歴(記録用)
+	 * @param historyCapacity
+	 *            フィルタ後の履歴のサンプル数
+	 * @param pyramidLevels
+	 *            ピラミッドのレベルの数
+	 * @param pyramidCapacity
+	 *            ピラミッドのレベルごとのビンの数
+	 */
+	public SamplePipeline(SampleBuffer rawHistory, int historyCapacity,
+			int pyramidLevels, int pyramidCapacity) {
+		mRawHistory = rawHistory;
+		mHistoryCapacity = historyCapacity;
+		mPyramidLevels = pyramidLevels;
+		mPyramidCapacity = pyramidCapacity;
+		mTimingStats = new TimingStats[SENSOR_DELAYS];
+		for (int i = 0; i < SENSOR_DELAYS; i++) {
+			mTimingStats[i] = new TimingStats();
+		}
+		setPreset(FilterPresets.RAW);
+	}
+
+	/**
+	 * 表示用の履歴とピラミッドを、まだなければ作る(UI スレッドから呼ぶ)
+	 *
+	 * 作った後に処理したサンプルから登録するので、履歴のシーケンスと
+	 * ピラミッドのサンプル数は常に一致する。
+	 */
+	public synchronized void prepareDisplay() {
+		if (mDisplay == null) {
+			mDisplay = new Display(new SampleBuffer(mHistoryCapacity),
+					MinMaxPyramid.createLive(mPyramidLevels, mPyramidCapacity));
+		}
+	}
+
+	/**
+	 * フィルタ後の履歴を返す({@link #prepareDisplay()}の前は null)
+	 */
+	public SampleBuffer getHistory() {
+		Display display = mDisplay;
+		return display != null ? display.mHistory : null;
+	}
+
+	public SampleBuffer getRawHistory() {
+		return mRawHistory;
+	}
+
+	/**
+	 * フィルタ後の値のピラミッドを返す({@link #prepareDisplay()}の前は null)
+	 */
+	public MinMaxPyramid getPyramid() {
+		Display display = mDisplay;
+		return display != null ? display.mPyramid : null;
+	}
+
+	public CallbackStats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * これから受け取るサンプルのセンサーの通知間隔の設定
+	 * (SensorManager.SENSOR_DELAY_*)を知らせる
+	 *
+	 * センサーの登録前に呼ぶ。
+	 */
+	public void setSensorDelay(int sensorDelay) {
+		mTimingStats[sensorDelay].restart();
+		mSensorDelay = sensorDelay;
+	}
+
+	/**
+	 * これから受け取るサンプルのサンプリング周波数の目安(Hz)を知らせる
+	 *
+	 * センサーや信号の登録前に呼ぶ。推定をこの値からやり直し、周波数で係数が
+	 * 決まるフィルタをこの値で作り直す。
+	 */
+	public synchronized void setNominalSampleRate(float sampleRate) {
+		mNominalSampleRate = sampleRate;
+		mSampleRate = sampleRate;
+		mRestartSampleRate = true;
+		if (mFilterSampleRate > 0) {
+			buildFilters(sampleRate);
+		}
+	}
+
+	/**
+	 * 登録時に知らされたサンプリング周波数の目安(Hz)を返す
+	 */
+	public float getNominalSampleRate() {
+		return mNominalSampleRate;
+	}
+
+	/**
+	 * 通知間隔の設定ごとのタイムスタンプの統計を返す
+	 */
+	public TimingStats getTimingStats(int sensorDelay) {
+		return mTimingStats[sensorDelay];
+	}
+
+	public void setOnSamplesAddedListener(OnSamplesAddedListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * フィルタを{@link FilterPresets}の組み合わせに切り替える
+	 */
+	public synchronized void setPreset(int preset) {
+		mPreset = preset;
+		buildFilters(mSampleRate);
+	}
+
+	public int getPreset() {
+		return mPreset;
+	}
+
+	/**
+	 * チャンネルごとに任意のフィルタを設定する
+	 */
+	public synchronized void setFilters(FilterChain[] filters) {
+		if (filters.length != SampleBuffer.CHANNELS) {
+			throw new IllegalArgumentException("filters: " + filters.length);
+		}
+		// 任意のフィルタは作り直せない
+		mFilterSampleRate = 0;
+		mFilters = filters.clone();
+	}
+
+	public synchronized void setFilterRate(float filterRate) {
+		mFilterRate = filterRate;
+		FilterChain[] filters = mFilters;
+		for (int channel = 0; channel < filters.length; channel++) {
+			FilterPresets.setFilterRate(filters[channel], filterRate);
+		}
+	}
+
+	public float getFilterRate() {
+		return mFilterRate;
+	}
+
+	/**
+	 * 移動統計の窓のサンプル数を設定する(0 なら集計しない)
+	 *
+	 * 窓を変えると統計は最初からやり直す。
+	 */
+	public void setRollingWindow(int samples) {
+		if (samples <= 0) {
+			mRollingStats = null;
+			return;
+		}
+		RollingStats[] stats = new RollingStats[SampleBuffer.CHANNELS];
+		for (int channel = 0; channel < stats.length; channel++) {
+			stats[channel] = new RollingStats(samples);
+		}
+		mRollingStats = stats;
+	}
+
+	public int getRollingWindow() {
+		RollingStats[] stats = mRollingStats;
+		return stats != null ? stats[0].getWindow() : 0;
+	}
+
+	/**
+	 * channel の移動統計を返す(集計していなければ null)
+	 */
+	public RollingStats getRollingStats(int channel) {
+		RollingStats[] stats = mRollingStats;
+		return stats != null ? stats[channel] : null;
+	}
+
+	/**
+	 * RAW の値を監視するトリガーを設定する(null なら監視しない)
+	 */
+	public void setTrigger(TriggerEngine trigger) {
+		mTrigger = trigger;
+	}
+
+	public TriggerEngine getTrigger() {
+		return mTrigger;
+	}
+
+	/**
+	 * RAW の値から特徴量を求めるものを設定する(null なら求めない)
+	 */
+	public void setFeatures(FeatureExtractor features) {
+		mFeatures = features;
+	}
+
+	public FeatureExtractor getFeatures() {
+		return mFeatures;
+	}
+
+	/**
+	 * タイムスタンプから推定したサンプリング周波数(Hz)を返す
+	 *
+	 * サンプルが届くまでは{@link #setNominalSampleRate}の目安を返す。
+	 */
+	public float getSampleRate() {
+		return mSampleRate;
+	}
+
+	/**
+	 * 最後に処理したフィルタ後の値をチャンネルごとに values にコピーする
+	 *
+	 * @return まだサンプルがない(表示していない)なら false
+	 */
+	public boolean getCurrents(float[] values) {
+		Display display = mDisplay;
+		return display != null && display.mHistory.getLatest(values);
+	}
+
+	/**
+	 * 1サンプルを処理する
+	 *
+	 * @param timestamp
+	 *            センサーのタイムスタンプ(ナノ秒)
+	 */
+	public void onSample(long timestamp, float x, float y, float z) {
+		CallbackStats stats = mStats;
+		long allocations = stats.beginAllocations();
+		long start = stats.begin();
+
+		mTimestamps[0] = timestamp;
+		mBlock[SampleBuffer.CHANNEL_X][0] = x;
+		mBlock[SampleBuffer.CHANNEL_Y][0] = y;
+		mBlock[SampleBuffer.CHANNEL_Z][0] = z;
+		processBlock(1);
+
+		stats.end(start, allocations);
+	}
+
+	/**
+	 * 複数のサンプルをまとめて処理する
+	 */
+	public void onSamples(long[] timestamps, float[] x, float[] y, float[] z,
+			int offset, int count) {
+		CallbackStats stats = mStats;
+		long allocations = stats.beginAllocations();
+		long start = stats.begin();
+
+		while (count > 0) {
+			int length = Math.min(count, BLOCK_SIZE);
+			System.arraycopy(timestamps, offset, mTimestamps, 0, length);
+			System.arraycopy(x, offset, mBlock[SampleBuffer.CHANNEL_X], 0,
+					length);
+			System.arraycopy(y, offset, mBlock[SampleBuffer.CHANNEL_Y], 0,
+					length);
+			System.arraycopy(z, offset, mBlock[SampleBuffer.CHANNEL_Z], 0,
+					length);
+			processBlock(length);
+			offset += length;
+			count -= length;
+		}
+
+		stats.end(start, allocations);
+	}
+
+	private void processBlock(int length) {
+		float[] x = mBlock[SampleBuffer.CHANNEL_X];
+		float[] y = mBlock[SampleBuffer.CHANNEL_Y];
+		float[] z = mBlock[SampleBuffer.CHANNEL_Z];
+		float[] r = mBlock[SampleBuffer.CHANNEL_R];
+
+		updateSampleRate(length);
+		float filterSampleRate = mFilterSampleRate;
+		if (filterSampleRate > 0
+				&& Math.abs(mSampleRate - filterSampleRate) > filterSampleRate
+						* FILTER_RATE_TOLERANCE) {
+			rebuildFilters();
+		}
+		mTimingStats[mSensorDelay].add(mTimestamps, 0, length);
+
+		// 実加速度の計算
+		for (int i = 0; i < length; i++) {
+			r[i] = (float) Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i] * z[i]);
+		}
+
+		// RAW履歴を登録
+		if (length == 1) {
+			mRawHistory.add(mTimestamps[0], x[0], y[0], z[0], r[0]);
+		} else {
+			mRawHistory.addAll(mTimestamps, x, y, z, r, 0, length);
+		}
+
+		// トリガーの条件を評価
+		TriggerEngine trigger = mTrigger;
+		if (trigger != null) {
+			trigger.onSamples(mTimestamps, x, y, z, r, length);
+		}
+
+		// 特徴量を求める
+		FeatureExtractor features = mFeatures;
+		if (features != null) {
+			features.process(mTimestamps, x, y, z, r, 0, length);
+		}
+
+		// フィルタをかける
+		FilterChain[] filters = mFilters;
+		for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+			float[] values = mBlock[channel];
+			filters[channel].process(values, values, 0, length);
+		}
+
+		// 移動統計を更新
+		RollingStats[] rolling = mRollingStats;
+		if (rolling != null) {
+			for (int channel = 0; channel < SampleBuffer.CHANNELS; channel++) {
+				rolling[channel].add(mBlock[channel], 0, length);
+			}
+		}
+
+		// 表示用の履歴を登録
+		Display display = mDisplay;
+		if (display != null) {
+			if (length == 1) {
+				display.mPyramid.add(x[0], y[0], z[0], r[0]);
+				display.mHistory.add(mTimestamps[0], x[0], y[0], z[0], r[0]);
+			} else {
+				display.mPyramid.addAll(x, y, z, r, 0, length);
+				display.mHistory.addAll(mTimestamps, x, y, z, r, 0, length);
+			}
+		}
+
+		OnSamplesAddedListener listener = mListener;
+		if (listener != null) {
+			listener.onSamplesAdded();
+		}
+	}
+
+	private void updateSampleRate(int length) {
+		long last = mTimestamps[length - 1];
+		long previous = mLastTimestamp;
+		mLastTimestamp = last;
+		if (mRestartSampleRate) {
+			// 登録し直した後の最初の間隔は前の登録との間なので使わない
+			mRestartSampleRate = false;
+			mSampleRate = mNominalSampleRate;
+			return;
+		}
+		if (previous == 0 || last <= previous) {
+			return;
+		}
+		// 間隔の指数移動平均から周波数を求める
+		float interval = (float) (last - previous) / length;
+		float current = 1e9f / mSampleRate;
+		mSampleRate = 1e9f / (current * 0.99f + interval * 0.01f);
+	}
+
+	// 推定したサンプリング周波数でフィルタを作り直す(センサーのスレッド)
+	private synchronized void rebuildFilters() {
+		if (mFilterSampleRate > 0) {
+			buildFilters(mSampleRate);
+		}
+	}
+
+	// mPreset のフィルタを作って公開する(ロックを持って呼ぶ)
+	private void buildFilters(float sampleRate) {
+		FilterChain[] filters = new FilterChain[SampleBuffer.CHANNELS];
+		for (int channel = 0; channel < filters.length; channel++) {
+			filters[channel] = FilterPresets.create(mPreset, sampleRate,
+					mFilterRate);
+		}
+		mFilterSampleRate = FilterPresets.dependsOnSampleRate(mPreset)
+				? sampleRate : 0;
+		mFilters = filters;
+	}
+
+	// 表示用の履歴とピラミッドは、サンプル数が揃うように一緒に公開する
+	private static class Display {
+		final SampleBuffer mHistory;
+		final MinMaxPyramid mPyramid;
+
+		Display(SampleBuffer history, MinMaxPyramid pyramid) {
+			mHistory = history;
+			mPyramid = pyramid;
+		}
+	}
+}
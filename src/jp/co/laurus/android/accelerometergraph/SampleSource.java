@@ -0,0 +1,35 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 加速度のサンプルを供給するもの
+ *
+ * 端末のセンサー({@link SensorSampleSource})と、記録や生成した信号の再生
+ * ({@link ReplaySampleSource})を同じように扱う。サンプルは{@link Sink}に
+ * 供給元のスレッドから渡される。
+ */
+public interface SampleSource {
+
+	/**
+	 * サンプルを受け取る({@link SamplePipeline}など)
+	 */
+	public interface Sink {
+		/**
+		 * @param timestamp
+		 *            タイムスタンプ(ナノ秒)
+		 */
+		void onSample(long timestamp, float x, float y, float z);
+
+		void onSamples(long[] timestamps, float[] x, float[] y, float[] z,
+				int offset, int count);
+	}
+
+	/**
+	 * sink へのサンプルの供給を開始する
+	 */
+	void start(Sink sink);
+
+	/**
+	 * 供給を止める(戻った後は sink を呼ばない)
+	 */
+	void stop();
+}
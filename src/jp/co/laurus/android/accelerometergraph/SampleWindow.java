@@ -0,0 +1,17 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * グラフに描画する連続したサンプルの範囲
+ */
+public interface SampleWindow {
+
+	int size();
+
+	/**
+	 * @param channel
+	 *            {@link SampleBuffer#CHANNEL_X}〜{@link SampleBuffer#CHANNEL_R}
+	 */
+	float get(int channel, int index);
+
+	long getTimestamp(int index);
+}
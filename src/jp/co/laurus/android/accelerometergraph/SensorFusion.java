@@ -0,0 +1,141 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 加速度とジャイロを{@link OrientationFilter}でまとめ、重力を除いた加速度を
+ * 2つのチャンネル(端末の座標、世界の座標)として流す
+ *
+ * {@link ChannelRegistry.Channel#setListener}で時刻を揃えたサンプルを
+ * 受け取り、加速度のサンプルごとに、その時点の姿勢で求めた値を出力の
+ * {@link SamplePipeline}に渡す。ジャイロは姿勢を進めるだけで出力しない。
+ *
+ * ハイパスフィルタで重力を引く方法と違い、端末を回しても重力が漏れず、
+ * 衝撃の形もなまらない。ジャイロがない(再生中など)ときは加速度だけで
+ * 重力の向きを追うので、ゆっくりしたハイパスと同じ程度になる。
+ *
+ * センサーのコールバックは同じスレッドで届くので、状態はロックしない。
+ */
+public class SensorFusion {
+
+	/**
+	 * 重力を除いた端末の座標での加速度
+	 */
+	public static final ChannelDescriptor LINEAR = new ChannelDescriptor(
+			ChannelDescriptor.TYPE_FUSED_LINEAR_ACCELERATION, 3,
+			"linear (fused)");
+	/**
+	 * 重力を除いた世界の座標(Z が鉛直上向き)での加速度
+	 */
+	public static final ChannelDescriptor WORLD = new ChannelDescriptor(
+			ChannelDescriptor.TYPE_WORLD_ACCELERATION, 3, "world (fused)");
+
+	private static final int BLOCK_SIZE = 256;
+
+	private final OrientationFilter mFilter;
+	private final SamplePipeline mLinear;
+	private final SamplePipeline mWorld;
+
+	// 出力のブロックの作業領域
+	private final long[] mTimestamps = new long[BLOCK_SIZE];
+	private final float[] mLinearX = new float[BLOCK_SIZE];
+	private final float[] mLinearY = new float[BLOCK_SIZE];
+	private final float[] mLinearZ = new float[BLOCK_SIZE];
+	private final float[] mWorldX = new float[BLOCK_SIZE];
+	private final float[] mWorldY = new float[BLOCK_SIZE];
+	private final float[] mWorldZ = new float[BLOCK_SIZE];
+	private final float[] mVector = new float[3];
+
+	private final SampleSource.Sink mAccelerometerSink = new SampleSource.Sink() {
+		@Override
+		public void onSample(long timestamp, float x, float y, float z) {
+			mTimestamps[0] = timestamp;
+			process(0, x, y, z);
+			emit(1);
+		}
+
+		@Override
+		public void onSamples(long[] timestamps, float[] x, float[] y,
+				float[] z, int offset, int count) {
+			while (count > 0) {
+				int length = Math.min(count, BLOCK_SIZE);
+				for (int i = 0; i < length; i++) {
+					mTimestamps[i] = timestamps[offset + i];
+					process(i, x[offset + i], y[offset + i], z[offset + i]);
+				}
+				emit(length);
+				offset += length;
+				count -= length;
+			}
+		}
+	};
+
+	private final SampleSource.Sink mGyroscopeSink = new SampleSource.Sink() {
+		@Override
+		public void onSample(long timestamp, float x, float y, float z) {
+			mFilter.updateGyroscope(timestamp, x, y, z);
+		}
+
+		@Override
+		public void onSamples(long[] timestamps, float[] x, float[] y,
+				float[] z, int offset, int count) {
+			int end = offset + count;
+			for (int i = offset; i < end; i++) {
+				mFilter.updateGyroscope(timestamps[i], x[i], y[i], z[i]);
+			}
+		}
+	};
+
+	/**
+	 * @param linear
+	 *            端末の座標での加速度を受け取る
+	 * @param world
+	 *            世界の座標での加速度を受け取る
+	 */
+	public SensorFusion(OrientationFilter filter, SamplePipeline linear,
+			SamplePipeline world) {
+		mFilter = filter;
+		mLinear = linear;
+		mWorld = world;
+	}
+
+	public OrientationFilter getFilter() {
+		return mFilter;
+	}
+
+	/**
+	 * 加速度のチャンネルに設定するリスナー
+	 */
+	public SampleSource.Sink getAccelerometerSink() {
+		return mAccelerometerSink;
+	}
+
+	/**
+	 * ジャイロのチャンネルに設定するリスナー
+	 */
+	public SampleSource.Sink getGyroscopeSink() {
+		return mGyroscopeSink;
+	}
+
+	/**
+	 * 姿勢を捨てて、次の加速度から推定し直す(入力を切り替えたときなど)
+	 */
+	public void reset() {
+		mFilter.reset();
+	}
+
+	private void process(int i, float x, float y, float z) {
+		mFilter.updateAccelerometer(mTimestamps[i], x, y, z);
+		mFilter.getLinearAcceleration(x, y, z, mVector, 0);
+		mLinearX[i] = mVector[0];
+		mLinearY[i] = mVector[1];
+		mLinearZ[i] = mVector[2];
+		mFilter.toWorld(mVector[0], mVector[1], mVector[2], mVector, 0);
+		mWorldX[i] = mVector[0];
+		mWorldY[i] = mVector[1];
+		mWorldZ[i] = mVector[2];
+	}
+
+	private void emit(int length) {
+		mLinear.onSamples(mTimestamps, mLinearX, mLinearY, mLinearZ, 0, length);
+		mWorld.onSamples(mTimestamps, mWorldX, mWorldY, mWorldZ, 0, length);
+	}
+}
@@ -0,0 +1,269 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.lang.reflect.Method;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * 端末のセンサーからサンプルを供給する
+ *
+ * {@link SensorManager}にリスナーを登録し、handler のスレッドから
+ * {@link SampleSource.Sink}へ渡す。
+ *
+ * サンプリング間隔(マイクロ秒)と最大の通知遅延を指定すると、センサーハブの
+ * FIFO にサンプルをためてまとめて通知させる(API 19 以降)。まとめて届いた
+ * サンプルは1件ずつ onSensorChanged() に来るので、ブロックにためておき、
+ * handler に積んだ処理で1回にまとめて渡す。センサーの通知は1回の
+ * Looper の処理の中で続けて呼ばれるため、この処理はバッチの最後の後に動く。
+ */
+public class SensorSampleSource implements SampleSource {
+
+	private static final String TAG = "SensorSampleSource";
+
+	private static final int BLOCK_SIZE = 512;
+
+	// API 9 より前の端末で SENSOR_DELAY_* に置き換える間隔(マイクロ秒)
+	private static final int GAME_PERIOD = 40000;
+	private static final int UI_PERIOD = 80000;
+	private static final int NORMAL_PERIOD = 220000;
+	// SENSOR_DELAY_* の代表的な間隔(マイクロ秒)
+	private static final int[] DELAY_PERIODS = { 0, 20000, 66667, 200000 };
+
+	private final SensorManager mSensorManager;
+	private final Sensor mSensor;
+	private final Handler mHandler;
+	private int mSensorDelay = SensorManager.SENSOR_DELAY_UI;
+	private int mSamplingPeriod = 0;
+	private int mMaxReportLatency = 0;
+	private volatile Sink mSink;
+
+	// まだ渡していないサンプル(handler のスレッドだけが触る)
+	private final long[] mTimestamps = new long[BLOCK_SIZE];
+	private final float[] mX = new float[BLOCK_SIZE];
+	private final float[] mY = new float[BLOCK_SIZE];
+	private final float[] mZ = new float[BLOCK_SIZE];
+	private int mPending = 0;
+	private boolean mPosted = false;
+	private final BatchStats mBatchStats = new BatchStats();
+
+	private final SensorEventListener mListener = new SensorEventListener() {
+		@Override
+		public void onAccuracyChanged(Sensor sensor, int accuracy) {
+			Log.i(TAG, "onAccuracyChanged()");
+		}
+
+		@Override
+		public void onSensorChanged(SensorEvent event) {
+			if (mSink == null) {
+				return;
+			}
+			float[] values = event.values;
+			int i = mPending;
+			mTimestamps[i] = event.timestamp;
+			mX[i] = values[SensorManager.DATA_X];
+			mY[i] = values[SensorManager.DATA_Y];
+			mZ[i] = values[SensorManager.DATA_Z];
+			mPending = i + 1;
+			if (mPending == BLOCK_SIZE || mHandler == null) {
+				deliver();
+			} else if (!mPosted) {
+				// このバッチの通知が終わってからまとめて渡す
+				mPosted = true;
+				mHandler.post(mDeliverer);
+			}
+		}
+	};
+
+	private final Runnable mDeliverer = new Runnable() {
+		@Override
+		public void run() {
+			mPosted = false;
+			deliver();
+		}
+	};
+
+	/**
+	 * @param handler
+	 *            コールバックを受け取るスレッド(null ならメインスレッド)
+	 */
+	public SensorSampleSource(SensorManager sensorManager, Sensor sensor,
+			Handler handler) {
+		mSensorManager = sensorManager;
+		mSensor = sensor;
+		mHandler = handler;
+	}
+
+	/**
+	 * 通知間隔(SensorManager.SENSOR_DELAY_*)を設定する
+	 *
+	 * 次の{@link #start}から有効。{@link #setBatching}の設定は解除する。
+	 */
+	public void setSensorDelay(int sensorDelay) {
+		mSensorDelay = sensorDelay;
+		mSamplingPeriod = 0;
+		mMaxReportLatency = 0;
+	}
+
+	public int getSensorDelay() {
+		return mSensorDelay;
+	}
+
+	/**
+	 * サンプリング間隔と最大の通知遅延(どちらもマイクロ秒)を設定する
+	 *
+	 * 次の{@link #start}から有効。samplingPeriod が 0 なら
+	 * {@link #setSensorDelay}の間隔を使う。FIFO を持たない端末では
+	 * 通知遅延は無視され、サンプルごとに通知される。
+	 */
+	public void setBatching(int samplingPeriod, int maxReportLatency) {
+		mSamplingPeriod = samplingPeriod;
+		mMaxReportLatency = maxReportLatency;
+	}
+
+	public int getSamplingPeriod() {
+		return mSamplingPeriod;
+	}
+
+	public int getMaxReportLatency() {
+		return mMaxReportLatency;
+	}
+
+	/**
+	 * 届いたバッチの統計を返す(読み込みは表示用)
+	 */
+	public BatchStats getBatchStats() {
+		return mBatchStats;
+	}
+
+	@Override
+	public void start(Sink sink) {
+		mBatchStats.reset();
+		mSink = sink;
+		if (mSamplingPeriod <= 0) {
+			mSensorManager.registerListener(mListener, mSensor, mSensorDelay,
+					mHandler);
+		} else if (!registerBatching()) {
+			mSensorManager.registerListener(mListener, mSensor,
+					toSensorRate(mSamplingPeriod), mHandler);
+		}
+	}
+
+	@Override
+	public void stop() {
+		mSensorManager.unregisterListener(mListener);
+		mSink = null;
+	}
+
+	/**
+	 * センサーハブの FIFO にたまっているサンプルをすぐに通知させる
+	 *
+	 * @return FIFO を持たない端末では false
+	 */
+	public boolean flush() {
+		try {
+			Method method = SensorManager.class.getMethod("flush",
+					SensorEventListener.class);
+			return ((Boolean) method.invoke(mSensorManager, mListener))
+					.booleanValue();
+		} catch (NoSuchMethodException e) {
+			// 古い端末
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage());
+		}
+		return false;
+	}
+
+	// まとめたサンプルを渡す
+	private void deliver() {
+		int count = mPending;
+		mPending = 0;
+		Sink sink = mSink;
+		if (count == 0 || sink == null) {
+			return;
+		}
+		mBatchStats.add(mTimestamps, 0, count, System.nanoTime());
+		sink.onSamples(mTimestamps, mX, mY, mZ, 0, count);
+	}
+
+	/**
+	 * 与えた設定で届くサンプリング周波数の目安(Hz)を返す
+	 *
+	 * samplingPeriod(マイクロ秒)、0 なら通知間隔の代表的な値から求め、
+	 * センサーの最大のサンプリング周波数を超えないようにする。
+	 *
+	 * @param sensorDelay
+	 *            通知間隔(SensorManager.SENSOR_DELAY_*)
+	 * @param defaultRate
+	 *            最大のサンプリング周波数が分からないときの値
+	 */
+	public float getNominalSampleRate(int sensorDelay, int samplingPeriod,
+			float defaultRate) {
+		float maxSampleRate = getMaxSampleRate(mSensor, defaultRate);
+		int period = samplingPeriod > 0 ? samplingPeriod
+				: DELAY_PERIODS[sensorDelay];
+		return period > 0 ? Math.min(maxSampleRate, 1e6f / period)
+				: maxSampleRate;
+	}
+
+	/**
+	 * sensor の最大のサンプリング周波数(Hz)を返す
+	 *
+	 * Sensor.getMinDelay() は API 9 から。古い端末、変化したときだけ通知する
+	 * センサー、sensor が null のときは defaultRate を返す。
+	 */
+	public static float getMaxSampleRate(Sensor sensor, float defaultRate) {
+		if (sensor == null) {
+			return defaultRate;
+		}
+		try {
+			Method method = Sensor.class.getMethod("getMinDelay");
+			int minDelay = ((Integer) method.invoke(sensor)).intValue();
+			if (minDelay > 0) {
+				return 1e6f / minDelay;
+			}
+		} catch (NoSuchMethodException e) {
+			// 古い端末
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage());
+		}
+		return defaultRate;
+	}
+
+	// registerListener() の最大の通知遅延つき版は API 19 から
+	private boolean registerBatching() {
+		try {
+			Method method = SensorManager.class.getMethod("registerListener",
+					SensorEventListener.class, Sensor.class, int.class,
+					int.class, Handler.class);
+			return ((Boolean) method.invoke(mSensorManager, mListener,
+					mSensor, mSamplingPeriod, mMaxReportLatency, mHandler))
+					.booleanValue();
+		} catch (NoSuchMethodException e) {
+			// 古い端末
+		} catch (Exception e) {
+			Log.e(TAG, e.getMessage());
+		}
+		return false;
+	}
+
+	// マイクロ秒の間隔は API 9 から指定できる
+	private static int toSensorRate(int samplingPeriod) {
+		if (Build.VERSION.SDK_INT >= 9) {
+			return samplingPeriod;
+		}
+		if (samplingPeriod < GAME_PERIOD) {
+			return SensorManager.SENSOR_DELAY_FASTEST;
+		} else if (samplingPeriod < UI_PERIOD) {
+			return SensorManager.SENSOR_DELAY_GAME;
+		} else if (samplingPeriod < NORMAL_PERIOD) {
+			return SensorManager.SENSOR_DELAY_UI;
+		}
+		return SensorManager.SENSOR_DELAY_NORMAL;
+	}
+}
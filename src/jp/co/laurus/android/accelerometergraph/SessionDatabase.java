@@ -0,0 +1,288 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * 記録ファイルのカタログ(SQLite)
+ *
+ * <pre>
+ * sessions: 1ファイル1行。start_time, end_time(ミリ秒)に索引
+ * channels: セッションのチャンネルごとの統計
+ * tiles:    チャンネルの1分ごとの最小・最大((session_id, channel, minute) が主キー)
+ * </pre>
+ *
+ * 一覧と時間での検索はこのデータベースだけで行い、記録ファイルは開かない。
+ * 索引は{@link SessionIndexer#sync}で更新する。
+ */
+public class SessionDatabase extends SQLiteOpenHelper implements
+		SessionIndexer.Store {
+
+	private static final String DATABASE_NAME = "sessions.db";
+	private static final int DATABASE_VERSION = 1;
+
+	public static final String SESSIONS = "sessions";
+	public static final String CHANNELS = "channels";
+	public static final String TILES = "tiles";
+
+	// sessions の列(querySessions() と findSessions() の列の順)
+	public static final String[] SESSION_COLUMNS = { "_id", "name",
+			"start_time", "end_time", "sample_count", "sample_rate",
+			"channel_types", "tile_count", "first_timestamp" };
+	public static final int COLUMN_ID = 0;
+	public static final int COLUMN_NAME = 1;
+	public static final int COLUMN_START_TIME = 2;
+	public static final int COLUMN_END_TIME = 3;
+	public static final int COLUMN_SAMPLE_COUNT = 4;
+	public static final int COLUMN_SAMPLE_RATE = 5;
+	public static final int COLUMN_CHANNEL_TYPES = 6;
+	public static final int COLUMN_TILE_COUNT = 7;
+	public static final int COLUMN_FIRST_TIMESTAMP = 8;
+
+	// tiles の列(queryTiles() の列の順)
+	public static final String[] TILE_COLUMNS = { "minute", "count", "min_x",
+			"max_x", "min_y", "max_y", "min_z", "max_z", "min_r", "max_r" };
+
+	private static final String[] AXIS_NAMES = { "x", "y", "z", "r" };
+
+	public SessionDatabase(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + SESSIONS + " ("
+				+ "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ "name TEXT NOT NULL UNIQUE," + "size INTEGER NOT NULL,"
+				+ "modified INTEGER NOT NULL,"
+				+ "start_time INTEGER NOT NULL,"
+				+ "end_time INTEGER NOT NULL,"
+				+ "first_timestamp INTEGER NOT NULL,"
+				+ "last_timestamp INTEGER NOT NULL,"
+				+ "finalized INTEGER NOT NULL,"
+				+ "sample_count INTEGER NOT NULL,"
+				+ "sample_rate REAL NOT NULL,"
+				+ "channel_types TEXT NOT NULL,"
+				+ "tile_count INTEGER NOT NULL)");
+		db.execSQL("CREATE INDEX sessions_start ON " + SESSIONS
+				+ " (start_time)");
+		db.execSQL("CREATE INDEX sessions_end ON " + SESSIONS
+				+ " (end_time)");
+
+		StringBuilder channels = new StringBuilder();
+		channels.append("CREATE TABLE " + CHANNELS + " ("
+				+ "session_id INTEGER NOT NULL," + "channel INTEGER NOT NULL,"
+				+ "type INTEGER NOT NULL," + "name TEXT NOT NULL,"
+				+ "sample_count INTEGER NOT NULL,"
+				+ "sample_rate REAL NOT NULL");
+		for (int axis = 0; axis < AXIS_NAMES.length; axis++) {
+			String name = AXIS_NAMES[axis];
+			channels.append(",min_" + name + " REAL,max_" + name
+					+ " REAL,mean_" + name + " REAL,rms_" + name + " REAL");
+		}
+		channels.append(",PRIMARY KEY (session_id, channel))");
+		db.execSQL(channels.toString());
+
+		StringBuilder tiles = new StringBuilder();
+		tiles.append("CREATE TABLE " + TILES + " ("
+				+ "session_id INTEGER NOT NULL," + "channel INTEGER NOT NULL,"
+				+ "minute INTEGER NOT NULL," + "count INTEGER NOT NULL");
+		for (int axis = 0; axis < AXIS_NAMES.length; axis++) {
+			String name = AXIS_NAMES[axis];
+			tiles.append(",min_" + name + " REAL,max_" + name + " REAL");
+		}
+		tiles.append(",PRIMARY KEY (session_id, channel, minute))");
+		db.execSQL(tiles.toString());
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// 索引は記録ファイルから作り直せるので消すだけ
+		db.execSQL("DROP TABLE IF EXISTS " + SESSIONS);
+		db.execSQL("DROP TABLE IF EXISTS " + CHANNELS);
+		db.execSQL("DROP TABLE IF EXISTS " + TILES);
+		onCreate(db);
+	}
+
+	@Override
+	public String[] getIndexedNames() {
+		Cursor cursor = getReadableDatabase().query(SESSIONS,
+				new String[] { "name" }, null, null, null, null, null);
+		try {
+			String[] names = new String[cursor.getCount()];
+			for (int i = 0; cursor.moveToNext(); i++) {
+				names[i] = cursor.getString(0);
+			}
+			return names;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public boolean isIndexed(String name, long size, long modified) {
+		Cursor cursor = getReadableDatabase().query(SESSIONS,
+				new String[] { "_id" }, "name = ? AND size = ? AND modified = ?",
+				new String[] { name, String.valueOf(size),
+						String.valueOf(modified) }, null, null, null);
+		try {
+			return cursor.moveToFirst();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public void put(SessionSummary summary) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			delete(db, summary.name);
+
+			StringBuilder types = new StringBuilder();
+			for (int i = 0; i < summary.descriptors.length; i++) {
+				if (i > 0) {
+					types.append(',');
+				}
+				types.append(summary.descriptors[i].type);
+			}
+			// 一覧には先頭のチャンネルの周波数を表示する
+			SessionSummary.Channel primary = new SessionSummary.Channel();
+			if (summary.channels.length > 0) {
+				primary = summary.channels[0];
+			}
+			ContentValues values = new ContentValues();
+			values.put("name", summary.name);
+			values.put("size", summary.size);
+			values.put("modified", summary.modified);
+			values.put("start_time", summary.startTime);
+			values.put("end_time", summary.getEndTime());
+			values.put("first_timestamp", summary.firstTimestamp);
+			values.put("last_timestamp", summary.lastTimestamp);
+			values.put("finalized", summary.finalized ? 1 : 0);
+			values.put("sample_count", summary.getSampleCount());
+			values.put("sample_rate", primary.sampleRate);
+			values.put("channel_types", types.toString());
+			values.put("tile_count", primary.getTileCount());
+			long id = db.insert(SESSIONS, null, values);
+
+			for (int channel = 0; channel < summary.channels.length; channel++) {
+				SessionSummary.Channel stats = summary.channels[channel];
+				values.clear();
+				values.put("session_id", id);
+				values.put("channel", channel);
+				values.put("type", summary.descriptors[channel].type);
+				values.put("name", summary.descriptors[channel].name);
+				values.put("sample_count", stats.sampleCount);
+				values.put("sample_rate", stats.sampleRate);
+				for (int axis = 0; axis < AXIS_NAMES.length; axis++) {
+					String name = AXIS_NAMES[axis];
+					values.put("min_" + name, stats.min[axis]);
+					values.put("max_" + name, stats.max[axis]);
+					values.put("mean_" + name, stats.mean[axis]);
+					values.put("rms_" + name, stats.rms[axis]);
+				}
+				db.insert(CHANNELS, null, values);
+				insertTiles(db, id, channel, stats);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	@Override
+	public void remove(String name) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			delete(db, name);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * 全セッションを新しい順に返す(列は SESSION_COLUMNS)
+	 */
+	public Cursor querySessions() {
+		return getReadableDatabase().query(SESSIONS, SESSION_COLUMNS, null,
+				null, null, null, "start_time DESC");
+	}
+
+	/**
+	 * from から to(ミリ秒)と重なるセッションを古い順に返す(列は SESSION_COLUMNS)
+	 */
+	public Cursor findSessions(long from, long to) {
+		return getReadableDatabase().query(SESSIONS, SESSION_COLUMNS,
+				"start_time < ? AND end_time >= ?",
+				new String[] { String.valueOf(to), String.valueOf(from) },
+				null, null, "start_time");
+	}
+
+	/**
+	 * セッションのチャンネルのタイルを分の順に返す(列は TILE_COLUMNS)
+	 *
+	 * サンプルのない分の行はない。
+	 */
+	public Cursor queryTiles(long sessionId, int channel) {
+		return getReadableDatabase().query(TILES, TILE_COLUMNS,
+				"session_id = ? AND channel = ?",
+				new String[] { String.valueOf(sessionId),
+						String.valueOf(channel) }, null, null, "minute");
+	}
+
+	private static void delete(SQLiteDatabase db, String name) {
+		String[] args = { name };
+		String session = "session_id IN (SELECT _id FROM " + SESSIONS
+				+ " WHERE name = ?)";
+		db.delete(TILES, session, args);
+		db.delete(CHANNELS, session, args);
+		db.delete(SESSIONS, "name = ?", args);
+	}
+
+	// タイルは数が多いので、コンパイルした文で挿入する
+	private static void insertTiles(SQLiteDatabase db, long id, int channel,
+			SessionSummary.Channel stats) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("INSERT INTO " + TILES
+				+ " (session_id, channel, minute, count");
+		for (int axis = 0; axis < AXIS_NAMES.length; axis++) {
+			sql.append(", min_" + AXIS_NAMES[axis] + ", max_"
+					+ AXIS_NAMES[axis]);
+		}
+		sql.append(") VALUES (?, ?, ?, ?");
+		for (int axis = 0; axis < AXIS_NAMES.length; axis++) {
+			sql.append(", ?, ?");
+		}
+		sql.append(")");
+
+		SQLiteStatement statement = db.compileStatement(sql.toString());
+		try {
+			for (int tile = 0; tile < stats.getTileCount(); tile++) {
+				if (stats.tileCounts[tile] == 0) {
+					continue;
+				}
+				statement.clearBindings();
+				statement.bindLong(1, id);
+				statement.bindLong(2, channel);
+				statement.bindLong(3, tile);
+				statement.bindLong(4, stats.tileCounts[tile]);
+				for (int axis = 0; axis < AXIS_NAMES.length; axis++) {
+					statement.bindDouble(5 + axis * 2,
+							stats.tileMin[axis][tile]);
+					statement.bindDouble(6 + axis * 2,
+							stats.tileMax[axis][tile]);
+				}
+				statement.executeInsert();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+}
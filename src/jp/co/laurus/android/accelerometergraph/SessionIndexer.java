@@ -0,0 +1,450 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * 記録ファイルから{@link SessionSummary}を作り、カタログを更新する
+ *
+ * カタログの保存先は{@link Store}で切り替える(端末では SQLite)。
+ * {@link #sync}はディレクトリの記録ファイルとカタログを比べ、追加・変更された
+ * ファイルだけを読み直し、なくなったファイルをカタログから消す。
+ * 変更はファイルのサイズと更新時刻で判断する。
+ */
+public class SessionIndexer {
+
+	/**
+	 * タイルの長さ(ナノ秒)
+	 */
+	public static final long TILE_INTERVAL = 60 * 1000000000L;
+
+	/**
+	 * カタログの保存先
+	 */
+	public interface Store {
+		/**
+		 * 索引のあるファイル名を返す
+		 */
+		String[] getIndexedNames();
+
+		/**
+		 * name の索引が size, modified のファイルから作ったものか
+		 */
+		boolean isIndexed(String name, long size, long modified);
+
+		/**
+		 * 索引を追加する(同じ名前の索引は置き換える)
+		 */
+		void put(SessionSummary summary);
+
+		void remove(String name);
+	}
+
+	private int mFailed;
+
+	/**
+	 * 直前の{@link #sync}で読めなかったファイルの数を返す
+	 */
+	public int getFailed() {
+		return mFailed;
+	}
+
+	/**
+	 * directory の記録ファイルとカタログを一致させる
+	 *
+	 * 読めないファイル(壊れている、書き込み中で不完全)はカタログに入れず、
+	 * 次の sync() で読み直す。
+	 *
+	 * @return 索引を作り直したファイルの数
+	 */
+	public int sync(File directory, Store store) {
+		return sync(directory, store, null);
+	}
+
+	/**
+	 * active(記録中のファイル、なければ null)を除いて、directory の
+	 * 記録ファイルとカタログを一致させる
+	 *
+	 * 記録中のファイルは書き込むたびに変わるので読まず、終了処理の後の
+	 * sync() で索引を作る。カタログにある索引もそのまま残す。
+	 */
+	public int sync(File directory, Store store, File active) {
+		mFailed = 0;
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String filename) {
+				return filename.endsWith(RecordingFormat.EXTENSION);
+			}
+		});
+		if (files == null) {
+			files = new File[0];
+		}
+
+		Set<String> present = new HashSet<String>();
+		int updated = 0;
+		for (int i = 0; i < files.length; i++) {
+			File file = files[i];
+			present.add(file.getName());
+			if (file.equals(active)
+					|| store.isIndexed(file.getName(), file.length(), file
+							.lastModified())) {
+				continue;
+			}
+			try {
+				store.put(index(file));
+				updated++;
+			} catch (IOException e) {
+				mFailed++;
+			}
+		}
+
+		// なくなったファイルの索引を消す
+		String[] indexed = store.getIndexedNames();
+		for (int i = 0; i < indexed.length; i++) {
+			if (!present.contains(indexed[i])) {
+				store.remove(indexed[i]);
+			}
+		}
+		return updated;
+	}
+
+	/**
+	 * 記録ファイルを先頭から1回読んで、全チャンネルの索引を作る
+	 *
+	 * チャンクのヘッダと各チャンネルの最後のレコードだけを先に読んで
+	 * セッションの範囲(タイルの数)を決め、サンプルはチャンクの並び順に
+	 * 1回だけ読む。チャンクの区切りと検証は{@link RecordingReader}と同じ。
+	 */
+	public SessionSummary index(File file) throws IOException {
+		SessionSummary summary = new SessionSummary();
+		// 読んでいる間に書き込まれても、読む前の状態で記録する
+		summary.name = file.getName();
+		summary.size = file.length();
+		summary.modified = file.lastModified();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			RecordingFormat.Header header = RecordingFormat.readHeader(channel);
+			summary.startTime = header.startTime;
+			summary.finalized = header.isFinalized();
+			summary.descriptors = header.channels.clone();
+
+			Scan scan = new Scan(channel, header);
+			long[] range = scan.findRange();
+			Summarizer summarizer = new Summarizer(header.channels.length,
+					range[0], range[1]);
+			scan.read(summarizer);
+			// 中断されたファイルで CRC の合わないチャンクがあると、その後の
+			// チャンクの分だけ範囲がずれるので、読めた範囲で読み直す
+			if (!summarizer.isRangeExact()) {
+				summarizer = new Summarizer(header.channels.length, summarizer
+						.getFirstTimestamp(), summarizer.getLastTimestamp());
+				scan.read(summarizer);
+			}
+			summarizer.finish(summary);
+		} finally {
+			raf.close();
+		}
+		return summary;
+	}
+
+	/**
+	 * ファイルのチャンクを順に読む
+	 */
+	private static class Scan {
+		private final FileChannel mChannel;
+		private final RecordingFormat.Header mHeader;
+		private final long mSize;
+		// チャンクのヘッダと先頭のタイムスタンプ
+		private final ByteBuffer mChunkHeader = ByteBuffer
+				.allocate(RecordingFormat.CHUNK_HEADER_SIZE + 8);
+		private final ByteBuffer mRecords = ByteBuffer
+				.allocate(RecordingFormat.CHUNK_RECORDS
+						* RecordingFormat.RECORD_SIZE);
+		private final CRC32 mCrc = new CRC32();
+
+		Scan(FileChannel channel, RecordingFormat.Header header)
+				throws IOException {
+			mChannel = channel;
+			mHeader = header;
+			mSize = channel.size();
+		}
+
+		/**
+		 * チャンクのヘッダと各チャンネルの最後のレコードのタイムスタンプだけを
+		 * 読み、サンプルのあるチャンネルを合わせた範囲 { 先頭, 最後 } を返す
+		 * (サンプルがなければ { 0, 0 })
+		 */
+		long[] findRange() throws IOException {
+			int channels = mHeader.channels.length;
+			boolean[] found = new boolean[channels];
+			// チャンネルごとの最後のレコードの位置
+			long[] lastRecords = new long[channels];
+			long first = Long.MAX_VALUE;
+			long position = mHeader.getSize();
+			for (int chunks = 0; ; chunks++) {
+				int count = readChunkHeader(position, chunks);
+				if (count <= 0) {
+					break;
+				}
+				long offset = position + RecordingFormat.CHUNK_HEADER_SIZE;
+				position = offset + count * RecordingFormat.RECORD_SIZE;
+				int index = mChunkHeader.getInt(12);
+				if (index < 0 || index >= channels) {
+					continue;
+				}
+				if (!found[index]) {
+					found[index] = true;
+					first = Math.min(first, mChunkHeader
+							.getLong(RecordingFormat.CHUNK_HEADER_SIZE));
+				}
+				lastRecords[index] = position - RecordingFormat.RECORD_SIZE;
+			}
+			if (first == Long.MAX_VALUE) {
+				return new long[] { 0, 0 };
+			}
+
+			long last = Long.MIN_VALUE;
+			ByteBuffer timestamp = ByteBuffer.allocate(8);
+			for (int channel = 0; channel < channels; channel++) {
+				if (found[channel]) {
+					timestamp.clear();
+					RecordingFormat.readFully(mChannel, timestamp,
+							lastRecords[channel]);
+					last = Math.max(last, timestamp.getLong(0));
+				}
+			}
+			return new long[] { first, last };
+		}
+
+		/**
+		 * 全チャンクのサンプルを並び順に summarizer に渡す
+		 */
+		void read(Summarizer summarizer) throws IOException {
+			boolean verify = !mHeader.isFinalized();
+			int channels = mHeader.channels.length;
+			long position = mHeader.getSize();
+			for (int chunks = 0; ; chunks++) {
+				int count = readChunkHeader(position, chunks);
+				if (count <= 0) {
+					break;
+				}
+				long offset = position + RecordingFormat.CHUNK_HEADER_SIZE;
+				int payload = count * RecordingFormat.RECORD_SIZE;
+				position = offset + payload;
+				int index = mChunkHeader.getInt(12);
+				boolean known = index >= 0 && index < channels;
+				if (!verify && !known) {
+					continue;
+				}
+				mRecords.clear();
+				mRecords.limit(payload);
+				RecordingFormat.readFully(mChannel, mRecords, offset);
+				// 中断されたファイルは CRC が一致するチャンクまでを使う
+				if (verify
+						&& RecordingFormat.checksum(mCrc, mRecords.array(), 0,
+								payload) != mChunkHeader.getInt(8)) {
+					break;
+				}
+				if (known) {
+					summarizer.add(index, mRecords, count);
+				}
+			}
+		}
+
+		/**
+		 * position のチャンクのヘッダを読み、サンプル数を返す
+		 * (チャンクがなければ0)
+		 */
+		private int readChunkHeader(long position, int chunks)
+				throws IOException {
+			if (position + mChunkHeader.capacity() > mSize) {
+				return 0;
+			}
+			if (mHeader.isFinalized() && chunks == mHeader.chunkCount) {
+				return 0;
+			}
+			mChunkHeader.clear();
+			RecordingFormat.readFully(mChannel, mChunkHeader, position);
+			int count = mChunkHeader.getInt(4);
+			if (mChunkHeader.getInt(0) != RecordingFormat.CHUNK_MAGIC
+					|| count <= 0 || count > RecordingFormat.CHUNK_RECORDS) {
+				return 0;
+			}
+			long end = position + RecordingFormat.CHUNK_HEADER_SIZE + count
+					* RecordingFormat.RECORD_SIZE;
+			return end > mSize ? 0 : count;
+		}
+	}
+
+	/**
+	 * 全チャンネルの統計とタイルをまとめて求める
+	 */
+	private static class Summarizer {
+		// セッションの範囲(タイルの起点と数)
+		private final long mFirstTimestamp;
+		private final long mLastTimestamp;
+		private final int mTiles;
+
+		private final long[] mCounts;
+		private final long[] mFirst;
+		private final long[] mLast;
+		private final double[][] mSums;
+		private final double[][] mSquares;
+		private final SessionSummary.Channel[] mChannels;
+		private final float[] mValues = new float[SessionSummary.AXES];
+
+		Summarizer(int channels, long firstTimestamp, long lastTimestamp) {
+			mFirstTimestamp = firstTimestamp;
+			mLastTimestamp = lastTimestamp;
+			mTiles = (int) ((lastTimestamp - firstTimestamp) / TILE_INTERVAL) + 1;
+			mCounts = new long[channels];
+			mFirst = new long[channels];
+			mLast = new long[channels];
+			mSums = new double[channels][SessionSummary.AXES];
+			mSquares = new double[channels][SessionSummary.AXES];
+			mChannels = new SessionSummary.Channel[channels];
+			for (int channel = 0; channel < channels; channel++) {
+				SessionSummary.Channel result = new SessionSummary.Channel();
+				result.tileCounts = new int[mTiles];
+				result.tileMin = new float[SessionSummary.AXES][mTiles];
+				result.tileMax = new float[SessionSummary.AXES][mTiles];
+				for (int axis = 0; axis < SessionSummary.AXES; axis++) {
+					result.min[axis] = Float.POSITIVE_INFINITY;
+					result.max[axis] = Float.NEGATIVE_INFINITY;
+					Arrays.fill(result.tileMin[axis], Float.POSITIVE_INFINITY);
+					Arrays.fill(result.tileMax[axis], Float.NEGATIVE_INFINITY);
+				}
+				mChannels[channel] = result;
+			}
+		}
+
+		/**
+		 * サンプルのあるチャンネルの先頭のタイムスタンプの最小を返す
+		 * (サンプルがなければ0)
+		 */
+		long getFirstTimestamp() {
+			long first = Long.MAX_VALUE;
+			for (int channel = 0; channel < mCounts.length; channel++) {
+				if (mCounts[channel] > 0) {
+					first = Math.min(first, mFirst[channel]);
+				}
+			}
+			return first == Long.MAX_VALUE ? 0 : first;
+		}
+
+		/**
+		 * サンプルのあるチャンネルの最後のタイムスタンプの最大を返す
+		 * (サンプルがなければ0)
+		 */
+		long getLastTimestamp() {
+			long last = Long.MIN_VALUE;
+			for (int channel = 0; channel < mCounts.length; channel++) {
+				if (mCounts[channel] > 0) {
+					last = Math.max(last, mLast[channel]);
+				}
+			}
+			return last == Long.MIN_VALUE ? 0 : last;
+		}
+
+		/**
+		 * 読んだサンプルの範囲が、タイルを決めた範囲と一致するか
+		 */
+		boolean isRangeExact() {
+			return getFirstTimestamp() == mFirstTimestamp
+					&& getLastTimestamp() == mLastTimestamp;
+		}
+
+		/**
+		 * records の count 件のレコードをチャンネル channel に加える
+		 */
+		void add(int channel, ByteBuffer records, int count) {
+			SessionSummary.Channel result = mChannels[channel];
+			double[] sums = mSums[channel];
+			double[] squares = mSquares[channel];
+			float[] values = mValues;
+			for (int i = 0; i < count; i++) {
+				int position = i * RecordingFormat.RECORD_SIZE;
+				long timestamp = records.getLong(position);
+				if (mCounts[channel]++ == 0) {
+					mFirst[channel] = timestamp;
+				}
+				mLast[channel] = timestamp;
+				int tile = (int) ((timestamp - mFirstTimestamp) / TILE_INTERVAL);
+				// タイムスタンプが戻った記録でも範囲に収める
+				tile = Math.max(0, Math.min(tile, mTiles - 1));
+				result.tileCounts[tile]++;
+
+				float x = records.getFloat(position + 8);
+				float y = records.getFloat(position + 12);
+				float z = records.getFloat(position + 16);
+				values[SampleBuffer.CHANNEL_X] = x;
+				values[SampleBuffer.CHANNEL_Y] = y;
+				values[SampleBuffer.CHANNEL_Z] = z;
+				values[SampleBuffer.CHANNEL_R] = (float) Math.sqrt(x * x + y
+						* y + z * z);
+				for (int axis = 0; axis < SessionSummary.AXES; axis++) {
+					float value = values[axis];
+					sums[axis] += value;
+					squares[axis] += (double) value * value;
+					if (value < result.tileMin[axis][tile]) {
+						result.tileMin[axis][tile] = value;
+					}
+					if (value > result.tileMax[axis][tile]) {
+						result.tileMax[axis][tile] = value;
+					}
+				}
+			}
+		}
+
+		/**
+		 * summary にセッションの範囲と各チャンネルの索引を書き込む
+		 */
+		void finish(SessionSummary summary) {
+			summary.firstTimestamp = mFirstTimestamp;
+			summary.lastTimestamp = mLastTimestamp;
+			summary.channels = mChannels;
+			for (int channel = 0; channel < mChannels.length; channel++) {
+				SessionSummary.Channel result = mChannels[channel];
+				long count = mCounts[channel];
+				result.sampleCount = count;
+				if (count > 1) {
+					long span = mLast[channel] - mFirst[channel];
+					if (span > 0) {
+						result.sampleRate = (count - 1) * 1e9 / span;
+					}
+				}
+				for (int axis = 0; axis < SessionSummary.AXES; axis++) {
+					for (int tile = 0; tile < mTiles; tile++) {
+						if (result.tileCounts[tile] == 0) {
+							result.tileMin[axis][tile] = 0;
+							result.tileMax[axis][tile] = 0;
+							continue;
+						}
+						result.min[axis] = Math.min(result.min[axis],
+								result.tileMin[axis][tile]);
+						result.max[axis] = Math.max(result.max[axis],
+								result.tileMax[axis][tile]);
+					}
+					if (count == 0) {
+						result.min[axis] = 0;
+						result.max[axis] = 0;
+					} else {
+						result.mean[axis] = (float) (mSums[channel][axis] / count);
+						result.rms[axis] = (float) Math
+								.sqrt(mSquares[channel][axis] / count);
+					}
+				}
+			}
+		}
+	}
+}
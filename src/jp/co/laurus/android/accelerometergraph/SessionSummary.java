@@ -0,0 +1,75 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 1つの記録ファイル(セッション)の索引
+ *
+ * {@link SessionIndexer}が記録ファイルを1回読んで作り、カタログに保存する。
+ * 一覧や時間での検索はこれだけで行い、記録ファイルは開かない。
+ * 時刻は記録開始時刻(ミリ秒)に、先頭のサンプルからの経過時間を足して求める。
+ */
+public class SessionSummary {
+
+	public static final int AXES = SampleBuffer.CHANNELS;
+
+	// ファイル(変更の検出に使う)
+	public String name;
+	public long size;
+	public long modified;
+
+	/**
+	 * 記録開始時刻(ミリ秒)
+	 */
+	public long startTime;
+	// 全チャンネルのタイムスタンプの範囲(ナノ秒)
+	public long firstTimestamp;
+	public long lastTimestamp;
+	public boolean finalized;
+
+	public ChannelDescriptor[] descriptors = {};
+	public Channel[] channels = {};
+
+	/**
+	 * 1チャンネルの統計と、1分ごとの最小・最大(タイル)
+	 *
+	 * タイル i はセッションの先頭のサンプルから i 分目。サンプルのない分は
+	 * 件数が0になる。
+	 */
+	public static class Channel {
+		public long sampleCount;
+		public double sampleRate;
+		public final float[] min = new float[AXES];
+		public final float[] max = new float[AXES];
+		public final float[] mean = new float[AXES];
+		public final float[] rms = new float[AXES];
+
+		public int[] tileCounts = {};
+		public float[][] tileMin = new float[AXES][0];
+		public float[][] tileMax = new float[AXES][0];
+
+		public int getTileCount() {
+			return tileCounts.length;
+		}
+	}
+
+	/**
+	 * 長さ(ミリ秒)
+	 */
+	public long getDuration() {
+		return (lastTimestamp - firstTimestamp) / 1000000L;
+	}
+
+	/**
+	 * 記録終了時刻(ミリ秒)
+	 */
+	public long getEndTime() {
+		return startTime + getDuration();
+	}
+
+	public long getSampleCount() {
+		long count = 0;
+		for (int i = 0; i < channels.length; i++) {
+			count += channels[i].sampleCount;
+		}
+		return count;
+	}
+}
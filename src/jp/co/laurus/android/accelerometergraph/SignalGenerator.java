@@ -0,0 +1,147 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.util.Random;
+
+/**
+ * 試験用の加速度を生成する
+ *
+ * 正弦波、周波数スイープ、インパルス、ガウスノイズを一定のサンプリング周波数で
+ * 作る。X(と正弦波・スイープでは位相が90度ずれた Y)に信号を、Z に重力を
+ * 加える。ノイズは種を固定すれば毎回同じ値になる。
+ */
+public class SignalGenerator implements ReplaySampleSource.Input {
+
+	public static final int SINE = 0;
+	public static final int SWEEP = 1;
+	public static final int IMPULSE = 2;
+	public static final int NOISE = 3;
+
+	public static final String[] NAMES = { "Sine", "Sweep", "Impulse", "Noise" };
+
+	private static final float GRAVITY = 9.80665f;
+	private static final double TWO_PI = 2 * Math.PI;
+
+	private final int mType;
+	private final float mSampleRate;
+	private final long mCount;
+
+	private float mAmplitude = 1f;
+	private float mFromFrequency = 1f;
+	private float mToFrequency = 10f;
+	private float mPeriod = 10f;
+	private long mSeed = 0;
+
+	private Random mRandom;
+	private long mIndex;
+	private double mPhase;
+
+	/**
+	 * @param sampleRate
+	 *            サンプリング周波数(Hz)
+	 * @param count
+	 *            生成するサンプル数(負なら終わりなし)
+	 */
+	public SignalGenerator(int type, float sampleRate, long count) {
+		if (sampleRate <= 0) {
+			throw new IllegalArgumentException("sampleRate: " + sampleRate);
+		}
+		mType = type;
+		mSampleRate = sampleRate;
+		mCount = count;
+		reset();
+	}
+
+	public int getType() {
+		return mType;
+	}
+
+	@Override
+	public float getSampleRate() {
+		return mSampleRate;
+	}
+
+	public void setAmplitude(float amplitude) {
+		mAmplitude = amplitude;
+	}
+
+	/**
+	 * 周波数(Hz)を設定する(正弦波は from のみ使う)
+	 */
+	public void setFrequency(float from, float to) {
+		mFromFrequency = from;
+		mToFrequency = to;
+	}
+
+	/**
+	 * スイープ1回の長さ、インパルスの間隔(秒)を設定する
+	 */
+	public void setPeriod(float period) {
+		mPeriod = period;
+	}
+
+	public void setSeed(long seed) {
+		mSeed = seed;
+		mRandom = new Random(seed);
+	}
+
+	/**
+	 * 最初から生成し直す
+	 */
+	public void reset() {
+		mIndex = 0;
+		mPhase = 0;
+		mRandom = new Random(mSeed);
+	}
+
+	@Override
+	public int read(long[] timestamps, float[] x, float[] y, float[] z,
+			int max) {
+		int count = max;
+		if (mCount >= 0) {
+			count = (int) Math.min(max, mCount - mIndex);
+		}
+		double nanosPerSample = 1e9 / mSampleRate;
+		long periodSamples = Math.max(1, Math.round(mPeriod * mSampleRate));
+		float amplitude = mAmplitude;
+		for (int i = 0; i < count; i++) {
+			long index = mIndex++;
+			timestamps[i] = Math.round(index * nanosPerSample);
+			z[i] = GRAVITY;
+			switch (mType) {
+			case SWEEP: {
+				// 周期ごとに from から to まで直線的に周波数を上げる
+				double position = (double) (index % periodSamples)
+						/ periodSamples;
+				double frequency = mFromFrequency
+						+ (mToFrequency - mFromFrequency) * position;
+				x[i] = amplitude * (float) Math.sin(mPhase);
+				y[i] = amplitude * (float) Math.cos(mPhase);
+				advancePhase(frequency);
+				break;
+			}
+			case IMPULSE:
+				x[i] = index % periodSamples == 0 ? amplitude : 0;
+				y[i] = 0;
+				break;
+			case NOISE:
+				x[i] = amplitude * (float) mRandom.nextGaussian();
+				y[i] = amplitude * (float) mRandom.nextGaussian();
+				z[i] += amplitude * (float) mRandom.nextGaussian();
+				break;
+			default:
+				x[i] = amplitude * (float) Math.sin(mPhase);
+				y[i] = amplitude * (float) Math.cos(mPhase);
+				advancePhase(mFromFrequency);
+				break;
+			}
+		}
+		return count;
+	}
+
+	private void advancePhase(double frequency) {
+		mPhase += TWO_PI * frequency / mSampleRate;
+		if (mPhase >= TWO_PI) {
+			mPhase -= TWO_PI;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 等間隔のサンプルから振幅スペクトルを求める
+ *
+ * 直近 size 件のサンプルを保持し、hop 件ごとに平均を引いて窓をかけ、
+ * {@link Fft}で変換する。振幅は正弦波の振幅と同じ単位になるように正規化する。
+ * 作業領域は生成時に確保し、解析中はメモリを確保しない。
+ */
+public class SpectrumAnalyzer {
+
+	/**
+	 * スペクトルを受け取る
+	 *
+	 * magnitudes は呼び出しの間だけ有効。
+	 */
+	public interface OnSpectrumListener {
+		void onSpectrum(SpectrumAnalyzer analyzer, float[] magnitudes);
+	}
+
+	private final int mSize;
+	private final int mHop;
+	private final Fft mFft;
+	private final float[] mWindow;
+	private final float mScale;
+
+	// 直近のサンプル(リングバッファ)
+	private final float[] mInput;
+	private int mPosition;
+	private long mCount;
+	private int mSinceLast;
+
+	private final float[] mBlock;
+	private final float[] mMagnitudes;
+
+	private float mSampleRate;
+	private float mPeakFrequency;
+	private float mPeakMagnitude;
+	private OnSpectrumListener mListener;
+
+	/**
+	 * @param size
+	 *            FFT の長さ(2の累乗)
+	 * @param hop
+	 *            スペクトルを求める間隔(サンプル数)
+	 * @param windowType
+	 *            {@link WindowFunction}の種類
+	 */
+	public SpectrumAnalyzer(int size, int hop, int windowType) {
+		mSize = size;
+		mHop = hop;
+		mFft = new Fft(size);
+		mWindow = WindowFunction.create(windowType, size);
+		// 片側スペクトルなので2倍する
+		mScale = 2f / WindowFunction.sum(mWindow);
+		mInput = new float[size];
+		mBlock = new float[size];
+		mMagnitudes = new float[size / 2 + 1];
+	}
+
+	public void setOnSpectrumListener(OnSpectrumListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * 入力のサンプリング周波数(Hz)を設定する
+	 */
+	public void setSampleRate(float sampleRate) {
+		mSampleRate = sampleRate;
+	}
+
+	public float getSampleRate() {
+		return mSampleRate;
+	}
+
+	public int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * 周波数ビンの数(n/2 + 1)を返す
+	 */
+	public int getBinCount() {
+		return mMagnitudes.length;
+	}
+
+	/**
+	 * ビン1つあたりの周波数(Hz)を返す
+	 */
+	public float getBinWidth() {
+		return mSampleRate / mSize;
+	}
+
+	/**
+	 * 最後に求めたスペクトルを返す
+	 */
+	public float[] getMagnitudes() {
+		return mMagnitudes;
+	}
+
+	/**
+	 * 最後に求めたスペクトルで最も大きい成分の周波数(Hz)を返す
+	 */
+	public float getPeakFrequency() {
+		return mPeakFrequency;
+	}
+
+	public float getPeakMagnitude() {
+		return mPeakMagnitude;
+	}
+
+	/**
+	 * 入力をやり直す
+	 */
+	public void reset() {
+		mPosition = 0;
+		mCount = 0;
+		mSinceLast = 0;
+	}
+
+	/**
+	 * サンプルを1つ追加する
+	 */
+	public void add(float value) {
+		mInput[mPosition] = value;
+		mPosition = (mPosition + 1) & (mSize - 1);
+		mCount++;
+		mSinceLast++;
+		if (mCount >= mSize && mSinceLast >= mHop) {
+			mSinceLast = 0;
+			analyzeInput();
+		}
+	}
+
+	public void add(float[] values, int offset, int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			add(values[i]);
+		}
+	}
+
+	/**
+	 * window の channel の末尾 size 件(足りなければ0で埋める)を解析する
+	 *
+	 * サンプリング周波数は window のタイムスタンプから求める。
+	 */
+	public void analyze(SampleWindow window, int channel) {
+		int available = window.size();
+		int count = Math.min(available, mSize);
+		int first = available - count;
+		if (count > 1) {
+			long span = window.getTimestamp(available - 1)
+					- window.getTimestamp(first);
+			if (span > 0) {
+				mSampleRate = (count - 1) * 1e9f / span;
+			}
+		}
+		int pad = mSize - count;
+		for (int i = 0; i < pad; i++) {
+			mBlock[i] = 0;
+		}
+		for (int i = 0; i < count; i++) {
+			mBlock[pad + i] = window.get(channel, first + i);
+		}
+		analyzeBlock(pad);
+	}
+
+	private void analyzeInput() {
+		// リングバッファを古い順に並べる
+		int head = mSize - mPosition;
+		System.arraycopy(mInput, mPosition, mBlock, 0, head);
+		System.arraycopy(mInput, 0, mBlock, head, mPosition);
+		analyzeBlock(0);
+	}
+
+	// mBlock の from 以降の値を変換する
+	private void analyzeBlock(int from) {
+		float[] block = mBlock;
+		int size = mSize;
+
+		// 重力などの直流成分を除く
+		double sum = 0;
+		for (int i = from; i < size; i++) {
+			sum += block[i];
+		}
+		float mean = size > from ? (float) (sum / (size - from)) : 0;
+		for (int i = from; i < size; i++) {
+			block[i] = (block[i] - mean) * mWindow[i];
+		}
+
+		mFft.realForward(block);
+		mFft.magnitudes(block, mMagnitudes);
+		float[] magnitudes = mMagnitudes;
+		int bins = magnitudes.length;
+		for (int k = 0; k < bins; k++) {
+			magnitudes[k] *= mScale;
+		}
+		magnitudes[0] *= 0.5f;
+		magnitudes[bins - 1] *= 0.5f;
+
+		findPeak();
+
+		OnSpectrumListener listener = mListener;
+		if (listener != null) {
+			listener.onSpectrum(this, magnitudes);
+		}
+	}
+
+	private void findPeak() {
+		float[] magnitudes = mMagnitudes;
+		int bins = magnitudes.length;
+		int peak = 1;
+		for (int k = 2; k < bins; k++) {
+			if (magnitudes[k] > magnitudes[peak]) {
+				peak = k;
+			}
+		}
+		// 前後のビンから放物線で補間する
+		float offset = 0;
+		if (peak > 0 && peak < bins - 1) {
+			float left = magnitudes[peak - 1];
+			float center = magnitudes[peak];
+			float right = magnitudes[peak + 1];
+			float denominator = left - 2 * center + right;
+			if (denominator != 0) {
+				offset = 0.5f * (left - right) / denominator;
+			}
+		}
+		mPeakFrequency = (peak + offset) * getBinWidth();
+		mPeakMagnitude = magnitudes[peak];
+	}
+}
@@ -0,0 +1,205 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * 振幅スペクトルとスペクトログラムを表示する
+ *
+ * 上半分に最新のスペクトル、下半分にスペクトルの履歴(新しいものが下)を
+ * 色で描画する。スペクトログラムは行ごとに画像へ書き込み、2回に分けて
+ * 描画することでスクロールさせる。
+ */
+public class SpectrumView extends View implements
+		SpectrumAnalyzer.OnSpectrumListener {
+
+	// スペクトログラムの行数
+	public static final int ROWS = 128;
+	// 表示するダイナミックレンジ(dB)
+	private static final float RANGE_DB = 60f;
+
+	private static final int[] PALETTE = new int[256];
+	static {
+		// 黒 → 青 → 赤 → 黄
+		for (int i = 0; i < 256; i++) {
+			float level = i * 3 / 255f;
+			int r = 0;
+			int g = 0;
+			int b = 0;
+			if (level < 1) {
+				b = (int) (255 * level);
+			} else if (level < 2) {
+				r = (int) (255 * (level - 1));
+				b = 255 - r;
+			} else {
+				r = 255;
+				g = (int) (255 * (level - 2));
+			}
+			PALETTE[i] = Color.rgb(r, g, b);
+		}
+	}
+
+	private final Paint mLinePaint = new Paint();
+	private final Paint mTextPaint = new Paint();
+
+	private Bitmap mSpectrogram;
+	private int[] mRow;
+	private int mNextRow;
+	private int mRowCount;
+	private final Rect mSource = new Rect();
+	private final Rect mDestination = new Rect();
+
+	private float[] mSpectrum;
+	private float[] mPoints;
+	private float mBinWidth;
+	private float mPeakFrequency;
+	private float mReference;
+
+	private final StringBuilder mText = new StringBuilder();
+	private final char[] mChars = new char[32];
+
+	public SpectrumView(Context context) {
+		super(context);
+		init();
+	}
+
+	public SpectrumView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		init();
+	}
+
+	private void init() {
+		mLinePaint.setColor(Color.WHITE);
+		mLinePaint.setAntiAlias(true);
+		mTextPaint.setColor(Color.WHITE);
+		mTextPaint.setAntiAlias(true);
+		mTextPaint.setTextSize(14);
+	}
+
+	public void setLineColor(int color) {
+		mLinePaint.setColor(color);
+	}
+
+	/**
+	 * スペクトログラムを消す
+	 */
+	public void clear() {
+		mRowCount = 0;
+		mNextRow = 0;
+		mReference = 0;
+		if (mSpectrogram != null) {
+			mSpectrogram.eraseColor(Color.BLACK);
+		}
+		invalidate();
+	}
+
+	@Override
+	public void onSpectrum(SpectrumAnalyzer analyzer, float[] magnitudes) {
+		int bins = magnitudes.length;
+		if (mSpectrum == null || mSpectrum.length != bins) {
+			// ビンの数が変わったときだけ作り直す
+			if (mSpectrogram != null) {
+				mSpectrogram.recycle();
+			}
+			mSpectrogram = Bitmap.createBitmap(bins, ROWS,
+					Bitmap.Config.RGB_565);
+			mSpectrogram.eraseColor(Color.BLACK);
+			mRow = new int[bins];
+			mSpectrum = new float[bins];
+			mPoints = new float[(bins - 1) * 4];
+			mRowCount = 0;
+			mNextRow = 0;
+			mReference = 0;
+		}
+		System.arraycopy(magnitudes, 0, mSpectrum, 0, bins);
+		mBinWidth = analyzer.getBinWidth();
+		mPeakFrequency = analyzer.getPeakFrequency();
+
+		// 表示の基準は最大値に追従し、ゆっくり下げる
+		float max = 0;
+		for (int k = 1; k < bins; k++) {
+			if (magnitudes[k] > max) {
+				max = magnitudes[k];
+			}
+		}
+		mReference = Math.max(max, mReference * 0.98f);
+
+		float reference = mReference > 0 ? mReference : 1;
+		for (int k = 0; k < bins; k++) {
+			float db = 20 * (float) Math.log10(Math.max(magnitudes[k], 1e-9f)
+					/ reference);
+			int index = (int) ((db + RANGE_DB) / RANGE_DB * 255);
+			mRow[k] = PALETTE[Math.max(0, Math.min(255, index))];
+		}
+		mSpectrogram.setPixels(mRow, 0, bins, 0, mNextRow, bins, 1);
+		mNextRow = (mNextRow + 1) % ROWS;
+		if (mRowCount < ROWS) {
+			mRowCount++;
+		}
+		invalidate();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		canvas.drawColor(Color.BLACK);
+		float[] spectrum = mSpectrum;
+		if (spectrum == null) {
+			return;
+		}
+		int width = getWidth();
+		int height = getHeight();
+		int top = height / 2;
+		int bins = spectrum.length;
+
+		// 最新のスペクトル(基準値で正規化)
+		float reference = mReference > 0 ? mReference : 1;
+		float xScale = (float) width / (bins - 1);
+		float yScale = (top - 16) / reference;
+		float[] points = mPoints;
+		int n = 0;
+		for (int k = 1; k < bins; k++) {
+			points[n++] = (k - 1) * xScale;
+			points[n++] = top - spectrum[k - 1] * yScale;
+			points[n++] = k * xScale;
+			points[n++] = top - spectrum[k] * yScale;
+		}
+		canvas.drawLines(points, 0, n, mLinePaint);
+
+		// スペクトログラム(古い行から順に上から並べる)
+		int rows = mRowCount;
+		int first = (mNextRow - rows + ROWS) % ROWS;
+		int head = Math.min(rows, ROWS - first);
+		float rowHeight = (float) (height - top) / ROWS;
+		int y = height - (int) (rows * rowHeight);
+		mSource.set(0, first, bins, first + head);
+		mDestination.set(0, y, width, y + (int) (head * rowHeight));
+		canvas.drawBitmap(mSpectrogram, mSource, mDestination, null);
+		if (head < rows) {
+			mSource.set(0, 0, bins, rows - head);
+			mDestination.set(0, y + (int) (head * rowHeight), width, height);
+			canvas.drawBitmap(mSpectrogram, mSource, mDestination, null);
+		}
+
+		// 周波数の目盛りとピーク
+		drawText(canvas, 2, 14, 0, "Hz");
+		drawText(canvas, width - 70, 14, mBinWidth * (bins - 1), "Hz");
+		drawText(canvas, width / 2 - 40, 14, mPeakFrequency, "Hz peak");
+	}
+
+	private void drawText(Canvas canvas, float x, float y, float value,
+			String unit) {
+		StringBuilder text = mText;
+		text.setLength(0);
+		int tenths = Math.round(value * 10);
+		text.append(tenths / 10).append('.').append(tenths % 10).append(unit);
+		int length = Math.min(text.length(), mChars.length);
+		text.getChars(0, length, mChars, 0);
+		canvas.drawText(mChars, 0, length, x, y, mTextPaint);
+	}
+}
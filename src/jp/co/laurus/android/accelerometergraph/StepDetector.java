@@ -0,0 +1,130 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 実加速度(R)から歩数と歩調を求める
+ *
+ * R から重力(長い時定数の平均)を引き、短い時定数で平滑化した値が
+ * しきい値を上に横切るたびに1歩と数える。一度数えたら0を下に横切るまで
+ * 数えず(ヒステリシス)、MIN_STEP_INTERVAL より短い間隔の山も数えない。
+ *
+ * 区間ごとに(歩数, 歩調(歩/分), 累計の歩数)を出力する。歩調は区間の
+ * 中の歩の間隔の平均から求め、MAX_STEP_INTERVAL より長い間隔(歩き始め)は
+ * 含めない。
+ */
+public class StepDetector extends FeatureExtractor {
+
+	/**
+	 * しきい値の既定値(m/s^2)
+	 */
+	public static final float DEFAULT_THRESHOLD = 1.2f;
+
+	// 重力を求める時定数と、平滑化の時定数(秒)
+	private static final float GRAVITY_TIME_CONSTANT = 1.0f;
+	private static final float SMOOTH_TIME_CONSTANT = 0.04f;
+	// 歩の間隔の範囲(ナノ秒, 240歩/分 〜 30歩/分)
+	private static final long MIN_STEP_INTERVAL = 250000000L;
+	private static final long MAX_STEP_INTERVAL = 2000000000L;
+	// これより間隔が空いたら初めからやり直す(ナノ秒)
+	private static final long MAX_GAP = 500000000L;
+
+	private final float mThreshold;
+	private final float[] mValues = new float[3];
+
+	private long mLastTimestamp = -1;
+	private float mGravity;
+	private float mSmooth;
+	private boolean mArmed;
+	private long mLastStep = -1;
+
+	// 区間の集計
+	private int mSteps;
+	private long mIntervalSum;
+	private int mIntervals;
+	private long mTotal;
+
+	public StepDetector() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	public StepDetector(float threshold) {
+		mThreshold = threshold;
+	}
+
+	/**
+	 * 累計の歩数を返す
+	 */
+	public long getTotal() {
+		return mTotal;
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		mLastTimestamp = -1;
+		mArmed = false;
+		mLastStep = -1;
+		mSteps = 0;
+		mIntervalSum = 0;
+		mIntervals = 0;
+	}
+
+	@Override
+	public void process(long[] timestamps, float[] x, float[] y, float[] z,
+			float[] r, int offset, int length) {
+		float threshold = mThreshold;
+		for (int i = offset; i < offset + length; i++) {
+			long timestamp = timestamps[i];
+			float value = r[i];
+			long last = mLastTimestamp;
+			mLastTimestamp = timestamp;
+			long interval = timestamp - last;
+			if (last < 0 || interval <= 0 || interval > MAX_GAP) {
+				// 最初のサンプルか途切れた後
+				mGravity = value;
+				mSmooth = 0;
+				mArmed = false;
+			} else {
+				float dt = interval * 1e-9f;
+				mGravity += (value - mGravity)
+						* Math.min(1, dt / GRAVITY_TIME_CONSTANT);
+				mSmooth += (value - mGravity - mSmooth)
+						* Math.min(1, dt / SMOOTH_TIME_CONSTANT);
+				if (mSmooth < 0) {
+					mArmed = true;
+				} else if (mArmed && mSmooth > threshold) {
+					countStep(timestamp);
+				}
+			}
+
+			if (isReportDue(timestamp)) {
+				report(timestamp);
+			}
+		}
+	}
+
+	private void countStep(long timestamp) {
+		mArmed = false;
+		long interval = mLastStep < 0 ? -1 : timestamp - mLastStep;
+		if (interval >= 0 && interval < MIN_STEP_INTERVAL) {
+			// 同じ歩の揺れ
+			return;
+		}
+		if (interval >= 0 && interval <= MAX_STEP_INTERVAL) {
+			mIntervalSum += interval;
+			mIntervals++;
+		}
+		mLastStep = timestamp;
+		mSteps++;
+		mTotal++;
+	}
+
+	private void report(long timestamp) {
+		mValues[0] = mSteps;
+		mValues[1] = mIntervals > 0 ? 60e9f * mIntervals / mIntervalSum : 0;
+		mValues[2] = mTotal;
+		emit(TYPE_STEPS, timestamp, mValues, 3);
+		mSteps = 0;
+		mIntervalSum = 0;
+		mIntervals = 0;
+	}
+}
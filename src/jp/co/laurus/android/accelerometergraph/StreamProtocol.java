@@ -0,0 +1,237 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * ライブのサンプルを TCP で送る形式
+ *
+ * <pre>
+ * ヘッダ(接続直後に1回, 32バイト + チャンネル表)
+ *   int   MAGIC
+ *   short VERSION
+ *   short 符号化の方式(ENCODING_RAW か{@link SampleCodec}の ENCODING_*)
+ *   float 丸めの単位(ENCODING_DELTA のみ)
+ *   int   1フレームの最大サンプル数
+ *   long  接続した時刻(ミリ秒)
+ *   int   チャンネル数
+ *   チャンネル表({@link RecordingFormat}と同じ)
+ * フレーム(繰り返し)
+ *   int   フレームの長さ(この int を除く)
+ *   byte  種類(FRAME_SAMPLES)
+ *   byte  チャンネル番号
+ *   short サンプル数
+ *   long  先頭のサンプルのシーケンス番号(チャンネルごと)
+ *   long  送信した時刻(サーバーの System.nanoTime())
+ *   ENCODING_RAW: (long タイムスタンプ(ナノ秒), float x, float y, float z) × サンプル数
+ *   それ以外: {@link SampleCodec}で符号化したサンプル
+ * </pre>
+ *
+ * シーケンス番号は履歴に追加された順の通し番号で、送信が追いつかずに失われた
+ * サンプルがあると次のフレームの番号が飛ぶ。受信側は番号の差から欠けた数を
+ * 知ることができる。
+ */
+public class StreamProtocol {
+
+	public static final int MAGIC = 0x41435354; // "ACST"
+	public static final short VERSION = 1;
+
+	/**
+	 * 符号化せずに送る
+	 */
+	public static final int ENCODING_RAW = 0;
+
+	public static final int HEADER_SIZE = 32;
+	public static final int FRAME_HEADER_SIZE = 24;
+	public static final byte FRAME_SAMPLES = 1;
+
+	// 1フレームの最大サンプル数(short に収まる数)
+	public static final int MAX_BATCH = 4096;
+
+	private StreamProtocol() {
+	}
+
+	/**
+	 * 接続直後に送るヘッダ
+	 */
+	public static class Header {
+		public int encoding = ENCODING_RAW;
+		public float quantum;
+		public int batchSize = 64;
+		public long startTime;
+		public ChannelDescriptor[] channels = { ChannelDescriptor.ACCELEROMETER };
+
+		/**
+		 * チャンネル表を含むヘッダのサイズ
+		 */
+		public int getSize() {
+			return HEADER_SIZE + channels.length
+					* RecordingFormat.CHANNEL_SIZE;
+		}
+	}
+
+	/**
+	 * サンプル数が count のフレームの最大のサイズ(長さの int を含む)
+	 */
+	public static int maxFrameSize(int encoding, int count) {
+		int payload = encoding == ENCODING_RAW ? count
+				* RecordingFormat.RECORD_SIZE : SampleCodec
+				.maxEncodedSize(count);
+		return 4 + FRAME_HEADER_SIZE + payload;
+	}
+
+	/**
+	 * buffer に header.getSize() バイトを書き込む
+	 */
+	public static void writeHeader(ByteBuffer buffer, Header header) {
+		int start = buffer.position();
+		buffer.putInt(MAGIC);
+		buffer.putShort(VERSION);
+		buffer.putShort((short) header.encoding);
+		buffer.putFloat(header.quantum);
+		buffer.putInt(header.batchSize);
+		buffer.putLong(header.startTime);
+		buffer.putInt(header.channels.length);
+		while (buffer.position() < start + HEADER_SIZE) {
+			buffer.put((byte) 0);
+		}
+		RecordingFormat.writeChannels(buffer, header.channels);
+	}
+
+	/**
+	 * 先頭の HEADER_SIZE バイトを読む
+	 *
+	 * チャンネル表はまだ読まないので、header.channels の長さだけ
+	 * {@link RecordingFormat#readChannels}で続きを読む。
+	 */
+	public static Header readFixedHeader(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+			throw new IOException("not a sample stream");
+		}
+		short version = buffer.getShort();
+		if (version != VERSION) {
+			throw new IOException("unsupported stream version: " + version);
+		}
+		Header header = new Header();
+		header.encoding = buffer.getShort();
+		header.quantum = buffer.getFloat();
+		header.batchSize = buffer.getInt();
+		header.startTime = buffer.getLong();
+		int channelCount = buffer.getInt();
+		if (channelCount < 1 || channelCount > RecordingFormat.MAX_CHANNELS
+				|| header.batchSize < 1 || header.batchSize > MAX_BATCH) {
+			throw new IOException("broken stream header");
+		}
+		header.channels = new ChannelDescriptor[channelCount];
+		buffer.position(start + HEADER_SIZE);
+		return header;
+	}
+
+	/**
+	 * 1フレームを buffer に書き込む
+	 *
+	 * @param codec
+	 *            ENCODING_RAW なら null
+	 * @param scratch
+	 *            符号化の作業領域(ENCODING_RAW 以外、
+	 *            {@link SampleCodec#maxEncodedSize}以上)
+	 */
+	public static void writeFrame(ByteBuffer buffer, int channel,
+			long firstSequence, long sendTime, long[] timestamps, float[] x,
+			float[] y, float[] z, int count, SampleCodec codec, byte[] scratch) {
+		int start = buffer.position();
+		buffer.putInt(0);
+		buffer.put(FRAME_SAMPLES);
+		buffer.put((byte) channel);
+		buffer.putShort((short) count);
+		buffer.putLong(firstSequence);
+		buffer.putLong(sendTime);
+		if (codec == null) {
+			for (int i = 0; i < count; i++) {
+				buffer.putLong(timestamps[i]);
+				buffer.putFloat(x[i]);
+				buffer.putFloat(y[i]);
+				buffer.putFloat(z[i]);
+			}
+		} else {
+			int length = codec.encode(timestamps, x, y, z, 0, count, scratch,
+					0);
+			buffer.put(scratch, 0, length);
+		}
+		buffer.putInt(start, buffer.position() - start - 4);
+	}
+
+	/**
+	 * 受信した1フレーム
+	 *
+	 * 領域は生成時に確保し、{@link #read}で使い回す。
+	 */
+	public static class Frame {
+		public int channel;
+		public int count;
+		public long firstSequence;
+		public long sendTime;
+		public final long[] timestamps;
+		public final float[] x;
+		public final float[] y;
+		public final float[] z;
+
+		private final SampleCodec mCodec;
+		private final byte[] mEncoded;
+
+		public Frame(Header header) {
+			int batch = header.batchSize;
+			timestamps = new long[batch];
+			x = new float[batch];
+			y = new float[batch];
+			z = new float[batch];
+			if (header.encoding == ENCODING_RAW) {
+				mCodec = null;
+				mEncoded = null;
+			} else {
+				mCodec = new SampleCodec(header.encoding, header.quantum);
+				mEncoded = new byte[SampleCodec.maxEncodedSize(batch)];
+			}
+		}
+
+		/**
+		 * 長さの int を除いたフレームを buffer から読む
+		 *
+		 * @param length
+		 *            フレームの長さ
+		 */
+		public void read(ByteBuffer buffer, int length) throws IOException {
+			int end = buffer.position() + length;
+			if (length < FRAME_HEADER_SIZE || buffer.get() != FRAME_SAMPLES) {
+				throw new IOException("broken frame");
+			}
+			channel = buffer.get() & 0xff;
+			count = buffer.getShort() & 0xffff;
+			firstSequence = buffer.getLong();
+			sendTime = buffer.getLong();
+			if (count > timestamps.length) {
+				throw new IOException("frame too large: " + count);
+			}
+			if (mCodec == null) {
+				if (end - buffer.position() != count
+						* RecordingFormat.RECORD_SIZE) {
+					throw new IOException("broken frame");
+				}
+				for (int i = 0; i < count; i++) {
+					timestamps[i] = buffer.getLong();
+					x[i] = buffer.getFloat();
+					y[i] = buffer.getFloat();
+					z[i] = buffer.getFloat();
+				}
+			} else {
+				int encoded = end - buffer.position();
+				if (encoded > mEncoded.length) {
+					throw new IOException("broken frame");
+				}
+				buffer.get(mEncoded, 0, encoded);
+				mCodec.decode(mEncoded, 0, count, timestamps, x, y, z, 0);
+			}
+		}
+	}
+}
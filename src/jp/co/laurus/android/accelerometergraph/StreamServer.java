@@ -0,0 +1,350 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ライブのサンプルを{@link StreamProtocol}の形式で TCP のクライアントに送るスレッド
+ *
+ * センサーのスレッドは RAW の履歴に追加するだけで、ソケットには触れない。
+ * このスレッドがノンブロッキングのソケットを1つの Selector で扱い、
+ * クライアントごとの{@link SampleBuffer.Cursor}で一定間隔ごとに未読の
+ * サンプルを読み出してフレームにする。
+ *
+ * 送信バッファが空になるまで次のフレームを作らないので、遅いクライアントの
+ * カーソルは進まずに遅れていき、履歴から溢れた分はそのクライアントだけが
+ * 失う(次のフレームのシーケンス番号が飛ぶ)。他のクライアントやセンサーの
+ * スレッドが待たされることはない。
+ */
+public class StreamServer extends Thread {
+
+	// 未読のサンプルを確かめる間隔(ミリ秒)
+	private static final long SEND_INTERVAL = 10;
+	// 同時に接続できるクライアントの数
+	private static final int MAX_CLIENTS = 4;
+	// ソケットの送信バッファ(大きいと遅いクライアントの遅れが溜まり続ける)
+	private static final int SEND_BUFFER_SIZE = 16 * 1024;
+
+	private final SampleBuffer[] mSources;
+	private final StreamProtocol.Header mHeader;
+	private final int mPort;
+	private final SampleCodec mCodec;
+
+	// 送信の作業領域(このスレッドだけが使う)
+	private final float[][] mValues;
+	private final long[] mTimestamps;
+	private final byte[] mEncoded;
+	private final int mMaxFrameSize;
+	private final ByteBuffer mDiscard = ByteBuffer.allocate(256);
+
+	private final List<Client> mClients = new ArrayList<Client>();
+	private ServerSocketChannel mServerChannel;
+	private Selector mSelector;
+	private volatile boolean mRunning;
+	private volatile int mClientCount;
+	private volatile long mSentSamples;
+	private volatile long mSentBytes;
+	private volatile long mDropped;
+	// 切断したクライアントが失ったサンプル数
+	private long mClosedDropped;
+	private volatile IOException mError;
+
+	// 1つの接続
+	private class Client {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final SampleBuffer.Cursor[] cursors;
+		final ByteBuffer out;
+
+		Client(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+			cursors = new SampleBuffer.Cursor[mSources.length];
+			for (int i = 0; i < cursors.length; i++) {
+				cursors[i] = mSources[i].newCursor();
+			}
+			out = ByteBuffer.allocate(Math.max(mHeader.getSize(),
+					mSources.length * mMaxFrameSize));
+		}
+
+		long getDropped() {
+			long dropped = 0;
+			for (int i = 0; i < cursors.length; i++) {
+				dropped += cursors[i].getDropped();
+			}
+			return dropped;
+		}
+	}
+
+	/**
+	 * @param sources
+	 *            チャンネルごとの RAW の履歴
+	 * @param descriptors
+	 *            sources と同じ順のチャンネルの種類
+	 * @param port
+	 *            待ち受けるポート(0 なら空いているポート)
+	 * @param encoding
+	 *            {@link StreamProtocol#ENCODING_RAW}か
+	 *            {@link SampleCodec#ENCODING_XOR}
+	 * @param batchSize
+	 *            1フレームの最大サンプル数
+	 */
+	public StreamServer(SampleBuffer[] sources,
+			ChannelDescriptor[] descriptors, int port, int encoding,
+			int batchSize) {
+		super("StreamServer");
+		if (sources.length != descriptors.length || sources.length < 1
+				|| sources.length > RecordingFormat.MAX_CHANNELS) {
+			throw new IllegalArgumentException("channels: " + sources.length);
+		}
+		if (batchSize < 1 || batchSize > StreamProtocol.MAX_BATCH) {
+			throw new IllegalArgumentException("batch: " + batchSize);
+		}
+		mSources = sources.clone();
+		mPort = port;
+		mHeader = new StreamProtocol.Header();
+		mHeader.encoding = encoding;
+		mHeader.batchSize = batchSize;
+		mHeader.channels = descriptors.clone();
+		mCodec = encoding == StreamProtocol.ENCODING_RAW ? null
+				: new SampleCodec(encoding, 0);
+		mValues = new float[SampleBuffer.CHANNELS][batchSize];
+		mTimestamps = new long[batchSize];
+		mEncoded = mCodec != null ? new byte[SampleCodec
+				.maxEncodedSize(batchSize)] : null;
+		mMaxFrameSize = StreamProtocol.maxFrameSize(encoding, batchSize);
+	}
+
+	/**
+	 * ソケットを開いて送信を開始する
+	 */
+	public void open() throws IOException {
+		mSelector = Selector.open();
+		try {
+			mServerChannel = ServerSocketChannel.open();
+			mServerChannel.socket().setReuseAddress(true);
+			mServerChannel.socket().bind(new InetSocketAddress(mPort));
+			mServerChannel.configureBlocking(false);
+			mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			if (mServerChannel != null) {
+				mServerChannel.close();
+			}
+			mSelector.close();
+			throw e;
+		}
+		mRunning = true;
+		start();
+	}
+
+	/**
+	 * 全ての接続を閉じて送信を終了する
+	 */
+	public void close() {
+		mRunning = false;
+		mSelector.wakeup();
+		boolean joined = false;
+		while (!joined) {
+			try {
+				join();
+				joined = true;
+			} catch (InterruptedException e) {
+				// 終わるまで待つ
+			}
+		}
+	}
+
+	/**
+	 * 待ち受けているポートを返す
+	 */
+	public int getPort() {
+		return mServerChannel.socket().getLocalPort();
+	}
+
+	public int getClientCount() {
+		return mClientCount;
+	}
+
+	/**
+	 * これまでに送ったサンプル数を返す(全クライアントの合計)
+	 */
+	public long getSentSamples() {
+		return mSentSamples;
+	}
+
+	public long getSentBytes() {
+		return mSentBytes;
+	}
+
+	/**
+	 * 送信が追いつかずに失われたサンプル数を返す(切断したクライアントを含む)
+	 */
+	public long getDropped() {
+		return mDropped;
+	}
+
+	/**
+	 * 送信が異常終了したときの理由を返す(なければ null)
+	 */
+	public IOException getError() {
+		return mError;
+	}
+
+	@Override
+	public void run() {
+		try {
+			try {
+				while (mRunning) {
+					mSelector.select(SEND_INTERVAL);
+					Iterator<SelectionKey> keys = mSelector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							Client client = (Client) key.attachment();
+							if ((key.isReadable() && !receive(client))
+									|| (key.isWritable() && !flush(client))) {
+								disconnect(client);
+							}
+						}
+					}
+					send();
+				}
+			} finally {
+				for (int i = mClients.size() - 1; i >= 0; i--) {
+					disconnect(mClients.get(i));
+				}
+				mServerChannel.close();
+				mSelector.close();
+			}
+		} catch (IOException e) {
+			mError = e;
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = mServerChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		if (mClients.size() >= MAX_CLIENTS) {
+			channel.close();
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+		SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+		Client client = new Client(channel, key);
+		key.attach(client);
+		mClients.add(client);
+		mClientCount = mClients.size();
+
+		mHeader.startTime = System.currentTimeMillis();
+		StreamProtocol.writeHeader(client.out, mHeader);
+		client.out.flip();
+		if (!flush(client)) {
+			disconnect(client);
+		}
+	}
+
+	// クライアントからは何も受け取らないので、切断の検出だけを行う
+	private boolean receive(Client client) {
+		mDiscard.clear();
+		try {
+			return client.channel.read(mDiscard) >= 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// 送信バッファが空になったクライアントに次のフレームを送る
+	private void send() {
+		long now = System.nanoTime();
+		for (int i = mClients.size() - 1; i >= 0; i--) {
+			Client client = mClients.get(i);
+			if (client.out.hasRemaining()) {
+				continue;
+			}
+			client.out.clear();
+			fill(client, now);
+			client.out.flip();
+			if (client.out.hasRemaining() && !flush(client)) {
+				disconnect(client);
+			}
+		}
+		long dropped = mClosedDropped;
+		for (int i = 0; i < mClients.size(); i++) {
+			dropped += mClients.get(i).getDropped();
+		}
+		mDropped = dropped;
+	}
+
+	// チャンネルごとに未読のサンプルをフレームに詰める
+	private void fill(Client client, long now) {
+		ByteBuffer out = client.out;
+		boolean more = true;
+		while (more && out.remaining() >= mMaxFrameSize) {
+			more = false;
+			for (int channel = 0; channel < client.cursors.length; channel++) {
+				if (out.remaining() < mMaxFrameSize) {
+					break;
+				}
+				SampleBuffer.Cursor cursor = client.cursors[channel];
+				int read = cursor.read(mValues, mTimestamps,
+						mHeader.batchSize);
+				if (read == 0) {
+					continue;
+				}
+				int start = out.position();
+				StreamProtocol.writeFrame(out, channel, cursor.getPosition()
+						- read, now, mTimestamps,
+						mValues[SampleBuffer.CHANNEL_X],
+						mValues[SampleBuffer.CHANNEL_Y],
+						mValues[SampleBuffer.CHANNEL_Z], read, mCodec,
+						mEncoded);
+				mSentSamples += read;
+				mSentBytes += out.position() - start;
+				more |= read == mHeader.batchSize;
+			}
+		}
+	}
+
+	// 書き込めるだけ書き込み、残ったら書き込めるようになるのを待つ
+	private boolean flush(Client client) {
+		try {
+			client.channel.write(client.out);
+		} catch (IOException e) {
+			return false;
+		}
+		client.key.interestOps(client.out.hasRemaining() ? SelectionKey.OP_READ
+				| SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		return true;
+	}
+
+	private void disconnect(Client client) {
+		mClosedDropped += client.getDropped();
+		client.key.cancel();
+		try {
+			client.channel.close();
+		} catch (IOException e) {
+			// 閉じられなくても次へ
+		}
+		mClients.remove(client);
+		mClientCount = mClients.size();
+	}
+}
@@ -0,0 +1,148 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * 重力の向きの変化(傾き・向きの変化)を検出する
+ *
+ * X, Y, Z を長い時定数で平滑化して重力の向きとし、基準の向きとの角度が
+ * しきい値を超えた状態が HOLD_TIME 続いたら1回出力して、その向きを新しい
+ * 基準にする。平滑化するので、振動や歩行の揺れでは出力しない。
+ * 最初に向きが落ち着いたとき(角度0)にも基準として出力する。
+ *
+ * 出力は(基準からの角度(度), 新しい向きの単位ベクトル x, y, z)。
+ * 1件あたり十数回の四則演算で、平方根は出力するときだけ求める。
+ */
+public class TiltDetector extends FeatureExtractor {
+
+	/**
+	 * しきい値の既定値(度)
+	 */
+	public static final float DEFAULT_THRESHOLD = 30f;
+
+	// 重力の向きを求める時定数(秒)
+	private static final float TIME_CONSTANT = 0.3f;
+	// 向きが変わったと判断するまでの時間(ナノ秒)
+	private static final long HOLD_TIME = 500000000L;
+	// 最初の基準を決めるまでの時間(ナノ秒)
+	private static final long SETTLE_TIME = 1000000000L;
+	// これより間隔が空いたら初めからやり直す(ナノ秒)
+	private static final long MAX_GAP = 500000000L;
+
+	// cos^2(しきい値)
+	private final float mCosSquared;
+	private final float[] mValues = new float[4];
+
+	private long mLastTimestamp = -1;
+	private long mStart;
+	private float mGx, mGy, mGz;
+	// 基準の向き(単位ベクトル, まだなければ0)
+	private float mRx, mRy, mRz;
+	private boolean mHasReference;
+	// しきい値を超え始めたタイムスタンプ(超えていなければ -1)
+	private long mExceededSince = -1;
+	private long mChanges;
+
+	public TiltDetector() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold
+	 *            しきい値(度, 90未満)
+	 */
+	public TiltDetector(float threshold) {
+		if (!(threshold > 0 && threshold < 90)) {
+			throw new IllegalArgumentException("threshold: " + threshold);
+		}
+		float cos = (float) Math.cos(Math.toRadians(threshold));
+		mCosSquared = cos * cos;
+	}
+
+	/**
+	 * 検出した変化の数を返す(最初の基準を除く)
+	 */
+	public long getChanges() {
+		return mChanges;
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		mLastTimestamp = -1;
+		mHasReference = false;
+		mExceededSince = -1;
+	}
+
+	@Override
+	public void process(long[] timestamps, float[] x, float[] y, float[] z,
+			float[] r, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			long timestamp = timestamps[i];
+			long last = mLastTimestamp;
+			mLastTimestamp = timestamp;
+			long interval = timestamp - last;
+			if (last < 0 || interval <= 0 || interval > MAX_GAP) {
+				// 最初のサンプルか途切れた後は、基準を決め直す
+				mGx = x[i];
+				mGy = y[i];
+				mGz = z[i];
+				mStart = timestamp;
+				mHasReference = false;
+				mExceededSince = -1;
+				continue;
+			}
+			float alpha = Math.min(1, interval * 1e-9f / TIME_CONSTANT);
+			mGx += (x[i] - mGx) * alpha;
+			mGy += (y[i] - mGy) * alpha;
+			mGz += (z[i] - mGz) * alpha;
+
+			if (!mHasReference) {
+				if (timestamp - mStart >= SETTLE_TIME) {
+					change(timestamp, false);
+				}
+				continue;
+			}
+
+			// 基準との角度がしきい値を超えたか(cos^2 で比べる)
+			float dot = mGx * mRx + mGy * mRy + mGz * mRz;
+			float norm = mGx * mGx + mGy * mGy + mGz * mGz;
+			if (dot <= 0 || dot * dot < mCosSquared * norm) {
+				if (mExceededSince < 0) {
+					mExceededSince = timestamp;
+				} else if (timestamp - mExceededSince >= HOLD_TIME) {
+					change(timestamp, true);
+				}
+			} else {
+				mExceededSince = -1;
+			}
+		}
+	}
+
+	// いまの向きを基準にして出力する
+	private void change(long timestamp, boolean changed) {
+		float norm = (float) Math.sqrt(mGx * mGx + mGy * mGy + mGz * mGz);
+		if (norm == 0) {
+			return;
+		}
+		float ux = mGx / norm;
+		float uy = mGy / norm;
+		float uz = mGz / norm;
+		float angle = 0;
+		if (changed) {
+			float cos = ux * mRx + uy * mRy + uz * mRz;
+			angle = (float) Math.toDegrees(Math.acos(Math.max(-1, Math.min(1,
+					cos))));
+			mChanges++;
+		}
+		mRx = ux;
+		mRy = uy;
+		mRz = uz;
+		mHasReference = true;
+		mExceededSince = -1;
+
+		mValues[0] = angle;
+		mValues[1] = ux;
+		mValues[2] = uy;
+		mValues[3] = uz;
+		emit(TYPE_TILT, timestamp, mValues, 4);
+	}
+}
@@ -0,0 +1,139 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * センサーのタイムスタンプの間隔の統計
+ *
+ * 間隔の平均とばらつき(ジッタ)を求め、平均の1.5倍を超える間隔は
+ * サンプルの欠落として数える。欠落の間隔は平均とばらつきに含めない。
+ */
+public class TimingStats {
+
+	// 欠落とみなす間隔(平均に対する比率)
+	private static final double GAP_RATIO = 1.5;
+	// 欠落を数え始めるまでの間隔の数
+	private static final int WARMUP = 16;
+
+	private long mLastTimestamp;
+	private long mCount;
+	private double mMean;
+	private double mM2;
+	private long mMinInterval = Long.MAX_VALUE;
+	private long mMaxInterval;
+	private long mDropped;
+	private long mBackwards;
+
+	/**
+	 * タイムスタンプ(ナノ秒)を追加する
+	 */
+	public void add(long timestamp) {
+		long last = mLastTimestamp;
+		mLastTimestamp = timestamp;
+		if (last == 0) {
+			return;
+		}
+		long interval = timestamp - last;
+		if (interval <= 0) {
+			// 逆戻りしたタイムスタンプ
+			mBackwards++;
+			return;
+		}
+		if (mCount >= WARMUP && interval > mMean * GAP_RATIO) {
+			mDropped += Math.max(1, Math.round(interval / mMean) - 1);
+			return;
+		}
+
+		// Welford 法で平均と分散を更新
+		mCount++;
+		double delta = interval - mMean;
+		mMean += delta / mCount;
+		mM2 += delta * (interval - mMean);
+		if (interval < mMinInterval) {
+			mMinInterval = interval;
+		}
+		if (interval > mMaxInterval) {
+			mMaxInterval = interval;
+		}
+	}
+
+	public void add(long[] timestamps, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			add(timestamps[i]);
+		}
+	}
+
+	/**
+	 * 次のタイムスタンプを間隔に含めない(センサーの再登録時など)
+	 */
+	public void restart() {
+		mLastTimestamp = 0;
+	}
+
+	public void reset() {
+		mLastTimestamp = 0;
+		mCount = 0;
+		mMean = 0;
+		mM2 = 0;
+		mMinInterval = Long.MAX_VALUE;
+		mMaxInterval = 0;
+		mDropped = 0;
+		mBackwards = 0;
+	}
+
+	/**
+	 * 間隔の数(欠落を除く)を返す
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	public double getMeanInterval() {
+		return mMean;
+	}
+
+	/**
+	 * 間隔の標準偏差(ナノ秒)を返す
+	 */
+	public double getJitter() {
+		return mCount > 1 ? Math.sqrt(mM2 / (mCount - 1)) : 0;
+	}
+
+	public long getMinInterval() {
+		return mCount > 0 ? mMinInterval : 0;
+	}
+
+	public long getMaxInterval() {
+		return mMaxInterval;
+	}
+
+	/**
+	 * 欠落したと推定されるサンプル数を返す
+	 */
+	public long getDropped() {
+		return mDropped;
+	}
+
+	public long getBackwards() {
+		return mBackwards;
+	}
+
+	/**
+	 * 統計をテキストにして追記する(表示用)
+	 */
+	public void appendTo(StringBuilder builder) {
+		appendMillis(builder, (long) getMeanInterval());
+		builder.append("ms  jitter ");
+		appendMillis(builder, (long) getJitter());
+		builder.append("ms  max ");
+		appendMillis(builder, getMaxInterval());
+		builder.append("ms  drop ").append(mDropped);
+		if (mBackwards > 0) {
+			builder.append("  back ").append(mBackwards);
+		}
+	}
+
+	private static void appendMillis(StringBuilder builder, long nanos) {
+		builder.append(nanos / 1000000).append('.').append(
+				(nanos / 10000) % 100 / 10).append((nanos / 10000) % 10);
+	}
+}
@@ -0,0 +1,353 @@
+package jp.co.laurus.android.accelerometergraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ライブの加速度を{@link TriggerRule}で監視し、イベントの前後を記録する
+ *
+ * センサーのスレッドでは、RAW のサンプルを事前に確保したリングバッファ
+ * (トリガー前のバッファ)に追加して条件を評価するだけで、メモリの確保や
+ * ファイルの操作は行わない。発火すると位置を固定長のキューに入れて書き込み
+ * スレッドを起こし、書き込みスレッドが{@link Recorder}で発火の preSamples 件前
+ * から postSamples 件後までを1つのファイルに書き込む。
+ *
+ * 記録中のイベントの後半に重なる発火は、同じイベントとして無視する。
+ * トリガーからディスクまでの遅延は、発火を検出してから最初のチャンク
+ * (発火前のサンプル)を書き込むまでの時間で計る。
+ */
+public class TriggerEngine {
+
+	/**
+	 * 記録したイベントを受け取る
+	 *
+	 * 書き込みスレッドから呼ばれる。
+	 */
+	public interface OnEventListener {
+		void onEvent(Event event);
+	}
+
+	// 書き込みを待てる発火の数
+	private static final int QUEUE_SIZE = 8;
+	// 書き込みスレッドが停止を確かめる間隔(ミリ秒)
+	private static final long WAIT_INTERVAL = 100;
+
+	private final TriggerRule mRule;
+	private final int mPreSamples;
+	private final int mPostSamples;
+	private final File mDirectory;
+	private final ChannelDescriptor mDescriptor;
+	private final SampleBuffer mBuffer;
+
+	// 発火のキュー(センサーのスレッドが書き込み、mQueued で公開する)
+	private final long[] mQueueSequences = new long[QUEUE_SIZE];
+	private final long[] mQueueTimestamps = new long[QUEUE_SIZE];
+	private final long[] mQueueDetectTimes = new long[QUEUE_SIZE];
+	private final long[] mQueueWallTimes = new long[QUEUE_SIZE];
+	private volatile int mQueued;
+	private volatile int mTaken;
+	// これより前のシーケンスでの発火は無視する
+	private long mArmedAt;
+	private volatile int mMissed;
+
+	private final List<Event> mEvents = new ArrayList<Event>();
+	private volatile OnEventListener mListener;
+	private volatile boolean mRunning;
+	private Thread mWriter;
+
+	/**
+	 * 記録した1つのイベント
+	 */
+	public static class Event {
+		private final int mType;
+		private final File mFile;
+		private final long mWallTime;
+		private final long mTimestamp;
+		private final long mSampleCount;
+		private final long mDropped;
+		private final long mLatency;
+		private final long mCaptureTime;
+		private final String mError;
+
+		private Event(int type, File file, long wallTime, long timestamp,
+				long sampleCount, long dropped, long latency,
+				long captureTime, String error) {
+			mType = type;
+			mFile = file;
+			mWallTime = wallTime;
+			mTimestamp = timestamp;
+			mSampleCount = sampleCount;
+			mDropped = dropped;
+			mLatency = latency;
+			mCaptureTime = captureTime;
+			mError = error;
+		}
+
+		/**
+		 * 発火した{@link TriggerRule}の種類を返す
+		 */
+		public int getType() {
+			return mType;
+		}
+
+		public File getFile() {
+			return mFile;
+		}
+
+		/**
+		 * 発火を検出した時刻(ミリ秒)を返す
+		 */
+		public long getWallTime() {
+			return mWallTime;
+		}
+
+		/**
+		 * 発火したサンプルのセンサーのタイムスタンプ(ナノ秒)を返す
+		 */
+		public long getTimestamp() {
+			return mTimestamp;
+		}
+
+		public long getSampleCount() {
+			return mSampleCount;
+		}
+
+		/**
+		 * トリガー前のバッファから失われて書き込めなかったサンプル数を返す
+		 */
+		public long getDropped() {
+			return mDropped;
+		}
+
+		/**
+		 * 発火の検出から最初のチャンクを書き込むまでの時間(ナノ秒)を返す
+		 */
+		public long getLatency() {
+			return mLatency;
+		}
+
+		/**
+		 * 発火の検出からファイルを閉じるまでの時間(ナノ秒)を返す
+		 */
+		public long getCaptureTime() {
+			return mCaptureTime;
+		}
+
+		/**
+		 * 書き込みに失敗したときの理由を返す(成功なら null)
+		 */
+		public String getError() {
+			return mError;
+		}
+	}
+
+	/**
+	 * @param preSamples
+	 *            発火より前に記録するサンプル数
+	 * @param postSamples
+	 *            発火から後に記録するサンプル数
+	 * @param directory
+	 *            イベントを書き込むディレクトリ
+	 */
+	public TriggerEngine(TriggerRule rule, int preSamples, int postSamples,
+			File directory, ChannelDescriptor descriptor) {
+		if (preSamples < 0 || postSamples < 1) {
+			throw new IllegalArgumentException("samples: " + preSamples
+					+ ", " + postSamples);
+		}
+		mRule = rule;
+		mPreSamples = preSamples;
+		mPostSamples = postSamples;
+		mDirectory = directory;
+		mDescriptor = descriptor;
+		// 書き込みが遅れても発火前の分が残るように、前後の合計の2倍を確保する
+		mBuffer = new SampleBuffer(2 * (preSamples + postSamples));
+	}
+
+	public TriggerRule getRule() {
+		return mRule;
+	}
+
+	public int getPreSamples() {
+		return mPreSamples;
+	}
+
+	public int getPostSamples() {
+		return mPostSamples;
+	}
+
+	public void setOnEventListener(OnEventListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * 書き込みスレッドを開始する
+	 */
+	public void start() {
+		mRunning = true;
+		mWriter = new Thread("TriggerWriter") {
+			@Override
+			public void run() {
+				writeEvents();
+			}
+		};
+		mWriter.start();
+	}
+
+	/**
+	 * 書き込みスレッドを停止する
+	 *
+	 * 書き込み中のイベントは、それまでに届いたサンプルで閉じる。
+	 */
+	public void stop() {
+		Thread writer = mWriter;
+		if (writer == null) {
+			return;
+		}
+		mRunning = false;
+		LockSupport.unpark(writer);
+		boolean joined = false;
+		while (!joined) {
+			try {
+				writer.join();
+				joined = true;
+			} catch (InterruptedException e) {
+				// 書き込みが終わるまで待つ
+			}
+		}
+		mWriter = null;
+	}
+
+	/**
+	 * RAW のサンプルを追加して条件を評価する(センサーのスレッドから呼ぶ)
+	 *
+	 * 1つのブロックに複数の発火があれば、それぞれを記録する。
+	 */
+	public void onSamples(long[] timestamps, float[] x, float[] y, float[] z,
+			float[] r, int length) {
+		long sequence = mBuffer.getSequence();
+		mBuffer.addAll(timestamps, x, y, z, r, 0, length);
+		boolean queued = false;
+		int start = 0;
+		while (start < length) {
+			int fired = mRule.process(timestamps, r, start, length - start);
+			if (fired < 0) {
+				break;
+			}
+			start = fired + 1;
+			if (sequence + fired >= mArmedAt) {
+				queued |= enqueue(sequence + fired, timestamps[fired]);
+			}
+		}
+		if (queued) {
+			Thread writer = mWriter;
+			if (writer != null) {
+				LockSupport.unpark(writer);
+			}
+		}
+	}
+
+	// 発火をキューに入れる(一杯なら失った数に数えて false)
+	private boolean enqueue(long sequence, long timestamp) {
+		int queued = mQueued;
+		if (queued - mTaken >= QUEUE_SIZE) {
+			mMissed++;
+			return false;
+		}
+		int index = queued % QUEUE_SIZE;
+		mQueueSequences[index] = sequence;
+		mQueueTimestamps[index] = timestamp;
+		mQueueDetectTimes[index] = System.nanoTime();
+		mQueueWallTimes[index] = System.currentTimeMillis();
+		mArmedAt = sequence + mPostSamples;
+		mQueued = queued + 1;
+		return true;
+	}
+
+	/**
+	 * キューが一杯で記録できなかった発火の数を返す
+	 */
+	public int getMissed() {
+		return mMissed;
+	}
+
+	/**
+	 * これまでに発火した数を返す(書き込み中を含む)
+	 */
+	public int getTriggerCount() {
+		return mQueued;
+	}
+
+	/**
+	 * 記録したイベントを古い順に返す
+	 */
+	public synchronized Event[] getEvents() {
+		return mEvents.toArray(new Event[mEvents.size()]);
+	}
+
+	private void writeEvents() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss_SSS",
+				Locale.US);
+		while (mRunning) {
+			int taken = mTaken;
+			if (taken == mQueued) {
+				LockSupport.parkNanos(this, WAIT_INTERVAL * 1000000L);
+				continue;
+			}
+			int index = taken % QUEUE_SIZE;
+			long sequence = mQueueSequences[index];
+			long timestamp = mQueueTimestamps[index];
+			long detectTime = mQueueDetectTimes[index];
+			long wallTime = mQueueWallTimes[index];
+			mTaken = taken + 1;
+
+			File file = new File(mDirectory, "event_"
+					+ format.format(new Date(wallTime))
+					+ RecordingFormat.EXTENSION);
+			Event event = write(file, sequence, timestamp, detectTime,
+					wallTime);
+			synchronized (this) {
+				mEvents.add(event);
+			}
+			OnEventListener listener = mListener;
+			if (listener != null) {
+				listener.onEvent(event);
+			}
+		}
+	}
+
+	// 発火の前後を書き込む(停止したら届いた分で閉じる)
+	private Event write(File file, long sequence, long timestamp,
+			long detectTime, long wallTime) {
+		Recorder recorder = new Recorder(new SampleBuffer[] { mBuffer },
+				new ChannelDescriptor[] { mDescriptor }, file, wallTime);
+		recorder.setRange(Math.max(0, sequence - mPreSamples), sequence
+				+ mPostSamples);
+		String error = null;
+		try {
+			recorder.open();
+			try {
+				while (recorder.isAlive() && mRunning) {
+					recorder.join(WAIT_INTERVAL);
+				}
+			} catch (InterruptedException e) {
+				// 届いた分で閉じる
+			}
+			recorder.close();
+		} catch (IOException e) {
+			error = e.getMessage();
+		}
+		long firstWrite = recorder.getFirstWriteTime();
+		return new Event(mRule.getType(), file, wallTime, timestamp, recorder
+				.getSampleCount(), recorder.getDropped(),
+				firstWrite != 0 ? firstWrite - detectTime : -1, System
+						.nanoTime()
+						- detectTime, error);
+	}
+}
@@ -0,0 +1,141 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * ライブの加速度からイベントを検出する条件
+ *
+ * 実加速度(R)がしきい値を超えたとき(衝撃)、R の高域成分のエネルギーが
+ * しきい値を超えたとき(振動)、R がしきい値より小さい状態が続いたとき(落下)
+ * のいずれかで発火する。条件を満たし始めたサンプルで1回だけ発火し、条件が
+ * 外れるまでは再び発火しない。
+ *
+ * センサーのスレッドで全サンプルに対して呼ばれるので、1件あたり数回の
+ * 四則演算で済ませ、メモリを確保しない。
+ */
+public class TriggerRule {
+
+	public static final int MAGNITUDE = 0;
+	public static final int HIGH_PASS_ENERGY = 1;
+	public static final int FREE_FALL = 2;
+
+	public static final String[] NAMES = { "Magnitude", "High-pass energy",
+			"Free fall" };
+
+	// 高域通過の時定数(秒, 遮断周波数は約 1.6Hz)
+	private static final float HIGH_PASS_TIME_CONSTANT = 0.1f;
+	// エネルギーを平滑化する時定数(秒)
+	private static final float ENERGY_TIME_CONSTANT = 0.05f;
+	// タイムスタンプの間隔が分からないときに使う値(ナノ秒)
+	private static final long DEFAULT_INTERVAL = 20000000L;
+
+	private final int mType;
+	private final float mThreshold;
+	private final long mDuration;
+
+	private boolean mActive;
+	private long mLastTimestamp;
+	// 落下: 条件を満たし始めたタイムスタンプ(満たしていなければ -1)
+	private long mBelowSince = -1;
+	// 振動: 高域通過の状態とエネルギー
+	private float mLastInput;
+	private float mHighPass;
+	private float mEnergy;
+	private boolean mPrimed;
+
+	/**
+	 * @param threshold
+	 *            しきい値(m/s^2, 振動ではエネルギーの RMS)
+	 * @param duration
+	 *            落下で条件が続く必要のある時間(ナノ秒)
+	 */
+	public TriggerRule(int type, float threshold, long duration) {
+		if (type < MAGNITUDE || type > FREE_FALL) {
+			throw new IllegalArgumentException("type: " + type);
+		}
+		mType = type;
+		mThreshold = threshold;
+		mDuration = duration;
+	}
+
+	public int getType() {
+		return mType;
+	}
+
+	public float getThreshold() {
+		return mThreshold;
+	}
+
+	public void reset() {
+		mActive = false;
+		mLastTimestamp = 0;
+		mBelowSince = -1;
+		mLastInput = 0;
+		mHighPass = 0;
+		mEnergy = 0;
+		mPrimed = false;
+	}
+
+	/**
+	 * サンプルを順に評価し、発火したところで止める
+	 *
+	 * 発火したサンプルより後は評価しないので、1つのブロックの中の発火を
+	 * 全て求めるには、返した位置の次から残りを渡して呼び直す。
+	 *
+	 * @param magnitudes
+	 *            実加速度(R)
+	 * @return 発火したサンプルの位置(発火しなければ -1)
+	 */
+	public int process(long[] timestamps, float[] magnitudes, int offset,
+			int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			boolean active = evaluate(timestamps[i], magnitudes[i]);
+			boolean fired = active && !mActive;
+			mActive = active;
+			if (fired) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean evaluate(long timestamp, float magnitude) {
+		switch (mType) {
+		case MAGNITUDE:
+			return magnitude > mThreshold;
+		case HIGH_PASS_ENERGY:
+			return updateEnergy(timestamp, magnitude) > mThreshold * mThreshold;
+		default:
+			if (magnitude >= mThreshold) {
+				mBelowSince = -1;
+				return false;
+			}
+			if (mBelowSince < 0) {
+				mBelowSince = timestamp;
+			}
+			return timestamp - mBelowSince >= mDuration;
+		}
+	}
+
+	// 1次の高域通過の出力の2乗を指数移動平均する(係数は間隔から求める)
+	private float updateEnergy(long timestamp, float magnitude) {
+		long interval = timestamp - mLastTimestamp;
+		if (!mPrimed || interval <= 0 || interval > 1000000000L) {
+			interval = DEFAULT_INTERVAL;
+		}
+		mLastTimestamp = timestamp;
+		if (!mPrimed) {
+			// 最初のサンプルは重力を含んだ値なので、差分の基準にするだけ
+			mPrimed = true;
+			mLastInput = magnitude;
+			return 0;
+		}
+		float dt = interval * 1e-9f;
+		float alpha = HIGH_PASS_TIME_CONSTANT
+				/ (HIGH_PASS_TIME_CONSTANT + dt);
+		mHighPass = alpha * (mHighPass + magnitude - mLastInput);
+		mLastInput = magnitude;
+		float beta = dt / (ENERGY_TIME_CONSTANT + dt);
+		mEnergy += (mHighPass * mHighPass - mEnergy) * beta;
+		return mEnergy;
+	}
+}
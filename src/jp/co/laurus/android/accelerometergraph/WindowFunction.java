@@ -0,0 +1,49 @@
+package jp.co.laurus.android.accelerometergraph;
+
+/**
+ * FFT の前にかける窓関数
+ */
+public class WindowFunction {
+
+	public static final int RECTANGULAR = 0;
+	public static final int HANN = 1;
+	public static final int HAMMING = 2;
+
+	public static final String[] NAMES = { "Rectangular", "Hann", "Hamming" };
+
+	private WindowFunction() {
+	}
+
+	/**
+	 * 長さ size の窓の係数を作る(スペクトル解析用の周期的な窓)
+	 */
+	public static float[] create(int type, int size) {
+		float[] coefficients = new float[size];
+		for (int i = 0; i < size; i++) {
+			double phase = 2 * Math.PI * i / size;
+			switch (type) {
+			case HANN:
+				coefficients[i] = (float) (0.5 - 0.5 * Math.cos(phase));
+				break;
+			case HAMMING:
+				coefficients[i] = (float) (0.54 - 0.46 * Math.cos(phase));
+				break;
+			default:
+				coefficients[i] = 1f;
+				break;
+			}
+		}
+		return coefficients;
+	}
+
+	/**
+	 * 係数の和(振幅を元の単位に戻すのに使う)
+	 */
+	public static float sum(float[] coefficients) {
+		double sum = 0;
+		for (int i = 0; i < coefficients.length; i++) {
+			sum += coefficients[i];
+		}
+		return (float) sum;
+	}
+}